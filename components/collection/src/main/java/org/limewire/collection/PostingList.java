@@ -0,0 +1,498 @@
+package org.limewire.collection;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A sorted set of non-negative integers stored compactly as variable-length
+ * deltas, for use as the posting list of an inverted index.
+ * <p>
+ * Each value is written as the difference to the previous value, seven bits
+ * per byte, so a list of dense file indices takes little more than a byte per
+ * entry. Every {@link #SKIP_INTERVAL} entries a skip pointer is recorded, so
+ * that a {@link Cursor} can jump ahead to a target value without decoding the
+ * entries in between. This makes intersecting a short list with a long one
+ * cost roughly proportional to the short one.
+ * <p>
+ * Adding values in increasing order appends to the list in amortized
+ * constant time. Smaller values that are added are kept in a small sorted
+ * array next to the encoded entries, and removed values are kept as
+ * tombstones in another; cursors merge them in. Once either holds more than
+ * {@link #SKIP_INTERVAL} values or the square root of the size of the list,
+ * the list is rebuilt without them, so each change costs roughly the square
+ * root of the size of the list instead of all of it.
+ * <p>
+ * The bytes written before a cursor was created are never modified; changes
+ * either append past them or replace the arrays. So a cursor may be used
+ * without a lock after being created while holding the lock that guards
+ * the modifications of the list. The list itself is not thread-safe.
+ * <pre>
+    PostingList a = new PostingList();
+    a.add(1); a.add(5); a.add(9); a.add(12);
+    PostingList b = new PostingList();
+    b.add(5); b.add(12); b.add(40);
+    System.out.println(a.intersect(b));
+
+    Output:
+        [5, 12]
+ * </pre>
+ */
+public class PostingList {
+
+    /** The number of entries between two skip pointers. */
+    public static final int SKIP_INTERVAL = 64;
+
+    /** Returned by a {@link Cursor} that has no more values. */
+    public static final int END = -1;
+
+    private static final byte[] EMPTY_BYTES = new byte[0];
+
+    private static final int[] EMPTY_INTS = new int[0];
+
+    /** The encoded deltas. */
+    private byte[] data = EMPTY_BYTES;
+
+    /** The number of bytes of data in use. */
+    private int length;
+
+    /** The number of values in the list. */
+    private int size;
+
+    /** The largest value in the list, or -1 if it is empty. */
+    private int last = -1;
+
+    /** The value of every SKIP_INTERVAL'th entry, starting with the first. */
+    private int[] skipValues = EMPTY_INTS;
+
+    /** The offset in data of the entry following each skip value. */
+    private int[] skipOffsets = EMPTY_INTS;
+
+    /** The number of encoded entries, including removed ones. */
+    private int encoded;
+
+    /** Values smaller than last that were added, in increasing order. */
+    private int[] added = EMPTY_INTS;
+
+    /** Encoded values that were removed, in increasing order. */
+    private int[] removed = EMPTY_INTS;
+
+    /** Creates an empty list. */
+    public PostingList() {
+    }
+
+    /**
+     * Creates a list holding the given values.
+     *
+     * @param values values in strictly increasing order
+     * @param count the number of values to use
+     */
+    public PostingList(int[] values, int count) {
+        data = new byte[Math.max(count, 1)];
+        for (int i = 0; i < count; i++)
+            append(values[i]);
+    }
+
+    /** Returns the number of values in this list. */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Adds value to this list.
+     *
+     * @return true if the value was not already present
+     * @throws IllegalArgumentException if value is negative
+     */
+    public boolean add(int value) {
+        if (value < 0)
+            throw new IllegalArgumentException("negative value: " + value);
+        if (value > last) {
+            append(value);
+            return true;
+        }
+        if (isEncoded(value)) {
+            int idx = Arrays.binarySearch(removed, value);
+            if (idx < 0)
+                return false;
+            removed = delete(removed, idx);
+        } else {
+            int idx = Arrays.binarySearch(added, value);
+            if (idx >= 0)
+                return false;
+            added = insert(added, -(idx + 1), value);
+        }
+        size++;
+        compactIfNeeded();
+        return true;
+    }
+
+    /**
+     * Removes value from this list.
+     *
+     * @return true if the value was present
+     */
+    public boolean remove(int value) {
+        if (value < 0 || value > last)
+            return false;
+        int idx = Arrays.binarySearch(added, value);
+        if (idx >= 0) {
+            added = delete(added, idx);
+        } else {
+            if (!isEncoded(value))
+                return false;
+            idx = Arrays.binarySearch(removed, value);
+            if (idx >= 0)
+                return false;
+            removed = insert(removed, -(idx + 1), value);
+        }
+        size--;
+        compactIfNeeded();
+        return true;
+    }
+
+    public boolean contains(int value) {
+        if (value < 0)
+            return false;
+        return cursor().advance(value) == value;
+    }
+
+    /** Removes all values, releasing the memory used for them. */
+    public void clear() {
+        data = EMPTY_BYTES;
+        skipValues = EMPTY_INTS;
+        skipOffsets = EMPTY_INTS;
+        added = EMPTY_INTS;
+        removed = EMPTY_INTS;
+        length = 0;
+        size = 0;
+        encoded = 0;
+        last = -1;
+    }
+
+    /**
+     * Shrinks the internal arrays to the memory that is in use, folding in
+     * the values that were added or removed out of order.
+     */
+    public void trim() {
+        compact();
+        if (data.length != length)
+            data = Arrays.copyOf(data, length);
+        int skips = skipCount(encoded);
+        if (skipValues.length != skips) {
+            skipValues = Arrays.copyOf(skipValues, skips);
+            skipOffsets = Arrays.copyOf(skipOffsets, skips);
+        }
+    }
+
+    /** Returns the values of this list in increasing order. */
+    public int[] toArray() {
+        int[] values = new int[size];
+        Cursor cursor = cursor();
+        for (int i = 0; i < values.length; i++)
+            values[i] = cursor.next();
+        return values;
+    }
+
+    /** Returns a cursor over the values this list holds at this moment. */
+    public Cursor cursor() {
+        return new Cursor(data, length, encoded, skipValues, skipOffsets, added, removed, size);
+    }
+
+    /** Returns a new list holding the values found in both this and other. */
+    public PostingList intersect(PostingList other) {
+        PostingList ret = new PostingList();
+        Cursor a = size <= other.size ? cursor() : other.cursor();
+        Cursor b = size <= other.size ? other.cursor() : cursor();
+        int value = a.next();
+        while (value != END) {
+            int found = b.advance(value);
+            if (found == END)
+                break;
+            if (found == value) {
+                ret.append(value);
+                value = a.next();
+            } else {
+                value = a.advance(found);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns a new list holding the values found in any of the given
+     * cursors.
+     */
+    public static PostingList union(Cursor... cursors) {
+        int total = 0;
+        for (Cursor cursor : cursors)
+            total += cursor.size();
+        int[] values = new int[total];
+        int count = 0;
+        for (Cursor cursor : cursors) {
+            for (int value = cursor.next(); value != END; value = cursor.next())
+                values[count++] = value;
+        }
+        Arrays.sort(values, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || values[unique - 1] != values[i])
+                values[unique++] = values[i];
+        }
+        return new PostingList(values, unique);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    /** Returns whether value is one of the encoded entries, removed or not. */
+    private boolean isEncoded(int value) {
+        return new Cursor(data, length, encoded, skipValues, skipOffsets,
+                EMPTY_INTS, EMPTY_INTS, encoded).advance(value) == value;
+    }
+
+    /**
+     * Rebuilds the list once the values added or removed out of order take
+     * more time to skip than rebuilding would.
+     */
+    private void compactIfNeeded() {
+        int limit = Math.max(SKIP_INTERVAL, (int)Math.sqrt(encoded));
+        if (added.length > limit || removed.length > limit)
+            compact();
+    }
+
+    /** Encodes the values added or removed out of order into the list. */
+    private void compact() {
+        if (added.length == 0 && removed.length == 0)
+            return;
+        int[] values = toArray();
+        clear();
+        data = new byte[Math.max(values.length, 1)];
+        for (int value : values)
+            append(value);
+    }
+
+    /** Returns a copy of values with value inserted at idx. */
+    private static int[] insert(int[] values, int idx, int value) {
+        int[] inserted = new int[values.length + 1];
+        System.arraycopy(values, 0, inserted, 0, idx);
+        inserted[idx] = value;
+        System.arraycopy(values, idx, inserted, idx + 1, values.length - idx);
+        return inserted;
+    }
+
+    /** Returns a copy of values without the value at idx. */
+    private static int[] delete(int[] values, int idx) {
+        if (values.length == 1)
+            return EMPTY_INTS;
+        int[] deleted = new int[values.length - 1];
+        System.arraycopy(values, 0, deleted, 0, idx);
+        System.arraycopy(values, idx + 1, deleted, idx, values.length - idx - 1);
+        return deleted;
+    }
+
+    /** Appends a value larger than every value in the list. */
+    private void append(int value) {
+        int delta = value - last;
+        if (encoded % SKIP_INTERVAL == 0) {
+            int skip = encoded / SKIP_INTERVAL;
+            if (skip == skipValues.length) {
+                int capacity = Math.max(4, skip * 2);
+                skipValues = Arrays.copyOf(skipValues, capacity);
+                skipOffsets = Arrays.copyOf(skipOffsets, capacity);
+            }
+            skipValues[skip] = value;
+            // the skipped-to entry is stored too, so the list can still be
+            // decoded from the start
+            writeVarInt(delta);
+            skipOffsets[skip] = length;
+        } else {
+            writeVarInt(delta);
+        }
+        last = value;
+        encoded++;
+        size++;
+    }
+
+    private void writeVarInt(int value) {
+        if (length + 5 > data.length)
+            data = Arrays.copyOf(data, Math.max(length + 5, data.length * 2));
+        while ((value & ~0x7F) != 0) {
+            data[length++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[length++] = (byte)value;
+    }
+
+    private static int skipCount(int size) {
+        return (size + SKIP_INTERVAL - 1) / SKIP_INTERVAL;
+    }
+
+    /**
+     * Iterates over a snapshot of a list in increasing order, and can skip
+     * forward to a target value.
+     */
+    public static final class Cursor {
+        private final byte[] data;
+        private final int length;
+        /** The number of encoded entries. */
+        private final int encoded;
+        private final int[] skipValues;
+        private final int[] skipOffsets;
+        private final int[] added;
+        private final int[] removed;
+        /** The number of values in the list. */
+        private final int size;
+
+        /** The offset in data of the next entry to decode. */
+        private int offset;
+        /** The number of entries decoded so far. */
+        private int position;
+        /** The last entry decoded, or -1 before the first. */
+        private int decoded = -1;
+        /** The next encoded value that was not removed, or UNKNOWN. */
+        private int nextEncoded = UNKNOWN;
+        /** The index of the first removed value not below decoded. */
+        private int removedIdx;
+        /** The index of the next added value. */
+        private int addedIdx;
+        /** The number of values returned so far. */
+        private int returned;
+        /** The last value returned, or -1 before the first. */
+        private int current = -1;
+
+        private static final int UNKNOWN = -2;
+
+        Cursor(byte[] data, int length, int encoded, int[] skipValues, int[] skipOffsets,
+                int[] added, int[] removed, int size) {
+            this.data = data;
+            this.length = length;
+            this.encoded = encoded;
+            this.skipValues = skipValues;
+            this.skipOffsets = skipOffsets;
+            this.added = added;
+            this.removed = removed;
+            this.size = size;
+        }
+
+        /** Returns the number of values in the underlying list. */
+        public int size() {
+            return size;
+        }
+
+        /** Returns the last value returned by this cursor, or -1 if none. */
+        public int current() {
+            return current;
+        }
+
+        public boolean hasNext() {
+            if (nextEncoded == UNKNOWN)
+                nextEncoded = skipRemoved(decode());
+            return nextEncoded != END || addedIdx < added.length;
+        }
+
+        /** Returns the next value, or {@link PostingList#END} if none. */
+        public int next() {
+            if (nextEncoded == UNKNOWN)
+                nextEncoded = skipRemoved(decode());
+            int nextAdded = addedIdx < added.length ? added[addedIdx] : END;
+            if (nextEncoded == END && nextAdded == END) {
+                current = END;
+                return END;
+            }
+            if (nextAdded == END || (nextEncoded != END && nextEncoded < nextAdded)) {
+                current = nextEncoded;
+                nextEncoded = UNKNOWN;
+            } else {
+                current = nextAdded;
+                addedIdx++;
+            }
+            returned++;
+            return current;
+        }
+
+        /**
+         * Moves to the first value that is at least target and returns it,
+         * or returns {@link PostingList#END} if there is none. Does not move
+         * backwards: if the last value returned is already at least target,
+         * it is returned again.
+         */
+        public int advance(int target) {
+            if (returned > 0 && (current == END || current >= target))
+                return current;
+            if (nextEncoded == UNKNOWN || (nextEncoded != END && nextEncoded < target))
+                nextEncoded = skipRemoved(advanceEncoded(target));
+            if (addedIdx < added.length && added[addedIdx] < target) {
+                int idx = Arrays.binarySearch(added, addedIdx, added.length, target);
+                addedIdx = idx >= 0 ? idx : -(idx + 1);
+            }
+            return next();
+        }
+
+        /** Returns value, or the first encoded value after it that was not removed. */
+        private int skipRemoved(int value) {
+            while (value != END) {
+                while (removedIdx < removed.length && removed[removedIdx] < value)
+                    removedIdx++;
+                if (removedIdx == removed.length || removed[removedIdx] != value)
+                    return value;
+                value = decode();
+            }
+            return END;
+        }
+
+        /** Decodes the next encoded entry, or returns END if there is none. */
+        private int decode() {
+            if (position >= encoded)
+                return END;
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (offset >= length)
+                    throw new NoSuchElementException();
+                b = data[offset++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            position++;
+            decoded += delta;
+            return decoded;
+        }
+
+        /**
+         * Decodes up to the first encoded entry that is at least target,
+         * using the skip pointers, and returns it or END.
+         */
+        private int advanceEncoded(int target) {
+            // find the last skip pointer at or before target, past where we are
+            int lo = skipCount(position), hi = skipCount(encoded) - 1, skip = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (skipValues[mid] <= target) {
+                    skip = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            if (skip >= 0) {
+                decoded = skipValues[skip];
+                offset = skipOffsets[skip];
+                position = skip * SKIP_INTERVAL + 1;
+                if (decoded >= target)
+                    return decoded;
+            }
+            int value;
+            do {
+                value = decode();
+            } while (value != END && value < target);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.limewire.collection;
+
+import java.util.Arrays;
+
+/**
+ * A Bloom filter over 64-bit hashes that forgets old entries by keeping
+ * several slices and rotating them, for remembering what was seen
+ * recently without allocating per entry.
+ * <p>
+ * New hashes go into the youngest slice; a hash is reported as seen if any
+ * slice may contain it. {@link #rotate()} clears the oldest slice and makes
+ * it the youngest, so with <i>n</i> slices an entry is remembered for
+ * between <i>n - 1</i> and <i>n</i> rotations. A slice that has taken
+ * <code>capacity</code> hashes is rotated early, which keeps the false
+ * positive rate near the one asked for at the cost of a shorter memory
+ * under heavy load.
+ * <p>
+ * The bits for a hash are chosen from its two 32-bit halves, so callers
+ * should pass well mixed hashes, e.g. from {@link #mix(long)}.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class RotatingBloomFilter {
+
+    private final long[][] slices;
+    /** The number of longs in each slice. */
+    private final int words;
+    /** The number of bits in each slice. */
+    private final long bits;
+    /** The number of bits set per hash. */
+    private final int hashes;
+    private final int capacity;
+
+    /** The index of the youngest slice. */
+    private int young;
+    /** The number of hashes added to the youngest slice. */
+    private int added;
+
+    /**
+     * Creates a filter whose slices each hold capacity hashes with about the
+     * given false positive rate.
+     *
+     * @param capacity the number of hashes per slice
+     * @param falsePositiveRate the chance that an unseen hash is reported as
+     * seen by one full slice, between 0 and 1 exclusive
+     * @param slices the number of slices, at least 2
+     */
+    public RotatingBloomFilter(int capacity, double falsePositiveRate, int slices) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity: " + capacity);
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("false positive rate: " + falsePositiveRate);
+        if (slices < 2)
+            throw new IllegalArgumentException("slices: " + slices);
+        double ln2 = Math.log(2);
+        long m = (long)Math.ceil(-capacity * Math.log(falsePositiveRate) / (ln2 * ln2));
+        this.words = (int)Math.max(1, (m + 63) >>> 6);
+        this.bits = (long)words << 6;
+        this.hashes = (int)Math.max(1, Math.round((double)bits / capacity * ln2));
+        this.capacity = capacity;
+        this.slices = new long[slices][words];
+    }
+
+    /**
+     * Adds hash to the youngest slice.
+     *
+     * @return true if hash was not seen in any slice before
+     */
+    public boolean add(long hash) {
+        boolean seen = contains(hash);
+        if (!seen) {
+            if (added >= capacity)
+                rotate();
+            long[] slice = slices[young];
+            int h1 = (int)hash;
+            int h2 = (int)(hash >>> 32);
+            for (int i = 0; i < hashes; i++) {
+                long bit = index(h1 + i * h2);
+                slice[(int)(bit >>> 6)] |= 1L << bit;
+            }
+            added++;
+        }
+        return !seen;
+    }
+
+    /** Returns true if hash may have been added to any slice. */
+    public boolean contains(long hash) {
+        int h1 = (int)hash;
+        int h2 = (int)(hash >>> 32);
+        for (long[] slice : slices) {
+            if (contains(slice, h1, h2))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean contains(long[] slice, int h1, int h2) {
+        for (int i = 0; i < hashes; i++) {
+            long bit = index(h1 + i * h2);
+            if ((slice[(int)(bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private long index(int combined) {
+        return (combined & 0xFFFFFFFFL) % bits;
+    }
+
+    /** Forgets the oldest slice. */
+    public void rotate() {
+        young = (young + 1) % slices.length;
+        Arrays.fill(slices[young], 0);
+        added = 0;
+    }
+
+    /** Forgets everything. */
+    public void clear() {
+        for (long[] slice : slices)
+            Arrays.fill(slice, 0);
+        added = 0;
+    }
+
+    /** Returns the number of bits set per hash. */
+    public int getHashCount() {
+        return hashes;
+    }
+
+    /** Returns the number of bits in each slice. */
+    public long getSliceBits() {
+        return bits;
+    }
+
+    /** Mixes the bits of h so that every input bit affects every output bit. */
+    public static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,187 @@
+package org.limewire.collection;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import junit.framework.Test;
+
+import org.limewire.util.BaseTestCase;
+import org.limewire.util.PrivilegedAccessor;
+
+/**
+ * Unit tests for <code>PostingList</code>.
+ */
+public class PostingListTest extends BaseTestCase {
+
+    public PostingListTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(PostingListTest.class);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    public void testAddRemove() throws Exception {
+        PostingList list = new PostingList();
+        assertTrue(list.isEmpty());
+        assertTrue(list.add(5));
+        assertTrue(list.add(1000000));
+        assertTrue(list.add(7));
+        assertFalse(list.add(7));
+        assertEquals(new int[] { 5, 7, 1000000 }, list.toArray());
+        assertTrue(list.contains(7));
+        assertFalse(list.contains(6));
+
+        assertTrue(list.remove(5));
+        assertFalse(list.remove(5));
+        assertFalse(list.remove(-1));
+        assertEquals(new int[] { 7, 1000000 }, list.toArray());
+        assertEquals(2, list.size());
+
+        list.trim();
+        assertTrue(list.add(1000001));
+        assertEquals(3, list.size());
+
+        list.clear();
+        assertTrue(list.isEmpty());
+        assertEquals(0, list.toArray().length);
+
+        try {
+            list.add(-1);
+            fail("negative value");
+        } catch (IllegalArgumentException expected) {}
+    }
+
+    public void testCursorAdvance() throws Exception {
+        PostingList list = new PostingList();
+        for (int i = 0; i < 1000; i++)
+            list.add(i * 3);
+
+        PostingList.Cursor cursor = list.cursor();
+        assertEquals(0, cursor.next());
+        assertEquals(3, cursor.next());
+        // advancing to a smaller value stays put
+        assertEquals(3, cursor.advance(1));
+        assertEquals(300, cursor.advance(299));
+        assertEquals(300, cursor.advance(300));
+        // far enough to use skip pointers
+        assertEquals(2001, cursor.advance(2000));
+        assertEquals(2004, cursor.next());
+        assertEquals(2997, cursor.advance(2997));
+        assertEquals(PostingList.END, cursor.advance(2998));
+        assertEquals(PostingList.END, cursor.next());
+        assertFalse(cursor.hasNext());
+
+        assertEquals(PostingList.END, new PostingList().cursor().next());
+        assertEquals(PostingList.END, new PostingList().cursor().advance(0));
+    }
+
+    public void testCursorIsSnapshot() throws Exception {
+        PostingList list = new PostingList();
+        list.add(1);
+        list.add(2);
+        PostingList.Cursor cursor = list.cursor();
+        list.add(3);
+        list.remove(1);
+        assertEquals(2, cursor.size());
+        assertEquals(1, cursor.next());
+        assertEquals(2, cursor.next());
+        assertEquals(PostingList.END, cursor.next());
+    }
+
+    public void testOutOfOrderChangesDoNotRebuild() throws Exception {
+        PostingList list = new PostingList();
+        for (int i = 0; i < 10000; i++)
+            list.add(i * 2);
+        Object data = PrivilegedAccessor.getValue(list, "data");
+        
+        assertTrue(list.remove(5000));
+        assertTrue(list.add(5001));
+        assertFalse(list.add(5001));
+        assertTrue(list.add(5000));
+        assertSame(data, PrivilegedAccessor.getValue(list, "data"));
+        assertEquals(10001, list.size());
+        assertTrue(list.contains(5000));
+        assertTrue(list.contains(5001));
+        
+        // enough changes are folded into the encoded entries
+        for (int i = 1; i < 1000; i += 2)
+            list.add(i);
+        assertNotSame(data, PrivilegedAccessor.getValue(list, "data"));
+        assertEquals(10501, list.size());
+        int pending = ((int[])PrivilegedAccessor.getValue(list, "added")).length
+                + ((int[])PrivilegedAccessor.getValue(list, "removed")).length;
+        assertLessThanOrEquals((int)Math.sqrt(list.size()), pending);
+    }
+    
+    public void testRandomChangesMatchSortedSet() throws Exception {
+        Random random = new Random(7);
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+        PostingList list = new PostingList();
+        for (int round = 0; round < 20000; round++) {
+            int x = random.nextInt(5000);
+            if (random.nextInt(3) == 0)
+                assertEquals(expected.remove(x), list.remove(x));
+            else
+                assertEquals(expected.add(x), list.add(x));
+            assertEquals(expected.size(), list.size());
+            
+            if (round % 500 == 0) {
+                assertEquals(toArray(expected), list.toArray());
+                PostingList.Cursor cursor = list.cursor();
+                int target = 0;
+                while (true) {
+                    target += random.nextInt(200);
+                    Integer ceiling = expected.ceiling(target);
+                    int found = cursor.advance(target);
+                    assertEquals(ceiling == null ? PostingList.END : ceiling.intValue(), found);
+                    if (found == PostingList.END)
+                        break;
+                    target = found + 1;
+                }
+            }
+        }
+        list.trim();
+        assertEquals(toArray(expected), list.toArray());
+    }
+
+    public void testIntersectAndUnion() throws Exception {
+        Random random = new Random(42);
+        TreeSet<Integer> a = new TreeSet<Integer>();
+        TreeSet<Integer> b = new TreeSet<Integer>();
+        PostingList la = new PostingList();
+        PostingList lb = new PostingList();
+        for (int i = 0; i < 5000; i++) {
+            int x = random.nextInt(20000);
+            a.add(x);
+            la.add(x);
+        }
+        for (int i = 0; i < 300; i++) {
+            int x = random.nextInt(20000);
+            b.add(x);
+            lb.add(x);
+        }
+
+        TreeSet<Integer> both = new TreeSet<Integer>(a);
+        both.retainAll(b);
+        assertEquals(toArray(both), la.intersect(lb).toArray());
+        assertEquals(toArray(both), lb.intersect(la).toArray());
+
+        TreeSet<Integer> either = new TreeSet<Integer>(a);
+        either.addAll(b);
+        assertEquals(toArray(either), PostingList.union(la.cursor(), lb.cursor()).toArray());
+        assertEquals(toArray(a), la.toArray());
+    }
+
+    private static int[] toArray(TreeSet<Integer> set) {
+        int[] ret = new int[set.size()];
+        int i = 0;
+        for (int x : set)
+            ret[i++] = x;
+        return ret;
+    }
+}
@@ -0,0 +1,89 @@
+package org.limewire.collection;
+
+import java.util.Random;
+
+import junit.framework.Test;
+
+import org.limewire.util.BaseTestCase;
+
+/**
+ * Unit tests for <code>RotatingBloomFilter</code>.
+ */
+public class RotatingBloomFilterTest extends BaseTestCase {
+
+    public RotatingBloomFilterTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(RotatingBloomFilterTest.class);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    public void testAddAndRotate() throws Exception {
+        RotatingBloomFilter filter = new RotatingBloomFilter(100, 0.001, 2);
+        long a = RotatingBloomFilter.mix(1);
+        long b = RotatingBloomFilter.mix(2);
+        assertTrue(filter.add(a));
+        assertFalse(filter.add(a));
+        assertTrue(filter.contains(a));
+        assertFalse(filter.contains(b));
+
+        // a is in the old slice now, and still seen
+        filter.rotate();
+        assertTrue(filter.contains(a));
+        assertTrue(filter.add(b));
+        // a is gone, b is in the old slice
+        filter.rotate();
+        assertFalse(filter.contains(a));
+        assertTrue(filter.contains(b));
+
+        filter.clear();
+        assertFalse(filter.contains(b));
+    }
+
+    public void testFullSliceRotates() throws Exception {
+        RotatingBloomFilter filter = new RotatingBloomFilter(10, 0.001, 2);
+        for (int i = 0; i < 10; i++)
+            assertTrue(filter.add(RotatingBloomFilter.mix(i)));
+        // the eleventh rotates, so the first ten are old but remembered
+        assertTrue(filter.add(RotatingBloomFilter.mix(10)));
+        assertTrue(filter.contains(RotatingBloomFilter.mix(0)));
+        for (int i = 11; i < 21; i++)
+            filter.add(RotatingBloomFilter.mix(i));
+        assertFalse(filter.contains(RotatingBloomFilter.mix(0)));
+    }
+
+    public void testFalsePositiveRate() throws Exception {
+        int capacity = 10000;
+        RotatingBloomFilter filter = new RotatingBloomFilter(capacity, 0.01, 2);
+        assertEquals(7, filter.getHashCount());
+        Random random = new Random(7);
+        for (int i = 0; i < capacity; i++)
+            filter.add(RotatingBloomFilter.mix(random.nextLong()));
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.contains(RotatingBloomFilter.mix(random.nextLong())))
+                falsePositives++;
+        }
+        assertLessThan(2000, falsePositives);
+    }
+
+    public void testBadArguments() throws Exception {
+        try {
+            new RotatingBloomFilter(0, 0.1, 2);
+            fail("no capacity");
+        } catch (IllegalArgumentException expected) {}
+        try {
+            new RotatingBloomFilter(10, 1, 2);
+            fail("bad rate");
+        } catch (IllegalArgumentException expected) {}
+        try {
+            new RotatingBloomFilter(10, 0.1, 1);
+            fail("one slice");
+        } catch (IllegalArgumentException expected) {}
+    }
+}
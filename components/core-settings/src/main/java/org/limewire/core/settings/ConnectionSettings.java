@@ -158,6 +158,15 @@ public final class ConnectionSettings extends LimeProps {
      */
     public static BooleanSetting SEND_QRP = FACTORY.createBooleanSetting("SEND_QRP", true);
 
+    /**
+     * Setting for whether or not an ultrapeer should find the leaves to
+     * forward a query to through one index over all their QRP tables, rather
+     * than by checking each table in turn. Read when the MessageRouter is
+     * created.
+     */
+    public static final BooleanSetting LEAF_QRP_INDEX = FACTORY.createBooleanSetting(
+            "LEAF_QRP_INDEX", false);
+
     /**
      * Setting for whether or not we'll accept incoming connections that are
      * compressed via deflate.
@@ -373,4 +382,11 @@ public final class ConnectionSettings extends LimeProps {
 
     public static final IntSetting STABLE_TOTAL_MESSAGES_THRESHOLD = FACTORY.createIntSetting(
             "STABLE_TOTAL_MESSAGES_THRESHOLD", 45);
+
+    /**
+     * The number of threads that decode incoming UDP messages.  With none,
+     * messages are decoded on the NIO thread that received them.
+     */
+    public static final IntSetting UDP_DECODE_THREADS = FACTORY.createIntSetting(
+            "UDP_DECODE_THREADS", 0);
 }
@@ -136,4 +136,55 @@ public class DownloadSettings extends LimeProps {
      */
     public static final BooleanSetting ALWAYS_SHOW_DOWNLOADS_TRAY = FACTORY.createBooleanSetting(
             "ALWAYS_SHOW_DOWNLOADS_TRAY", false);
+
+    /**
+     * Whether to write downloads through one disk queue per volume, ordering
+     * the writes to each file by offset, rather than through a single queue.
+     */
+    public static final BooleanSetting PER_VOLUME_DISK_QUEUES = FACTORY.createBooleanSetting(
+            "PER_VOLUME_DISK_QUEUES", false);
+
+    /**
+     * Whether to write incomplete files through memory mapped regions and
+     * verify their chunks from memory, rather than reading them back.
+     */
+    public static final BooleanSetting MAPPED_INCOMPLETE_FILES = FACTORY.createBooleanSetting(
+            "MAPPED_INCOMPLETE_FILES", false);
+
+    /**
+     * Whether to download the blocks that the fewest known partial sources
+     * have first, and let partial sources share the last blocks of a download.
+     */
+    public static final BooleanSetting RAREST_FIRST_SELECTION = FACTORY.createBooleanSetting(
+            "RAREST_FIRST_SELECTION", false);
+
+    /**
+     * Whether to rank download sources by the throughput, response time and
+     * failure rate they and their networks had in past downloads.
+     */
+    public static final BooleanSetting THROUGHPUT_SOURCE_RANKING = FACTORY.createBooleanSetting(
+            "THROUGHPUT_SOURCE_RANKING", false);
+
+    /**
+     * Whether reliable UDP connections tell each other which messages past
+     * a missing one they already received, so that only the missing ones
+     * are sent again.
+     */
+    public static final BooleanSetting RUDP_SELECTIVE_ACKS = FACTORY.createBooleanSetting(
+            "RUDP_SELECTIVE_ACKS", false);
+
+    /**
+     * Whether reliable UDP connections limit their sending by the queuing
+     * delay they measure, yielding to other traffic, rather than by their
+     * failure rate.
+     */
+    public static final BooleanSetting RUDP_DELAY_BASED_CONGESTION = FACTORY.createBooleanSetting(
+            "RUDP_DELAY_BASED_CONGESTION", false);
+
+    /**
+     * The number of messages a reliable UDP connection can have in flight
+     * or waiting to be read.
+     */
+    public static final IntSetting RUDP_WINDOW_SIZE = FACTORY.createIntSetting(
+            "RUDP_WINDOW_SIZE", 20, 1, 256);
 }
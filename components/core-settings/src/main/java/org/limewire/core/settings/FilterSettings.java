@@ -2,6 +2,7 @@ package org.limewire.core.settings;
 
 import org.limewire.inspection.InspectablePrimitive;
 import org.limewire.setting.BooleanSetting;
+import org.limewire.setting.FloatSetting;
 import org.limewire.setting.IntSetting;
 import org.limewire.setting.LongSetting;
 import org.limewire.setting.StringArraySetting;
@@ -63,6 +64,14 @@ public class FilterSettings extends LimeProps {
     public static final BooleanSetting FILTER_DUPLICATES =
         FACTORY.createBooleanSetting("FILTER_DUPLICATES", true);
     
+    /**
+     * The chance that the duplicate filter wrongly blocks a new query, in
+     * exchange for remembering recent queries by hash in a Bloom filter.
+     * 0 remembers them exactly.
+     */
+    public static final FloatSetting DUPLICATE_QUERY_FALSE_POSITIVE_RATE =
+        FACTORY.createFloatSetting("DUPLICATE_QUERY_FALSE_POSITIVE_RATE", 0f);
+    
     /**
      * Sets whether or not greedy queries are filtered.
      */
@@ -70,6 +70,27 @@ public class MessageSettings extends LimeProps {
         FACTORY.createRemoteBooleanSetting("GUID_ZERO_EXPERIMENT", false, 
                 "MessageSettings.guidZeroExperiment");
     
+    /**
+     * Whether reply route tables should store GUIDs in a lock-striped hash
+     * instead of a single synchronized map.  Read when a table is created.
+     */
+    public static final BooleanSetting STRIPED_ROUTE_TABLES =
+        FACTORY.createBooleanSetting("STRIPED_ROUTE_TABLES", false);
+    
+    /**
+     * Whether GGEP blocks in incoming queries, pongs and replies should be
+     * parsed lazily, decoding only the extensions that are read.
+     */
+    public static final BooleanSetting LAZY_GGEP_PARSING =
+        FACTORY.createBooleanSetting("LAZY_GGEP_PARSING", false);
+    
+    /**
+     * Whether connections should serialize several queued messages before
+     * each write, deflating each batch with a single flush.
+     */
+    public static final BooleanSetting BATCHED_MESSAGE_WRITES =
+        FACTORY.createBooleanSetting("BATCHED_MESSAGE_WRITES", false);
+    
     /**
      * Whether ultrapeers should filter queries to leaves based on firewall status.
      * Described in LWC-1309.
@@ -412,4 +412,11 @@ public final class SearchSettings extends LimeProps {
     public static final BooleanSetting INCLUDE_METADATA_IN_PLAINTEXT_SEARCH = FACTORY
             .createRemoteBooleanSetting("INCLUDE_METADATA_IN_PLAINTEXT_SEARCH", true,
                     "SearchSettings.includeMetadataInPlaintextSearch");
+
+    /**
+     * Whether shared file names should be indexed with compressed posting
+     * lists instead of keyword tries.  Read when the index is created.
+     */
+    public static final BooleanSetting POSTING_LIST_KEYWORD_INDEX = FACTORY.createBooleanSetting(
+            "POSTING_LIST_KEYWORD_INDEX", false);
 }
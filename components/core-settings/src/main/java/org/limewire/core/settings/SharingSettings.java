@@ -363,6 +363,37 @@ public class SharingSettings extends LimeProps {
     public static final BooleanSetting FRIENDLY_HASHING = FACTORY.createBooleanSetting(
             "FRIENDLY_HASHING", true);
 
+    /**
+     * Whether the tiger tree root of a shared file should be calculated
+     * in the same pass over the file as its SHA1.
+     */
+    public static final BooleanSetting SINGLE_PASS_HASHING = FACTORY.createBooleanSetting(
+            "SINGLE_PASS_HASHING", false);
+
+    /**
+     * The maximum number of shared files to hash at once.  This is also
+     * limited by the number of processors, and on each volume by
+     * CONCURRENT_HASHES_PER_VOLUME.
+     */
+    public static final IntSetting CONCURRENT_HASHES = FACTORY.createIntSetting(
+            "CONCURRENT_HASHES", 1);
+
+    /**
+     * The maximum number of shared files on the same volume to hash at
+     * once, if more than one file may be hashed at once.  Reading several
+     * files from one spinning disk makes it seek between them.
+     */
+    public static final IntSetting CONCURRENT_HASHES_PER_VOLUME = FACTORY.createIntSetting(
+            "CONCURRENT_HASHES_PER_VOLUME", 1);
+
+    /**
+     * Whether the URNs of shared files should be kept in an append-only
+     * log on disk instead of a map that is read into memory and rewritten
+     * on each save.  Only an index of the log is kept in memory.
+     */
+    public static final BooleanSetting URN_CACHE_LOG = FACTORY.createBooleanSetting(
+            "URN_CACHE_LOG", false);
+
     /**
      * Setting for the threshold of when to warn the user that a lot of files
      * are being shared.
@@ -111,4 +111,45 @@ public final class UploadSettings extends LimeProps {
     
     public static final BooleanSetting CHECK_DUPES =
         FACTORY.createBooleanSetting("CHECK_DUPE_UPLOADS", true);
+
+    /**
+     * Whether to send files straight from disk to the socket when uploads
+     * are not throttled and the connection does not use TLS.
+     */
+    public static final BooleanSetting ZERO_COPY_UPLOADS =
+        FACTORY.createBooleanSetting("ZERO_COPY_UPLOADS", false);
+
+    /**
+     * Whether to keep the most recently uploaded file ranges and THEX trees
+     * in memory, for files that many hosts are downloading at once.
+     */
+    public static final BooleanSetting HOT_CONTENT_CACHE =
+        FACTORY.createBooleanSetting("HOT_CONTENT_CACHE", false);
+
+    /**
+     * The most megabytes of uploaded contents to keep in memory.
+     */
+    public static final IntSetting HOT_CONTENT_CACHE_SIZE =
+        FACTORY.createIntSetting("HOT_CONTENT_CACHE_SIZE", 64);
+
+    /**
+     * Whether file, browse host and THEX uploads share the upload bandwidth
+     * by weight instead of file uploads competing for all of it.
+     */
+    public static final BooleanSetting CLASSED_UPLOAD_BANDWIDTH =
+        FACTORY.createBooleanSetting("CLASSED_UPLOAD_BANDWIDTH", false);
+
+    /**
+     * Whether to keep the replies sent for browses of our files, so that
+     * browsing the same files again does not encode them again.
+     */
+    public static final BooleanSetting BROWSE_REPLY_CACHE =
+        FACTORY.createBooleanSetting("BROWSE_REPLY_CACHE", false);
+
+    /**
+     * Whether to keep the direct alternate locations that downloaders tell us
+     * about in compact form and send them to downloaders from a cached header.
+     */
+    public static final BooleanSetting COMPACT_ALT_LOCS =
+        FACTORY.createBooleanSetting("COMPACT_ALT_LOCS", false);
 }
@@ -9,6 +9,9 @@ import org.limewire.nio.Throttle;
  */
 public interface BandwidthManager {
 
+    /** The classes of uploads that share the upload bandwidth. */
+    public enum UploadClass { FILE, BROWSE, THEX }
+
 	public void applyRate();
 
 	public void applyUploadRate();
@@ -19,4 +22,10 @@ public interface BandwidthManager {
     
     public Throttle getWriteThrottle(Socket socket);
 
+    /**
+     * Returns the throttle for uploads of the given class on socket, which
+     * shares the upload bandwidth with the uploads of the other classes.
+     */
+    public Throttle getUploadThrottle(Socket socket, UploadClass uploadClass);
+
 }
@@ -1,9 +1,15 @@
 package com.limegroup.gnutella;
 
 import java.net.Socket;
+import java.util.EnumMap;
+import java.util.Map;
 
 import org.limewire.core.settings.ConnectionSettings;
 import org.limewire.core.settings.DownloadSettings;
+import org.limewire.core.settings.UploadSettings;
+import org.limewire.inspection.Inspectable;
+import org.limewire.inspection.InspectionPoint;
+import org.limewire.nio.HierarchicalThrottle;
 import org.limewire.nio.NBThrottle;
 import org.limewire.nio.Throttle;
 import org.limewire.rudp.RUDPSocket;
@@ -16,8 +22,23 @@ public class BandwidthManagerImpl implements BandwidthManager {
 
     private final Throttle UP_TCP, DOWN_TCP, UP_UDP;
     
+    /** Shares the upload bandwidth of TCP uploads among their classes. */
+    private final HierarchicalThrottle UP_TCP_CLASSES;
+    
+    private final Map<UploadClass, HierarchicalThrottle.ClassThrottle> UP_TCP_CLASS =
+        new EnumMap<UploadClass, HierarchicalThrottle.ClassThrottle>(UploadClass.class);
+    
     private final UploadServices uploadServices;
     
+    @SuppressWarnings("unused")
+    @InspectionPoint("upload class rates")
+    private final Inspectable uploadClassRates = new Inspectable() {
+        @Override
+        public Object inspect() {
+            return UP_TCP_CLASSES.getMeasuredRates();
+        }
+    };
+    
     @Inject
     public BandwidthManagerImpl(UploadServices uploadServices) {
         this.uploadServices = uploadServices;
@@ -25,6 +46,13 @@ public class BandwidthManagerImpl implements BandwidthManager {
         UP_TCP = new NBThrottle(true,0);
         DOWN_TCP = new NBThrottle(false,0);
         UP_UDP = new NBThrottle(true, 0);
+        
+        // files get most of the bandwidth, browses and trees are small
+        UP_TCP_CLASSES = new HierarchicalThrottle(true, 0);
+        UP_TCP_CLASS.put(UploadClass.FILE, UP_TCP_CLASSES.addClass("file", 8, Float.MAX_VALUE));
+        UP_TCP_CLASS.put(UploadClass.BROWSE, UP_TCP_CLASSES.addClass("browse", 2, Float.MAX_VALUE));
+        UP_TCP_CLASS.put(UploadClass.THEX, UP_TCP_CLASSES.addClass("thex", 1,
+                UploadSettings.THEX_UPLOAD_SPEED.getValue()));
     }
     
     public void applyRate() {
@@ -46,6 +74,8 @@ public class BandwidthManagerImpl implements BandwidthManager {
     public void applyUploadRate() {
         UP_TCP.setRate(uploadServices.getRequestedUploadSpeed());
         UP_UDP.setRate(uploadServices.getRequestedUploadSpeed());
+        UP_TCP_CLASSES.setRate(uploadServices.getRequestedUploadSpeed());
+        UP_TCP_CLASS.get(UploadClass.THEX).setCeiling(UploadSettings.THEX_UPLOAD_SPEED.getValue());
     }
     
     public Throttle getReadThrottle() {
@@ -62,5 +92,14 @@ public class BandwidthManagerImpl implements BandwidthManager {
         applyUploadRate();
         return (socket instanceof RUDPSocket) ? UP_UDP : UP_TCP;
     }
+    
+    /**
+     * Returns the throttle of the class for TCP sockets, and the throttle of
+     * all uploads for UDP sockets, which are not divided into classes.
+     */
+    public Throttle getUploadThrottle(Socket socket, UploadClass uploadClass) {
+        applyUploadRate();
+        return (socket instanceof RUDPSocket) ? UP_UDP : UP_TCP_CLASS.get(uploadClass);
+    }
 
 }
@@ -113,6 +113,7 @@ import com.limegroup.gnutella.messages.vendor.UpdateResponse;
 import com.limegroup.gnutella.messages.vendor.VendorMessage;
 import com.limegroup.gnutella.routing.PatchTableMessage;
 import com.limegroup.gnutella.routing.QRPUpdater;
+import com.limegroup.gnutella.routing.QueryRouteIndex;
 import com.limegroup.gnutella.routing.QueryRouteTable;
 import com.limegroup.gnutella.routing.ResetTableMessage;
 import com.limegroup.gnutella.routing.RouteTableMessage;
@@ -241,6 +242,14 @@ public abstract class MessageRouterImpl implements MessageRouter {
      * table will include the tables from its leaves.
      */
     private QueryRouteTable _lastQueryRouteTable;
+    
+    /**
+     * The QRP tables of our leaves, indexed together so that the leaves a
+     * query hits can be found without checking each table.  Null unless
+     * ConnectionSettings.LEAF_QRP_INDEX was on when this was created.
+     */
+    private final QueryRouteIndex<RoutedConnection> _leafQRPIndex =
+        ConnectionSettings.LEAF_QRP_INDEX.getValue() ? new QueryRouteIndex<RoutedConnection>() : null;
 
     /**
      * The maximum number of response to send to a query that has
@@ -694,6 +703,8 @@ public abstract class MessageRouterImpl implements MessageRouter {
         _queryRouteTable.removeReplyHandler(rh);
         _pushRouteTable.removeReplyHandler(rh);
         _headPongRouteTable.removeReplyHandler(rh);
+        if(_leafQRPIndex != null && rh instanceof RoutedConnection)
+            _leafQRPIndex.remove((RoutedConnection)rh);
     }
 
 	/* (non-Javadoc)
@@ -1568,11 +1579,24 @@ public abstract class MessageRouterImpl implements MessageRouter {
         //table has been received
         List<RoutedConnection> list = connectionManager.getInitializedClientConnections();
         List<RoutedConnection> hitConnections = new ArrayList<RoutedConnection>();
-        for(RoutedConnection mc : list) {
-            if(mc == handler) continue;
-            if(mc.shouldForwardQuery(query)) {
+        // feature queries aren't answered from the QRP tables
+        if(_leafQRPIndex != null && !query.isFeatureQuery()) {
+            for(RoutedConnection mc : _leafQRPIndex.matches(query)) {
+                if(mc == handler) continue;
+                if(!mc.isOpen()) {
+                    // a table message raced with the close
+                    _leafQRPIndex.remove(mc);
+                    continue;
+                }
                 hitConnections.add(mc);
             }
+        } else {
+            for(RoutedConnection mc : list) {
+                if(mc == handler) continue;
+                if(mc.shouldForwardQuery(query)) {
+                    hitConnections.add(mc);
+                }
+            }
         }
         //forward only to a quarter of the leaves in case the query is
         //very popular.
@@ -2243,6 +2267,8 @@ public abstract class MessageRouterImpl implements MessageRouter {
         // reset the query route table for this connection
         synchronized (mc.getQRPLock()) {
             mc.resetQueryRouteTable(rtm);
+            if(_leafQRPIndex != null && mc.isLeafConnection())
+                _leafQRPIndex.reset(mc, mc.getRoutedConnectionStatistics().getQueryRouteTableReceived());
         }
 
         // if this is coming from a leaf, make sure we update
@@ -2271,6 +2297,8 @@ public abstract class MessageRouterImpl implements MessageRouter {
         // patch the query route table for this connection
         synchronized(mc.getQRPLock()) {
             mc.patchQueryRouteTable(ptm);
+            if(_leafQRPIndex != null && mc.isLeafConnection())
+                _leafQRPIndex.patched(mc, mc.getRoutedConnectionStatistics().getQueryRouteTableReceived());
         }
 
         // if this is coming from a leaf, make sure we update
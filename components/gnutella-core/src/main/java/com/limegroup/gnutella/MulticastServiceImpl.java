@@ -1,14 +1,13 @@
 package com.limegroup.gnutella;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -72,11 +71,6 @@ public final class MulticastServiceImpl implements MulticastService, Runnable {
      */
     private final int BUFFER_SIZE = 1024 * 32;
     
-    /**
-     * Buffer used for reading messages.
-     */
-    private final byte[] HEADER_BUF = new byte[23];
-
     /**
      * The thread for listening of incoming messages.
      */
@@ -218,11 +212,9 @@ public final class MulticastServiceImpl implements MulticastService, Runnable {
                     continue;
                 }
                 
-                byte[] data = datagram.getData();
+                ByteBuffer data = ByteBuffer.wrap(datagram.getData(), 0, datagram.getLength());
                 try {
-                    // we do things the old way temporarily
-                    InputStream in = new ByteArrayInputStream(data);
-                    Message message = messageFactory.read(in, Network.MULTICAST, HEADER_BUF, datagram.getSocketAddress());
+                    Message message = messageFactory.read(data, Network.MULTICAST, datagram.getSocketAddress());
                     if(message == null) {
                         LOG.debug("Received a null message");
                         continue;
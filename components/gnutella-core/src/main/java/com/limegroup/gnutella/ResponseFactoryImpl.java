@@ -18,6 +18,7 @@ import org.limewire.collection.BitNumbers;
 import org.limewire.collection.IntervalSet;
 import org.limewire.core.settings.FilterSettings;
 import org.limewire.core.settings.MessageSettings;
+import org.limewire.core.settings.UploadSettings;
 import org.limewire.io.BadGGEPPropertyException;
 import org.limewire.io.ConnectableImpl;
 import org.limewire.io.GGEP;
@@ -108,8 +109,10 @@ public class ResponseFactoryImpl implements ResponseFactory {
             verified = ifd.loadResponseRanges(ranges);
         }
         
-        GGEPContainer container = new GGEPContainer(getAsIpPorts(altLocManager
-                .getDirect(fd.getSHA1Urn())), creationTimeCache.get()
+        Set<? extends IpPort> locations = getAsIpPorts(altLocManager.getDirect(fd.getSHA1Urn()));
+        if (UploadSettings.COMPACT_ALT_LOCS.getValue())
+            locations = addCompactLocations(fd.getSHA1Urn(), locations);
+        GGEPContainer container = new GGEPContainer(locations, creationTimeCache.get()
                 .getCreationTimeAsLong(fd.getSHA1Urn()), fd.getFileSize(), ranges, 
                 verified, fd.getTTROOTUrn());
 
@@ -409,9 +412,7 @@ public class ResponseFactoryImpl implements ResponseFactory {
         synchronized (col) {
             Set<IpPort> endpoints = null;
             int i = 0;
-            // Never send more alt-locs than another LimeWire peer would accept
-            final int maxLocations = Math.min(10,
-                    FilterSettings.MAX_ALTS_PER_RESPONSE.getValue() - 1);
+            final int maxLocations = getMaxLocations();
             for (Iterator<DirectAltLoc> iter = col.iterator(); iter.hasNext()
                     && i < maxLocations;) {
                 DirectAltLoc al = iter.next();
@@ -435,6 +436,36 @@ public class ResponseFactoryImpl implements ResponseFactory {
         }
     }
 
+    /**
+     * Adds the direct locations of sha1 that are kept in compact form to
+     * endpoints, up to the most locations that are sent.
+     */
+    private Set<? extends IpPort> addCompactLocations(URN sha1, Set<? extends IpPort> endpoints) {
+        int maxLocations = getMaxLocations();
+        if (sha1 == null || endpoints.size() >= maxLocations)
+            return endpoints;
+        
+        IpPortSet all = null;
+        for (IpPort host : altLocManager.getDirectHosts(sha1, maxLocations)) {
+            if (networkInstanceUtils.isMe(host))
+                continue;
+            if (all == null)
+                all = new IpPortSet(endpoints);
+            if (all.size() >= maxLocations)
+                break;
+            all.add(host);
+        }
+        return all == null ? endpoints : all;
+    }
+
+    /**
+     * Returns the most alternate locations to send with a response.
+     */
+    private static int getMaxLocations() {
+        // Never send more alt-locs than another LimeWire peer would accept
+        return Math.min(10, FilterSettings.MAX_ALTS_PER_RESPONSE.getValue() - 1);
+    }
+
     /**
      * Adds a GGEP block with the specified alternate locations to the output
      * stream.
@@ -7,8 +7,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.limewire.collection.MultiIterable;
 import org.limewire.core.settings.MessageSettings;
 import org.limewire.inspection.Inspectable;
 import org.limewire.io.GUID;
@@ -30,7 +30,12 @@ import com.limegroup.gnutella.util.ClassCNetworks;
  *
  * This class can also optionally keep track of the number of reply bytes 
  * routed per GUID.  This can be useful for implementing fair flow-control
- * strategies.
+ * strategies.<p>
+ *
+ * If {@link MessageSettings#STRIPED_ROUTE_TABLES} is set when the table is
+ * constructed, GUIDs are stored in a lock-striped {@link StripedGUIDMap}
+ * instead of the two <tt>TreeMap</tt>s, so concurrent lookups for different
+ * GUIDs do not contend on a single monitor.
  */
 public final class RouteTable implements Inspectable {
     /**
@@ -64,6 +69,12 @@ public final class RouteTable implements Inspectable {
      * For flow-control reasons, we also store the number of bytes routed per
      * GUID in each table.  Hence the RouteTableEntry class.
      *
+     * _newMap and _oldMap are guarded by this.  When _stripedMap is non-null
+     * it replaces both of them and does its own locking.  The counters of a
+     * RouteTableEntry are guarded by the entry itself, and _handlerMap/_idMap
+     * may be read without locking but are only modified while holding
+     * _handlerLock.
+     *
      * INVARIANT: keys of _newMap and _oldMap are disjoint
      * INVARIANT: _idMap and _replyMap are inverses
      *
@@ -78,14 +89,17 @@ public final class RouteTable implements Inspectable {
     private long _nextSwitchTime;
     private int _maxSize;
 
-    private Map<Integer, ReplyHandler> _idMap  = new HashMap<Integer, ReplyHandler>();
-    private Map<ReplyHandler, Integer> _handlerMap = new HashMap<ReplyHandler, Integer>();
+    private final StripedGUIDMap<RouteTableEntry> _stripedMap;
+
+    private final Map<Integer, ReplyHandler> _idMap  = new ConcurrentHashMap<Integer, ReplyHandler>();
+    private final Map<ReplyHandler, Integer> _handlerMap = new ConcurrentHashMap<ReplyHandler, Integer>();
+    private final Object _handlerLock = new Object();
     private int _nextID;
     
     /** Values stored in _newMap/_oldMap. */
     private static final class RouteTableEntry implements ResultCounter {
         /** The numericID of the reply connection. */
-        private int handlerID;
+        private volatile int handlerID;
         /** The bytes already routed for this GUID. */
         private int bytesRouted;
         /** The number of replies already routed for this GUID. */
@@ -119,11 +133,11 @@ public final class RouteTable implements Inspectable {
             this.repliesNotCounted = 0;
         }
 		
-        public void setTTL(byte ttl) { this.ttl = ttl; }
-        public byte getTTL() { return ttl; }
+        public synchronized void setTTL(byte ttl) { this.ttl = ttl; }
+        public synchronized byte getTTL() { return ttl; }
 
 		/** Accessor for the number of results for this entry. */
-        public int getNumResults() {
+        public synchronized int getNumResults() {
             return Math.max(0, repliesRouted - partialRepliesRouted);
         }
         
@@ -153,9 +167,18 @@ public final class RouteTable implements Inspectable {
      * this in the worst case.  
      */
     public RouteTable(int seconds, int maxSize) {
+        this(seconds, maxSize, MessageSettings.STRIPED_ROUTE_TABLES.getValue());
+    }
+
+    /**
+     * Creates a new route table, storing GUIDs in a lock-striped map
+     * if <code>striped</code> is true.
+     */
+    RouteTable(int seconds, int maxSize, boolean striped) {
         this._mseconds=seconds*1000;
         this._nextSwitchTime=System.currentTimeMillis()+_mseconds;
         this._maxSize=maxSize;
+        this._stripedMap = striped ? new StripedGUIDMap<RouteTableEntry>(_mseconds, maxSize) : null;
     }
 
     /**
@@ -170,10 +193,8 @@ public final class RouteTable implements Inspectable {
 	 * @return the <tt>RouteTableEntry</tt> entered into the routing 
 	 *  tables, or <tt>null</tt> if it could not be entered
      */
-    public synchronized ResultCounter routeReply(byte[] guid,
+    public ResultCounter routeReply(byte[] guid,
 												 ReplyHandler replyHandler) {
-        repOk();
-        purge();
 		if(replyHandler == null) {
 			throw new NullPointerException("null reply handler");
 		}
@@ -181,22 +202,41 @@ public final class RouteTable implements Inspectable {
         if (! replyHandler.isOpen())
             return null;
 
-        //First clear out any old entries for the guid, memorizing the volume
-        //routed if found.  Note that if the guid is found in _newMap, we don't
-        //need to look in _oldMap.
         int id=handler2id(replyHandler).intValue();
-        RouteTableEntry entry = _newMap.remove(guid);
-        if (entry==null)
-            entry = _oldMap.remove(guid);
+        if (_stripedMap != null) {
+            //Same as below, but moving the entry to the new generation and
+            //adding it are done separately under the segment's lock.
+            RouteTableEntry entry = _stripedMap.renew(guid);
+            if (entry == null) {
+                RouteTableEntry added = new RouteTableEntry(id);
+                entry = _stripedMap.putIfAbsent(guid, added);
+                if (entry == null)
+                    return added;
+            }
+            entry.handlerID=id;
+            return entry;
+        }
 
-        //Now map the guid to the new reply handler, using the volume routed if
-        //found, or zero otherwise.
-        if (entry==null)
-            entry=new RouteTableEntry(id);
-        else
-            entry.handlerID=id;            //avoids allocation
-        _newMap.put(guid, entry);
-		return entry;
+        synchronized(this) {
+            repOk();
+            purge();
+
+            //First clear out any old entries for the guid, memorizing the volume
+            //routed if found.  Note that if the guid is found in _newMap, we don't
+            //need to look in _oldMap.
+            RouteTableEntry entry = _newMap.remove(guid);
+            if (entry==null)
+                entry = _oldMap.remove(guid);
+
+            //Now map the guid to the new reply handler, using the volume routed if
+            //found, or zero otherwise.
+            if (entry==null)
+                entry=new RouteTableEntry(id);
+            else
+                entry.handlerID=id;            //avoids allocation
+            _newMap.put(guid, entry);
+    		return entry;
+        }
     }
 
     /**
@@ -209,24 +249,34 @@ public final class RouteTable implements Inspectable {
      *  replyHandler is still open, adds the routing entry to this
      *  and returns true.  Otherwise returns false, without modifying this.
      */
-    public synchronized ResultCounter tryToRouteReply(byte[] guid,
+    public ResultCounter tryToRouteReply(byte[] guid,
 													  ReplyHandler replyHandler) {
-        repOk();
-        purge();
         assert replyHandler != null;
         assert guid!=null : "Null GUID in tryToRouteReply";
 
         if (! replyHandler.isOpen())
             return null;
 
-        if(!_newMap.containsKey(guid) && !_oldMap.containsKey(guid)) {
-            int id=handler2id(replyHandler).intValue();
-			RouteTableEntry entry = new RouteTableEntry(id);
-			_newMap.put(guid, entry);
-            //_newMap.put(guid, new RouteTableEntry(id));
-            return entry;
-        } else {
-            return null;
+        if (_stripedMap != null) {
+            //Check first so that duplicates, the common case, don't allocate.
+            if (_stripedMap.containsKey(guid))
+                return null;
+            RouteTableEntry entry = new RouteTableEntry(handler2id(replyHandler).intValue());
+            return _stripedMap.putIfAbsent(guid, entry) == null ? entry : null;
+        }
+
+        synchronized(this) {
+            repOk();
+            purge();
+            if(!_newMap.containsKey(guid) && !_oldMap.containsKey(guid)) {
+                int id=handler2id(replyHandler).intValue();
+    			RouteTableEntry entry = new RouteTableEntry(id);
+    			_newMap.put(guid, entry);
+                //_newMap.put(guid, new RouteTableEntry(id));
+                return entry;
+            } else {
+                return null;
+            }
         }
     }
 
@@ -237,7 +287,7 @@ public final class RouteTable implements Inspectable {
      *  @exception IllegalArgumentException thrown if !(ttl > 0), or if entry is
      *  null or is not something I recognize.  So only put in what I dole out.
      */
-    public synchronized void setTTL(ResultCounter entry, byte ttl) {
+    public void setTTL(ResultCounter entry, byte ttl) {
         if (entry == null)
             throw new IllegalArgumentException("Null entry!!");
         if (!(entry instanceof RouteTableEntry))
@@ -256,19 +306,21 @@ public final class RouteTable implements Inspectable {
      *  @throws IllegalArgumentException if getTTL or setTTL is less than 1, or
      *  if setTTL < getTTL
      */
-    public synchronized boolean getAndSetTTL(byte[] guid, byte getTTL, 
+    public boolean getAndSetTTL(byte[] guid, byte getTTL, 
                                              byte setTTL) {
         if ((getTTL < 1) || (setTTL <= getTTL))
             throw new IllegalArgumentException("Bad ttl input (get/set): " +
                                                getTTL + "/" + setTTL);
 
-        RouteTableEntry entry = _newMap.get(guid);
-        if (entry==null)
-            entry = _oldMap.get(guid);
+        RouteTableEntry entry = getEntry(guid);
+        if (entry == null)
+            return false;
         
-        if ((entry != null) && (entry.getTTL() == getTTL)) {
+        synchronized(entry) {
+            if (entry.getTTL() == getTTL) {
                 entry.setTTL(setTTL);
                 return true;
+            }
         }
         return false;
     }
@@ -282,20 +334,14 @@ public final class RouteTable implements Inspectable {
      *  Returns null if no mapping for guid, or guid maps to null (i.e., 
      *  to a removed ReplyHandler.
      */
-    public synchronized ReplyHandler getReplyHandler(byte[] guid) {        
-        //no purge
-        repOk();
-
-        //Look up guid in _newMap. If not there, check _oldMap. 
-        RouteTableEntry entry = _newMap.get(guid);
-        if (entry==null)
-            entry = _oldMap.get(guid);
+    public ReplyHandler getReplyHandler(byte[] guid) {        
+        RouteTableEntry entry = getEntry(guid);
 
         //Note that id2handler may return null.
         return (entry==null) ? null : id2handler(new Integer(entry.handlerID));
     }
 
-    public synchronized ReplyRoutePair getReplyHandler(byte[] guid, 
+    public ReplyRoutePair getReplyHandler(byte[] guid, 
             int replyBytes, short numReplies, short partialReplies) {
         return getReplyHandler(guid, replyBytes, numReplies, partialReplies, 0, true);
     }
@@ -315,19 +361,13 @@ public final class RouteTable implements Inspectable {
      *  messages already routed for that guid.  Afterwards, increments the reply
      *  count by replyBytes.
      */
-    public synchronized ReplyRoutePair getReplyHandler(byte[] guid, 
+    public ReplyRoutePair getReplyHandler(byte[] guid, 
                                                        int replyBytes,
 													   short numReplies,
 													   short partialReplies,
                                                        int classCNetwork,
                                                        boolean count) {
-        //no purge
-        repOk();
-
-        //Look up guid in _newMap. If not there, check _oldMap. 
-        RouteTableEntry entry = _newMap.get(guid);
-        if (entry==null)
-            entry = _oldMap.get(guid);
+        RouteTableEntry entry = getEntry(guid);
         
         //If no mapping for guid, or guid maps to a removed reply handler,
         //return null.
@@ -338,37 +378,55 @@ public final class RouteTable implements Inspectable {
             return null;
             
         //Increment count, returning old count in tuple.
-        ReplyRoutePair ret = 
-            new ReplyRoutePair(handler, entry.bytesRouted, entry.repliesRouted);
-        if(count) {
-            entry.bytesRouted += replyBytes;
-            entry.repliesRouted += numReplies;
-            entry.partialRepliesRouted += partialReplies;
-        } else {
-            entry.repliesNotCounted += numReplies;
+        synchronized(entry) {
+            ReplyRoutePair ret = 
+                new ReplyRoutePair(handler, entry.bytesRouted, entry.repliesRouted);
+            if(count) {
+                entry.bytesRouted += replyBytes;
+                entry.repliesRouted += numReplies;
+                entry.partialRepliesRouted += partialReplies;
+            } else {
+                entry.repliesNotCounted += numReplies;
+            }
+            if (classCNetwork != 0)
+                entry.updateClassCNetworks(classCNetwork, numReplies);
+            return ret;
         }
-        if (classCNetwork != 0)
-            entry.updateClassCNetworks(classCNetwork, numReplies);
-        return ret;
     }
     
     /** Remembers that the specified number of results came now */
-    public synchronized void timeStampResults(QueryReply reply) {
-        RouteTableEntry entry = _newMap.get(reply.getGUID());
-        if (entry==null)
-            entry = _oldMap.get(reply.getGUID());
+    public void timeStampResults(QueryReply reply) {
+        RouteTableEntry entry = getEntry(reply.getGUID());
         if (entry==null)
             return;
-        entry.timeStampResults(reply.getUniqueResultCount());
+        synchronized(entry) {
+            entry.timeStampResults(reply.getUniqueResultCount());
+        }
     }
     
-    public synchronized void countHopsTTLNet(QueryReply reply) {
-        RouteTableEntry entry = _newMap.get(reply.getGUID());
-        if (entry==null)
-            entry = _oldMap.get(reply.getGUID());
+    public void countHopsTTLNet(QueryReply reply) {
+        RouteTableEntry entry = getEntry(reply.getGUID());
         if (entry==null)
             return;
-        entry.countHopsTTLNet(reply.getNetwork(), reply.getHops(), reply.getTTL());
+        synchronized(entry) {
+            entry.countHopsTTLNet(reply.getNetwork(), reply.getHops(), reply.getTTL());
+        }
+    }
+
+    /**
+     * Looks up guid in _newMap, then in _oldMap, or in _stripedMap if
+     * lock striping is on.  Does not purge.
+     */
+    private RouteTableEntry getEntry(byte[] guid) {
+        if (_stripedMap != null)
+            return _stripedMap.get(guid);
+        synchronized(this) {
+            repOk();
+            RouteTableEntry entry = _newMap.get(guid);
+            if (entry==null)
+                entry = _oldMap.get(guid);
+            return entry;
+        }
     }
 
     /** The return value from getReplyHandler. */
@@ -406,19 +464,19 @@ public final class RouteTable implements Inspectable {
      *  rh2.equals(replyHandler) with entries [guid, null].  This operation
      *  runs in constant time. [sic]
      */
-    public synchronized void removeReplyHandler(ReplyHandler replyHandler) {        
+    public void removeReplyHandler(ReplyHandler replyHandler) {        
         //no purge
-        repOk();
         //The aggressive asserts below are to make sure bug X75 has been fixed.
         assert replyHandler!=null : "Null replyHandler in removeReplyHandler";
 
         //Note that _map is not modified.  See overview of class for rationale.
-        //Also, handler2id may actually allocate a new ID for replyHandler, when
-        //killing a connection for which we've routed no replies.  That's ok;
-        //we'll just clean up the new ID immediately.
-        Integer id=handler2id(replyHandler);
-        _idMap.remove(id);
-        _handlerMap.remove(replyHandler);
+        //If we've never routed replies for replyHandler, there is no ID to
+        //clean up.
+        synchronized(_handlerLock) {
+            Integer id=_handlerMap.remove(replyHandler);
+            if (id != null)
+                _idMap.remove(id);
+        }
     }
 
     /** 
@@ -433,19 +491,26 @@ public final class RouteTable implements Inspectable {
         if (id!=null)
             return id;
     
-        //Otherwise return the next free id, searching in extremely rare cases
-        //if needed.  Note that his enters an infinite loop if all 2^32 IDs are
-        //taken up.  BFD.
-        while (true) {
-            //don't worry about overflow; Java wraps around TODO1?
-            id=new Integer(_nextID++);
-            if (_idMap.get(id)==null)
-                break;            
+        synchronized(_handlerLock) {
+            //Check again, another thread may have just added it.
+            id = _handlerMap.get(handler);
+            if (id!=null)
+                return id;
+
+            //Otherwise return the next free id, searching in extremely rare cases
+            //if needed.  Note that his enters an infinite loop if all 2^32 IDs are
+            //taken up.  BFD.
+            while (true) {
+                //don't worry about overflow; Java wraps around TODO1?
+                id=new Integer(_nextID++);
+                if (_idMap.get(id)==null)
+                    break;            
+            }
+        
+            _idMap.put(id, handler);
+            _handlerMap.put(handler, id);
+            return id;
         }
-    
-        _handlerMap.put(handler, id);
-        _idMap.put(id, handler);
-        return id;
     }
 
     /**
@@ -482,12 +547,10 @@ public final class RouteTable implements Inspectable {
     }
 
     @Override
-    public synchronized String toString() {
+    public String toString() {
         //Inefficient, but this is only for debugging anyway.
         StringBuilder buf=new StringBuilder("{");
-        Map<byte[], RouteTableEntry> bothMaps=new TreeMap<byte[], RouteTableEntry>(new GUID.GUIDByteComparator());
-        bothMaps.putAll(_oldMap);
-        bothMaps.putAll(_newMap);
+        Map<byte[], RouteTableEntry> bothMaps = copyEntries();
 
         
         Iterator<byte[]> iter=bothMaps.keySet().iterator();
@@ -595,36 +658,54 @@ public final class RouteTable implements Inspectable {
         }
     }
     
+    /**
+     * Returns a copy of all GUIDs and their entries, sorted by GUID.
+     */
+    private Map<byte[], RouteTableEntry> copyEntries() {
+        Map<byte[], RouteTableEntry> bothMaps=new TreeMap<byte[], RouteTableEntry>(new GUID.GUIDByteComparator());
+        if (_stripedMap != null) {
+            _stripedMap.copyInto(bothMaps);
+        } else {
+            synchronized(this) {
+                bothMaps.putAll(_oldMap);
+                bothMaps.putAll(_newMap);
+            }
+        }
+        return bothMaps;
+    }
+    
     /** 
      * An actual dump of the routing table.  May get big, so 
      * its a good idea to first inspect the stats to see how many
      * entries there are.
      */
     @Override
-    public synchronized Object inspect() {
+    public Object inspect() {
         Map<String, Object> ret = new HashMap<String, Object>();
-        Iterable<Map.Entry<byte[], RouteTableEntry>> bothMaps = 
-            new MultiIterable<Map.Entry<byte[],RouteTableEntry>>(_newMap.entrySet(),_oldMap.entrySet());
-        for (Map.Entry<byte[], RouteTableEntry> entry : bothMaps) {
+        for (Map.Entry<byte[], RouteTableEntry> entry : copyEntries().entrySet()) {
             RouteTableEntry e = entry.getValue();
             Map<String, Object> m = new HashMap<String, Object>();
-            m.put("br", e.bytesRouted);
-            m.put("ttl", e.ttl);
-            m.put("rr", e.repliesRouted);
-            m.put("rnc", e.repliesNotCounted);
-            m.put("prr", e.partialRepliesRouted);
-            m.put("cc", e.classCnetworks.getMap());
-            m.put("rt", e.resultTimeStamps);
-            m.put("rc", e.resultCounts);
-            m.put("ct", e.creationTime);
-            m.put("id", e.handlerID);
-            m.put("nets", getBytes(e.networks));
-            m.put("hops", getBytes(e.hops));
-            m.put("ttls", getBytes(e.ttls));
+            synchronized(e) {
+                m.put("br", e.bytesRouted);
+                m.put("ttl", e.ttl);
+                m.put("rr", e.repliesRouted);
+                m.put("rnc", e.repliesNotCounted);
+                m.put("prr", e.partialRepliesRouted);
+                m.put("cc", e.classCnetworks.getMap());
+                m.put("rt", new ArrayList<Double>(e.resultTimeStamps));
+                m.put("rc", new ArrayList<Double>(e.resultCounts));
+                m.put("ct", e.creationTime);
+                m.put("id", e.handlerID);
+                m.put("nets", getBytes(e.networks));
+                m.put("hops", getBytes(e.hops));
+                m.put("ttls", getBytes(e.ttls));
+            }
             ret.put(Base32.encode(entry.getKey()), m);
         }
         for (int id : _idMap.keySet()) {
             ReplyHandler r = _idMap.get(id);
+            if (r == null)
+                continue;
             Map<String,Object> m = new HashMap<String,Object>();
             m.put("ip",r.getAddress());
             m.put("port", r.getPort());
@@ -0,0 +1,343 @@
+package com.limegroup.gnutella;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.limewire.core.settings.MessageSettings;
+
+/**
+ * A concurrent map from 16-byte GUIDs to values, used by {@link RouteTable}
+ * when lock striping is enabled.<p>
+ *
+ * Each GUID is stored as two longs in an open-addressing (linear probing)
+ * hash table, so lookups never allocate and never compare byte arrays.  The
+ * table is split into a fixed number of segments, each guarded by its own
+ * monitor, so threads routing replies for different GUIDs rarely contend.<p>
+ *
+ * Like the legacy route table, every segment keeps two generations of
+ * entries.  When a segment's switch time has passed, or its new generation
+ * has grown past its share of the maximum size, the old generation is
+ * cleared and the generations are swapped.  In this way we remember the last
+ * N to 2N seconds worth of GUIDs.  Since the rotation is done per segment,
+ * entries in different segments may expire at slightly different times.<p>
+ *
+ * If {@link MessageSettings#GUID_ZERO_EXPERIMENT} is on, the OOB-mutated
+ * bytes of the GUID are masked out of the key, as the legacy table does.
+ */
+final class StripedGUIDMap<V> {
+
+    /** The number of segments, must be a power of two. */
+    private static final int SEGMENTS = 16;
+
+    /** The initial number of slots in each generation, a power of two. */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** Mask of the bytes 0-3 of a GUID within the high long. */
+    private static final long HIGH_OOB_MASK = 0xFFFFFFFF00000000L;
+
+    /** Mask of the bytes 13-14 of a GUID within the low long. */
+    private static final long LOW_OOB_MASK = 0x0000000000FFFF00L;
+
+    private final Segment<V>[] segments;
+
+    private final int lifetime;
+
+    StripedGUIDMap(int mseconds, int maxSize) {
+        this.lifetime = mseconds;
+        int maxSegmentSize = Math.max(1, maxSize / SEGMENTS);
+        long now = System.currentTimeMillis();
+        @SuppressWarnings("unchecked")
+        Segment<V>[] segments = (Segment<V>[])new Segment<?>[SEGMENTS];
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = new Segment<V>(now + lifetime, maxSegmentSize);
+        this.segments = segments;
+    }
+
+    /**
+     * Returns the value mapped to guid in either generation, or null if none.
+     */
+    V get(byte[] guid) {
+        long hi = high(guid), lo = low(guid);
+        int hash = hash(hi, lo);
+        Segment<V> segment = segmentFor(hash);
+        synchronized (segment) {
+            V value = segment.newGen.get(hi, lo, hash);
+            if (value == null)
+                value = segment.oldGen.get(hi, lo, hash);
+            return value;
+        }
+    }
+
+    /**
+     * Returns true if guid is mapped in either generation, purging the
+     * guid's segment first.
+     */
+    boolean containsKey(byte[] guid) {
+        long hi = high(guid), lo = low(guid);
+        int hash = hash(hi, lo);
+        Segment<V> segment = segmentFor(hash);
+        synchronized (segment) {
+            segment.purge(lifetime);
+            return segment.newGen.get(hi, lo, hash) != null
+                || segment.oldGen.get(hi, lo, hash) != null;
+        }
+    }
+
+    /**
+     * Returns the value mapped to guid, moving it into the new generation
+     * if it was found in the old one.  Returns null if there is no mapping.
+     */
+    V renew(byte[] guid) {
+        long hi = high(guid), lo = low(guid);
+        int hash = hash(hi, lo);
+        Segment<V> segment = segmentFor(hash);
+        synchronized (segment) {
+            segment.purge(lifetime);
+            V value = segment.newGen.get(hi, lo, hash);
+            if (value != null)
+                return value;
+            value = segment.oldGen.remove(hi, lo, hash);
+            if (value != null)
+                segment.newGen.put(hi, lo, hash, value);
+            return value;
+        }
+    }
+
+    /**
+     * Maps guid to value in the new generation if guid is not mapped in
+     * either generation.
+     *
+     * @return the existing value if one was found, otherwise null
+     */
+    V putIfAbsent(byte[] guid, V value) {
+        long hi = high(guid), lo = low(guid);
+        int hash = hash(hi, lo);
+        Segment<V> segment = segmentFor(hash);
+        synchronized (segment) {
+            segment.purge(lifetime);
+            V existing = segment.newGen.get(hi, lo, hash);
+            if (existing == null)
+                existing = segment.oldGen.get(hi, lo, hash);
+            if (existing == null)
+                segment.newGen.put(hi, lo, hash, value);
+            return existing;
+        }
+    }
+
+    /** Returns the number of GUIDs in both generations of all segments. */
+    int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                size += segment.newGen.size + segment.oldGen.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Copies all mappings into the given map.  The keys are the masked
+     * GUIDs as they are stored in this.  Only for debugging and inspection.
+     */
+    void copyInto(Map<byte[], ? super V> map) {
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                segment.oldGen.copyInto(map);
+                segment.newGen.copyInto(map);
+            }
+        }
+    }
+
+    private Segment<V> segmentFor(int hash) {
+        return segments[(hash >>> 24) & (SEGMENTS - 1)];
+    }
+
+    private static long high(byte[] guid) {
+        long hi = toLong(guid, 0);
+        if (MessageSettings.GUID_ZERO_EXPERIMENT.getValue())
+            hi &= ~HIGH_OOB_MASK;
+        return hi;
+    }
+
+    private static long low(byte[] guid) {
+        long lo = toLong(guid, 8);
+        if (MessageSettings.GUID_ZERO_EXPERIMENT.getValue())
+            lo &= ~LOW_OOB_MASK;
+        return lo;
+    }
+
+    private static long toLong(byte[] b, int offset) {
+        long l = 0;
+        for (int i = offset; i < offset + 8; i++)
+            l = (l << 8) | (b[i] & 0xFF);
+        return l;
+    }
+
+    private static void fromLong(long l, byte[] b, int offset) {
+        for (int i = offset + 7; i >= offset; i--) {
+            b[i] = (byte)l;
+            l >>>= 8;
+        }
+    }
+
+    /**
+     * Mixes both halves of the key so that GUIDs sharing their OOB bytes
+     * still spread across segments and slots.
+     */
+    private static int hash(long hi, long lo) {
+        long h = hi * 0x9E3779B97F4A7C15L ^ lo;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int)h;
+    }
+
+    /** One lock stripe, holding two generations of GUIDs. */
+    private static final class Segment<V> {
+        private Generation<V> newGen = new Generation<V>(INITIAL_CAPACITY);
+        private Generation<V> oldGen = new Generation<V>(INITIAL_CAPACITY);
+        private long nextSwitchTime;
+        private final int maxSize;
+
+        Segment(long nextSwitchTime, int maxSize) {
+            this.nextSwitchTime = nextSwitchTime;
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * Clears the old generation and swaps the generations if enough
+         * time has elapsed or the new generation is full.
+         */
+        void purge(int lifetime) {
+            long now = System.currentTimeMillis();
+            if (now < nextSwitchTime && newGen.size < maxSize)
+                return;
+            oldGen.clear(newGen.size);
+            Generation<V> tmp = oldGen;
+            oldGen = newGen;
+            newGen = tmp;
+            nextSwitchTime = now + lifetime;
+        }
+    }
+
+    /**
+     * A linear probing hash table of (high, low) keys.  A slot is empty iff
+     * its value is null.
+     */
+    private static final class Generation<V> {
+        private long[] keys;
+        private Object[] values;
+        private int size;
+
+        Generation(int capacity) {
+            keys = new long[capacity * 2];
+            values = new Object[capacity];
+        }
+
+        private int indexOf(long hi, long lo, int hash) {
+            int mask = values.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                if (values[i] == null)
+                    return -1;
+                if (keys[2 * i] == hi && keys[2 * i + 1] == lo)
+                    return i;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        V get(long hi, long lo, int hash) {
+            int i = indexOf(hi, lo, hash);
+            return i < 0 ? null : (V)values[i];
+        }
+
+        /** Adds the mapping, which must not already be present. */
+        void put(long hi, long lo, int hash, V value) {
+            if ((size + 1) * 2 > values.length)
+                resize(values.length * 2);
+            int mask = values.length - 1;
+            int i = hash & mask;
+            while (values[i] != null)
+                i = (i + 1) & mask;
+            keys[2 * i] = hi;
+            keys[2 * i + 1] = lo;
+            values[i] = value;
+            size++;
+        }
+
+        /**
+         * Removes the mapping, shifting later entries of the probe sequence
+         * back so that no tombstones are needed.
+         */
+        @SuppressWarnings("unchecked")
+        V remove(long hi, long lo, int hash) {
+            int i = indexOf(hi, lo, hash);
+            if (i < 0)
+                return null;
+            V old = (V)values[i];
+            int mask = values.length - 1;
+            int hole = i;
+            for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+                int home = hash(keys[2 * j], keys[2 * j + 1]) & mask;
+                // move j into the hole unless its home lies cyclically in (hole, j]
+                if (hole <= j ? (hole < home && home <= j) : (hole < home || home <= j))
+                    continue;
+                keys[2 * hole] = keys[2 * j];
+                keys[2 * hole + 1] = keys[2 * j + 1];
+                values[hole] = values[j];
+                hole = j;
+            }
+            values[hole] = null;
+            size--;
+            return old;
+        }
+
+        /**
+         * Removes all mappings.  If the table is much larger than the
+         * expected number of entries, it is shrunk to release memory
+         * left over from a burst of traffic.
+         */
+        void clear(int expected) {
+            int capacity = INITIAL_CAPACITY;
+            while (capacity < expected * 2)
+                capacity <<= 1;
+            if (values.length > capacity * 4) {
+                keys = new long[capacity * 2];
+                values = new Object[capacity];
+            } else {
+                Arrays.fill(values, null);
+            }
+            size = 0;
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[capacity * 2];
+            values = new Object[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldValues.length; j++) {
+                if (oldValues[j] == null)
+                    continue;
+                long hi = oldKeys[2 * j], lo = oldKeys[2 * j + 1];
+                int i = hash(hi, lo) & mask;
+                while (values[i] != null)
+                    i = (i + 1) & mask;
+                keys[2 * i] = hi;
+                keys[2 * i + 1] = lo;
+                values[i] = oldValues[j];
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void copyInto(Map<byte[], ? super V> map) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] == null)
+                    continue;
+                byte[] guid = new byte[16];
+                fromLong(keys[2 * i], guid, 0);
+                fromLong(keys[2 * i + 1], guid, 8);
+                map.put(guid, (V)values[i]);
+            }
+        }
+    }
+}
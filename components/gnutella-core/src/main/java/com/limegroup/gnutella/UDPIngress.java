@@ -0,0 +1,145 @@
+package com.limegroup.gnutella;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.limewire.concurrent.ExecutorsHelper;
+import org.limewire.inspection.Inspectable;
+import org.limewire.nio.ByteBufferCache;
+import org.limewire.service.ErrorService;
+
+/**
+ * Hands incoming UDP packets from the NIO thread that received them to a
+ * pool of decoding threads.  Each source address is always handled by the
+ * same sequential queue, so packets from one host are decoded and
+ * dispatched in the order they arrived.  When too many packets are waiting,
+ * new ones are dropped rather than queued.
+ * <p>
+ * With no decoding threads, packets are handled right away on the receiving
+ * thread.
+ */
+class UDPIngress implements Inspectable {
+
+    /** Handles a packet, which is between the buffer's position and limit. */
+    static interface PacketHandler {
+        void handlePacket(ByteBuffer buffer, InetSocketAddress addr);
+    }
+
+    /** The most packets that may wait for decoding at once. */
+    static final int MAX_PENDING = 1024;
+
+    private final PacketHandler handler;
+
+    /** The sequential queues, or an empty array if packets are handled inline. */
+    private final Executor[] queues;
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicLong received = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    /** The total and highest time packets waited for decoding, in microseconds. */
+    private final AtomicLong totalLatency = new AtomicLong();
+
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    UDPIngress(int threads, PacketHandler handler) {
+        this.handler = handler;
+        queues = new Executor[Math.max(0, threads)];
+        for (int i = 0; i < queues.length; i++)
+            queues[i] = ExecutorsHelper.newProcessingQueue("UDPIngress-" + i);
+    }
+
+    /** Returns true if packets are handled on the thread that received them. */
+    boolean isInline() {
+        return queues.length == 0;
+    }
+
+    /**
+     * Offers a packet received from the given address.  Returns true if the
+     * buffer was taken over, in which case it is released to the given cache
+     * once the packet was handled.  Returns false if the packet was handled
+     * inline or dropped, in which case the buffer still belongs to the caller.
+     */
+    boolean offer(ByteBufferCache cache, ByteBuffer buffer, InetSocketAddress addr) {
+        received.incrementAndGet();
+        if (isInline()) {
+            handler.handlePacket(buffer, addr);
+            return false;
+        }
+
+        if (pending.incrementAndGet() > MAX_PENDING) {
+            pending.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+        queues[getQueueIndex(addr)].execute(new Packet(cache, buffer, addr));
+        return true;
+    }
+
+    private int getQueueIndex(InetSocketAddress addr) {
+        return (addr.hashCode() & Integer.MAX_VALUE) % queues.length;
+    }
+
+    long getReceived() {
+        return received.get();
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    int getPending() {
+        return pending.get();
+    }
+
+    @Override
+    public Object inspect() {
+        Map<String, Object> data = new HashMap<String, Object>();
+        long handled = received.get() - dropped.get();
+        data.put("threads", queues.length);
+        data.put("received", received.get());
+        data.put("dropped", dropped.get());
+        data.put("pending", pending.get());
+        data.put("avg latency", handled == 0 || isInline() ? 0 : totalLatency.get() / handled);
+        data.put("max latency", maxLatency.get());
+        return data;
+    }
+
+    private void recordLatency(long latency) {
+        totalLatency.addAndGet(latency);
+        long max;
+        while ((max = maxLatency.get()) < latency && !maxLatency.compareAndSet(max, latency));
+    }
+
+    private class Packet implements Runnable {
+        private final ByteBufferCache cache;
+        private final ByteBuffer buffer;
+        private final InetSocketAddress addr;
+        private final long received = System.nanoTime();
+
+        Packet(ByteBufferCache cache, ByteBuffer buffer, InetSocketAddress addr) {
+            this.cache = cache;
+            this.buffer = buffer;
+            this.addr = addr;
+        }
+
+        public void run() {
+            pending.decrementAndGet();
+            recordLatency((System.nanoTime() - received) / 1000);
+            try {
+                handler.handlePacket(buffer, addr);
+            } catch (Throwable t) {
+                ErrorService.error(t);
+            } finally {
+                cache.release(buffer);
+            }
+        }
+    }
+}
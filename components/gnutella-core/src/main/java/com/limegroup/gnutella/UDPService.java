@@ -1,18 +1,17 @@
 package com.limegroup.gnutella;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -31,6 +30,7 @@ import org.limewire.io.NetworkUtils;
 import org.limewire.listener.AsynchronousEventBroadcaster;
 import org.limewire.listener.EventListener;
 import org.limewire.listener.ListenerSupport;
+import org.limewire.nio.ByteBufferCache;
 import org.limewire.nio.NIODispatcher;
 import org.limewire.nio.observer.ReadWriteObserver;
 import org.limewire.rudp.ConnectionState;
@@ -81,12 +81,31 @@ public class UDPService implements ReadWriteObserver {
 	private DatagramChannel _channel;
 	
 	/**
-	 * The list of messages to be sent, as SendBundles.
+	 * The messages to be sent, as SendBundles.
 	 */
-	private final List<SendBundle> OUTGOING_MSGS;
+	private final Queue<SendBundle> OUTGOING_MSGS;
 	
 	/**
-	 * The buffer that's re-used for reading incoming messages.
+	 * The bundle that could not be sent the last time the socket was
+	 * writable, which goes out before any in OUTGOING_MSGS.
+	 * LOCKING: only touched by the NIO thread.
+	 */
+	private SendBundle _unsentBundle;
+	
+	/**
+	 * Whether we've asked to be notified of write events, so that a burst
+	 * of sends asks only once.
+	 */
+	private final AtomicBoolean _writeInterest = new AtomicBoolean(false);
+	
+	/**
+	 * Decodes incoming messages, on the NIO thread or a pool of threads.
+	 */
+	private final UDPIngress ingress;
+	
+	/**
+	 * The buffer that's re-used for reading incoming messages when they
+	 * are decoded on the NIO thread.
 	 */
 	private final ByteBuffer BUFFER;
     
@@ -107,7 +126,7 @@ public class UDPService implements ReadWriteObserver {
     
     /** The last time the _acceptedUnsolicitedIncoming was set.
      */
-    private long _lastUnsolicitedIncomingTime = 0;
+    private volatile long _lastUnsolicitedIncomingTime = 0;
 
     /**
      * The last time we received any udp packet
@@ -167,11 +186,6 @@ public class UDPService implements ReadWriteObserver {
      */
     private static final long PING_PERIOD = 85 * 1000;  // 85 seconds
     
-    /**
-     * A buffer used for reading the header of incoming messages.
-     */
-    private static final byte[] IN_HEADER_BUF = new byte[23];
-    
     private final NetworkManager networkManager;
     private final Provider<MessageDispatcher> messageDispatcher;
     private final Provider<IPFilter> ipFilter;
@@ -189,6 +203,15 @@ public class UDPService implements ReadWriteObserver {
     @InspectionPoint("udp sent messages")
     private final Message.MessageCounter sentMessageCounter = new Message.MessageCounter(50);
     
+    @InspectionPoint("udp ingress")
+    @SuppressWarnings("unused")
+    private final Inspectable ingressStats = new Inspectable() {
+        @Override
+        public Object inspect() {
+            return ingress.inspect();
+        }
+    };
+    
     @InspectionPoint("fwt capable")
     @SuppressWarnings("unused")
     private final Inspectable fwtCapable = new Inspectable() {
@@ -226,9 +249,15 @@ public class UDPService implements ReadWriteObserver {
         this.networkInstanceUtils = networkInstanceUtils;
         this.fwtStatusBroadcaster = fwtStatusBroadcaster;
 
-        OUTGOING_MSGS = new LinkedList<SendBundle>();
+        OUTGOING_MSGS = new ConcurrentLinkedQueue<SendBundle>();
 	    byte[] backing = new byte[BUFFER_SIZE];
 	    BUFFER = ByteBuffer.wrap(backing);
+        ingress = new UDPIngress(ConnectionSettings.UDP_DECODE_THREADS.getValue(),
+                new UDPIngress.PacketHandler() {
+                    public void handlePacket(ByteBuffer buffer, InetSocketAddress addr) {
+                        readMessage(buffer, addr);
+                    }
+                });
         // TODO convert this to a Service and move this
         // TODO initialize()
         fwtStatusBroadcaster.broadcast(new FirewallTransferStatusEvent(
@@ -352,16 +381,22 @@ public class UDPService implements ReadWriteObserver {
 	}
 	
 	/**
-	 * Notification that a read can happen.
+	 * Notification that a read can happen.  Every waiting packet is
+	 * received, each into its own buffer from the NIO buffer cache if
+	 * messages are decoded off the NIO thread.
 	 */
 	public void handleRead() throws IOException {
+        ByteBufferCache cache = ingress.isInline() ? null : NIODispatcher.instance().getBufferCache();
+        ByteBuffer buffer = null;
         try {
             while (true) {
-                BUFFER.clear();
+                if (buffer == null)
+                    buffer = cache == null ? BUFFER : cache.getHeap(BUFFER_SIZE);
+                buffer.clear();
 
                 SocketAddress from;
                 try {
-                    from = _channel.receive(BUFFER);
+                    from = _channel.receive(buffer);
                 } catch (IOException iox) {
                     break;
                 } catch (Error error) {
@@ -391,27 +426,35 @@ public class UDPService implements ReadWriteObserver {
                     return;
                 }
                 
-                byte[] data = BUFFER.array();
-                int length = BUFFER.position();
-                try {
-                    // we do things the old way temporarily
-                    InputStream in = new ByteArrayInputStream(data, 0, length);
-                    Message message = messageFactory.read(in, Network.UDP, IN_HEADER_BUF, addr);
-                    if(message == null) {
-                        LOG.debug("Received a null message");
-                        continue;
-                    }
-                    processMessage(message, addr);
-                } catch(IOException e) {
-                    LOG.debug("Could not parse message", e);
-                } catch(BadPacketException e) {
-                    LOG.debug("Could not parse message", e);
-                }
+                buffer.flip();
+                if (ingress.offer(cache, buffer, addr))
+                    buffer = null;
             } 
         } catch(Throwable t) {
             // Do not let the exceptions propogate out, as that could
             // close UDPService.
             ErrorService.error(t);
+        } finally {
+            if (buffer != null && cache != null)
+                cache.release(buffer);
+        }
+	}
+	
+	/**
+	 * Reads & processes the message in the given buffer.
+	 */
+	private void readMessage(ByteBuffer buffer, InetSocketAddress addr) {
+        try {
+            Message message = messageFactory.read(buffer, Network.UDP, addr);
+            if(message == null) {
+                LOG.debug("Received a null message");
+                return;
+            }
+            processMessage(message, addr);
+        } catch(IOException e) {
+            LOG.debug("Could not parse message", e);
+        } catch(BadPacketException e) {
+            LOG.debug("Could not parse message", e);
         }
 	}
 	
@@ -599,47 +642,66 @@ public class UDPService implements ReadWriteObserver {
     }
     
     public void send(ByteBuffer buffer, InetSocketAddress addr, boolean custom) { 
-        synchronized(OUTGOING_MSGS) {
-            OUTGOING_MSGS.add(new SendBundle(buffer, addr, custom));
-            if(_channel != null)
-                NIODispatcher.instance().interestWrite(_channel, true);
-        }
+        OUTGOING_MSGS.add(new SendBundle(buffer, addr, custom));
+        DatagramChannel channel = _channel;
+        if(channel != null && _writeInterest.compareAndSet(false, true))
+            interestWrite(channel, true);
 	}
+    
+    /**
+     * Turns write interest on the channel on or off.  Package-private
+     * so tests can interleave sends with it.
+     */
+    void interestWrite(DatagramChannel channel, boolean on) {
+        NIODispatcher.instance().interestWrite(channel, on);
+    }
 	
 	/**
 	 * Notification that a write can happen.
 	 */
 	public boolean handleWrite() throws IOException {
         try {
-    	    synchronized(OUTGOING_MSGS) {
-    	        while(!OUTGOING_MSGS.isEmpty()) {
-                    boolean releaseBuffer = true;
-                    SendBundle bundle = OUTGOING_MSGS.remove(0);
-    	            try {
-        	            if(_channel.send(bundle.buffer, bundle.addr) == 0) {
-        	                // we removed the bundle from the list but couldn't send it,
-        	                // so we have to put it back in.
-        	                OUTGOING_MSGS.add(0, bundle);
-                            releaseBuffer = false;
-        	                return true; // no room left to send.
-                        }
-                    } catch(IOException ignored) {
-                        LOG.warn("Ignoring exception on socket", ignored);
-                    } finally {
-                        if(bundle.custom) {
-                            bundle.buffer.rewind();
-                            releaseBuffer = false;
-                        }
-                        
-                        if (releaseBuffer)
-                            NIODispatcher.instance().getBufferCache().release(bundle.buffer);
+            while(true) {
+                SendBundle bundle = _unsentBundle;
+                _unsentBundle = null;
+                if(bundle == null)
+                    bundle = OUTGOING_MSGS.poll();
+                if(bundle == null)
+                    break;
+                
+                boolean releaseBuffer = true;
+                try {
+                    if(_channel.send(bundle.buffer, bundle.addr) == 0) {
+                        // we took the bundle but couldn't send it,
+                        // so it goes first the next time.
+                        _unsentBundle = bundle;
+                        releaseBuffer = false;
+                        return true; // no room left to send.
                     }
-    	        }
-    	        
-    	        // if there's no data left to send, we don't wanna be notified of write events.
-    	        NIODispatcher.instance().interestWrite(_channel, false);
-    	        return false;
-    	    }
+                } catch(IOException ignored) {
+                    LOG.warn("Ignoring exception on socket", ignored);
+                } finally {
+                    if(bundle.custom) {
+                        bundle.buffer.rewind();
+                        releaseBuffer = false;
+                    }
+                    
+                    if (releaseBuffer)
+                        NIODispatcher.instance().getBufferCache().release(bundle.buffer);
+                }
+            }
+            
+            // if there's no data left to send, we don't wanna be notified of write events,
+            // unless something was queued while we turned them off.  Interest goes off
+            // before the flag is cleared: a send that sees the flag still set relies
+            // on the check below, one that sees it cleared turns interest back on.
+            interestWrite(_channel, false);
+            _writeInterest.set(false);
+            if(!OUTGOING_MSGS.isEmpty() && _writeInterest.compareAndSet(false, true)) {
+                interestWrite(_channel, true);
+                return true;
+            }
+            return false;
         } catch(Throwable t) {
             // Don't let it propogate, since that could close UDPService!
             ErrorService.error(t);
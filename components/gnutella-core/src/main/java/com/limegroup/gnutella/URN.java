@@ -10,9 +10,11 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.URL;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
@@ -31,6 +33,7 @@ import com.limegroup.gnutella.http.HTTPConstants;
 import com.limegroup.gnutella.http.HTTPHeaderValue;
 import com.limegroup.gnutella.security.MerkleTree;
 import com.limegroup.gnutella.security.Tiger;
+import com.limegroup.gnutella.tigertree.HashTreeUtils;
 
 /**
  * This class represents an individual Uniform Resource Name (URN), as
@@ -823,8 +826,63 @@ public final class URN implements HTTPHeaderValue, Serializable, org.limewire.co
      *  execute.)
 	 */
 	public static UrnSet generateUrnsFromFile(final File file) 
+      throws IOException, InterruptedException {
+	    return generateUrnsFromFile(file, null);
+	}
+	
+	/**
+	 * Creates the SHA1 and tiger tree root URNs for the specified file,
+	 * reading it only once.
+	 *
+	 * @param file the file to construct the hashes from
+	 * @return a set with the SHA1 and TTROOT URNs
+	 * @throws <tt>IOException</tt> if there is an error creating the hashes
+     * @throws <tt>InterruptedException</tt> if the calling thread was 
+     *  interrupted while hashing.
+	 */
+	public static UrnSet generateUrnsAndTTRootFromFile(final File file)
+	  throws IOException, InterruptedException {
+	    return generateUrnsFromFile(file, new ArrayList<byte[]>());
+	}
+	
+	/**
+	 * Creates the SHA1 and tiger tree root URNs for the specified file,
+	 * reading it only once, and adds the leaves of the file's tiger tree
+	 * to <tt>nodes</tt>.  The leaves are hashed at the node size
+	 * <tt>HashTreeUtils</tt> picks for the file's size, so the full tree
+	 * can be built from them without reading the file again.  No leaves
+	 * are added if the file's size changed while it was read.
+	 *
+	 * @param file the file to construct the hashes from
+	 * @param nodes the list the leaves of the tree are added to
+	 * @return a set with the SHA1 and TTROOT URNs
+	 * @throws <tt>IOException</tt> if there is an error creating the hashes
+     * @throws <tt>InterruptedException</tt> if the calling thread was 
+     *  interrupted while hashing.
+	 */
+	public static UrnSet generateUrnsAndTreeNodesFromFile(final File file, List<byte[]> nodes)
+	  throws IOException, InterruptedException {
+	    List<byte[]> leaves = new ArrayList<byte[]>();
+	    UrnSet urns = generateUrnsFromFile(file, leaves);
+	    nodes.addAll(leaves);
+	    return urns;
+	}
+	
+	/**
+	 * Hashes the file, and its tiger tree too if <tt>leaves</tt> isn't null.
+	 * The leaves are left empty if the file's size changed while hashing.
+	 */
+	private static UrnSet generateUrnsFromFile(final File file, List<byte[]> leaves) 
       throws IOException, InterruptedException {
 		MessageDigest md = new SHA1();
+		MessageDigest tt = leaves != null ? new MerkleTree(new Tiger()) : null;
+		long length = file.length();
+		// a leaf is never smaller than a block, so the root stays right
+		// even if the file grows while it is read
+		int nodeSize = Math.max(HashTreeUtils.BLOCK_SIZE,
+		        HashTreeUtils.calculateNodeSize(length, HashTreeUtils.calculateDepth(length)));
+		int nodeOffset = 0;
+		long total = 0;
         byte[] buffer = threadLocal.get();
         int read;
         AtomicInteger progress = new AtomicInteger(0);
@@ -838,6 +896,20 @@ public final class URN implements HTTPHeaderValue, Serializable, org.limewire.co
             while ((read=fis.read(buffer))!=-1) {
                 long start = System.nanoTime();
                 md.update(buffer,0,read);
+                if(tt != null) {
+                    // hash each node on its own, keeping its leaf
+                    for(int offset = 0; offset < read; ) {
+                        int n = Math.min(read - offset, nodeSize - nodeOffset);
+                        tt.update(buffer, offset, n);
+                        offset += n;
+                        nodeOffset += n;
+                        if(nodeOffset == nodeSize) {
+                            leaves.add(tt.digest());
+                            nodeOffset = 0;
+                        }
+                    }
+                }
+                total += read;
                 progress.addAndGet( read );
                 if(SystemUtils.getIdleTime() < MIN_IDLE_TIME && SharingSettings.FRIENDLY_HASHING.getValue()) {
                     long interval = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
@@ -860,6 +932,14 @@ public final class URN implements HTTPHeaderValue, Serializable, org.limewire.co
         UrnSet ret = new UrnSet();
         URN sha1 = new URN(Type.URN_NAMESPACE_ID + Type.SHA1.getDescriptor() + Base32.encode(md.digest()), Type.SHA1);
         ret.add(sha1);
+        if(tt != null) {
+            if(nodeOffset > 0 || leaves.isEmpty())
+                leaves.add(tt.digest());
+            byte[] root = HashTreeUtils.createAllParentNodes(leaves, new Tiger()).get(0).get(0);
+            ret.add(new URN(Type.URN_NAMESPACE_ID + Type.TTROOT.getDescriptor() + Base32.encode(root), Type.TTROOT));
+            if(total != length)
+                leaves.clear();
+        }
         return ret;
 	}
 
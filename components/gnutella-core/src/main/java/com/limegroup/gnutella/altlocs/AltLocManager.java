@@ -1,20 +1,27 @@
 package com.limegroup.gnutella.altlocs;
 
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.limewire.core.settings.UploadSettings;
 import org.limewire.inspection.Inspectable;
 import org.limewire.inspection.InspectableContainer;
 import org.limewire.inspection.InspectionPoint;
+import org.limewire.io.Connectable;
+import org.limewire.io.IpPort;
 import org.limewire.listener.EventListener;
 
 import com.google.inject.Singleton;
 import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.http.HTTPHeaderValue;
 import com.limegroup.gnutella.library.FileViewChangeEvent;
 import com.limegroup.gnutella.util.ClassCNetworks;
 
@@ -25,9 +32,15 @@ public class AltLocManager implements EventListener<FileViewChangeEvent> {
     
     /**
      * Map of the alternate location collections for each URN.
-     * LOCKING: itself for all map operations as well as operations on the contained arrays
+     * LOCKING: the URNData for operations on the contained collections
      */
-    private final Map<URN, URNData> urnMap = Collections.synchronizedMap(new HashMap<URN, URNData>());
+    private final ConcurrentMap<URN, URNData> urnMap = new ConcurrentHashMap<URN, URNData>();
+    
+    /**
+     * The direct locations that are meshed with uploads if
+     * {@link UploadSettings#COMPACT_ALT_LOCS} is on.
+     */
+    private final CompactAltLocStore compactLocations = new CompactAltLocStore();
     
     /**
      * Adds a given altloc to the manager.
@@ -42,21 +55,15 @@ public class AltLocManager implements EventListener<FileViewChangeEvent> {
         AlternateLocationCollection<DirectAltLoc> dCol = null;
         AlternateLocationCollection<PushAltLoc>   pCol = null;
         
-        URNData data;
-        synchronized(urnMap) {
-            data = urnMap.get(sha1);
-            
-            if (data == null) {
-                data = new URNData();
-                urnMap.put(sha1,data);
-            }
-        }
+        URNData data = getOrCreateData(sha1);
         
         synchronized(data) {    
             if (al instanceof DirectAltLoc) { 
                 if (data.direct == AlternateLocationCollection.EMPTY)
                     data.direct = AlternateLocationCollection.create(sha1);
                 dCol = data.direct;
+                if (UploadSettings.COMPACT_ALT_LOCS.getValue())
+                    addCompact(sha1, ((DirectAltLoc)al).getHost());
             } else if(al instanceof PushAltLoc) {
                 PushAltLoc push = (PushAltLoc) al;
                 if (push.supportsFWTVersion() < 1) { 
@@ -97,7 +104,10 @@ public class AltLocManager implements EventListener<FileViewChangeEvent> {
      */
     public boolean remove(AlternateLocation al, Object source) {
         URN sha1 = al.getSHA1Urn();
-        URNData data = urnMap.get(sha1);
+        if (al instanceof DirectAltLoc)
+            removeCompact(sha1, ((DirectAltLoc)al).getHost());
+        
+        URNData data = getData(sha1);
         if (data == null)
             return false;
 
@@ -145,14 +155,87 @@ public class AltLocManager implements EventListener<FileViewChangeEvent> {
         }
         
         if (empty)
-            urnMap.remove(sha1);
+            urnMap.remove(sha1, data);
+    }
+    
+    /**
+     * Returns the data of sha1, or null if there is none.
+     */
+    private URNData getData(URN sha1) {
+        return sha1 == null ? null : urnMap.get(sha1);
+    }
+    
+    private URNData getOrCreateData(URN sha1) {
+        URNData data = urnMap.get(sha1);
+        if (data == null) {
+            data = new URNData();
+            URNData existing = urnMap.putIfAbsent(sha1, data);
+            if (existing != null)
+                data = existing;
+        }
+        return data;
+    }
+    
+    private void addCompact(URN sha1, IpPort host) {
+        InetAddress address = host.getInetAddress();
+        if (address != null && address.getAddress().length == 4) {
+            compactLocations.add(sha1, address.getAddress(), host.getPort(),
+                    host instanceof Connectable && ((Connectable)host).isTLSCapable());
+        }
+    }
+    
+    private void removeCompact(URN sha1, IpPort host) {
+        InetAddress address = host.getInetAddress();
+        if (address != null && address.getAddress().length == 4)
+            compactLocations.remove(sha1, address.getAddress(), host.getPort());
+    }
+    
+    /**
+     * Adds a direct location of sha1 that is only meshed with uploads,
+     * without creating an {@link AlternateLocation} for it.
+     * @return whether the location was new
+     */
+    public boolean addDirect(URN sha1, byte[] address, int port, boolean tlsCapable) {
+        return compactLocations.add(sha1, address, port, tlsCapable);
+    }
+    
+    /**
+     * Removes a direct location of sha1 that was added by
+     * {@link #addDirect(URN, byte[], int, boolean)}.
+     */
+    public boolean removeDirect(URN sha1, byte[] address, int port) {
+        return compactLocations.remove(sha1, address, port);
+    }
+    
+    /**
+     * Returns the encoded direct locations of sha1 to send to an upload
+     * that were not sent with cursor yet, or null if there are none.
+     */
+    public HTTPHeaderValue getDirectHeaderValue(URN sha1, CompactAltLocStore.Cursor cursor) {
+        return compactLocations.getHeaderValue(sha1, cursor);
+    }
+    
+    /**
+     * Returns up to max of the direct locations of sha1 that are kept for
+     * uploads.
+     */
+    public List<Connectable> getDirectHosts(URN sha1, int max) {
+        return compactLocations.getLocations(sha1, max);
+    }
+    
+    /**
+     * Returns whether any listeners are interested in locations of sha1.
+     */
+    public boolean hasListeners(URN sha1) {
+        URNData data = getData(sha1);
+        return data != null && !data.getListeners().isEmpty();
     }
     
     /**
      * @param sha1 the URN for which to get altlocs
      */
     public AlternateLocationCollection<DirectAltLoc> getDirect(URN sha1) {
-        URNData data = urnMap.get(sha1);
+        URNData data = getData(sha1);
         if (data == null)
             return AlternateLocationCollection.getEmptyCollection();
         
@@ -166,7 +249,7 @@ public class AltLocManager implements EventListener<FileViewChangeEvent> {
      * @param sha1 the URN for which to get altlocs
      */
     public AlternateLocationCollection<PushAltLoc> getPushNoFWT(URN sha1) {
-        URNData data = urnMap.get(sha1);
+        URNData data = getData(sha1);
         if (data == null)
             return AlternateLocationCollection.getEmptyCollection();
         
@@ -180,7 +263,7 @@ public class AltLocManager implements EventListener<FileViewChangeEvent> {
      * @param sha1 the URN for which to get altlocs
      */
     public AlternateLocationCollection<PushAltLoc> getPushFWT(URN sha1) {
-        URNData data = urnMap.get(sha1);
+        URNData data = getData(sha1);
         if (data == null)
             return AlternateLocationCollection.getEmptyCollection();
         
@@ -191,14 +274,19 @@ public class AltLocManager implements EventListener<FileViewChangeEvent> {
     
     public void purge(){
         urnMap.clear();
+        compactLocations.clear();
     }
     
     private void purge(URN sha1) {
         urnMap.remove(sha1);
+        compactLocations.clear(sha1);
     }
     
     public boolean hasAltlocs(URN sha1) {
-        URNData data = urnMap.get(sha1);
+        if (sha1 != null && compactLocations.getNumLocations(sha1) > 0)
+            return true;
+        
+        URNData data = getData(sha1);
         if (data == null)
             return false;
         
@@ -206,27 +294,18 @@ public class AltLocManager implements EventListener<FileViewChangeEvent> {
     }
     
     public int getNumLocs(URN sha1) {
-        URNData data = urnMap.get(sha1);
+        URNData data = getData(sha1);
         if (data == null)
             return 0;
         return data.getNumLocs();
     }
     
     public void addListener(URN sha1, AltLocListener listener) {
-        URNData data; 
-        synchronized(urnMap){
-            data = urnMap.get(sha1);
-            
-            if (data == null) {
-                data = new URNData();
-                urnMap.put(sha1,data);
-            }
-        }
-        data.addListener(listener);
+        getOrCreateData(sha1).addListener(listener);
     }
     
     public void removeListener(URN sha1, AltLocListener listener) {
-        URNData data =  urnMap.get(sha1);
+        URNData data = getData(sha1);
         if (data == null)
             return;
         data.removeListener(listener);
@@ -299,8 +378,8 @@ public class AltLocManager implements EventListener<FileViewChangeEvent> {
             public Object inspect() {
                 ClassCNetworks direct = new ClassCNetworks();
                 ClassCNetworks pushProxies = new ClassCNetworks();
-                synchronized(urnMap) {
-                    for (URNData data : urnMap.values()) {
+                for (URNData data : urnMap.values()) {
+                    synchronized(data) {
                         for( DirectAltLoc dal : data.direct)
                             direct.add(dal.getHost().getInetAddress(), 1);
                         for (PushAltLoc push : data.push) 
@@ -312,6 +391,7 @@ public class AltLocManager implements EventListener<FileViewChangeEvent> {
                 Map<String, Object> ret = new HashMap<String, Object>();
                 ret.put("direct", direct.getTopInspectable(10));
                 ret.put("proxies", pushProxies.getTopInspectable(10));
+                ret.put("compact files", compactLocations.getNumFiles());
                 return ret;
             }
         };
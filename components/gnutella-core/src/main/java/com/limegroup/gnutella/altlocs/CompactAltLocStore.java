@@ -0,0 +1,473 @@
+package com.limegroup.gnutella.altlocs;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.limewire.collection.BitNumbers;
+import org.limewire.io.Connectable;
+import org.limewire.io.ConnectableImpl;
+import org.limewire.io.NetworkUtils;
+
+import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.http.HTTPHeaderValue;
+
+/**
+ * Keeps the direct alternate locations of files in compact form, so that a
+ * busy uploader can mesh many locations without keeping an object for each.
+ * <p>
+ * Every location is packed into a long holding its IPv4 address, port and
+ * TLS capability, and the locations of a file are kept in a ring that
+ * replaces its oldest location when it is full.  The files are spread over
+ * segments that are locked separately, so that uploads of different files do
+ * not contend.
+ * <p>
+ * Each upload is handed the newest locations first and then older ones in
+ * batches, remembering which it was sent with a {@link Cursor}.  Batches of
+ * the newest locations are encoded when first asked for and handed to every
+ * upload until the locations of the file change.
+ */
+public class CompactAltLocStore {
+
+    /** The number of separately locked segments. */
+    static final int SEGMENTS = 16;
+
+    /** The most locations that are kept per file. */
+    static final int MAX_LOCATIONS = 100;
+
+    /** The most locations that are written into a header value. */
+    static final int MAX_HEADER_LOCATIONS = 10;
+
+    /** The number of locations a ring starts out with room for. */
+    private static final int INITIAL_CAPACITY = 4;
+
+    private static final int DEFAULT_PORT = 6346;
+
+    /** The bit of a packed location that is set if it is TLS capable. */
+    private static final long TLS_BIT = 1L << 48;
+
+    /** The bits of a packed location that hold its address and port. */
+    private static final long HOST_MASK = TLS_BIT - 1;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    /** The number given to the next location that is added. */
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    public CompactAltLocStore() {
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = new Segment();
+    }
+
+    /**
+     * Adds the location at the given IPv4 address and port for sha1.
+     *
+     * @return false if the location was already known with the same TLS
+     *         capability
+     */
+    public boolean add(URN sha1, byte[] address, int port, boolean tlsCapable) {
+        long location = pack(address, port, tlsCapable);
+        Segment segment = getSegment(sha1);
+        synchronized (segment) {
+            Ring ring = segment.rings.get(sha1);
+            if (ring == null) {
+                ring = new Ring();
+                segment.rings.put(sha1, ring);
+            }
+            return ring.add(location, nextSequence);
+        }
+    }
+
+    /**
+     * Removes the location at the given IPv4 address and port for sha1.
+     *
+     * @return whether the location was known
+     */
+    public boolean remove(URN sha1, byte[] address, int port) {
+        long location = pack(address, port, false);
+        Segment segment = getSegment(sha1);
+        synchronized (segment) {
+            Ring ring = segment.rings.get(sha1);
+            if (ring == null || !ring.remove(location))
+                return false;
+            if (ring.size == 0)
+                segment.rings.remove(sha1);
+            return true;
+        }
+    }
+
+    /**
+     * Returns the <code>X-Alt</code> value with the next locations of sha1
+     * that were not sent with cursor yet, or null if there are none.
+     */
+    public HTTPHeaderValue getHeaderValue(URN sha1, Cursor cursor) {
+        Segment segment = getSegment(sha1);
+        synchronized (segment) {
+            Ring ring = segment.rings.get(sha1);
+            if (ring == null)
+                return null;
+            return ring.next(cursor);
+        }
+    }
+
+    /**
+     * Returns up to max of the newest locations of sha1.
+     */
+    public List<Connectable> getLocations(URN sha1, int max) {
+        long[] locations;
+        Segment segment = getSegment(sha1);
+        synchronized (segment) {
+            Ring ring = segment.rings.get(sha1);
+            if (ring == null)
+                return Collections.emptyList();
+            locations = ring.newest(max);
+        }
+        List<Connectable> hosts = new ArrayList<Connectable>(locations.length);
+        for (long location : locations) {
+            try {
+                hosts.add(new ConnectableImpl(InetAddress.getByAddress(getAddress(location)),
+                        getPort(location), isTLSCapable(location)));
+            } catch (UnknownHostException impossible) {
+                throw new RuntimeException(impossible);
+            }
+        }
+        return hosts;
+    }
+
+    /**
+     * Returns the number of locations known for sha1.
+     */
+    public int getNumLocations(URN sha1) {
+        Segment segment = getSegment(sha1);
+        synchronized (segment) {
+            Ring ring = segment.rings.get(sha1);
+            return ring == null ? 0 : ring.size;
+        }
+    }
+
+    /**
+     * Returns the number of files that have locations.
+     */
+    public int getNumFiles() {
+        int files = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                files += segment.rings.size();
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Forgets the locations of sha1.
+     */
+    public void clear(URN sha1) {
+        Segment segment = getSegment(sha1);
+        synchronized (segment) {
+            segment.rings.remove(sha1);
+        }
+    }
+
+    /**
+     * Forgets all locations.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.rings.clear();
+            }
+        }
+    }
+
+    private Segment getSegment(URN sha1) {
+        int hash = sha1.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[(hash & 0x7fffffff) % SEGMENTS];
+    }
+
+    /**
+     * Parses a location of the form <code>address[:port]</code> with a dotted
+     * IPv4 address into the given array, returning the port or -1 if the
+     * location is not of that form or not a valid external address.
+     */
+    public static int parse(String location, byte[] address) {
+        int length = location.length();
+        int octet = 0;
+        int value = -1;
+        int i = 0;
+        for (; i < length; i++) {
+            char c = location.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value == -1 ? c - '0' : value * 10 + c - '0';
+                if (value > 255)
+                    return -1;
+            } else if (c == '.' && octet < 3 && value != -1) {
+                address[octet++] = (byte)value;
+                value = -1;
+            } else {
+                break;
+            }
+        }
+        if (octet != 3 || value == -1)
+            return -1;
+        address[3] = (byte)value;
+
+        int port = DEFAULT_PORT;
+        if (i < length) {
+            if (location.charAt(i) != ':' || i + 1 == length || length - i > 6)
+                return -1;
+            port = 0;
+            for (i++; i < length; i++) {
+                char c = location.charAt(i);
+                if (c < '0' || c > '9')
+                    return -1;
+                port = port * 10 + c - '0';
+            }
+        }
+
+        if (!NetworkUtils.isValidAddressAndPort(address, port)
+                || NetworkUtils.isPrivateAddress(address))
+            return -1;
+        return port;
+    }
+
+    /**
+     * Packs an IPv4 address and port into the low 48 bits of a long, with
+     * the TLS capability above them.
+     */
+    static long pack(byte[] address, int port, boolean tlsCapable) {
+        long location = ((address[0] & 0xFFL) << 40) | ((address[1] & 0xFFL) << 32)
+                | ((address[2] & 0xFFL) << 24) | ((address[3] & 0xFFL) << 16) | (port & 0xFFFF);
+        return tlsCapable ? location | TLS_BIT : location;
+    }
+
+    static byte[] getAddress(long location) {
+        return new byte[] { (byte)(location >>> 40), (byte)(location >>> 32),
+                (byte)(location >>> 24), (byte)(location >>> 16) };
+    }
+
+    static int getPort(long location) {
+        return (int)(location & 0xFFFF);
+    }
+
+    static boolean isTLSCapable(long location) {
+        return (location & TLS_BIT) != 0;
+    }
+
+    /**
+     * The locations of a file that were sent to an upload, which are the
+     * ones numbered from oldest to newest.
+     */
+    public static class Cursor {
+        private long oldest = Long.MAX_VALUE;
+
+        private long newest = -1;
+
+        private void sent(long sequence) {
+            oldest = Math.min(oldest, sequence);
+            newest = Math.max(newest, sequence);
+        }
+    }
+
+    private static class Segment {
+        /** LOCKING: this */
+        private final Map<URN, Ring> rings = new HashMap<URN, Ring>();
+    }
+
+    /**
+     * The locations of one file, oldest first, in an array that grows up to
+     * {@link CompactAltLocStore#MAX_LOCATIONS} and then wraps around.  Every
+     * location is numbered when added, so the numbers grow with the age.
+     * LOCKING: the segment the ring is in
+     */
+    private static class Ring {
+        private long[] locations = new long[INITIAL_CAPACITY];
+
+        private long[] sequences = new long[INITIAL_CAPACITY];
+
+        private int start;
+
+        private int size;
+
+        /**
+         * The encoded batches, the newest first, or null if the locations
+         * changed since they were encoded.
+         */
+        private EncodedLocations[] pages;
+
+        private long get(int i) {
+            return locations[(start + i) % locations.length];
+        }
+
+        private long getSequence(int i) {
+            return sequences[(start + i) % locations.length];
+        }
+
+        private int indexOf(long location) {
+            for (int i = 0; i < size; i++) {
+                if ((get(i) & HOST_MASK) == (location & HOST_MASK))
+                    return i;
+            }
+            return -1;
+        }
+
+        boolean add(long location, AtomicLong nextSequence) {
+            int index = indexOf(location);
+            if (index != -1) {
+                int slot = (start + index) % locations.length;
+                if (locations[slot] == location)
+                    return false;
+                // the TLS capability changed
+                locations[slot] = location;
+            } else if (size == MAX_LOCATIONS) {
+                locations[start] = location;
+                sequences[start] = nextSequence.getAndIncrement();
+                start = (start + 1) % locations.length;
+            } else {
+                if (size == locations.length)
+                    grow();
+                int slot = (start + size) % locations.length;
+                locations[slot] = location;
+                sequences[slot] = nextSequence.getAndIncrement();
+                size++;
+            }
+            pages = null;
+            return true;
+        }
+
+        boolean remove(long location) {
+            int index = indexOf(location);
+            if (index == -1)
+                return false;
+            for (int i = index; i < size - 1; i++) {
+                int slot = (start + i) % locations.length;
+                locations[slot] = get(i + 1);
+                sequences[slot] = getSequence(i + 1);
+            }
+            size--;
+            pages = null;
+            return true;
+        }
+
+        private void grow() {
+            int capacity = Math.min(MAX_LOCATIONS, locations.length * 2);
+            long[] grownLocations = new long[capacity];
+            long[] grownSequences = new long[capacity];
+            for (int i = 0; i < size; i++) {
+                grownLocations[i] = get(i);
+                grownSequences[i] = getSequence(i);
+            }
+            locations = grownLocations;
+            sequences = grownSequences;
+            start = 0;
+        }
+
+        /**
+         * Returns up to max locations, newest first.
+         */
+        long[] newest(int max) {
+            long[] newest = new long[Math.min(max, size)];
+            for (int i = 0; i < newest.length; i++)
+                newest[i] = get(size - 1 - i);
+            return newest;
+        }
+
+        /**
+         * Returns the next batch of locations that were not sent with
+         * cursor, preferring locations that were added since the last batch
+         * over older ones.
+         */
+        EncodedLocations next(Cursor cursor) {
+            if (cursor.newest == -1)
+                return getPage(0, cursor);
+
+            int added = size;
+            while (added > 0 && getSequence(added - 1) > cursor.newest)
+                added--;
+            if (added < size)
+                return encode(added, Math.min(size, added + MAX_HEADER_LOCATIONS), cursor);
+
+            int older = size - 1;
+            while (older >= 0 && getSequence(older) >= cursor.oldest)
+                older--;
+            if (older < 0)
+                return null;
+            int fromNewest = size - 1 - older;
+            if (fromNewest % MAX_HEADER_LOCATIONS == 0)
+                return getPage(fromNewest / MAX_HEADER_LOCATIONS, cursor);
+            return encode(Math.max(0, older + 1 - MAX_HEADER_LOCATIONS), older + 1, cursor);
+        }
+
+        /**
+         * Returns the given batch of locations, counted from the newest.
+         */
+        private EncodedLocations getPage(int page, Cursor cursor) {
+            if (pages == null)
+                pages = new EncodedLocations[(size + MAX_HEADER_LOCATIONS - 1) / MAX_HEADER_LOCATIONS];
+            int end = size - page * MAX_HEADER_LOCATIONS;
+            int begin = Math.max(0, end - MAX_HEADER_LOCATIONS);
+            if (pages[page] == null) {
+                pages[page] = encode(begin, end, cursor);
+            } else {
+                cursor.sent(getSequence(begin));
+                cursor.sent(getSequence(end - 1));
+            }
+            return pages[page];
+        }
+
+        /**
+         * Encodes the locations from begin to end, newest first, and marks
+         * them sent with cursor.
+         */
+        private EncodedLocations encode(int begin, int end, Cursor cursor) {
+            long[] batch = new long[end - begin];
+            for (int i = 0; i < batch.length; i++)
+                batch[i] = get(end - 1 - i);
+            cursor.sent(getSequence(begin));
+            cursor.sent(getSequence(end - 1));
+            return new EncodedLocations(batch);
+        }
+    }
+
+    /**
+     * An <code>X-Alt</code> value, encoded once.
+     */
+    private static class EncodedLocations implements HTTPHeaderValue {
+        private final String value;
+
+        EncodedLocations(long[] locations) {
+            StringBuilder buf = new StringBuilder(locations.length * 22);
+            BitNumbers tls = new BitNumbers(locations.length);
+            for (int i = 0; i < locations.length; i++) {
+                long location = locations[i];
+                if (isTLSCapable(location))
+                    tls.set(i);
+                byte[] address = getAddress(location);
+                buf.append(address[0] & 0xFF).append('.').append(address[1] & 0xFF).append('.')
+                        .append(address[2] & 0xFF).append('.').append(address[3] & 0xFF);
+                if (getPort(location) != DEFAULT_PORT)
+                    buf.append(':').append(getPort(location));
+                buf.append(',');
+            }
+            if (buf.length() > 0)
+                buf.setLength(buf.length() - 1);
+            if (!tls.isEmpty())
+                buf.insert(0, DirectAltLoc.TLS_IDX + tls.toHexString() + ",");
+            value = buf.toString();
+        }
+
+        public String httpStringValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return value;
+        }
+    }
+}
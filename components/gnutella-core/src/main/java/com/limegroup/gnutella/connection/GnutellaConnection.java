@@ -8,6 +8,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 
@@ -28,6 +29,7 @@ import org.limewire.logging.LogFactory;
 import org.limewire.net.SocketsManager;
 import org.limewire.net.SocketsManager.ConnectType;
 import org.limewire.nio.NBThrottle;
+import org.limewire.nio.NIODispatcher;
 import org.limewire.nio.Throttle;
 import org.limewire.nio.channel.ChannelWriter;
 import org.limewire.nio.channel.DeflaterWriter;
@@ -730,7 +732,9 @@ public class GnutellaConnection extends AbstractConnection implements ReplyHandl
 
         // TODO: ensure socket is asynchronous!
 
-        MessageWriter messager = new MessageWriter(_connectionStats, queue, this);
+        boolean batched = MessageSettings.BATCHED_MESSAGE_WRITES.getValue();
+        MessageWriter messager = new MessageWriter(_connectionStats, queue, this, null,
+                batched ? MessageWriter.DEFAULT_BATCH_SIZE : 0);
         _outputRunner = messager;
         
         ChannelWriter writer = messager;
@@ -738,16 +742,22 @@ public class GnutellaConnection extends AbstractConnection implements ReplyHandl
             writer = addWriter(writer, statsWriters.get(StatsWriters.TOP));
 
         if (isWriteDeflated()) {
-            writer = addWriter(writer, new DeflaterWriter(deflater));
+            if (batched)
+                writer = addWriter(writer, new DeflaterWriter(deflater, null,
+                        MessageWriter.DEFAULT_BATCH_SIZE, 1400));
+            else
+                writer = addWriter(writer, new DeflaterWriter(deflater));
             if (statsWriters.containsKey(StatsWriters.DEFLATER))
                 writer = addWriter(writer, statsWriters.get(StatsWriters.DEFLATER));
         }
         
-        writer = addWriter(writer, new DelayedBufferWriter(1400));
+        ScheduledExecutorService nioExecutor =
+            NIODispatcher.instance().getScheduledExecutorService(getSocket().getChannel());
+        writer = addWriter(writer, new DelayedBufferWriter(1400, nioExecutor));
         if (statsWriters.containsKey(StatsWriters.DELAYER))
             writer = addWriter(writer, statsWriters.get(StatsWriters.DELAYER));
         
-        writer = addWriter(writer, new ThrottleWriter(_nbThrottle));
+        writer = addWriter(writer, new ThrottleWriter(_nbThrottle, null, nioExecutor));
         if (statsWriters.containsKey(StatsWriters.THROTTLE))
             writer = addWriter(writer, statsWriters.get(StatsWriters.THROTTLE));
 
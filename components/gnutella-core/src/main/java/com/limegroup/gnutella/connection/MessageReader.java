@@ -22,6 +22,11 @@ import com.limegroup.gnutella.messages.MessageFactory;
  * The first time the channel returns -1 this will throw an IOException, as it
  * never expects the channel to run out of data.  Upon each read notification,
  * as much data as possible will be read from the source channel.
+ * <p>
+ * Data is read into a single buffer that can hold many messages, and messages
+ * are parsed directly from it with {@link MessageFactory#read(ByteBuffer, 
+ * com.limegroup.gnutella.messages.Message.Network, byte, java.net.SocketAddress)},
+ * so headers are never copied and no buffer is allocated per message.
  */
 public class MessageReader implements ChannelReadObserver {
     
@@ -31,14 +36,14 @@ public class MessageReader implements ChannelReadObserver {
     private static final int HEADER_SIZE = 23;
     /** where in the header the payload is */
     private static final int PAYLOAD_LENGTH_OFFSET = 19;
+    /** the initial size of the read buffer, enough for most messages */
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
     
-    /** The constant buffer to use for empty payloads. */
-    private static final ByteBuffer EMPTY_PAYLOAD = ByteBuffer.allocate(0);
-    
-    /** The sole buffer for parsing message headers. */
-    private final ByteBuffer header;
-    /** the buffer used for parsing the payload -- recreated for each message */
-    private ByteBuffer payload;
+    /**
+     * The buffer messages are read into.  It grows to hold messages that
+     * are larger than READ_BUFFER_SIZE, and shrinks back once they're read.
+     */
+    private ByteBuffer buffer;
     
     /** The sole receiver of messages. */
     private final MessageReceiver receiver;
@@ -68,9 +73,7 @@ public class MessageReader implements ChannelReadObserver {
             
         this.channel = channel;
         this.receiver = receiver;
-        this.header = ByteBuffer.allocate(HEADER_SIZE);
-        header.order(ByteOrder.LITTLE_ENDIAN);
-        this.payload = null;
+        this.buffer = allocate(READ_BUFFER_SIZE);
     }
     
     /**
@@ -95,64 +98,73 @@ public class MessageReader implements ChannelReadObserver {
      * All messages that can be read without blocking are read & dispatched.
      */
     public void handleRead() throws IOException {
-        // Continue reading until we can't fill up the header or payload.
+        // Continue reading until the channel has no more data.
         while(true) {
             int read = 0;
             
-            // First try to fill up the header.
-            while(header.hasRemaining() && (read = channel.read(header)) > 0);
+            // First fill up as much of the buffer as we can.
+            while(buffer.hasRemaining() && (read = channel.read(buffer)) > 0);
+            boolean full = !buffer.hasRemaining();
             
-            // If there header's not full, we can't bother reading the payload, so abort.
-            if(header.hasRemaining()) {
-                if(read == -1)
-                    throw new IOException("EOF");
-                break;
-            }
-                
-            // if we haven't set up a payload yet, set one up (if necessary).
-            if(payload == null) {
-                int payloadLength = header.getInt(PAYLOAD_LENGTH_OFFSET);
+            // Then dispatch every complete message in it.
+            buffer.flip();
+            int needed = 0;
+            while(buffer.remaining() >= HEADER_SIZE) {
+                int payloadLength = buffer.getInt(buffer.position() + PAYLOAD_LENGTH_OFFSET);
                 
                 if(payloadLength < 0 || payloadLength > MAX_MESSAGE_SIZE)
                     throw new IOException("should i implement skipping?");
                 
-                if(payloadLength == 0) {
-                    payload = EMPTY_PAYLOAD;
-                } else {
-                    try {
-                        payload = ByteBuffer.allocate(payloadLength);
-                    } catch(OutOfMemoryError oome) {
-                        throw new IOException("message too large.");
-                    }
+                // If the payload's not all here, we can't create a message, so wait.
+                if(buffer.remaining() < HEADER_SIZE + payloadLength) {
+                    needed = HEADER_SIZE + payloadLength;
+                    break;
                 }
-            }
-            
-            // Okay, a payload is set up, let's read into it.
-            while(payload.hasRemaining() && (read = channel.read(payload)) > 0);
-            
-            // If the payload's not full, we can't create a message, so abort.
-            if(payload.hasRemaining()) {
-                if(read == -1)
-                    throw new IOException("eof");
-                break;
-            }
                 
-            // Yay, we've got a full message.
-            try {
-                Message m = messageFactory.createMessage(header.array(), payload.array(), 
-                        receiver.getNetwork(), receiver.getSoftMax(), null);
-                receiver.processReadMessage(m);
-            } catch(BadPacketException ignored) {
+                // Yay, we've got a full message.
+                try {
+                    Message m = messageFactory.read(buffer, receiver.getNetwork(),
+                            receiver.getSoftMax(), null);
+                    receiver.processReadMessage(m);
+                } catch(BadPacketException ignored) {
+                }
             }
+            buffer.compact();
             
             if(read == -1)
                 throw new IOException("eof");
             
-            payload = null;
-            header.clear();
+            // Make room for a message larger than the buffer, or release
+            // the room once no large message is pending.
+            if(needed > buffer.capacity())
+                resize(needed);
+            else if(buffer.capacity() > READ_BUFFER_SIZE && needed <= READ_BUFFER_SIZE
+                    && buffer.position() <= READ_BUFFER_SIZE)
+                resize(READ_BUFFER_SIZE);
+            else if(!full)
+                break;
         }
     }
     
+    /** Replaces the buffer with one of the given size, keeping its data. */
+    private void resize(int size) throws IOException {
+        ByteBuffer resized;
+        try {
+            resized = allocate(size);
+        } catch(OutOfMemoryError oome) {
+            throw new IOException("message too large.");
+        }
+        buffer.flip();
+        resized.put(buffer);
+        buffer = resized;
+    }
+    
+    private static ByteBuffer allocate(int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+    
     /** 
      * Informs the receiver that the message is shutdown.
      */
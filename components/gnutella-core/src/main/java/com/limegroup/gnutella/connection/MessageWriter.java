@@ -17,9 +17,17 @@ import com.limegroup.gnutella.messages.Message;
  * them.  ConnectionStats are kept updated for all should-be-sent messages as well
  * as dropped messages (from expiry or buffer overflow), and the SentMessageHandler
  * is notified of all successfully sent messages.
+ * <p>
+ * If constructed with a batch size, messages are serialized until that many
+ * bytes are buffered (or the queue is empty) before anything is written to
+ * the sink.  This lets a deflating sink compress and flush a whole batch at
+ * once instead of every few messages.
  */
 public class MessageWriter implements ChannelWriter, OutputRunner {
     
+    /** The batch size connections use when batched writes are on. */
+    public static final int DEFAULT_BATCH_SIZE = 16 * 1024;
+    
     /**
      * The queue that holds the messages to write.  The queue internally can
      * expire messages which are old, or purge messages if many become buffered.
@@ -44,6 +52,12 @@ public class MessageWriter implements ChannelWriter, OutputRunner {
      */
     private final SentMessageHandler sendHandler;
     
+    /**
+     * The number of bytes to serialize before writing to the sink,
+     * or 0 to write after every message.
+     */
+    private final int batchSize;
+    
     /**
      * The sink channel we write to & interest ourselves on.
      */
@@ -75,11 +89,22 @@ public class MessageWriter implements ChannelWriter, OutputRunner {
      */
     public MessageWriter(ConnectionStats stats, MessageQueue queue,
                          SentMessageHandler sendHandler, InterestWritableByteChannel sink) {
+        this(stats, queue, sendHandler, sink, 0);
+    }
+    
+    /**
+     * Constructs a new MessageWriter that writes to the given sink,
+     * serializing up to batchSize bytes of messages per write.
+     */
+    public MessageWriter(ConnectionStats stats, MessageQueue queue,
+                         SentMessageHandler sendHandler, InterestWritableByteChannel sink,
+                         int batchSize) {
         this.stats = stats;
         this.queue = queue;
         this.sendHandler = sendHandler;
         this.channel = sink;
-        out = new ByteBufferOutputStream();
+        this.batchSize = batchSize;
+        out = batchSize > 0 ? new ByteBufferOutputStream(batchSize) : new ByteBufferOutputStream();
     }
     
     /** The channel we're writing to. */
@@ -132,12 +157,16 @@ public class MessageWriter implements ChannelWriter, OutputRunner {
             
             // no more messages to send.
             if(m == null) {
+                if(writeRemaining()) // still have part of a batch to send.
+                    return true;
                 channel.interestWrite(this, false);
                 return false;
             }
             
             m.writeQuickly(out);
             sendHandler.processSentMessage(m);
+            if(out.getBuffer().position() < batchSize)
+                continue; // keep filling the batch.
             if(writeRemaining()) // still have data to send.
                 return true;
         }
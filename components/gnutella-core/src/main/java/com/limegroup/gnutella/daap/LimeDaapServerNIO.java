@@ -7,10 +7,11 @@ import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.nio.channels.Channel;
-import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -41,7 +42,7 @@ public class LimeDaapServerNIO extends DaapServerNIO {
     private static final Log LOG = LogFactory.getLog(LimeDaapServerNIO.class);
     
     private final Map<DaapConnectionNIO, DaapController> allConnections =
-        new HashMap<DaapConnectionNIO, DaapController>();
+        new ConcurrentHashMap<DaapConnectionNIO, DaapController>();
     private ServerSocket serverSocket;
     private final ScheduledExecutorService backgroundExecutor;
 
@@ -54,7 +55,9 @@ public class LimeDaapServerNIO extends DaapServerNIO {
     
     /**
      * Schedules a repeated service that will process any connections
-     * that should be timed out.
+     * that should be timed out.  The sweep covers every connection, so it
+     * runs on the primary NIO thread; the connections it cancels are
+     * closed on their own threads.
      */
     private void scheduleServices() {
         backgroundExecutor.scheduleWithFixedDelay(new Runnable() {
@@ -72,6 +75,11 @@ public class LimeDaapServerNIO extends DaapServerNIO {
         }, 30000, 30000, TimeUnit.MILLISECONDS);
     }
     
+    /** Returns the executor of the NIO thread that handles the connection. */
+    private static ScheduledExecutorService getExecutor(DaapConnectionNIO connection) {
+        return NIODispatcher.instance().getScheduledExecutorService(connection.getChannel());
+    }
+    
     /**
      * Binds this server to the SocketAddress supplied by DaapConfig.
      * 
@@ -109,34 +117,31 @@ public class LimeDaapServerNIO extends DaapServerNIO {
      */
     @Override
     protected void cancelConnection(final DaapConnectionNIO connection) {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        getExecutor(connection).execute(new Runnable() {
             public void run() {
-                Channel channel = connection.getChannel();
-                try {
-                    channel.close();
-                } catch(IOException ignored) {}
+                close(connection);
             }
         });
     }
+    
+    /** Closes the channel of the connection. */
+    private static void close(DaapConnectionNIO connection) {
+        Channel channel = connection.getChannel();
+        try {
+            channel.close();
+        } catch(IOException ignored) {}
+    }
 
     /**
      * Disconnects all connections from this server.
      */
     @Override
     public void disconnectAll() {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
-            public void run() {
-                for(DaapConnectionNIO next : allConnections.keySet()) {
-                    Channel channel = next.getChannel();
-                    try {
-                        channel.close();
-                    } catch(IOException ignored) {}
-                    synchronized(LimeDaapServerNIO.this) {
-                        libraryQueue.clear();
-                    }
-                }
-            }
-        });
+        synchronized(this) {
+            libraryQueue.clear();
+        }
+        for(DaapConnectionNIO next : allConnections.keySet())
+            cancelConnection(next);
     }
 
     /**
@@ -159,29 +164,31 @@ public class LimeDaapServerNIO extends DaapServerNIO {
      */
     @Override
     protected void update() {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
-            public void run() {
-                synchronized (LimeDaapServerNIO.this) {
-                    for(DaapConnectionNIO connection : getDaapConnections()) {
-                        for (Library aLibraryQueue : libraryQueue) connection.enqueueLibrary(aLibraryQueue);
-
-                        SelectableChannel channel = connection.getChannel();
-                        try {
-                            connection.update();
-                            DaapController controller = allConnections.get(connection);
+        final List<Library> libraries;
+        List<DaapConnectionNIO> connections;
+        synchronized (this) {
+            libraries = new ArrayList<Library>(libraryQueue);
+            libraryQueue.clear();
+            connections = getDaapConnections();
+        }
+        
+        for(final DaapConnectionNIO connection : connections) {
+            getExecutor(connection).execute(new Runnable() {
+                public void run() {
+                    for (Library library : libraries)
+                        connection.enqueueLibrary(library);
+                    
+                    try {
+                        connection.update();
+                        DaapController controller = allConnections.get(connection);
+                        if (controller != null)
                             controller.setOps();
-                        } catch (IOException ignored) {
-                            try {
-                                channel.close();
-                            } catch (IOException ignoredToo) {
-                            }
-                        }
+                    } catch (IOException ignored) {
+                        close(connection);
                     }
-
-                    libraryQueue.clear();
                 }
-            }
-        });
+            });
+        }
     }    
     
     /**
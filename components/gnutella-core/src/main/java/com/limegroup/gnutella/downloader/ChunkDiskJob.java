@@ -14,6 +14,19 @@ public abstract class ChunkDiskJob {
         return buf;
     }
     
+    /**
+     * Returns what the job writes to, so that jobs for the same target can
+     * run in offset order, or null if it has none.
+     */
+    Object getTarget() {
+        return null;
+    }
+    
+    /** Returns the offset the job writes at within its target. */
+    long getOffset() {
+        return 0;
+    }
+    
     /** Runs the actual job. */
     abstract void runChunkJob(byte[] buf);
     
@@ -1,7 +1,13 @@
 package com.limegroup.gnutella.downloader;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -13,162 +19,199 @@ import org.limewire.collection.ByteArrayCache;
 import org.limewire.collection.PowerOf2ByteArrayCache;
 import org.limewire.concurrent.ExecutorsHelper;
 import org.limewire.concurrent.ManagedThread;
+import org.limewire.core.settings.DownloadSettings;
 import org.limewire.inject.EagerSingleton;
+import org.limewire.inspection.Inspectable;
+import org.limewire.inspection.InspectionPoint;
 import org.limewire.lifecycle.ServiceScheduler;
 
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 
-/** Manages writing / reading from / to disk. */
+/**
+ * Manages writing / reading from / to disk.
+ * <p>
+ * Disk jobs run on a {@link DiskQueue}. Normally there is one queue for
+ * everything; with {@link DownloadSettings#PER_VOLUME_DISK_QUEUES} on, each
+ * volume gets a queue of its own, so a slow disk only holds up the downloads
+ * written to it. A volume queue runs writes to the same file in offset order
+ * and holds at most {@link #MAX_CHUNKS_PER_VOLUME} chunks of the shared cache.
+ * Every queue keeps its own cache of verifying chunks, which only its thread
+ * uses.
+ */
 @EagerSingleton
 public class DiskController {
-    
+
     private static final Log LOG = LogFactory.getLog(DiskController.class);
 
-    /** The thread that does the actual verification & writing */
-    private final ThreadPoolExecutor QUEUE = ExecutorsHelper.newSingleThreadExecutor(
-            new ThreadFactory() {
-                public Thread newThread(Runnable r) {
-                    Thread t = new ManagedThread(r, "BlockingVF");
-                    t.setDaemon(true);
-                    t.setPriority(Thread.NORM_PRIORITY+1);
-                    return t;
-                }
-            });
-    
-    /**
-     * A list of DelayedWrites that will write when space becomes available in the cache.
-     * LOCKING: Lock on the below CACHE.
-     */
-    private final List<DelayedWrite> DELAYED = new LinkedList<DelayedWrite>();   
+    /** The most chunks a volume queue may have scheduled at once. */
+    static final int MAX_CHUNKS_PER_VOLUME = 128;
+
+    /** The most jobs a volume queue runs in offset order before taking the oldest. */
+    static final int MAX_SWEEP = 16;
+
+    /** Mount points under which each directory is a volume of its own. */
+    private static final String[] MOUNT_DIRS = { "/Volumes/", "/media/", "/mnt/" };
+
     /**  A cache for byte[]s. */
-    private final ByteArrayCache CACHE = new ByteArrayCache(512, HTTPDownloader.BUF_LENGTH);    
-    /** a bunch of cached byte[]s for verifiable chunks */
-    private final PowerOf2ByteArrayCache CHUNK_CACHE = new PowerOf2ByteArrayCache();
-    /** The number of chunks scheduled to be written. */
-    private int chunksScheduled = 0;
-    /** A lock to use for the queue size + chunksScheduled. */
-    private final Object SCHEDULE_LOCK = new Object();
-    
+    private final ByteArrayCache CACHE = new ByteArrayCache(512, HTTPDownloader.BUF_LENGTH);
+
+    /** The queue used for everything when there is no queue per volume. */
+    private final DiskQueue QUEUE = new DiskQueue("BlockingVF", Integer.MAX_VALUE, false);
+
+    /** Verifies chunks of memory mapped files, one thread per core. */
+    private final Executor VERIFIER = ExecutorsHelper.newFixedSizeThreadPool(
+            Runtime.getRuntime().availableProcessors(), "TTHVerifier");
+
+    /** All queues, by name. */
+    private final Map<String, DiskQueue> QUEUES = new ConcurrentHashMap<String, DiskQueue>();
+
+    @InspectionPoint("disk queues")
+    @SuppressWarnings("unused")
+    private final Inspectable queueInspectable = new Inspectable() {
+        @Override
+        public Object inspect() {
+            Map<String, Object> data = new HashMap<String, Object>();
+            for (DiskQueue queue : QUEUES.values())
+                data.put(queue.getName(), queue.getStats());
+            return data;
+        }
+    };
+
     @Inject
     public DiskController() {
-        
+        QUEUES.put(QUEUE.getName(), QUEUE);
     }
-    
+
     @Inject
     public void register(ServiceScheduler serviceScheduler, @Named("backgroundExecutor") ScheduledExecutorService backgroundExecutor) {
         serviceScheduler.scheduleWithFixedDelay("DiskContrller.CacheCleaner", new CacheCleaner(), 10, 10, TimeUnit.MINUTES, backgroundExecutor);
     }
-    
+
+    /**
+     * Returns the queue that jobs for the given file should run on.
+     */
+    DiskQueue getQueueFor(File file) {
+        if (!DownloadSettings.PER_VOLUME_DISK_QUEUES.getValue())
+            return QUEUE;
+
+        String name = "BlockingVF-" + getVolume(file);
+        synchronized (QUEUES) {
+            DiskQueue queue = QUEUES.get(name);
+            if (queue == null) {
+                queue = new DiskQueue(name, MAX_CHUNKS_PER_VOLUME, true);
+                QUEUES.put(name, queue);
+            }
+            return queue;
+        }
+    }
+
+    /** Returns the queue used when there is no queue per volume. */
+    DiskQueue getDefaultQueue() {
+        return QUEUE;
+    }
+
     /** Adds a DelayedWrite to the queue of writers. */
     public void addDelayedWrite(DelayedWrite dw) {
-        synchronized(CACHE) {
-            DELAYED.add(dw);
-        }
+        QUEUE.addDelayedWrite(dw);
     }
-    
+
     /** Returns true if no delayed writes are pending. */
     public boolean canWriteNow() {
-        synchronized(CACHE) {
-            return DELAYED.isEmpty();
-        }
+        return QUEUE.canWriteNow();
     }
-    
+
     /** Returns a chunk for writing.  Will return false if no chunks are available for writing. */
     public byte[] getWriteChunk() {
-        return CACHE.getQuick();
+        return QUEUE.getWriteChunk();
     }
-    
+
     /** Adds a job to be performed on the disk. */
-    public void addDiskJob(final ChunkDiskJob job) {
-        synchronized(SCHEDULE_LOCK) {
-            chunksScheduled++;
-            QUEUE.execute(new Runnable() {
-                public void run() {
-                    try {
-                        job.runChunkJob(job.getChunk());
-                    } finally {
-                        synchronized(SCHEDULE_LOCK) {
-                            chunksScheduled--;
-                        }
-                        
-                        releaseChunk(job.getChunk(), true);
-                        
-                        job.finish();
-                    }
-                }
-            });
-        }
+    public void addDiskJob(ChunkDiskJob job) {
+        QUEUE.addDiskJob(job);
     }
-    
+
     /** Adds a job to be performed on the disk that doesn't involve chunks. */
     public void addDiskJobWithoutChunk(Runnable job) {
-        QUEUE.execute(job);
+        QUEUE.addDiskJobWithoutChunk(job);
     }
-    
-    /** Gets a byte[] to the closest power of 2. */
-    public byte[] getPowerOf2Chunk(int size) {
-        return CHUNK_CACHE.get(size);
+
+    /** Returns the executor that verifies chunks already in memory. */
+    Executor getVerifier() {
+        return VERIFIER;
     }
     
+    /**
+     * Returns a name for the volume file is on: the file system root it is
+     * under, plus the directory it is mounted at for files under a common
+     * mount point such as <code>/Volumes</code>.
+     */
+    static String getVolume(File file) {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException iox) {
+            path = file.getAbsolutePath();
+        }
+
+        for (String mount : MOUNT_DIRS) {
+            if (path.startsWith(mount)) {
+                int end = path.indexOf('/', mount.length());
+                return end == -1 ? path : path.substring(0, end);
+            }
+        }
+
+        String volume = "";
+        File[] roots = File.listRoots();
+        if (roots != null) {
+            for (File root : roots) {
+                String rootPath = root.getPath();
+                if (path.startsWith(rootPath) && rootPath.length() > volume.length())
+                    volume = rootPath;
+            }
+        }
+        return volume;
+    }
+
     /**
      * A Runnable that clears the cache used for storing byte[]s used for
-     * writing data read from network to disk, and schedules a ChunkCacheCleaner.
+     * writing data read from network to disk, and schedules a ChunkCacheCleaner
+     * on every queue.
      */
     private class CacheCleaner implements Runnable {
         public void run() {
             LOG.info("clearing cache");
             CACHE.clear();
-            QUEUE.execute(new ChunkCacheCleaner());
+            for (DiskQueue queue : QUEUES.values())
+                queue.executor.execute(new ChunkCacheCleaner(queue));
         }
     }
-    
-    /** A Runnable that clears the cache storing byte[]s used for verifying. */
-    private class ChunkCacheCleaner implements Runnable {
+
+    /** A Runnable that clears the cache storing byte[]s used for verifying by a queue. */
+    private static class ChunkCacheCleaner implements Runnable {
+        private final DiskQueue queue;
+
+        ChunkCacheCleaner(DiskQueue queue) {
+            this.queue = queue;
+        }
+
         public void run() {
-            CHUNK_CACHE.clear();
+            queue.chunkCache.clear();
         }
     }
 
-    private void releaseChunk(byte[] buf, boolean runDelayed) {
+    /**
+     * Returns a chunk to the cache and runs the delayed writes of the queue
+     * that used it.  Other queues that are waiting only for a free chunk
+     * are told to try again.
+     */
+    private void releaseChunk(byte[] buf, DiskQueue queue) {
         CACHE.release(buf);
-        if(runDelayed)
-            runDelayedWrites();
-    }
-
-    private void runDelayedWrites() {
-        synchronized(SCHEDULE_LOCK) {
-            if(chunksScheduled > 0)
-                return;
-        }
-        
-        while(CACHE.isBufferAvailable()) {
-            DelayedWrite dw;
-            
-            synchronized(CACHE) {
-                if(DELAYED.isEmpty()) {
-                    LOG.debug("Nothing delayed to run.");
-                    return;
-                }
-                dw = DELAYED.get(0);
-            }
-    
-            // write & notify outside of lock
-            if(dw.write()) {
-                // if we wrote succesfully, remove the item from the cache.
-                synchronized(CACHE) {
-                    DELAYED.remove(0);
-                }
-            } else {
-                // otherwise, something went wrong, so reschedule another
-                // delayed write later on.
-                // NOTE: this should be impossible to happen, but it's happening,
-                //       and its no huge deal, so we're preparing for it.
-                QUEUE.execute(new Runnable() {
-                    public void run() {
-                        runDelayedWrites();
-                    }
-                });
+        queue.runDelayedWrites();
+        if (QUEUES.size() > 1) {
+            for (DiskQueue other : QUEUES.values()) {
+                if (other != queue)
+                    other.retryDelayedWrites();
             }
         }
     }
@@ -186,11 +229,293 @@ public class DiskController {
 
     /** Returns the number of bytes cached in the verifying cache. */
     public int getSizeOfVerifyingCache() {
-        return CHUNK_CACHE.getCacheSize();
+        int size = 0;
+        for (DiskQueue queue : QUEUES.values())
+            size += queue.chunkCache.getCacheSize();
+        return size;
     }
 
+    /** Returns the number of jobs waiting on all queues. */
     public int getNumPendingItems() {
-        return QUEUE.getQueue().size();
+        int pending = 0;
+        for (DiskQueue queue : QUEUES.values())
+            pending += queue.getDepth();
+        return pending;
     }
 
+    /**
+     * A queue of disk jobs with its own thread and delayed writes.
+     */
+    class DiskQueue {
+
+        private final String name;
+
+        /** The most chunks that may be scheduled at once. */
+        private final int maxScheduled;
+
+        /** Whether writes to the same file run in offset order. */
+        private final boolean elevator;
+
+        /** The thread that does the actual verification & writing */
+        private final ThreadPoolExecutor executor;
+
+        /** Cached byte[]s for verifiable chunks, used only by the thread of this queue. */
+        private final PowerOf2ByteArrayCache chunkCache = new PowerOf2ByteArrayCache();
+
+        /**
+         * The jobs waiting to run, oldest first.
+         * LOCKING: this
+         */
+        private final LinkedList<Job> jobs = new LinkedList<Job>();
+
+        /**
+         * A list of DelayedWrites that will write when space becomes available in the cache.
+         * LOCKING: this
+         */
+        private final List<DelayedWrite> delayed = new LinkedList<DelayedWrite>();
+
+        /** The number of chunks scheduled to be written. LOCKING: this */
+        private int chunksScheduled;
+
+        /** Whether a retry of the delayed writes is waiting to run. LOCKING: this */
+        private boolean retryScheduled;
+
+        /** The target and offset of the last job taken, for the elevator. LOCKING: this */
+        private Object lastTarget;
+        private long lastOffset;
+        /** The number of jobs taken in offset order since the oldest was last taken. LOCKING: this */
+        private int sweep;
+
+        /** Latency statistics, in milliseconds. LOCKING: this */
+        private long jobsRun, totalLatency, maxLatency;
+
+        DiskQueue(final String name, int maxScheduled, boolean elevator) {
+            this.name = name;
+            this.maxScheduled = maxScheduled;
+            this.elevator = elevator;
+            this.executor = ExecutorsHelper.newSingleThreadExecutor(
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new ManagedThread(r, name);
+                            t.setDaemon(true);
+                            t.setPriority(Thread.NORM_PRIORITY+1);
+                            return t;
+                        }
+                    });
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /** Adds a DelayedWrite to the queue of writers. */
+        synchronized void addDelayedWrite(DelayedWrite dw) {
+            delayed.add(dw);
+        }
+
+        /** Returns true if no delayed writes are pending. */
+        synchronized boolean canWriteNow() {
+            return delayed.isEmpty();
+        }
+
+        /**
+         * Returns a chunk for writing, or null if none are available or this
+         * queue has as many chunks scheduled as it may.
+         */
+        byte[] getWriteChunk() {
+            synchronized (this) {
+                if (chunksScheduled >= maxScheduled)
+                    return null;
+            }
+            return CACHE.getQuick();
+        }
+
+        /**
+         * Gets a byte[] to the closest power of 2.  Must only be called by a
+         * job running on this queue.
+         */
+        byte[] getPowerOf2Chunk(int size) {
+            return chunkCache.get(size);
+        }
+
+        /** Adds a job to be performed on the disk. */
+        void addDiskJob(ChunkDiskJob job) {
+            synchronized (this) {
+                chunksScheduled++;
+                jobs.add(new Job(job, null));
+            }
+            executor.execute(runNext);
+        }
+
+        /** Adds a job to be performed on the disk that doesn't involve chunks. */
+        void addDiskJobWithoutChunk(Runnable job) {
+            synchronized (this) {
+                jobs.add(new Job(null, job));
+            }
+            executor.execute(runNext);
+        }
+
+        /** Returns the number of jobs waiting to run. */
+        synchronized int getDepth() {
+            return jobs.size();
+        }
+
+        /** Returns the average time from adding a job until it finished, in milliseconds. */
+        synchronized long getAverageLatency() {
+            return jobsRun == 0 ? 0 : totalLatency / jobsRun;
+        }
+
+        synchronized Map<String, Object> getStats() {
+            Map<String, Object> stats = new HashMap<String, Object>();
+            stats.put("depth", jobs.size());
+            stats.put("scheduled", chunksScheduled);
+            stats.put("delayed", delayed.size());
+            stats.put("jobs", jobsRun);
+            stats.put("avg latency", getAverageLatency());
+            stats.put("max latency", maxLatency);
+            return stats;
+        }
+
+        /**
+         * Takes the next job.  Without the elevator this is the oldest job.
+         * With it, this is the job for the same file as the last one at the
+         * lowest offset not below the last, unless there is none or
+         * {@link DiskController#MAX_SWEEP} jobs were already taken that way.
+         */
+        private synchronized Job nextJob() {
+            Job next = null;
+            if (elevator && lastTarget != null && sweep < MAX_SWEEP) {
+                for (Job job : jobs) {
+                    if (job.target == lastTarget && job.offset >= lastOffset
+                            && (next == null || job.offset < next.offset))
+                        next = job;
+                }
+            }
+            if (next == null) {
+                next = jobs.getFirst();
+                sweep = 0;
+            } else {
+                sweep++;
+            }
+            jobs.remove(next);
+            lastTarget = next.target;
+            lastOffset = next.offset;
+            return next;
+        }
+
+        private synchronized void jobDone(Job job) {
+            long latency = System.currentTimeMillis() - job.added;
+            jobsRun++;
+            totalLatency += latency;
+            maxLatency = Math.max(maxLatency, latency);
+        }
+
+        /** Runs one job each time; one of these is scheduled per job added. */
+        private final Runnable runNext = new Runnable() {
+            public void run() {
+                nextJob().run();
+            }
+        };
+
+        private final Runnable retry = new Runnable() {
+            public void run() {
+                synchronized (DiskQueue.this) {
+                    retryScheduled = false;
+                }
+                runDelayedWrites();
+            }
+        };
+
+        /**
+         * Schedules a run of the delayed writes if there are some and
+         * nothing is scheduled that would run them when it finishes.
+         */
+        private void retryDelayedWrites() {
+            synchronized (this) {
+                if (retryScheduled || delayed.isEmpty() || chunksScheduled > 0)
+                    return;
+                retryScheduled = true;
+            }
+            executor.execute(retry);
+        }
+
+        private void runDelayedWrites() {
+            synchronized(this) {
+                if(chunksScheduled > 0)
+                    return;
+            }
+
+            while(CACHE.isBufferAvailable()) {
+                DelayedWrite dw;
+
+                synchronized(this) {
+                    if(delayed.isEmpty()) {
+                        LOG.debug("Nothing delayed to run.");
+                        return;
+                    }
+                    if(chunksScheduled >= maxScheduled)
+                        return;
+                    dw = delayed.get(0);
+                }
+
+                // write & notify outside of lock
+                if(dw.write()) {
+                    // if we wrote succesfully, remove the item from the cache.
+                    synchronized(this) {
+                        delayed.remove(0);
+                    }
+                } else {
+                    // otherwise, something went wrong, so reschedule another
+                    // delayed write later on.
+                    // NOTE: this should be impossible to happen, but it's happening,
+                    //       and its no huge deal, so we're preparing for it.
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            runDelayedWrites();
+                        }
+                    });
+                }
+            }
+        }
+
+        /** A job waiting on the queue. */
+        private class Job {
+            private final ChunkDiskJob chunkJob;
+            private final Runnable job;
+            private final Object target;
+            private final long offset;
+            private final long added = System.currentTimeMillis();
+
+            Job(ChunkDiskJob chunkJob, Runnable job) {
+                this.chunkJob = chunkJob;
+                this.job = job;
+                this.target = chunkJob == null ? null : chunkJob.getTarget();
+                this.offset = chunkJob == null ? 0 : chunkJob.getOffset();
+            }
+
+            void run() {
+                if (chunkJob == null) {
+                    try {
+                        job.run();
+                    } finally {
+                        jobDone(this);
+                    }
+                    return;
+                }
+
+                try {
+                    chunkJob.runChunkJob(chunkJob.getChunk());
+                } finally {
+                    synchronized(DiskQueue.this) {
+                        chunksScheduled--;
+                    }
+                    jobDone(this);
+
+                    releaseChunk(chunkJob.getChunk(), DiskQueue.this);
+
+                    chunkJob.finish();
+                }
+            }
+        }
+    }
 }
@@ -135,6 +135,13 @@ public class DownloadWorker {
      */
     private static final int UNKNOWN_SPEED = -1;
 
+    /**
+     * The number of chunks left to download at or below which partial
+     * sources may steal from other downloaders, if rarest first selection
+     * is on.
+     */
+    private static final int ENDGAME_BLOCKS = 4;
+
     /**
      * The time to wait trying to establish each normal connection, in
      * milliseconds.
@@ -236,23 +243,29 @@ public class DownloadWorker {
     
     private final HTTPDownloaderFactory httpDownloaderFactory;
     private final ScheduledExecutorService backgroundExecutor;
-    private final ScheduledExecutorService nioExecutor;
     private final Provider<PushDownloadManager> pushDownloadManager;
     private final SocketsManager socketsManager;
     private final TLSManager TLSManager;
 
     private final RemoteFileDescContext rfdContext;
 
+    private final SourceHistory sourceHistory;
+
+    /** The time the last request was sent. */
+    private volatile long requestTime;
+
+    /** The time the last download began. */
+    private volatile long downloadTime;
+
     protected DownloadWorker(DownloadWorkerSupport manager, RemoteFileDescContext rfdContext,
                              VerifyingFile vf, HTTPDownloaderFactory httpDownloaderFactory,
                              ScheduledExecutorService backgroundExecutor,
-                             ScheduledExecutorService nioExecutor,
                              Provider<PushDownloadManager> pushDownloadManager,
                              SocketsManager socketsManager,
-                             DownloadStatsTracker statsTracker, TLSManager TLSManager) {
+                             DownloadStatsTracker statsTracker, TLSManager TLSManager,
+                             SourceHistory sourceHistory) {
         this.httpDownloaderFactory = httpDownloaderFactory;
         this.backgroundExecutor = backgroundExecutor;
-        this.nioExecutor = nioExecutor;
         this.pushDownloadManager = pushDownloadManager;
         this.socketsManager = socketsManager;
         _manager = manager;
@@ -261,6 +274,7 @@ public class DownloadWorker {
         _commonOutFile = vf;
         this.statsTracker = statsTracker;
         this.TLSManager = TLSManager;
+        this.sourceHistory = sourceHistory;
         _currentState = new DownloadHttpRequestState();
 
         // if we'll be debugging, we want to distinguish the different workers
@@ -462,14 +476,18 @@ public class DownloadWorker {
      * DiskException while downloading will notify the manager of a problem.
      */
     private void beginDownload() {
+        downloadTime = System.currentTimeMillis();
         try {
             _downloader.doDownload(new State() {
                 @Override
                 protected void handleState(boolean success) {
                     if (success) {
                         rfdContext.resetFailedCount();
+                        sourceHistory.downloaded(_rfd, _downloader.getAmountRead(),
+                                System.currentTimeMillis() - downloadTime);
                     } else {
                         _manager.workerFailed(DownloadWorker.this);
+                        sourceHistory.failed(_rfd);
                     }
 
                     // if we got too corrupted, notify the user
@@ -654,7 +672,8 @@ public class DownloadWorker {
                     }
                 }
 
-                nioExecutor.execute(
+                // on the thread of the socket, in order with its events
+                _downloader.getNIOExecutor().execute(
                         new Runnable() {
                             public void run() {
                                 incrementState(null);
@@ -736,6 +755,7 @@ public class DownloadWorker {
         // if we didn't connect at all, tell the rest about this rfd
         if (_downloader == null) {
             _manager.informMesh(_rfd, false);
+            sourceHistory.failed(_rfd);
             return false;
         } else if (_interrupted.get()) {
             // if the worker got killed, make sure the downloader is stopped.
@@ -835,6 +855,7 @@ public class DownloadWorker {
         if (LOG.isTraceEnabled())
             LOG.trace("assignAndRequest for: " + _rfd);
 
+        requestTime = System.currentTimeMillis();
         Range interval = null;
         try {
             synchronized (_commonOutFile) {
@@ -869,6 +890,8 @@ public class DownloadWorker {
     private void completeAssignAndRequest(IOException x, Range range,
             DownloadWorker victim) {
         ConnectionStatus status = completeAssignAndRequestImpl(x, range, victim);
+        if (status.isConnected())
+            sourceHistory.responded(_rfd, System.currentTimeMillis() - requestTime);
         if (victim != null) {
             victim.setStealing(false);
             setStealing(false);
@@ -1128,13 +1151,24 @@ public class DownloadWorker {
 
         // If this _downloader is a partial source, don't attempt to steal...
         // too confusing, too many problems, etc...
+        // unless only the last few blocks are left, which it may share in
+        // if it has all of what the victim is downloading.
+        IntervalSet partialRanges = null;
         if (rfdContext.isPartialSource()) {
+            if (!isEndgame()) {
+                handleNoRanges();
+                return false;
+            }
+            partialRanges = rfdContext.getAvailableRanges();
+        }
+
+        final DownloadWorker slowest = findSlowestDownloader(partialRanges);
+
+        if (slowest == null && partialRanges != null) {
             handleNoRanges();
             return false;
         }
 
-        final DownloadWorker slowest = findSlowestDownloader();
-
         if (slowest == null) {// Not using this downloader...but RFD maybe
                                 // useful
             LOG.debug("didn't find anybody to steal from");
@@ -1275,9 +1309,24 @@ public class DownloadWorker {
     }
 
     /**
+     * Returns true if rarest first selection is on and all that is left to
+     * download are a few leased blocks.
+     */
+    private boolean isEndgame() {
+        if (!DownloadSettings.RAREST_FIRST_SELECTION.getValue())
+            return false;
+        synchronized (_commonOutFile) {
+            return _commonOutFile.hasFreeBlocksToAssign() == 0
+                    && _commonOutFile.getLeasedSize() <= ENDGAME_BLOCKS * (long)_commonOutFile.getChunkSize();
+        }
+    }
+
+    /**
+     * @param ranges the ranges the victim's remaining range must be within,
+     *        or null if this is not a partial source
      * @return the httpdownloader that is going slowest.
      */
-    private DownloadWorker findSlowestDownloader() {
+    private DownloadWorker findSlowestDownloader(IntervalSet ranges) {
         DownloadWorker slowest = null;
         final float ourSpeed = getOurSpeed();
         float slowestSpeed = ourSpeed;
@@ -1296,6 +1345,15 @@ public class DownloadWorker {
             if (h == null || h == _downloader || h.isVictim())
                 continue;
 
+            if (ranges != null) {
+                // the download interval ends just past its last byte,
+                // the ranges are inclusive
+                Range remaining = worker.getDownloadInterval();
+                if (remaining.getHigh() <= remaining.getLow()
+                        || !ranges.contains(Range.createRange(remaining.getLow(), remaining.getHigh() - 1)))
+                    continue;
+            }
+
             // if we don't have speed yet, steal from the first slow guy
             if (ourSpeed == UNKNOWN_SPEED) {
                 if (worker.isSlow())
@@ -16,28 +16,28 @@ class DownloadWorkerFactoryImpl implements DownloadWorkerFactory {
     
     private final HTTPDownloaderFactory httpDownloaderFactory;
     private final ScheduledExecutorService backgroundExecutor;
-    private final ScheduledExecutorService nioExecutor;
     private final Provider<PushDownloadManager> pushDownloadManager;
     private final SocketsManager socketsManager;
     @InspectionPoint("download connection stats")
     private final DownloadStatsTracker statsTracker;
     private final TLSManager TLSManager;
+    private final SourceHistory sourceHistory;
 
     @Inject
     public DownloadWorkerFactoryImpl(
             HTTPDownloaderFactory httpDownloaderFactory,
             @Named("backgroundExecutor")ScheduledExecutorService backgroundExecutor,
-            @Named("nioExecutor")ScheduledExecutorService nioExecutor,
             Provider<PushDownloadManager> pushDownloadManager,
             SocketsManager socketsManager,
-            DownloadStatsTracker statsTracker, TLSManager TLSManager) {
+            DownloadStatsTracker statsTracker, TLSManager TLSManager,
+            SourceHistory sourceHistory) {
         this.httpDownloaderFactory = httpDownloaderFactory;
         this.backgroundExecutor = backgroundExecutor;
-        this.nioExecutor = nioExecutor;
         this.pushDownloadManager = pushDownloadManager;
         this.socketsManager = socketsManager;
         this.statsTracker = statsTracker;
         this.TLSManager = TLSManager;
+        this.sourceHistory = sourceHistory;
     }
     
 
@@ -47,8 +47,8 @@ class DownloadWorkerFactoryImpl implements DownloadWorkerFactory {
     public DownloadWorker create(DownloadWorkerSupport manager,
             RemoteFileDescContext rfdContext, VerifyingFile vf) {
         return new DownloadWorker(manager, rfdContext, vf, httpDownloaderFactory,
-                backgroundExecutor, nioExecutor, pushDownloadManager,
-                socketsManager, statsTracker, TLSManager);
+                backgroundExecutor, pushDownloadManager,
+                socketsManager, statsTracker, TLSManager, sourceHistory);
     }
 
 }
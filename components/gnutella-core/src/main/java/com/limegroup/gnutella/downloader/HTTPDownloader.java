@@ -6,6 +6,7 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -17,6 +18,7 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ScheduledExecutorService;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -438,7 +440,8 @@ public class HTTPDownloader implements BandwidthTracker {
             LOG.warn("couldn't set keepalive");
         }
         observerHandler = new Observer();
-        _stateMachine = new IOStateMachine(observerHandler, new LinkedList<IOState>(), BUF_LENGTH);
+        _stateMachine = new IOStateMachine(observerHandler, new LinkedList<IOState>(), BUF_LENGTH,
+                NIODispatcher.instance().getScheduledExecutorService(_socket.getChannel()));
         _stateMachine.setReadChannel(new ThrottleReader(bandwidthManager.getReadThrottle()));
         ((NIOMultiplexor) _socket).setReadObserver(_stateMachine);
         ((NIOMultiplexor) _socket).setWriteObserver(_stateMachine);
@@ -1640,7 +1643,7 @@ public class HTTPDownloader implements BandwidthTracker {
                         irc.interestRead(false);
                         doingWrite = true;
                         _incompleteFile.registerWriteCallback(request, new DownloadRestarter(irc,
-                                buffer, this));
+                                buffer, this, _socket.getChannel()));
                         return true;
                     }
                 } catch (AssertFailure bad) {
@@ -1683,17 +1686,20 @@ public class HTTPDownloader implements BandwidthTracker {
         private final InterestReadableByteChannel irc;
 
         private final ByteBuffer buffer;
+        
+        private final SelectableChannel channel;
 
         DownloadRestarter(InterestReadableByteChannel irc, ByteBuffer buffer,
-                DownloadState downloader) {
+                DownloadState downloader, SelectableChannel channel) {
             this.irc = irc;
             this.buffer = buffer;
             this.downloader = downloader;
+            this.channel = channel;
         }
 
         public void writeScheduled() {
             LOG.debug("Delayed write scheduled");
-            NIODispatcher.instance().executeLaterAlways(this);
+            NIODispatcher.instance().executeLaterAlways(channel, this);
         }
 
         public void run() {
@@ -1716,14 +1722,28 @@ public class HTTPDownloader implements BandwidthTracker {
             _isActive = false;
         }
 
-        // Close in the NIO thread, so everything stays there.
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        // Close in the NIO thread of the socket, so everything stays there.
+        final Socket socket = _socket;
+        getNIOExecutor(socket).execute(new Runnable() {
             public void run() {
-                IOUtils.close(_socket);
+                IOUtils.close(socket);
             }
         });
     }
 
+    /**
+     * Returns the executor of the NIO thread that handles the socket, which
+     * runs tasks in order with the socket's events.
+     */
+    ScheduledExecutorService getNIOExecutor() {
+        return getNIOExecutor(_socket);
+    }
+
+    private static ScheduledExecutorService getNIOExecutor(Socket socket) {
+        return NIODispatcher.instance().getScheduledExecutorService(
+                socket != null ? socket.getChannel() : null);
+    }
+
     /**
      * Instructs this stop just before reading the given byte. This cannot be
      * used to increase the initial range.
@@ -1035,6 +1035,8 @@ class ManagedDownloaderImpl extends AbstractCoreDownloader implements AltLocList
             commonOutFile.setScanForExistingBlocks(true, incompleteFile.length());
             incompleteFileManager.addEntry(incompleteFile, commonOutFile, shouldPublishIFD());
         }
+        for (RemoteFileDescContext context : remoteFileDescToContext.values())
+            countAvailableRanges(context);
     }
 
     protected void initializeIncompleteFile() throws IOException {
@@ -2498,6 +2500,10 @@ class ManagedDownloaderImpl extends AbstractCoreDownloader implements AltLocList
         if (cachedRFDs.remove(rfd) && cachedRFDs.isEmpty()) {
             // remember our last RFD
             cachedRFDs.add(rfd);
+        } else {
+            RemoteFileDescContext context = remoteFileDescToContext.get(rfd);
+            if (context != null)
+                context.setSourceAvailability(null);
         }
     }
 
@@ -3215,15 +3221,25 @@ class ManagedDownloaderImpl extends AbstractCoreDownloader implements AltLocList
 
     private RemoteFileDescContext getContext(RemoteFileDesc rfd) {
         RemoteFileDescContext context = remoteFileDescToContext.get(rfd);
-        if (context != null) {
-            return context;
-        }
-        RemoteFileDescContext newContext = new RemoteFileDescContext(rfd);
-        context = remoteFileDescToContext.putIfAbsent(rfd, newContext);
-        if (context != null) {
-            return context;
+        if (context == null) {
+            RemoteFileDescContext newContext = new RemoteFileDescContext(rfd);
+            context = remoteFileDescToContext.putIfAbsent(rfd, newContext);
+            if (context == null) {
+                context = newContext;
+            }
         }
-        return newContext;
+        countAvailableRanges(context);
+        return context;
+    }
+
+    /**
+     * Adds the available ranges of the context to the counts the verifying
+     * file chooses rare blocks with, if rarest first selection is on.
+     */
+    private void countAvailableRanges(RemoteFileDescContext context) {
+        VerifyingFile file = commonOutFile;
+        if (file != null && DownloadSettings.RAREST_FIRST_SELECTION.getValue())
+            context.setSourceAvailability(file.getSourceAvailability());
     }
 
     private Collection<RemoteFileDescContext> getContexts(Collection<? extends RemoteFileDesc> rfds) {
@@ -0,0 +1,122 @@
+package com.limegroup.gnutella.downloader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes an incomplete file through memory mapped windows, so that ranges
+ * that were written can be verified from memory rather than read back.
+ * <p>
+ * Windows are mapped as they are needed and the most recently used ones
+ * are kept. Mapping a window extends the file to the end of that window.
+ * <p>
+ * An error accessing mapped memory, such as a full disk that cannot back
+ * the pages, is raised by the VM as an <code>InternalError</code>; it is
+ * thrown as an <code>IOException</code> instead, like a failed write.
+ */
+class MappedIncompleteFile {
+
+    /** The size of each mapped window, a power of 2. */
+    static final int WINDOW_SIZE = 16 * 1024 * 1024;
+
+    /** The most windows kept mapped. */
+    private static final int MAX_WINDOWS = 8;
+
+    private final FileChannel channel;
+
+    /** The size of the complete file. */
+    private final long size;
+
+    /**
+     * The mapped windows by index, least recently used first.
+     * LOCKING: this
+     */
+    private final Map<Long, MappedByteBuffer> windows = new LinkedHashMap<Long, MappedByteBuffer>(16, 0.75f, true) {
+        private static final long serialVersionUID = 3411523685390224163L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+            return size() > MAX_WINDOWS;
+        }
+    };
+
+    MappedIncompleteFile(FileChannel channel, long size) {
+        this.channel = channel;
+        this.size = size;
+    }
+
+    /** Returns the window with the given index, mapping it if needed. */
+    private synchronized ByteBuffer window(long index) throws IOException {
+        MappedByteBuffer window = windows.get(index);
+        if (window == null) {
+            long start = index * WINDOW_SIZE;
+            window = channel.map(MapMode.READ_WRITE, start, Math.min(WINDOW_SIZE, size - start));
+            windows.put(index, window);
+        }
+        return window.duplicate();
+    }
+
+    /** Writes length bytes of buf from offset to the file at position. */
+    void write(long position, byte[] buf, int offset, int length) throws IOException {
+        if (position < 0 || position + length > size)
+            throw new IOException("write outside of file: " + position + "+" + length);
+        while (length > 0) {
+            long index = position / WINDOW_SIZE;
+            ByteBuffer window = window(index);
+            window.position((int)(position - index * WINDOW_SIZE));
+            int n = Math.min(length, window.remaining());
+            try {
+                window.put(buf, offset, n);
+            } catch (InternalError e) {
+                throw (IOException)new IOException("unable to write mapped file at " + position).initCause(e);
+            }
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Returns a buffer with the length bytes of the file at position.  The
+     * buffer shares the mapped memory unless the range crosses windows.
+     */
+    ByteBuffer read(long position, int length) throws IOException {
+        if (position < 0 || position + length > size)
+            throw new IOException("read outside of file: " + position + "+" + length);
+        long index = position / WINDOW_SIZE;
+        ByteBuffer window = window(index);
+        window.position((int)(position - index * WINDOW_SIZE));
+        if (window.remaining() >= length) {
+            window.limit(window.position() + length);
+            return window.slice();
+        }
+
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        while (copy.hasRemaining()) {
+            window.limit(Math.min(window.capacity(), window.position() + copy.remaining()));
+            try {
+                copy.put(window);
+            } catch (InternalError e) {
+                throw (IOException)new IOException("unable to read mapped file at " + index * WINDOW_SIZE).initCause(e);
+            }
+            index++;
+            if (copy.hasRemaining())
+                window = window(index);
+        }
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * Forgets the mapped windows.  Their memory is unmapped once they are
+     * garbage collected.
+     */
+    synchronized void close() {
+        windows.clear();
+    }
+}
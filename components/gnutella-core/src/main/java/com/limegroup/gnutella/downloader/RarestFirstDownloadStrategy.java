@@ -0,0 +1,65 @@
+package com.limegroup.gnutella.downloader;
+
+import java.util.NoSuchElementException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.limewire.collection.IntervalSet;
+import org.limewire.collection.Range;
+
+/**
+ * This <code>SelectionStrategy</code> narrows the candidate bytes down to the
+ * blocks that the fewest known partial sources have, and lets another
+ * strategy pick among those.
+ * <p>
+ * Downloading rare blocks first makes it less likely that a download stalls
+ * near the end waiting for the one source that has the missing blocks.  When
+ * all candidate blocks are equally available, the choice is left entirely to
+ * the other strategy.
+ */
+public class RarestFirstDownloadStrategy implements SelectionStrategy {
+
+    private static final Log LOG = LogFactory.getLog(RarestFirstDownloadStrategy.class);
+
+    private final SelectionStrategy delegate;
+
+    private final SourceAvailability availability;
+
+    RarestFirstDownloadStrategy(SelectionStrategy delegate, SourceAvailability availability) {
+        this.delegate = delegate;
+        this.availability = availability;
+    }
+
+    public Range pickAssignment(IntervalSet candidateBytes, IntervalSet neededBytes,
+            long blockSize) throws NoSuchElementException {
+        if (candidateBytes.isEmpty())
+            throw new NoSuchElementException();
+        return delegate.pickAssignment(getRarest(candidateBytes), neededBytes, blockSize);
+    }
+
+    /** Returns the bytes of candidateBytes in the least available blocks. */
+    IntervalSet getRarest(IntervalSet candidateBytes) {
+        long countSize = availability.getBlockSize();
+        int min = Integer.MAX_VALUE;
+        for (Range range : candidateBytes) {
+            for (long low = range.getLow(); low <= range.getHigh(); low = nextBlock(low, countSize))
+                min = Math.min(min, availability.getCount(low));
+        }
+
+        IntervalSet rarest = new IntervalSet();
+        for (Range range : candidateBytes) {
+            for (long low = range.getLow(); low <= range.getHigh(); low = nextBlock(low, countSize)) {
+                if (availability.getCount(low) == min)
+                    rarest.add(Range.createRange(low, Math.min(range.getHigh(), nextBlock(low, countSize) - 1)));
+            }
+        }
+
+        if (LOG.isDebugEnabled())
+            LOG.debug("rarest blocks with " + min + " sources: " + rarest + " of " + candidateBytes);
+        return rarest;
+    }
+
+    private static long nextBlock(long offset, long blockSize) {
+        return offset - offset % blockSize + blockSize;
+    }
+}
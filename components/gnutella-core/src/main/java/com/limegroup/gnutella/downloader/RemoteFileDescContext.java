@@ -28,6 +28,11 @@ public class RemoteFileDescContext {
      */
     private IntervalSet availableRanges;
     
+    /**
+     * The counts that the available ranges are added to, or null.
+     */
+    private SourceAvailability sourceAvailability;
+    
     /**
      * Whether or not THEX retrieval has failed with this host.
      */
@@ -86,7 +91,7 @@ public class RemoteFileDescContext {
     /**
      * Accessor for the available ranges.
      */
-    public IntervalSet getAvailableRanges() {
+    public synchronized IntervalSet getAvailableRanges() {
         try {
             return availableRanges.clone();
         } catch (CloneNotSupportedException e) {
@@ -95,16 +100,41 @@ public class RemoteFileDescContext {
     }
 
     /**
-     * Mutator for the available ranges.
+     * Mutator for the available ranges. The ranges are copied, so
+     * changing them later doesn't throw off the counts they were
+     * added to.
      */
-    public void setAvailableRanges(IntervalSet availableRanges) {
+    public synchronized void setAvailableRanges(IntervalSet availableRanges) {
+        if (availableRanges != null) {
+            try {
+                availableRanges = availableRanges.clone();
+            } catch (CloneNotSupportedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (sourceAvailability != null)
+            sourceAvailability.update(this.availableRanges, availableRanges);
         this.availableRanges = availableRanges;
     }
 
+    /**
+     * Moves the available ranges of this source from the counts they were
+     * added to, if any, to the given counts.  Null stops counting them.
+     */
+    synchronized void setSourceAvailability(SourceAvailability sourceAvailability) {
+        if (this.sourceAvailability == sourceAvailability)
+            return;
+        if (this.sourceAvailability != null)
+            this.sourceAvailability.remove(availableRanges);
+        if (sourceAvailability != null)
+            sourceAvailability.add(availableRanges);
+        this.sourceAvailability = sourceAvailability;
+    }
+
     /**
      * Returns true if this is a partial source.
      */
-    public boolean isPartialSource() {
+    public synchronized boolean isPartialSource() {
         return availableRanges != null;
     }
     /**
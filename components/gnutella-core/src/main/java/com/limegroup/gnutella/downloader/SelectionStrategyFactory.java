@@ -16,6 +16,25 @@ public class SelectionStrategyFactory {
      *  @return the proper SelectionStrategy to use, based on the input params.
      */
     public static SelectionStrategy getStrategyFor(String extension, long fileSize) {
+        return getStrategyFor(extension, fileSize, null);
+    }
+
+    /**
+     * @param availability the counts of partial sources having each block,
+     *      or null to ignore how many sources have each block.
+     * @return the proper SelectionStrategy to use, based on the input params,
+     *      preferring the least available blocks if rarest first selection is
+     *      on and availability is known.
+     */
+    static SelectionStrategy getStrategyFor(String extension, long fileSize,
+            SourceAvailability availability) {
+        SelectionStrategy strategy = getStrategyForExtension(extension, fileSize);
+        if (availability != null && DownloadSettings.RAREST_FIRST_SELECTION.getValue())
+            return new RarestFirstDownloadStrategy(strategy, availability);
+        return strategy;
+    }
+
+    private static SelectionStrategy getStrategyForExtension(String extension, long fileSize) {
         
         // Check if the extension matches known previewable extennsions
         if (extension != null && extension.length() > 0) {
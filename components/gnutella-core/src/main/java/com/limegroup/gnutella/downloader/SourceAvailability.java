@@ -0,0 +1,77 @@
+package com.limegroup.gnutella.downloader;
+
+import org.limewire.collection.IntervalSet;
+import org.limewire.collection.Range;
+
+/**
+ * Counts how many known partial sources have each block of a file.
+ * <p>
+ * Sources are counted from the ranges they advertise, which are added and
+ * removed as they change, so the counts never need to be rebuilt.  Ranges
+ * must not change between being added and being removed, so callers hand
+ * in copies.  A source is counted for every block that it has at least one
+ * byte of.  Complete sources are not counted, since they have every block.
+ */
+class SourceAvailability {
+
+    private final long blockSize;
+
+    /**
+     * The number of sources having each block, grown as needed.
+     * LOCKING: this
+     */
+    private int[] counts = new int[0];
+
+    SourceAvailability(long blockSize) {
+        if (blockSize < 1)
+            throw new IllegalArgumentException("block size cannot be " + blockSize);
+        this.blockSize = blockSize;
+    }
+
+    long getBlockSize() {
+        return blockSize;
+    }
+
+    /** Counts a source having the given ranges, ignoring null. */
+    synchronized void add(IntervalSet ranges) {
+        change(ranges, 1);
+    }
+
+    /** Stops counting a source having the given ranges, ignoring null. */
+    synchronized void remove(IntervalSet ranges) {
+        change(ranges, -1);
+    }
+
+    /** Replaces the counts for a source that had oldRanges and now has newRanges. */
+    synchronized void update(IntervalSet oldRanges, IntervalSet newRanges) {
+        change(oldRanges, -1);
+        change(newRanges, 1);
+    }
+
+    /** Returns the number of partial sources having the block containing offset. */
+    synchronized int getCount(long offset) {
+        long block = offset / blockSize;
+        return block < counts.length ? counts[(int)block] : 0;
+    }
+
+    private void change(IntervalSet ranges, int delta) {
+        if (ranges == null)
+            return;
+        for (Range range : ranges) {
+            long first = range.getLow() / blockSize;
+            long last = range.getHigh() / blockSize;
+            if (last >= counts.length)
+                grow(last + 1);
+            for (long block = first; block <= last; block++)
+                counts[(int)block] += delta;
+        }
+    }
+
+    private void grow(long size) {
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("too many blocks: " + size);
+        int[] grown = new int[(int)Math.max(size, counts.length * 2L)];
+        System.arraycopy(counts, 0, grown, 0, counts.length);
+        counts = grown;
+    }
+}
@@ -0,0 +1,323 @@
+package com.limegroup.gnutella.downloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.limewire.core.settings.DownloadSettings;
+import org.limewire.inject.EagerSingleton;
+import org.limewire.inspection.Inspectable;
+import org.limewire.inspection.InspectionPoint;
+import org.limewire.io.Address;
+import org.limewire.io.Connectable;
+import org.limewire.io.IOUtils;
+import org.limewire.io.NetworkUtils;
+import org.limewire.lifecycle.Service;
+import org.limewire.lifecycle.ServiceRegistry;
+import org.limewire.util.CommonUtils;
+import org.limewire.util.GenericsUtils;
+
+import com.google.inject.Inject;
+import com.limegroup.gnutella.RemoteFileDesc;
+
+/**
+ * Remembers how sources performed in past downloads, so that sources can be
+ * ranked by how quickly they are expected to deliver data rather than by
+ * what they advertise.
+ * <p>
+ * For every host and every class C network the throughput, the time until
+ * the response to a request arrived and the rate of failed connections and
+ * downloads are kept as exponentially weighted moving averages.  A host that
+ * was never downloaded from is judged by its network, and a host of an
+ * unknown network by its advertised speed.  The history is saved between
+ * sessions, keeping only the most recently used hosts and networks.
+ */
+@EagerSingleton
+public class SourceHistory implements Service {
+
+    private static final Log LOG = LogFactory.getLog(SourceHistory.class);
+
+    /** The most hosts that are remembered. */
+    private static final int MAX_HOSTS = 2000;
+
+    /** The most class C networks that are remembered. */
+    private static final int MAX_NETWORKS = 1000;
+
+    /** The weight of the newest sample in the averages. */
+    static final double SAMPLE_WEIGHT = 0.3;
+
+    /** The fewest bytes a download must read for its throughput to count. */
+    static final long MIN_THROUGHPUT_SAMPLE = 16 * 1024;
+
+    /** The response time assumed for sources without history. */
+    static final double DEFAULT_FIRST_BYTE_TIME = 1000;
+
+    /** The failure rate assumed for sources without history. */
+    static final double DEFAULT_FAILURE_RATE = 0.25;
+
+    /**
+     * The hosts by address, least recently used first.
+     * LOCKING: this
+     */
+    private final Map<String, Record> hosts = new LruMap<String, Record>(MAX_HOSTS);
+
+    /**
+     * The class C networks, least recently used first.
+     * LOCKING: this
+     */
+    private final Map<Integer, Record> networks = new LruMap<Integer, Record>(MAX_NETWORKS);
+
+    @SuppressWarnings("unused")
+    @InspectionPoint("source history")
+    private final Inspectable inspectable = new Inspectable() {
+        @Override
+        public Object inspect() {
+            Map<String, Object> data = new HashMap<String, Object>();
+            synchronized (SourceHistory.this) {
+                data.put("hosts", hosts.size());
+                data.put("networks", networks.size());
+            }
+            return data;
+        }
+    };
+
+    @Inject
+    void register(ServiceRegistry registry) {
+        registry.register(this);
+    }
+
+    public String getServiceName() {
+        return org.limewire.i18n.I18nMarker.marktr("Download Source History");
+    }
+
+    public void initialize() {
+    }
+
+    public void start() {
+        if (DownloadSettings.THROUGHPUT_SOURCE_RANKING.getValue())
+            load();
+    }
+
+    public void stop() {
+        if (DownloadSettings.THROUGHPUT_SOURCE_RANKING.getValue())
+            save();
+    }
+
+    /**
+     * Records that connecting to rfd or downloading from it failed.
+     */
+    public void failed(RemoteFileDesc rfd) {
+        if (!DownloadSettings.THROUGHPUT_SOURCE_RANKING.getValue())
+            return;
+        synchronized (this) {
+            for (Record record : getRecords(rfd, true))
+                record.attempted(true);
+        }
+    }
+
+    /**
+     * Records that rfd responded to a request after the given number of
+     * milliseconds.
+     */
+    public void responded(RemoteFileDesc rfd, long millis) {
+        if (!DownloadSettings.THROUGHPUT_SOURCE_RANKING.getValue())
+            return;
+        synchronized (this) {
+            for (Record record : getRecords(rfd, true)) {
+                record.attempted(false);
+                record.firstByte(millis);
+            }
+        }
+    }
+
+    /**
+     * Records that the given number of bytes were downloaded from rfd in
+     * the given number of milliseconds.
+     */
+    public void downloaded(RemoteFileDesc rfd, long bytes, long millis) {
+        if (!DownloadSettings.THROUGHPUT_SOURCE_RANKING.getValue() || bytes < MIN_THROUGHPUT_SAMPLE)
+            return;
+        synchronized (this) {
+            for (Record record : getRecords(rfd, true))
+                record.downloaded(bytes * 1000.0 / Math.max(1, millis));
+        }
+    }
+
+    /**
+     * Returns the bytes per second that rfd is expected to deliver for a
+     * request of the given size, taking the time until it responds and the
+     * chance of it failing into account.
+     */
+    public synchronized double getExpectedRate(RemoteFileDesc rfd, long requestSize) {
+        Record[] records = getRecords(rfd, false);
+        // advertised speeds are in kilobits
+        double throughput = Math.max(1, rfd.getSpeed()) * 1024 / 8.0;
+        double firstByteTime = DEFAULT_FIRST_BYTE_TIME;
+        double failureRate = DEFAULT_FAILURE_RATE;
+        // the host's own history wins over its network's
+        for (int i = records.length - 1; i >= 0; i--) {
+            Record record = records[i];
+            if (record == null)
+                continue;
+            if (record.throughput > 0)
+                throughput = record.throughput;
+            if (record.firstByteTime > 0)
+                firstByteTime = record.firstByteTime;
+            if (record.attempts > 0)
+                failureRate = record.failureRate;
+        }
+        double seconds = firstByteTime / 1000 + requestSize / throughput;
+        return (1 - failureRate) * requestSize / seconds;
+    }
+
+    /**
+     * Returns the records of the host of rfd and of its network, which are
+     * null if they are unknown and create is false, or an empty array if the
+     * address of rfd is not known.
+     * LOCKING: this
+     */
+    private Record[] getRecords(RemoteFileDesc rfd, boolean create) {
+        Address address = rfd.getAddress();
+        if (!(address instanceof Connectable))
+            return new Record[0];
+        Connectable connectable = (Connectable)address;
+        InetAddress inetAddress = connectable.getInetAddress();
+        if (inetAddress == null)
+            return new Record[0];
+        String host = connectable.getAddress();
+        Integer network = NetworkUtils.getClassC(inetAddress);
+        Record hostRecord = hosts.get(host);
+        Record networkRecord = networks.get(network);
+        if (create && hostRecord == null) {
+            hostRecord = new Record();
+            hosts.put(host, hostRecord);
+        }
+        if (create && networkRecord == null) {
+            networkRecord = new Record();
+            networks.put(network, networkRecord);
+        }
+        return new Record[] { hostRecord, networkRecord };
+    }
+
+    /**
+     * Loads the history from disk.
+     */
+    private synchronized void load() {
+        ObjectInputStream is = null;
+        try {
+            is = new ObjectInputStream(new BufferedInputStream(new FileInputStream(getHistoryFile())));
+            Map<String, Record> savedHosts = GenericsUtils.scanForMap(is.readObject(),
+                    String.class, Record.class, GenericsUtils.ScanMode.REMOVE);
+            Map<Integer, Record> savedNetworks = GenericsUtils.scanForMap(is.readObject(),
+                    Integer.class, Record.class, GenericsUtils.ScanMode.REMOVE);
+            hosts.putAll(savedHosts);
+            networks.putAll(savedNetworks);
+            if (LOG.isDebugEnabled())
+                LOG.debug("Loaded " + hosts.size() + " hosts and " + networks.size() + " networks");
+        } catch (IOException iox) {
+            LOG.debug("Error loading source history: ", iox);
+        } catch (ClassNotFoundException cnfe) {
+            LOG.debug("Error loading source history: ", cnfe);
+        } catch (ClassCastException cce) {
+            // the file held something other than the two maps
+            LOG.debug("Error loading source history: ", cce);
+        } finally {
+            IOUtils.close(is);
+        }
+    }
+
+    /**
+     * Saves the history to disk.
+     */
+    private void save() {
+        Map<String, Record> savedHosts;
+        Map<Integer, Record> savedNetworks;
+        synchronized (this) {
+            savedHosts = new LinkedHashMap<String, Record>(hosts);
+            savedNetworks = new LinkedHashMap<Integer, Record>(networks);
+        }
+        ObjectOutputStream oos = null;
+        try {
+            oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(getHistoryFile())));
+            oos.writeObject(savedHosts);
+            oos.writeObject(savedNetworks);
+            oos.flush();
+        } catch (IOException iox) {
+            LOG.debug("Error saving source history: ", iox);
+        } finally {
+            IOUtils.close(oos);
+        }
+    }
+
+    synchronized void clear() {
+        hosts.clear();
+        networks.clear();
+    }
+
+    private static File getHistoryFile() {
+        return new File(CommonUtils.getUserSettingsDir(), "sources.dat");
+    }
+
+    /**
+     * The history of a host or network.
+     */
+    private static class Record implements Serializable {
+        private static final long serialVersionUID = 4283712590873114542L;
+
+        private double throughput;
+
+        private double firstByteTime;
+
+        private double failureRate;
+
+        private int attempts;
+
+        void attempted(boolean failed) {
+            failureRate = average(failureRate, failed ? 1 : 0, attempts == 0);
+            attempts++;
+        }
+
+        void firstByte(long millis) {
+            firstByteTime = average(firstByteTime, millis, firstByteTime == 0);
+        }
+
+        void downloaded(double bytesPerSecond) {
+            throughput = average(throughput, bytesPerSecond, throughput == 0);
+        }
+
+        private static double average(double average, double sample, boolean first) {
+            return first ? sample : SAMPLE_WEIGHT * sample + (1 - SAMPLE_WEIGHT) * average;
+        }
+    }
+
+    /**
+     * A map that discards its least recently used entries.
+     */
+    private static class LruMap<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 3369429535403587221L;
+
+        private final int maxSize;
+
+        LruMap(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
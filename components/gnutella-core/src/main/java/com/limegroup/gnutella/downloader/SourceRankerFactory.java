@@ -11,12 +11,15 @@ public class SourceRankerFactory {
     
     private final NetworkManager networkManager;
     private final Provider<PingRanker> pingRanker;
+    private final Provider<ThroughputRanker> throughputRanker;
     
     @Inject
     public SourceRankerFactory(NetworkManager networkManager,
-                               Provider<PingRanker> pingRanker) {
+                               Provider<PingRanker> pingRanker,
+                               Provider<ThroughputRanker> throughputRanker) {
         this.networkManager = networkManager;
         this.pingRanker = pingRanker;
+        this.throughputRanker = throughputRanker;
     }
 
     FriendsFirstSourceRanker createFriendsFirstSourceRanker() {
@@ -27,7 +30,9 @@ public class SourceRankerFactory {
      * @return a ranker appropriate for our system's capabilities.
      */
     public SourceRanker getAppropriateRanker() {
-        if (networkManager.canReceiveSolicited() && 
+        if (DownloadSettings.THROUGHPUT_SOURCE_RANKING.getValue())
+            return throughputRanker.get();
+        else if (networkManager.canReceiveSolicited() && 
                 DownloadSettings.USE_HEADPINGS.getValue())
             return createFriendsFirstSourceRanker();
         else 
@@ -44,7 +49,11 @@ public class SourceRankerFactory {
             return getAppropriateRanker();
         
         SourceRanker better;
-        if (networkManager.canReceiveSolicited() && 
+        if (DownloadSettings.THROUGHPUT_SOURCE_RANKING.getValue()) {
+            if (original instanceof ThroughputRanker)
+                return original;
+            better = throughputRanker.get();
+        } else if (networkManager.canReceiveSolicited() && 
                 DownloadSettings.USE_HEADPINGS.getValue()) {
             if (original instanceof FriendsFirstSourceRanker)
                 return original;
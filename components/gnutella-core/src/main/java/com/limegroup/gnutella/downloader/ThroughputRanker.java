@@ -0,0 +1,90 @@
+package com.limegroup.gnutella.downloader;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.inject.Inject;
+
+/**
+ * A ranker that picks the source expected to deliver a chunk the fastest,
+ * judging sources by how they performed in the past as remembered by
+ * {@link SourceHistory}.
+ * <p>
+ * As with the {@link LegacyRanker}, sources that are not busy come first
+ * and sources with hashes are preferred over sources without, so that a
+ * slow but reliable source is not passed over for a dud.
+ */
+public class ThroughputRanker extends AbstractSourceRanker {
+
+    private static final Log LOG = LogFactory.getLog(ThroughputRanker.class);
+
+    private final SourceHistory sourceHistory;
+
+    private final Set<RemoteFileDescContext> rfds = new HashSet<RemoteFileDescContext>();
+
+    @Inject
+    public ThroughputRanker(SourceHistory sourceHistory) {
+        this.sourceHistory = sourceHistory;
+    }
+
+    @Override
+    public synchronized boolean addToPool(RemoteFileDescContext host) {
+        return rfds.add(host);
+    }
+
+    @Override
+    public synchronized RemoteFileDescContext getBest() {
+        if (!hasMore())
+            return null;
+
+        long now = System.currentTimeMillis();
+        RemoteFileDescContext best = null;
+        double bestRate = 0;
+        for (RemoteFileDescContext rfd : rfds) {
+            double rate = sourceHistory.getExpectedRate(rfd.getRemoteFileDesc(),
+                    VerifyingFile.DEFAULT_CHUNK_SIZE);
+            if (best == null || isBetter(rfd, rate, best, bestRate, now)) {
+                best = rfd;
+                bestRate = rate;
+            }
+        }
+        rfds.remove(best);
+
+        if (LOG.isDebugEnabled())
+            LOG.debug("the best is " + best + ", expected at " + bestRate + " bytes/s");
+        return best;
+    }
+
+    private static boolean isBetter(RemoteFileDescContext rfd, double rate,
+            RemoteFileDescContext best, double bestRate, long now) {
+        if (rfd.isBusy(now) != best.isBusy(now))
+            return best.isBusy(now);
+        if ((rfd.getSHA1Urn() == null) != (best.getSHA1Urn() == null))
+            return rfd.getSHA1Urn() != null;
+        return rate > bestRate;
+    }
+
+    @Override
+    public synchronized boolean hasMore() {
+        return !rfds.isEmpty();
+    }
+
+    @Override
+    public synchronized Collection<RemoteFileDescContext> getShareableHosts() {
+        return rfds;
+    }
+
+    @Override
+    protected Collection<RemoteFileDescContext> getPotentiallyBusyHosts() {
+        return rfds;
+    }
+
+    @Override
+    public synchronized int getNumKnownHosts() {
+        return rfds.size();
+    }
+}
@@ -4,7 +4,9 @@ package com.limegroup.gnutella.downloader;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 
@@ -13,8 +15,10 @@ import org.apache.commons.logging.LogFactory;
 import org.limewire.collection.IntervalSet;
 import org.limewire.collection.MultiIterable;
 import org.limewire.collection.Range;
+import org.limewire.core.settings.DownloadSettings;
 import org.limewire.io.DiskException;
 import org.limewire.util.FileUtils;
+import org.limewire.util.OSUtils;
 
 import com.google.inject.Provider;
 import com.limegroup.gnutella.tigertree.HashTree;
@@ -64,6 +68,12 @@ public class VerifyingFile {
      */
     private volatile RandomAccessFile fos;
     
+    /**
+     * The file as mapped into memory, if writes go through mapped windows
+     * and chunks are verified from memory.
+     */
+    private volatile MappedIncompleteFile mapped;
+    
     /**
      * Whether this file is open for writing.
      */
@@ -110,11 +120,21 @@ public class VerifyingFile {
      */
     private IntervalSet pendingBlocks;
     
+    /**
+     * Partial ranges which are being verified from memory.
+     */
+    private final IntervalSet verifyingBlocks = new IntervalSet();
+    
     /**
      * Decides which blocks to start downloading next.
      */
     private SelectionStrategy blockChooser = null;
     
+    /**
+     * How many known partial sources have each block.
+     */
+    private final SourceAvailability sourceAvailability = new SourceAvailability(DEFAULT_CHUNK_SIZE);
+    
     /**
      * The hashtree we use to verify chunks, if any.
      */
@@ -160,6 +180,9 @@ public class VerifyingFile {
     
     /** The controller for doing disk reads/writes. */
     private final Provider<DiskController> diskController;
+    
+    /** The queue that disk jobs for this file run on, set when it is opened. */
+    private volatile DiskController.DiskQueue diskQueue;
         
     /**
      * Constructs a new VerifyingFile for the specified size.
@@ -195,8 +218,15 @@ public class VerifyingFile {
         }
         FileUtils.setWriteable(file);
         this.fos =  new RandomAccessFile(file,"rw");
+        // mapped files cannot be renamed or deleted on Windows until the
+        // mapping is garbage collected.
+        if (DownloadSettings.MAPPED_INCOMPLETE_FILES.getValue() && !OSUtils.isWindows())
+            this.mapped = new MappedIncompleteFile(fos.getChannel(), completedSize);
+        else
+            this.mapped = null;
+        this.diskQueue = diskController.get().getQueueFor(file);
         SelectionStrategy myStrategy = SelectionStrategyFactory.getStrategyFor(
-                FileUtils.getFileExtension(file), completedSize);
+                FileUtils.getFileExtension(file), completedSize, sourceAvailability);
         
         synchronized(this) {
             storedException = null;
@@ -207,6 +237,12 @@ public class VerifyingFile {
         }
     }
 
+    /** Returns the queue for disk jobs, or the default one if this was never opened. */
+    private DiskController.DiskQueue getDiskQueue() {
+        DiskController.DiskQueue queue = diskQueue;
+        return queue != null ? queue : diskController.get().getDefaultQueue();
+    }
+
     /**
      * Used to add blocks directly. Blocks added this way are marked
      * partial.
@@ -222,7 +258,7 @@ public class VerifyingFile {
         if (writeBlockImpl(request)) {
             callback.writeScheduled();
         } else {
-            diskController.get().addDelayedWrite(new VerifyingFileDelayedWrite(request, callback, this));
+            getDiskQueue().addDelayedWrite(new VerifyingFileDelayedWrite(request, callback, this));
         }
     }
 
@@ -235,7 +271,7 @@ public class VerifyingFile {
         
         request.startProcessing();
         updateState(request.in);
-        boolean canWrite = diskController.get().canWriteNow();
+        boolean canWrite = getDiskQueue().canWriteNow();
         
         if(canWrite)
             return writeBlockImpl(request);
@@ -255,7 +291,7 @@ public class VerifyingFile {
         if (!validateState(request))
         	return true;
         
-        byte[] temp = diskController.get().getWriteChunk();
+        byte[] temp = getDiskQueue().getWriteChunk();
         if(temp == null)
             return false;
         
@@ -269,7 +305,7 @@ public class VerifyingFile {
             chunksScheduledPerFile++;
         }
         
-        diskController.get().addDiskJob(new ChunkHandler(temp, request.in));
+        getDiskQueue().addDiskJob(new ChunkHandler(temp, request.in));
         return true;
     }
     
@@ -493,6 +529,21 @@ public class VerifyingFile {
         	pendingBlocks.getSize();
     }
     
+    /**
+     * Returns the number of bytes currently leased.
+     */
+    public synchronized long getLeasedSize() {
+        return leasedBlocks.getSize();
+    }
+
+    /**
+     * Returns the counts of partial sources having each block, which
+     * sources of this file keep up to date.
+     */
+    SourceAvailability getSourceAvailability() {
+        return sourceAvailability;
+    }
+    
     public synchronized long getPendingSize() {
         return pendingBlocks.getSize();
     }
@@ -602,6 +653,9 @@ public class VerifyingFile {
                     } catch (InterruptedException ignore) { }
                 }
             }
+            MappedIncompleteFile mappedFile = mapped;
+            if (mappedFile != null)
+                mappedFile.close();
             fos.close();
         } catch (IOException ignore) {}
     }
@@ -700,7 +754,7 @@ public class VerifyingFile {
             if (verifiedBlocks.getSize() > 0) {
                 partialBlocks.add(verifiedBlocks);
                 verifiedBlocks.clear();
-                diskController.get().addDiskJobWithoutChunk(new EmptyVerifier(existingFileSize));
+                getDiskQueue().addDiskJobWithoutChunk(new EmptyVerifier(existingFileSize));
             }
         }
         
@@ -714,7 +768,7 @@ public class VerifyingFile {
         if (previous == null && tree != null && (existingFileSize != -1 ||
                 (pendingBlocks.getSize() == 0 && partialBlocks.getSize() > 0))
            ) {
-            diskController.get().addDiskJobWithoutChunk(new EmptyVerifier(existingFileSize));
+            getDiskQueue().addDiskJobWithoutChunk(new EmptyVerifier(existingFileSize));
             existingFileSize = -1;
         }
         return true;
@@ -755,23 +809,67 @@ public class VerifyingFile {
         HashTree tree = getHashTree(); // capture the tree.
         // if we have a tree, see if there is a completed chunk in the partial list
         if(tree != null) {
+            MappedIncompleteFile mappedFile = mapped;
             for(Range i : findVerifyableBlocks(existingFileSize)) {
-                byte[] tmp = diskController.get().getPowerOf2Chunk(Math.min(VERIFYABLE_CHUNK,tree.getNodeSize()));
+                if (mappedFile != null) {
+                    verifyFromMemory(tree, mappedFile, i, fullScan);
+                    continue;
+                }
+                // only called by jobs on the queue of this file
+                byte[] tmp = getDiskQueue().getPowerOf2Chunk(Math.min(VERIFYABLE_CHUNK,tree.getNodeSize()));
                 boolean good = !tree.isCorrupt(i, fos, tmp);
-                synchronized (this) {
-                    partialBlocks.delete(i);
-                    if (good)
-                        verifiedBlocks.add(i);
-                    else {
-                        if (!fullScan) {
-                            if (!discardBad)
-                                savedCorruptBlocks.add(i);
-                            lostSize += (i.getHigh() - i.getLow() + 1);
-                        }
+                chunkVerified(i, good, fullScan);
+            }
+        }
+    }
+    
+    /** Moves a verified range out of the partial blocks. */
+    private synchronized void chunkVerified(Range i, boolean good, boolean fullScan) {
+        partialBlocks.delete(i);
+        if (good)
+            verifiedBlocks.add(i);
+        else {
+            if (!fullScan) {
+                if (!discardBad)
+                    savedCorruptBlocks.add(i);
+                lostSize += (i.getHigh() - i.getLow() + 1);
+            }
+        }
+    }
+    
+    /**
+     * Schedules the verification of a range of the mapped file, which is
+     * hashed in memory on one of the verifier threads.  The range counts as
+     * a scheduled chunk until it is verified, so that the file is not closed
+     * before.
+     */
+    private void verifyFromMemory(final HashTree tree, final MappedIncompleteFile mappedFile,
+            final Range range, final boolean fullScan) {
+        synchronized (this) {
+            verifyingBlocks.add(range);
+            chunksScheduledPerFile++;
+        }
+        diskController.get().getVerifier().execute(new Runnable() {
+            public void run() {
+                boolean good = false;
+                try {
+                    ByteBuffer data = mappedFile.read(range.getLow(), (int)(range.getHigh() - range.getLow() + 1));
+                    good = !tree.isCorrupt(range, data);
+                } catch (IOException assumeCorrupt) {
+                    LOG.debug("iox while verifying ", assumeCorrupt);
+                } catch (InternalError assumeCorrupt) {
+                    // the mapped memory could not be read
+                    LOG.debug("error while verifying ", assumeCorrupt);
+                } finally {
+                    synchronized (VerifyingFile.this) {
+                        verifyingBlocks.delete(range);
+                        chunkVerified(range, good, fullScan);
+                        --chunksScheduledPerFile;
+                        VerifyingFile.this.notifyAll();
                     }
                 }
             }
-        }
+        });
     }
         
     /**
@@ -827,6 +925,20 @@ public class VerifyingFile {
             }
         }
         
+        // skip those that are already being verified from memory.  Adjacent
+        // ranges are merged in verifyingBlocks, so only a real overlap counts.
+        if (!verifyingBlocks.isEmpty()) {
+            for (Iterator<Range> i = verifyable.iterator(); i.hasNext(); ) {
+                Range range = i.next();
+                for (Range verifying : verifyingBlocks) {
+                    if (verifying.getLow() <= range.getHigh() && verifying.getHigh() >= range.getLow()) {
+                        i.remove();
+                        break;
+                    }
+                }
+            }
+        }
+        
         return verifyable;
     }
     
@@ -849,15 +961,30 @@ public class VerifyingFile {
                 "invalid length "+length+ " vs buf "+buf.length;
         }
         
+        @Override
+        Object getTarget() {
+            return VerifyingFile.this;
+        }
+        
+        @Override
+        long getOffset() {
+            return intvl.getLow();
+        }
+        
         @Override
         public void runChunkJob(byte[] buf) {
             try {
                 if (LOG.isTraceEnabled())
                     LOG.trace("Writing intvl: " + intvl);
 
-                synchronized (fos) {
-                    fos.seek(intvl.getLow());
-                    fos.write(buf, 0, (int) (intvl.getHigh() - intvl.getLow() + 1));
+                MappedIncompleteFile mappedFile = mapped;
+                if (mappedFile != null) {
+                    mappedFile.write(intvl.getLow(), buf, 0, (int) (intvl.getHigh() - intvl.getLow() + 1));
+                } else {
+                    synchronized (fos) {
+                        fos.seek(intvl.getLow());
+                        fos.write(buf, 0, (int) (intvl.getHigh() - intvl.getLow() + 1));
+                    }
                 }
 
                 synchronized (VerifyingFile.this) {
@@ -3,8 +3,8 @@ package com.limegroup.gnutella.filters;
 import java.util.HashSet;
 import java.util.Set;
 
-import org.limewire.collection.Buffer;
-import org.limewire.io.GUID;
+import org.limewire.collection.RotatingBloomFilter;
+import org.limewire.core.settings.FilterSettings;
 
 import com.limegroup.gnutella.URN;
 import com.limegroup.gnutella.messages.Message;
@@ -27,6 +27,12 @@ import com.limegroup.gnutella.xml.LimeXMLDocument;
  * </ul>
  *
  * It would also be possible to special-case hops counts of zero.
+ * <p>
+ * If {@link FilterSettings#DUPLICATE_QUERY_FALSE_POSITIVE_RATE} is above
+ * zero, queries are remembered by their hashes in a
+ * {@link RotatingBloomFilter} rather than in sets, so no objects are created
+ * per query.  A new query is then blocked as a duplicate with about that
+ * probability.
  */
 public class DuplicateFilter implements SpamFilter {  
     /**
@@ -39,12 +45,18 @@ public class DuplicateFilter implements SpamFilter {
      */
 
     private static final int BUF_SIZE=20;
-    /** a list of the GUIDs of the last pings we saw and
-     * their timestamps. 
+    /** a ring of the GUIDs of the last pings we saw, with their
+     * timestamps and hops in the matching slots of guidTimes and guidHops.
      *
      * INVARIANT: the youngest entries have largest timestamps
      */
-    private Buffer<GUIDPair> guids=new Buffer<GUIDPair>(BUF_SIZE);
+    private final byte[][] guids=new byte[BUF_SIZE][];
+    private final long[] guidTimes=new long[BUF_SIZE];
+    private final int[] guidHops=new int[BUF_SIZE];
+    /** The slot the next GUID goes in. */
+    private int guidHead=0;
+    /** The number of slots in use. */
+    private int guidCount=0;
     /** The time, in milliseconds, allowed between similar messages. */
     static final int GUID_LAG=500;
     
@@ -97,6 +109,34 @@ public class DuplicateFilter implements SpamFilter {
     private Set<QueryPair> youngQueries=new HashSet<QueryPair>();
     private Set<QueryPair> oldQueries=new HashSet<QueryPair>();
     
+    /** 
+     * The number of queries expected within QUERY_LAG when the query
+     * hashes are kept in a Bloom filter.  More than this many shorten the
+     * window rather than raising the false positive rate.
+     */
+    static final int QUERY_CAPACITY=8192;
+    
+    /**
+     * The hashes of the young and old queries, used instead of the sets
+     * if not null.
+     */
+    private final RotatingBloomFilter queryHashes;
+    
+    public DuplicateFilter() {
+        this(FilterSettings.DUPLICATE_QUERY_FALSE_POSITIVE_RATE.getValue());
+    }
+    
+    /**
+     * @param falsePositiveRate the rate at which new queries may be blocked,
+     * or 0 to remember queries exactly
+     */
+    DuplicateFilter(float falsePositiveRate) {
+        if (falsePositiveRate > 0)
+            queryHashes = new RotatingBloomFilter(QUERY_CAPACITY, falsePositiveRate, 2);
+        else
+            queryHashes = null;
+    }
+    
 
     /** Returns the approximate system time in milliseconds. */
     private static long getTime() {
@@ -124,37 +164,45 @@ public class DuplicateFilter implements SpamFilter {
         if (! ((m instanceof QueryRequest) || (m instanceof PingRequest)))
             return true;
 
-        GUIDPair me=new GUIDPair(m.getGUID(), getTime(), m.getHops());
+        byte[] guid=m.getGUID();
+        long time=getTime();
+        int hops=m.getHops();
 
         //Consider all messages that came in within GUID_LAG milliseconds 
-        //of this...
-        int z = guids.getSize();
-        for(int j=0; j<z ; j++){             
-            GUIDPair other = guids.get(j);
+        //of this, youngest first...
+        boolean allow=true;
+        for(int j=0; j<guidCount ; j++){             
+            int other=(guidHead-1-j+BUF_SIZE) % BUF_SIZE;
             //The following assertion fails for mysterious reasons on the
             //Macintosh.  Also, it can fail if the user adjusts the clock, e.g.,
             //for daylight savings time.  Luckily it need not hold for the code
             //to work correctly.  
-            //  Assert.that(me.time>=other.time,"Unexpected clock behavior");
-            if ((me.time-other.time) > guidLag)
+            //  Assert.that(time>=guidTimes[other],"Unexpected clock behavior");
+            if ((time-guidTimes[other]) > guidLag)
                 //All remaining pings have smaller timestamps.
                 break;
             //If different hops, keep looking
-            if (other.hops != me.hops)
+            if (guidHops[other] != hops)
                 continue;
             //Are the GUIDs similar?.  TODO3: can optimize
+            byte[] otherGUID=guids[other];
             int misses=0;
-            for (int i=0; i<me.guid.length&&misses<=TOLERANCE; i++) {
-                if (me.guid[i]!=other.guid[i])
+            for (int i=0; i<guid.length&&misses<=TOLERANCE; i++) {
+                if (guid[i]!=otherGUID[i])
                     misses++;
             }
             if (misses<=TOLERANCE) {//really close GUIDS
-                guids.add(me);
-                return false;
+                allow=false;
+                break;
             }
         }
-        guids.add(me);
-        return true;        
+        guids[guidHead]=guid;
+        guidTimes[guidHead]=time;
+        guidHops[guidHead]=hops;
+        guidHead=(guidHead+1) % BUF_SIZE;
+        if (guidCount < BUF_SIZE)
+            guidCount++;
+        return allow;        
     }
        
     public boolean allowQuery(QueryRequest qr) {
@@ -163,18 +211,29 @@ public class DuplicateFilter implements SpamFilter {
         if (time > querySwapTime) {
             if (time <= queryClearTime) {
                 //A little time has passed.  Promote youngQueries.
-                Set<QueryPair> tmp=oldQueries;
-                oldQueries=youngQueries;
-                youngQueries=tmp;
-                youngQueries.clear();
+                if (queryHashes != null) {
+                    queryHashes.rotate();
+                } else {
+                    Set<QueryPair> tmp=oldQueries;
+                    oldQueries=youngQueries;
+                    youngQueries=tmp;
+                    youngQueries.clear();
+                }
             } else {          
                 //A lot of time has passed.  Clear both.
-                youngQueries.clear();
-                oldQueries.clear();
+                if (queryHashes != null) {
+                    queryHashes.clear();
+                } else {
+                    youngQueries.clear();
+                    oldQueries.clear();
+                }
             }
             querySwapTime=time+ queryLag;
             queryClearTime=querySwapTime+ queryLag;
         }
+        
+        if (queryHashes != null)
+            return queryHashes.add(hash(qr));
 
         //Look up query in both sets.  Add it to new set if not already there.
         QueryPair qp=new QueryPair(qr.getQuery(),
@@ -190,6 +249,28 @@ public class DuplicateFilter implements SpamFilter {
         }
     }
     
+    /**
+     * Returns a 64-bit hash of everything QueryPair compares.
+     */
+    private static long hash(QueryRequest qr) {
+        // FNV-1a over the query string
+        String query=qr.getQuery();
+        long h=0xcbf29ce484222325L;
+        for (int i=0; i<query.length(); i++) {
+            h ^= query.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h = 31*h + qr.getHops();
+        h = 31*h + qr.getMetaMask();
+        Set<URN> urns=qr.getQueryUrns();
+        if (!urns.isEmpty())
+            h = 31*h + urns.hashCode();
+        LimeXMLDocument xml=qr.getRichQuery();
+        if (xml != null)
+            h = 31*h + xml.hashCode();
+        return RotatingBloomFilter.mix(h);
+    }
+    
     /**
      * For testing. 
      */
@@ -220,23 +301,6 @@ public class DuplicateFilter implements SpamFilter {
     }
 }
 
-final class GUIDPair {
-    byte[] guid;
-    long time;
-    int hops;
-
-    GUIDPair(byte[] guid, long time, int hops) {
-        this.guid=guid;
-        this.time=time;
-        this.hops=hops;
-    }
-
-    @Override
-    public String toString() {
-        return "["+(new GUID(guid)).toString()+", "+time+"]";
-    }
-}
-
 final class QueryPair {
     String query;
     int hops;
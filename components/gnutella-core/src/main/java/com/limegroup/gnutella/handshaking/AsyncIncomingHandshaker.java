@@ -5,6 +5,7 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.util.List;
 
+import org.limewire.nio.NIODispatcher;
 import org.limewire.nio.channel.NIOMultiplexor;
 import org.limewire.nio.statemachine.IOState;
 import org.limewire.nio.statemachine.IOStateMachine;
@@ -25,7 +26,8 @@ public class AsyncIncomingHandshaker implements Handshaker, IOStateObserver {
         this.socket = socket;
         this.support = new HandshakeSupport(socket.getInetAddress().getHostAddress());
         List<IOState> states = HandshakeState.getIncomingHandshakeStates(support, responder);
-        this.shaker = new IOStateMachine(this, states);
+        this.shaker = new IOStateMachine(this, states,
+                NIODispatcher.instance().getScheduledExecutorService(socket.getChannel()));
         this.observer = observer;
     }
 
@@ -8,6 +8,7 @@ import java.util.Properties;
 
 import org.limewire.logging.Log;
 import org.limewire.logging.LogFactory;
+import org.limewire.nio.NIODispatcher;
 import org.limewire.nio.channel.NIOMultiplexor;
 import org.limewire.nio.statemachine.IOState;
 import org.limewire.nio.statemachine.IOStateMachine;
@@ -30,7 +31,8 @@ public class AsyncOutgoingHandshaker implements Handshaker, IOStateObserver {
         this.socket = socket;
         this.support = new HandshakeSupport(socket.getInetAddress().getHostAddress());
         List<IOState> states = HandshakeState.getOutgoingHandshakeStates(support, requestHeaders, responder);
-        this.shaker = new IOStateMachine(this, states);
+        this.shaker = new IOStateMachine(this, states,
+                NIODispatcher.instance().getScheduledExecutorService(socket.getChannel()));
         this.observer = observer;
     }
 
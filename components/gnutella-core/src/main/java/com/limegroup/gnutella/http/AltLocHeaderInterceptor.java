@@ -1,18 +1,24 @@
 package com.limegroup.gnutella.http;
 
 import java.io.IOException;
+import java.util.StringTokenizer;
 
 import org.apache.http.Header;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.protocol.HttpContext;
+import org.limewire.collection.BitNumbers;
 import org.limewire.collection.Function;
+import org.limewire.core.settings.UploadSettings;
 import org.limewire.http.HeaderInterceptor;
+import org.limewire.io.NetworkInstanceUtils;
 
 import com.limegroup.gnutella.altlocs.AltLocManager;
 import com.limegroup.gnutella.altlocs.AltLocUtils;
 import com.limegroup.gnutella.altlocs.AlternateLocation;
 import com.limegroup.gnutella.altlocs.AlternateLocationFactory;
+import com.limegroup.gnutella.altlocs.CompactAltLocStore;
+import com.limegroup.gnutella.altlocs.DirectAltLoc;
 import com.limegroup.gnutella.altlocs.PushAltLoc;
 import com.limegroup.gnutella.uploader.HTTPUploader;
 
@@ -25,21 +31,30 @@ public class AltLocHeaderInterceptor implements HeaderInterceptor {
     private final HTTPUploader uploader;
     private final AltLocManager altLocManager;
     private final AlternateLocationFactory alternateLocationFactory;
+    private final NetworkInstanceUtils networkInstanceUtils;
 
-    public AltLocHeaderInterceptor(HTTPUploader uploader, AltLocManager altLocManager, AlternateLocationFactory alternateLocationFactory) {
+    public AltLocHeaderInterceptor(HTTPUploader uploader, AltLocManager altLocManager,
+            AlternateLocationFactory alternateLocationFactory, NetworkInstanceUtils networkInstanceUtils) {
         this.uploader = uploader;
         this.altLocManager = altLocManager;
         this.alternateLocationFactory = alternateLocationFactory;
+        this.networkInstanceUtils = networkInstanceUtils;
     }
 
     public void process(Header header, HttpContext context)
             throws HttpException, IOException {
         if (HTTPHeaderName.ALT_LOCATION.matches(header)) {
-            parseAlternateLocations(uploader.getAltLocTracker(), header.getValue(),
-                    true, true);
+            if (isCompact())
+                parseCompactLocations(uploader.getAltLocTracker(), header.getValue(), true, true);
+            else
+                parseAlternateLocations(uploader.getAltLocTracker(), header.getValue(),
+                        true, true);
         } else if (HTTPHeaderName.NALTS.matches(header)) {
-            parseAlternateLocations(uploader.getAltLocTracker(), header.getValue(),
-                    false, false);
+            if (isCompact())
+                parseCompactLocations(uploader.getAltLocTracker(), header.getValue(), false, false);
+            else
+                parseAlternateLocations(uploader.getAltLocTracker(), header.getValue(),
+                        false, false);
         } else if (HTTPHeaderName.FALT_LOCATION.matches(header)) {
             AltLocTracker tracker = uploader.getAltLocTracker();
             parseAlternateLocations(tracker, header.getValue(), true, false);
@@ -62,22 +77,109 @@ public class AltLocHeaderInterceptor implements HeaderInterceptor {
      */
     private void parseAlternateLocations(final AltLocTracker tracker,
             String alternateLocations, final boolean isGood, boolean allowTLS) {
-        AltLocUtils.parseAlternateLocations(tracker.getUrn(), alternateLocations, allowTLS, alternateLocationFactory, new Function<AlternateLocation, Void>() {
-            public Void apply(AlternateLocation location) {
-                if (location instanceof PushAltLoc)
-                    ((PushAltLoc) location).updateProxies(isGood);
-                // Note: if this thread gets preempted at this point,
-                // the AlternateLocationCollectioin may contain a PE
-                // without any proxies.
+        AltLocUtils.parseAlternateLocations(tracker.getUrn(), alternateLocations, allowTLS,
+                alternateLocationFactory, new LocationHandler(tracker, isGood));
+    }
+
+    /**
+     * Returns whether direct locations should be kept in compact form only,
+     * which is the case unless a download of the file listens for them.
+     */
+    private boolean isCompact() {
+        return UploadSettings.COMPACT_ALT_LOCS.getValue()
+                && !altLocManager.hasListeners(uploader.getAltLocTracker().getUrn());
+    }
+
+    /**
+     * Parses the alternate location header like
+     * {@link #parseAlternateLocations(AltLocTracker, String, boolean, boolean)}
+     * but passes plain direct locations on to the {@link AltLocManager} in
+     * compact form, without creating an {@link AlternateLocation} for them.
+     */
+    private void parseCompactLocations(AltLocTracker tracker, String alternateLocations,
+            boolean isGood, boolean allowTLS) {
+        if (alternateLocations == null)
+            return;
+        
+        LocationHandler handler = null;
+        byte[] address = new byte[4];
+        BitNumbers tlsIdx = null;
+        StringTokenizer st = new StringTokenizer(alternateLocations, ",");
+        int idx = 0;
+        while (st.hasMoreTokens()) {
+            String token = st.nextToken().trim();
+            if (allowTLS && tlsIdx == null && token.startsWith(DirectAltLoc.TLS_IDX)) {
+                tlsIdx = BitNumbers.EMPTY_BN;
+                try {
+                    String value = HTTPUtils.parseValue(token);
+                    if (value != null)
+                        tlsIdx = new BitNumbers(value);
+                } catch (IOException invalid) {
+                } catch (IllegalArgumentException invalid) {
+                }
+                continue;
+            }
+            if (tlsIdx == null)
+                tlsIdx = BitNumbers.EMPTY_BN;
+
+            int port = CompactAltLocStore.parse(token, address);
+            if (port != -1) {
+                if (networkInstanceUtils.isMe(address, port)) {
+                    // never hand out ourselves as a location
+                    idx++;
+                    continue;
+                }
                 if (isGood)
-                    altLocManager.add(location, null);
+                    altLocManager.addDirect(tracker.getUrn(), address, port, tlsIdx.isSet(idx));
                 else
-                    altLocManager.remove(location, null);
+                    altLocManager.removeDirect(tracker.getUrn(), address, port);
+                idx++;
+                continue;
+            }
 
-                tracker.addLocation(location);
-                return null;
+            // anything else is handled as usual
+            try {
+                AlternateLocation location = alternateLocationFactory.create(token,
+                        tracker.getUrn(), tlsIdx.isSet(idx));
+                idx++;
+                if (location.isMe())
+                    continue;
+                if (handler == null)
+                    handler = new LocationHandler(tracker, isGood);
+                handler.apply(location);
+            } catch (IOException e) {
+                tlsIdx = BitNumbers.EMPTY_BN;
             }
-        });
+        }
+    }
+
+    /**
+     * Adds or removes parsed locations.
+     */
+    private class LocationHandler implements Function<AlternateLocation, Void> {
+        private final AltLocTracker tracker;
+
+        private final boolean isGood;
+
+        LocationHandler(AltLocTracker tracker, boolean isGood) {
+            this.tracker = tracker;
+            this.isGood = isGood;
+        }
+
+        public Void apply(AlternateLocation location) {
+            if (location instanceof PushAltLoc)
+                ((PushAltLoc) location).updateProxies(isGood);
+            // Note: if this thread gets preempted at this point,
+            // the AlternateLocationCollectioin may contain a PE
+            // without any proxies.
+            if (isGood)
+                altLocManager.add(location, null);
+            else
+                altLocManager.remove(location, null);
+
+            tracker.addLocation(location);
+            return null;
+        }
     }
 
 }
@@ -12,6 +12,7 @@ import com.limegroup.gnutella.URN;
 import com.limegroup.gnutella.altlocs.AltLocManager;
 import com.limegroup.gnutella.altlocs.AlternateLocation;
 import com.limegroup.gnutella.altlocs.AlternateLocationCollection;
+import com.limegroup.gnutella.altlocs.CompactAltLocStore;
 import com.limegroup.gnutella.altlocs.DirectAltLoc;
 import com.limegroup.gnutella.altlocs.PushAltLoc;
 
@@ -52,6 +53,11 @@ public class AltLocTracker {
 
     private boolean wantsFAlts;
 
+    /**
+     * The direct locations in compact form that have been written out.
+     */
+    private final CompactAltLocStore.Cursor writtenDirectLocs = new CompactAltLocStore.Cursor();
+
     public AltLocTracker(URN urn) {
         if (urn == null) {
             throw new IllegalArgumentException();
@@ -93,6 +99,14 @@ public class AltLocTracker {
 
     }
 
+    /**
+     * Returns the encoded direct locations kept in compact form that have
+     * not been sent out already, or null if there are none.
+     */
+    public HTTPHeaderValue getNextDirectValueToSend(AltLocManager altLocManager) {
+        return altLocManager.getDirectHeaderValue(urn, writtenDirectLocs);
+    }
+
     public Collection<PushAltLoc> getNextSetOfPushAltsToSend(AltLocManager altLocManager) {
         if (!wantsFAlts)
             return Collections.emptySet();
@@ -0,0 +1,202 @@
+package com.limegroup.gnutella.library;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.limewire.collection.FixedsizeForgetfulHashMap;
+import org.limewire.collection.PostingList;
+
+import com.limegroup.gnutella.util.QueryUtils;
+
+/**
+ * An inverted index from keywords to the indices of the files containing
+ * them, used by {@link SharedFilesKeywordIndexImpl} when
+ * {@link org.limewire.core.settings.SearchSettings#POSTING_LIST_KEYWORD_INDEX}
+ * is on.
+ * <p>
+ * Keywords are kept in a sorted map so that all keywords starting with a
+ * query term can be found with a range lookup, and each keyword maps to a
+ * compressed {@link PostingList}. When a term is the prefix of more than one
+ * keyword, the union of their lists is built once and cached until the index
+ * next changes, since short, popular prefixes are looked up over and over.
+ * <p>
+ * Matching the terms of a query happens under the lock of this; the
+ * intersection of the matched lists does not.
+ */
+class KeywordPostingIndex {
+
+    /** The number of prefix unions to remember. */
+    private static final int PREFIX_CACHE_SIZE = 64;
+
+    private static final Comparator<PostingList.Cursor> SMALLEST_FIRST =
+        new Comparator<PostingList.Cursor>() {
+            public int compare(PostingList.Cursor a, PostingList.Cursor b) {
+                return a.size() < b.size() ? -1 : (a.size() > b.size() ? 1 : 0);
+            }
+        };
+
+    /**
+     * Canonicalized keyword to the files containing it.
+     * LOCKING: this
+     */
+    private final TreeMap<String, PostingList> postings = new TreeMap<String, PostingList>();
+
+    /**
+     * Term to the union of the postings of all keywords it prefixes.
+     * LOCKING: this
+     */
+    private final Map<String, PostingList> prefixCache =
+        new FixedsizeForgetfulHashMap<String, PostingList>(PREFIX_CACHE_SIZE);
+
+    /** Adds index to the postings of each keyword. */
+    synchronized void add(String[] keywords, int index) {
+        for (String keyword : keywords) {
+            PostingList list = postings.get(keyword);
+            if (list == null) {
+                list = new PostingList();
+                postings.put(keyword, list);
+            }
+            list.add(index);
+        }
+        prefixCache.clear();
+    }
+
+    /** Removes index from the postings of each keyword. */
+    synchronized void remove(String[] keywords, int index) {
+        for (String keyword : keywords) {
+            PostingList list = postings.get(keyword);
+            if (list != null) {
+                list.remove(index);
+                if (list.isEmpty())
+                    postings.remove(keyword);
+            }
+        }
+        prefixCache.clear();
+    }
+
+    synchronized void clear() {
+        postings.clear();
+        prefixCache.clear();
+    }
+
+    /** Shrinks every posting list to the memory it uses. */
+    synchronized void trim() {
+        for (PostingList list : postings.values())
+            list.trim();
+    }
+
+    /** Returns the number of distinct keywords. */
+    synchronized int size() {
+        return postings.size();
+    }
+
+    /**
+     * Returns a cursor over the files that have a keyword starting with
+     * term, or null if there are none.
+     */
+    synchronized PostingList.Cursor match(String term) {
+        PostingList cached = prefixCache.get(term);
+        if (cached != null)
+            return cached.cursor();
+        SortedMap<String, PostingList> prefixed = postings.subMap(term, term + Character.MAX_VALUE);
+        if (prefixed.isEmpty())
+            return null;
+        if (prefixed.size() == 1)
+            return prefixed.values().iterator().next().cursor();
+        List<PostingList.Cursor> cursors = new ArrayList<PostingList.Cursor>(prefixed.size());
+        for (PostingList list : prefixed.values())
+            cursors.add(list.cursor());
+        PostingList union = PostingList.union(cursors.toArray(new PostingList.Cursor[cursors.size()]));
+        prefixCache.put(term, union);
+        return union.cursor();
+    }
+
+    /**
+     * Returns the terms of query, the parts separated by delimiters.
+     *
+     * @param query a canonicalized query
+     */
+    static List<String> terms(String query) {
+        List<String> terms = new ArrayList<String>(4);
+        for (int i = 0; i < query.length();) {
+            if (QueryUtils.isDelimiter(query.charAt(i))) {
+                i++;
+                continue;
+            }
+            int j;
+            for (j = i + 1; j < query.length(); j++) {
+                if (QueryUtils.isDelimiter(query.charAt(j)))
+                    break;
+            }
+            terms.add(query.substring(i, j));
+            i = j;
+        }
+        return terms;
+    }
+
+    /**
+     * Intersects the given cursors, with one cursor per query term.
+     *
+     * @return the matching file indices in increasing order, or null if
+     * any cursor is null
+     */
+    static Matches intersect(List<PostingList.Cursor> cursors) {
+        if (cursors.isEmpty())
+            return null;
+        for (PostingList.Cursor cursor : cursors) {
+            if (cursor == null)
+                return null;
+        }
+        List<PostingList.Cursor> sorted = new ArrayList<PostingList.Cursor>(cursors);
+        Collections.sort(sorted, SMALLEST_FIRST);
+        return new Matches(sorted.toArray(new PostingList.Cursor[sorted.size()]));
+    }
+
+    /**
+     * Lazily computes the intersection of several cursors, so that a caller
+     * that only needs the first few matches does not pay for the rest.
+     * Drives the intersection from the smallest cursor and skips the others
+     * forward.
+     */
+    static class Matches {
+        private final PostingList.Cursor[] cursors;
+        private int next;
+
+        Matches(PostingList.Cursor[] cursors) {
+            this.cursors = cursors;
+            this.next = find(cursors[0].next());
+        }
+
+        boolean hasNext() {
+            return next != PostingList.END;
+        }
+
+        int next() {
+            int ret = next;
+            next = find(cursors[0].next());
+            return ret;
+        }
+
+        /** Returns the first value at least candidate found in all cursors. */
+        private int find(int candidate) {
+            int i = 1;
+            while (candidate != PostingList.END && i < cursors.length) {
+                int found = cursors[i].advance(candidate);
+                if (found == candidate) {
+                    i++;
+                } else {
+                    if (found == PostingList.END)
+                        return PostingList.END;
+                    candidate = cursors[0].advance(found);
+                    i = 1;
+                }
+            }
+            return candidate;
+        }
+    }
+}
@@ -596,6 +596,9 @@ class LibraryImpl implements Library, FileCollection {
                         if(event.getType() != FutureEvent.Type.CANCELLED) {
                             broadcastFinished(file);
                         }
+                        dispatch(new LibraryStatusEvent(LibraryImpl.this,
+                                LibraryStatusEvent.Type.HASHING_PROGRESS,
+                                urnCache.getPendingHashCount()));
                     }
                 });
             } else {
@@ -31,14 +31,26 @@ public class LibraryStatusEvent {
          */
         LOAD_COMPLETE,
         
+        /**
+         * Called each time a file finishes hashing.  The number of files
+         * still waiting to be hashed is available from getPendingHashes.
+         */
+        HASHING_PROGRESS,
+        
     }
     
     private final Type type;
     private final Library library;
+    private final int pendingHashes;
     
     public LibraryStatusEvent(Library list, Type type) {
+        this(list, type, 0);
+    }
+    
+    public LibraryStatusEvent(Library list, Type type, int pendingHashes) {
         this.type = type;
         this.library = list;
+        this.pendingHashes = pendingHashes;
     }
     
     public Type getType() {
@@ -49,6 +61,11 @@ public class LibraryStatusEvent {
         return library;
     }
     
+    /** Returns the number of files waiting to be hashed, for HASHING_PROGRESS. */
+    public int getPendingHashes() {
+        return pendingHashes;
+    }
+    
     @Override
     public String toString() {
         return StringUtils.toString(this);
@@ -13,6 +13,7 @@ import org.limewire.collection.Function;
 import org.limewire.collection.IdentityHashSet;
 import org.limewire.collection.IntSet;
 import org.limewire.collection.MultiIterator;
+import org.limewire.collection.PostingList;
 import org.limewire.collection.StringTrie;
 import org.limewire.core.settings.SearchSettings;
 import org.limewire.core.settings.SharingSettings;
@@ -48,6 +49,12 @@ import com.limegroup.gnutella.xml.SchemaReplyCollectionMapper;
 @EagerSingleton
 class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
 
+    /**
+     * The most file name matches a query is answered with when posting lists
+     * are used, since no more than this are sent back anyway.
+     */
+    private static final int MAX_FILE_NAME_RESULTS = 255;
+
     /**
      * A trie mapping keywords in complete filenames to the indices in _files.
      * Keywords are the tokens when the filename is tokenized with the
@@ -74,6 +81,15 @@ class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
     @InspectableForSize(value = "size of incomplete keyword trie", category = DataCategory.USAGE)
     private final StringTrie<IntSet> incompleteKeywordTrie = new StringTrie<IntSet>(true);
 
+    /**
+     * Posting list indices of the keywords in complete and incomplete file
+     * names, used instead of the tries if
+     * {@link SearchSettings#POSTING_LIST_KEYWORD_INDEX} was on when this was
+     * created; null otherwise.
+     */
+    private final KeywordPostingIndex postingIndex;
+    private final KeywordPostingIndex incompletePostingIndex;
+
     private final Provider<CreationTimeCache> creationTimeCache;
 
     private final Provider<ResponseFactory> responseFactory;
@@ -104,6 +120,13 @@ class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
         this.schemaRepository = schemaRepository;
         this.incompleteFileView = incompleteFileView;
         this.gnutellaFileView = gnutellaFileView;
+        if (SearchSettings.POSTING_LIST_KEYWORD_INDEX.getValue()) {
+            this.postingIndex = new KeywordPostingIndex();
+            this.incompletePostingIndex = new KeywordPostingIndex();
+        } else {
+            this.postingIndex = null;
+            this.incompletePostingIndex = null;
+        }
     }
     
     @Inject void register(ServiceRegistry registry, final ListenerSupport<FileDescChangeEvent> fileDescSupport) {
@@ -206,41 +229,30 @@ class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
         // an already case-changed string. Both search & urnSearch
         // do this kind of match, so we canonicalize the case for them.
         str = keywordTrie.canonicalCase(str);
-        IntSet matches = search(str, null, request.desiresPartialResults());
-        if (request.getQueryUrns().size() > 0)
-            matches = urnSearch(request.getQueryUrns(), matches);
-
-        if (matches == null)
-            return Collections.emptySet();
-
+        boolean partial = request.desiresPartialResults();
         Set<Response> responses = new HashSet<Response>();
         final MediaTypeAggregator.Aggregator filter = MediaTypeAggregator.getAggregator(request);
         LimeXMLDocument doc = request.getRichQuery();
 
-        // Iterate through our hit indices to create a list of results.
-        for (IntSet.IntSetIterator iter = matches.iterator(); iter.hasNext();) {
-            int i = iter.next();
-            FileDesc desc = gnutellaFileView.getFileDescForIndex(i);
-            if(desc == null) {
-                desc = incompleteFileView.getFileDescForIndex(i);
+        if (postingIndex != null && request.getQueryUrns().size() == 0) {
+            // The matches come lazily from the posting lists, so stop as
+            // soon as there are enough responses.
+            KeywordPostingIndex.Matches matches = match(str, partial);
+            while (matches != null && matches.hasNext()
+                    && responses.size() < MAX_FILE_NAME_RESULTS) {
+                addResponse(matches.next(), filter, includeXML, doc, responses);
             }
+        } else {
+            IntSet matches = search(str, null, partial);
+            if (request.getQueryUrns().size() > 0)
+                matches = urnSearch(request.getQueryUrns(), matches);
 
-            if(desc != null) {
-                //desc can bet null if items were removed after the IntSet matches were built
-                if ((filter != null) && !filter.allow(desc.getFileName()))
-                    continue;
+            if (matches == null)
+                return Collections.emptySet();
 
-                activityCallback.handleSharedFileUpdate(desc.getFile());
-    
-                Response resp = responseFactory.get().createResponse(desc);
-                if (includeXML) {
-                    if (doc != null && resp.getDocument() != null && !isValidXMLMatch(resp, doc))
-                        continue;
-                } else {
-                	//remove xml doc to save bandwidth
-                    resp.setDocument(null);
-                }
-                responses.add(resp);
+            // Iterate through our hit indices to create a list of results.
+            for (IntSet.IntSetIterator iter = matches.iterator(); iter.hasNext();) {
+                addResponse(iter.next(), filter, includeXML, doc, responses);
             }
         }
         if (responses.size() == 0)
@@ -249,6 +261,36 @@ class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
         return responses;
     }
 
+    /**
+     * Adds a response for the file with index i to responses, if the file
+     * still exists and passes the media type and XML filters.
+     */
+    private void addResponse(int i, MediaTypeAggregator.Aggregator filter, boolean includeXML,
+            LimeXMLDocument doc, Set<Response> responses) {
+        FileDesc desc = gnutellaFileView.getFileDescForIndex(i);
+        if(desc == null) {
+            desc = incompleteFileView.getFileDescForIndex(i);
+        }
+
+        if(desc != null) {
+            //desc can bet null if items were removed after the IntSet matches were built
+            if ((filter != null) && !filter.allow(desc.getFileName()))
+                return;
+
+            activityCallback.handleSharedFileUpdate(desc.getFile());
+
+            Response resp = responseFactory.get().createResponse(desc);
+            if (includeXML) {
+                if (doc != null && resp.getDocument() != null && !isValidXMLMatch(resp, doc))
+                    return;
+            } else {
+            	//remove xml doc to save bandwidth
+                resp.setDocument(null);
+            }
+            responses.add(resp);
+        }
+    }
+
     private static boolean isValidXMLMatch(Response r, LimeXMLDocument doc) {
         return LimeXMLUtils.match(r.getDocument(), doc, true);
     }
@@ -308,7 +350,12 @@ class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
     }
 
     private void clear(boolean complete) {
-        if(complete) {
+        if (postingIndex != null) {
+            if (complete)
+                postingIndex.clear();
+            else
+                incompletePostingIndex.clear();
+        } else if(complete) {
             keywordTrie.clear();
         } else {
             incompleteKeywordTrie.clear();
@@ -363,7 +410,10 @@ class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
     }
 
     private void removeFileDesc(FileDesc fileDesc, boolean complete) {
-        if(complete) {
+        if (postingIndex != null) {
+            KeywordPostingIndex index = complete ? postingIndex : incompletePostingIndex;
+            index.remove(extractCanonicalKeywords(fileDesc), fileDesc.getIndex());
+        } else if(complete) {
             removeKeywords(keywordTrie, fileDesc);
         } else {
             removeKeywords(incompleteKeywordTrie, fileDesc);
@@ -376,8 +426,13 @@ class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
                                                 && SharingSettings.LOAD_PARTIAL_KEYWORDS.getValue();
             IncompleteFileDesc ifd = (IncompleteFileDesc) fileDesc;
             if (indexIncompleteFiles && ifd.hasUrnsAndPartialData()) {
-                loadKeywords(incompleteKeywordTrie, fileDesc);
+                if (incompletePostingIndex != null)
+                    incompletePostingIndex.add(extractCanonicalKeywords(fileDesc), fileDesc.getIndex());
+                else
+                    loadKeywords(incompleteKeywordTrie, fileDesc);
             }
+        } else if (postingIndex != null) {
+            postingIndex.add(extractCanonicalKeywords(fileDesc), fileDesc.getIndex());
         } else {
             loadKeywords(keywordTrie, fileDesc);
         }
@@ -428,6 +483,18 @@ class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
      * returned value.
      */
     protected IntSet search(String query, IntSet priors, boolean partial) {
+        if (postingIndex != null) {
+            KeywordPostingIndex.Matches matches = match(query, partial);
+            if (matches == null)
+                return null;
+            IntSet ret = new IntSet();
+            while (matches.hasNext())
+                ret.add(matches.next());
+            if (priors != null)
+                ret.retainAll(priors);
+            return ret.size() == 0 ? null : ret;
+        }
+        
         // As an optimization, we lazily allocate all sets in case there are no
         // matches. TODO2: we can avoid allocating sets when getPrefixedBy
         // returns an iterator of one element and there is only one keyword.
@@ -505,6 +572,43 @@ class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
         return ret;
     }
 
+    /**
+     * Returns the files whose names have a keyword starting with each of the
+     * terms in query, using the posting list indices, or null if there are
+     * none.
+     */
+    private KeywordPostingIndex.Matches match(String query, boolean partial) {
+        boolean includeIncomplete = SharingSettings.ALLOW_PARTIAL_SHARING.getValue()
+                && SharingSettings.ALLOW_PARTIAL_RESPONSES.getValue() && partial;
+        List<PostingList.Cursor> cursors = new ArrayList<PostingList.Cursor>();
+        for (String term : KeywordPostingIndex.terms(query)) {
+            PostingList.Cursor cursor = postingIndex.match(term);
+            if (includeIncomplete) {
+                PostingList.Cursor incomplete = incompletePostingIndex.match(term);
+                if (cursor == null)
+                    cursor = incomplete;
+                else if (incomplete != null)
+                    cursor = PostingList.union(cursor, incomplete).cursor();
+            }
+            // no match for a keyword => failure
+            if (cursor == null)
+                return null;
+            cursors.add(cursor);
+        }
+        return KeywordPostingIndex.intersect(cursors);
+    }
+
+    /**
+     * Returns the keywords of the given <tt>FileDesc</tt> in the case used by
+     * the query tries, for the posting list indices.
+     */
+    private String[] extractCanonicalKeywords(FileDesc fd) {
+        String[] keywords = extractKeywords(fd);
+        for (int i = 0; i < keywords.length; i++)
+            keywords[i] = keywordTrie.canonicalCase(keywords[i]);
+        return keywords;
+    }
+
     /**
      * Utility method to perform standardized keyword extraction for the given
      * <tt>FileDesc</tt>. This handles extracting keywords according to
@@ -524,6 +628,11 @@ class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
      * performance, not correctness; hence no modifies clause.
      */
     private void trim() {
+        if (postingIndex != null) {
+            postingIndex.trim();
+            incompletePostingIndex.trim();
+            return;
+        }
         for (StringTrie<IntSet> trie : new StringTrie[] { keywordTrie, incompleteKeywordTrie }) {
             synchronized (trie) {
                 trie.trim(new Function<IntSet, IntSet>() {
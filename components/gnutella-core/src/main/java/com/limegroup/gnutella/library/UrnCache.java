@@ -7,27 +7,38 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.limewire.concurrent.ExecutorsHelper;
+import org.limewire.concurrent.FutureEvent;
 import org.limewire.concurrent.ListeningExecutorService;
 import org.limewire.concurrent.ListeningFuture;
 import org.limewire.concurrent.SimpleFuture;
 import org.limewire.core.api.library.FileProcessingEvent;
+import org.limewire.core.settings.SharingSettings;
 import org.limewire.inject.EagerSingleton;
 import org.limewire.io.IOUtils;
+import org.limewire.lifecycle.Service;
+import org.limewire.lifecycle.ServiceRegistry;
 import org.limewire.lifecycle.ServiceScheduler;
 import org.limewire.listener.EventBroadcaster;
+import org.limewire.listener.EventListener;
 import org.limewire.util.CommonUtils;
 import org.limewire.util.ConverterObjectInputStream;
 import org.limewire.util.FileUtils;
@@ -48,7 +59,7 @@ import com.limegroup.gnutella.UrnSet;
  * @see URN
  */
 @EagerSingleton
-public final class UrnCache {
+public final class UrnCache implements Service {
 
     private static final Log LOG = LogFactory.getLog(UrnCache.class);
 
@@ -64,19 +75,85 @@ public final class UrnCache {
     private static final File URN_CACHE_BACKUP_FILE = new File(CommonUtils.getUserSettingsDir(),
             "fileurns.bak");
 
+    /**
+     * Log of changes to the urns, used instead of the above if
+     * SharingSettings.URN_CACHE_LOG is on.
+     */
+    private static final File URN_CACHE_LOG_FILE = new File(CommonUtils.getUserSettingsDir(),
+            "fileurns.log");
+
     /**
      * The ProcessingQueue that Files are hashed in.
      */
     private final ListeningExecutorService QUEUE;
+    
+    /**
+     * The most files that are hashed at once.  Files are hashed
+     * in QUEUE if this is 1.
+     */
+    private final int hashers;
+    
+    /** Limits the files hashed at once on all volumes, or null. */
+    private final Semaphore hashPermits;
+    
+    /**
+     * The queues that Files are hashed in if more than one file may be
+     * hashed at once, by the volume the files are on.  Each only hashes
+     * as many files at once as SharingSettings.CONCURRENT_HASHES_PER_VOLUME
+     * allows, so one disk isn't read from too many places.
+     * LOCKING: itself
+     */
+    private final Map<File, ListeningExecutorService> volumeQueues =
+        new HashMap<File, ListeningExecutorService>();
+    
+    /**
+     * Whether the volume queues were shut down.
+     * LOCKING: volumeQueues
+     */
+    private boolean stopped = false;
+    
+    /** The most bytes of tree leaves that are kept in treeNodes. */
+    private static final int MAX_TREE_NODE_BYTES = 2 * 1024 * 1024;
+    
+    /**
+     * The leaves of the tiger trees hashed along with the SHA1s, by SHA1, so
+     * the trees can be built without reading the files again.  The oldest
+     * are dropped once they take more than MAX_TREE_NODE_BYTES, and those
+     * trees are hashed from their files if they are needed.
+     * LOCKING: itself
+     */
+    private final Map<URN, List<byte[]>> treeNodes = new LinkedHashMap<URN, List<byte[]>>();
+    
+    /**
+     * The bytes taken by the leaves in treeNodes.
+     * LOCKING: treeNodes
+     */
+    private int treeNodeBytes = 0;
+    
+    /** The number of files submitted for hashing that are not done yet. */
+    private final AtomicInteger pendingHashes = new AtomicInteger();
 
     /**
      * Whether or not data is dirty since the last time we saved.
      */
     private volatile boolean dirty = false;
+    
+    /** Whether the old cache files should be deleted once the log is saved. */
+    private volatile boolean migrating = false;
 
-    /** The future that will contain the URN_MAP when it is done. */
+    /**
+     * The future that will contain the URN_MAP when it is done, or null if
+     * the urns are kept in the log.
+     */
     private final Future<Map<UrnSetKey, Set<URN>>> deserializer;
     
+    /**
+     * The future that will contain the opened log the urns are kept in,
+     * or null if the whole map is serialized on each save.
+     * LOCKING: this, once the log is open
+     */
+    private final Future<UrnCacheLog> logOpener;
+    
     private final EventBroadcaster<FileProcessingEvent> broadcaster;
 
     /**
@@ -86,17 +163,48 @@ public final class UrnCache {
     UrnCache(@DiskIo ListeningExecutorService diskIoExecutor, EventBroadcaster<FileProcessingEvent> broadcaster) {
         this.QUEUE = diskIoExecutor;
         this.broadcaster = broadcaster;
-        deserializer = QUEUE.submit(new Callable<Map<UrnSetKey, Set<URN>>>() {
-            @SuppressWarnings("unchecked")
-            public Map<UrnSetKey, Set<URN>> call() {
-                // This cannot be inside a synchronized block, otherwise other
-                // methods
-                // can block its construction.
-                Map map = createMap();
-                dirty = scanAndRemoveOldEntries(map);
-                return map;
-            }
-        });
+        this.hashers = Math.min(SharingSettings.CONCURRENT_HASHES.getValue(),
+                Runtime.getRuntime().availableProcessors());
+        this.hashPermits = hashers > 1 ? new Semaphore(hashers) : null;
+        if (SharingSettings.URN_CACHE_LOG.getValue()) {
+            deserializer = null;
+            logOpener = QUEUE.submit(new Callable<UrnCacheLog>() {
+                public UrnCacheLog call() {
+                    UrnCacheLog log = new UrnCacheLog(URN_CACHE_LOG_FILE);
+                    if (!log.open())
+                        migrate(log);
+                    return log;
+                }
+            });
+        } else {
+            logOpener = null;
+            deserializer = QUEUE.submit(new Callable<Map<UrnSetKey, Set<URN>>>() {
+                @SuppressWarnings("unchecked")
+                public Map<UrnSetKey, Set<URN>> call() {
+                    // This cannot be inside a synchronized block, otherwise other
+                    // methods
+                    // can block its construction.
+                    Map map = createMap();
+                    dirty = scanAndRemoveOldEntries(map);
+                    return map;
+                }
+            });
+        }
+    }
+    
+    /**
+     * Moves the entries of the old cache into the log, on the first run with
+     * the log.  The old cache files are deleted once the log is saved.
+     */
+    @SuppressWarnings("unchecked")
+    private void migrate(UrnCacheLog log) {
+        Map map = createMap();
+        scanAndRemoveOldEntries(map);
+        for (Map.Entry<UrnSetKey, Set<URN>> entry : ((Map<UrnSetKey, Set<URN>>)map).entrySet()) {
+            UrnSetKey key = entry.getKey();
+            log.put(key._path, new File(key._path).length(), key._modTime, entry.getValue());
+        }
+        migrating = true;
     }
 
     @Inject
@@ -110,6 +218,34 @@ public final class UrnCache {
         }, 30, 30, TimeUnit.SECONDS, scheduledExecutorService);
     }
 
+    @Inject
+    void register(ServiceRegistry registry) {
+        registry.register(this);
+    }
+
+    public String getServiceName() {
+        return "URN Cache";
+    }
+
+    public void initialize() {
+    }
+
+    public void start() {
+    }
+
+    /**
+     * Shuts down the queues files are hashed in by volume.  Files hashed
+     * after this are hashed in QUEUE.
+     */
+    public void stop() {
+        synchronized (volumeQueues) {
+            stopped = true;
+            for (ListeningExecutorService queue : volumeQueues.values())
+                queue.shutdownNow();
+            volumeQueues.clear();
+        }
+    }
+
     /**
      * Calculates the given File's URN and caches it. The callback will be
      * notified of the URNs. If they're already calculated, the callback will be
@@ -127,7 +263,15 @@ public final class UrnCache {
             if (urns.isEmpty()) {
                 if (LOG.isDebugEnabled())
                     LOG.debug("Adding: " + file + " to be hashed.");
-                return QUEUE.submit(new Processor(file));
+                pendingHashes.incrementAndGet();
+                ListeningFuture<Set<URN>> future = getHashQueue(file).submit(new Processor(file));
+                future.addFutureListener(new EventListener<FutureEvent<Set<URN>>>() {
+                    @Override
+                    public void handleEvent(FutureEvent<Set<URN>> event) {
+                        pendingHashes.decrementAndGet();
+                    }
+                });
+                return future;
             }
         }
 
@@ -135,6 +279,82 @@ public final class UrnCache {
         return new SimpleFuture<Set<URN>>(urns);
     }
 
+    /**
+     * Returns the queue the given file is hashed in.
+     */
+    private ListeningExecutorService getHashQueue(File file) {
+        if (hashPermits == null)
+            return QUEUE;
+        
+        File volume = getVolume(file);
+        synchronized (volumeQueues) {
+            if (stopped)
+                return QUEUE;
+            ListeningExecutorService queue = volumeQueues.get(volume);
+            if (queue == null) {
+                int readers = Math.max(1, Math.min(hashers,
+                        SharingSettings.CONCURRENT_HASHES_PER_VOLUME.getValue()));
+                queue = ExecutorsHelper.newFixedSizeThreadPool(readers, "UrnHasher-" + volume);
+                volumeQueues.put(volume, queue);
+            }
+            return queue;
+        }
+    }
+    
+    /**
+     * Returns the root of the file system the given file is on.  Mount
+     * points can't be told apart, so on systems with a single root all
+     * files are on the same volume.
+     */
+    static File getVolume(File file) {
+        File volume = file.getAbsoluteFile();
+        for (File parent = volume.getParentFile(); parent != null; parent = parent.getParentFile())
+            volume = parent;
+        return volume;
+    }
+
+    /**
+     * Returns the leaves of the tiger tree of the file with the given SHA1
+     * and stops keeping them, or returns null if they aren't kept.  The
+     * leaves are those URN.generateUrnsAndTreeNodesFromFile adds.
+     */
+    public List<byte[]> removeTreeNodes(URN sha1) {
+        synchronized (treeNodes) {
+            List<byte[]> nodes = treeNodes.remove(sha1);
+            if (nodes != null)
+                treeNodeBytes -= getTreeNodeBytes(nodes);
+            return nodes;
+        }
+    }
+    
+    private void addTreeNodes(URN sha1, List<byte[]> nodes) {
+        if (nodes.isEmpty())
+            return;
+        synchronized (treeNodes) {
+            List<byte[]> old = treeNodes.put(sha1, nodes);
+            if (old != null)
+                treeNodeBytes -= getTreeNodeBytes(old);
+            treeNodeBytes += getTreeNodeBytes(nodes);
+            for (Iterator<List<byte[]>> i = treeNodes.values().iterator();
+                    treeNodeBytes > MAX_TREE_NODE_BYTES && i.hasNext(); ) {
+                treeNodeBytes -= getTreeNodeBytes(i.next());
+                i.remove();
+            }
+        }
+    }
+    
+    private static int getTreeNodeBytes(List<byte[]> nodes) {
+        return nodes.size() * nodes.get(0).length;
+    }
+
+    /**
+     * Returns the number of files that are waiting to be hashed or are being
+     * hashed.
+     */
+    public int getPendingHashCount() {
+        return pendingHashes.get();
+    }
+
     /**
      * Find any URNs remembered from a previous session for the specified
      * <tt>File</tt> instance. The returned <tt>Set</tt> is guaranteed to be
@@ -152,6 +372,13 @@ public final class UrnCache {
             return Collections.emptySet();
         }
 
+        if (logOpener != null) {
+            Set<URN> urns = getLog().get(file.getAbsolutePath(), file.length(), modified);
+            if (urns == null)
+                return Collections.emptySet();
+            return urns;
+        }
+
         UrnSetKey key = new UrnSetKey(file);
         if (key._modTime != modified) {
             return Collections.emptySet();
@@ -169,6 +396,10 @@ public final class UrnCache {
      * Removes any URNs that associated with a specified file.
      */
     public synchronized void removeUrns(File f) {
+        if (logOpener != null) {
+            getLog().remove(f.getAbsolutePath());
+            return;
+        }
         UrnSetKey k = new UrnSetKey(f);
         getUrnMap().remove(k);
         dirty = true;
@@ -180,8 +411,12 @@ public final class UrnCache {
      * @param file the <tt>File</tt> instance containing URNs to store
      */
     public synchronized void addUrns(File file, Set<? extends URN> urns) {
-        UrnSetKey key = new UrnSetKey(file);
-        getUrnMap().put(key, UrnSet.unmodifiableSet(urns));
+        Set<URN> set = UrnSet.unmodifiableSet(urns);
+        if (logOpener != null) {
+            getLog().put(file.getAbsolutePath(), file.length(), file.lastModified(), set);
+            return;
+        }
+        getUrnMap().put(new UrnSetKey(file), set);
         dirty = true;
     }
 
@@ -277,6 +512,11 @@ public final class UrnCache {
     synchronized void persistCache() {
         LOG.debug("persist cache");
 
+        if (logOpener != null) {
+            persistLog();
+            return;
+        }
+
         if (!dirty) {
             LOG.debug("not dirty");
             return;
@@ -286,13 +526,37 @@ public final class UrnCache {
             dirty = false;
         }
     }
+    
+    /** Appends the changes since the last save to the log, or rewrites it. */
+    private void persistLog() {
+        UrnCacheLog log = getLog();
+        if (!log.hasChanges()) {
+            LOG.debug("not dirty");
+            return;
+        }
+        
+        if (log.save() && migrating) {
+            FileUtils.delete(URN_CACHE_FILE, false);
+            FileUtils.delete(URN_CACHE_BACKUP_FILE, false);
+            migrating = false;
+        }
+    }
 
     private Map<UrnSetKey, Set<URN>> getUrnMap() {
+        return getUninterruptibly(deserializer);
+    }
+    
+    private UrnCacheLog getLog() {
+        return getUninterruptibly(logOpener);
+    }
+
+    /** Waits for the future, keeping the interrupted status of the thread. */
+    private static <T> T getUninterruptibly(Future<T> future) {
         boolean interrupted = Thread.interrupted();
         try {
             while (true) {
                 try {
-                    return deserializer.get();
+                    return future.get();
                 } catch (InterruptedException tryAgain) {
                     interrupted = true;
                 }
@@ -327,8 +591,21 @@ public final class UrnCache {
                 if (LOG.isDebugEnabled())
                     LOG.debug("Hashing file: " + file);
                 try {
-                    urns = URN.generateUrnsFromFile(file);
-                    addUrns(file, urns);
+                    if (hashPermits != null)
+                        hashPermits.acquire();
+                    try {
+                        if (SharingSettings.SINGLE_PASS_HASHING.getValue()) {
+                            List<byte[]> nodes = new ArrayList<byte[]>();
+                            urns = URN.generateUrnsAndTreeNodesFromFile(file, nodes);
+                            addTreeNodes(UrnSet.getSha1(urns), nodes);
+                        } else {
+                            urns = URN.generateUrnsFromFile(file);
+                        }
+                        addUrns(file, urns);
+                    } finally {
+                        if (hashPermits != null)
+                            hashPermits.release();
+                    }
                 } catch (IOException ignored) {
                     LOG.warn("Unable to calculate URNs", ignored);
                 } catch (InterruptedException ignored) {
@@ -376,8 +653,16 @@ public final class UrnCache {
          * @param file the <tt>File</tt> instance to use in constructing the key
          */
         UrnSetKey(File file) {
-            _modTime = file.lastModified();
-            _path = file.getAbsolutePath();
+            this(file.getAbsolutePath(), file.lastModified());
+        }
+
+        /**
+         * Constructs a new <tt>UrnSetKey</tt> for the given path and
+         * modification time.
+         */
+        UrnSetKey(String path, long modTime) {
+            _modTime = modTime;
+            _path = path;
             _hashCode = calculateHashCode();
         }
 
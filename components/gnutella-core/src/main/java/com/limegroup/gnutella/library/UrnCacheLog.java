@@ -0,0 +1,574 @@
+package com.limegroup.gnutella.library;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.limewire.io.IOUtils;
+import org.limewire.util.FileUtils;
+
+import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.UrnSet;
+
+/**
+ * The URNs of files, kept in an append-only log on disk and used by
+ * {@link UrnCache} instead of its serialized map when
+ * {@link org.limewire.core.settings.SharingSettings#URN_CACHE_LOG} is on.
+ * <p>
+ * Each record either sets the URNs of a path, with the size and
+ * modification time of the file when it was hashed, or removes a path.
+ * Only an index from the hash of each path to the offset of its last
+ * record is kept in memory; the URNs are read from the log when a path is
+ * looked up, and are only returned if the file still has the size and
+ * modification time of the record.  Opening the log scans it to build the
+ * index, without reading the URNs or looking at the files.
+ * <p>
+ * Saving appends only the records made since the last save.  Opening stops
+ * at the first incomplete record, which is what a crash during an append
+ * leaves behind.  Once the log holds many more records than live entries
+ * it is rewritten with one record per entry.
+ * <p>
+ * Two paths whose hashes collide share an index entry, so the one saved
+ * last wins and the other is hashed again when it is next looked up.
+ * <p>
+ * This class is not thread-safe; UrnCache calls it while holding its lock.
+ */
+class UrnCacheLog {
+
+    private static final Log LOG = LogFactory.getLog(UrnCacheLog.class);
+
+    private static final int MAGIC = 0x55524E4C; // "URNL"
+    /** Records without the size of the file. */
+    private static final int VERSION_1 = 1;
+    private static final int VERSION = 2;
+    private static final int HEADER_LENGTH = 8;
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    /** The log is rewritten once it has this many dead records... */
+    private static final int MIN_DEAD_RECORDS = 1024;
+    /** ... and more records than this many times the live entries. */
+    private static final int MAX_RECORDS_PER_ENTRY = 2;
+
+    private final File file;
+
+    /** The offsets of the last records of the live paths in the file. */
+    private final Index index = new Index();
+
+    /** Records not written yet, by path. */
+    private final Map<String, Record> pending = new LinkedHashMap<String, Record>();
+
+    /** The number of records in the file. */
+    private int records;
+
+    /** The length of the file up to the end of its last record. */
+    private long end;
+
+    /** Reads records from the file, or null if not open. */
+    private RandomAccessFile reader;
+
+    /** Whether the whole log must be rewritten on the next save. */
+    private boolean rewrite;
+
+    UrnCacheLog(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Builds the index from the log.  A log of the first version, whose
+     * records lack file sizes, is read in full and kept to be rewritten on
+     * the next save.
+     *
+     * @return false if there is no log, or it cannot be read at all
+     */
+    boolean open() {
+        if (!file.exists())
+            return false;
+
+        Map<String, Record> oldRecords = null;
+        records = 0;
+        long valid = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC)
+                throw new IOException("unknown urn log format");
+            int version = in.readInt();
+            if (version == VERSION_1)
+                oldRecords = new HashMap<String, Record>();
+            else if (version != VERSION)
+                throw new IOException("unknown urn log version: " + version);
+            valid = HEADER_LENGTH;
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException done) {
+                    break;
+                }
+                Record record = Record.read(op, in, oldRecords != null, oldRecords == null);
+                if (oldRecords != null) {
+                    if (op == REMOVE)
+                        oldRecords.remove(record.path);
+                    else
+                        oldRecords.put(record.path, record);
+                } else if (op == REMOVE) {
+                    index.remove(hash(record.path));
+                } else {
+                    index.put(hash(record.path), valid);
+                }
+                records++;
+                valid += record.length;
+            }
+        } catch (IOException iox) {
+            LOG.warn("Stopped reading urn log after " + records + " records", iox);
+            if (valid == 0) {
+                rewrite = true;
+                return false;
+            }
+        } finally {
+            IOUtils.close(in);
+        }
+        end = valid;
+
+        if (oldRecords != null) {
+            upgrade(oldRecords);
+            return true;
+        }
+
+        // drop anything after the last complete record, so appends follow it.
+        if (end < file.length()) {
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "rw");
+                raf.setLength(end);
+            } catch (IOException iox) {
+                rewrite = true;
+            } finally {
+                IOUtils.close(raf);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Keeps the records of a first version log whose files are unchanged,
+     * with their current sizes, and rewrites the log on the next save.
+     */
+    private void upgrade(Map<String, Record> oldRecords) {
+        for (Record record : oldRecords.values()) {
+            File f = new File(record.path);
+            if (f.lastModified() == record.modTime)
+                put(record.path, f.length(), record.modTime, record.urns);
+        }
+        index.clear();
+        records = 0;
+        rewrite = true;
+    }
+
+    /**
+     * Returns the URNs of path, or null if there are none or the file has
+     * changed since it was hashed.  The record of a changed file is removed.
+     */
+    Set<URN> get(String path, long size, long modTime) {
+        Record record = pending.get(path);
+        if (record == null) {
+            long offset = index.get(hash(path));
+            if (offset < 0)
+                return null;
+            try {
+                record = readAt(offset);
+            } catch (IOException iox) {
+                LOG.warn("Unable to read urn log", iox);
+                return null;
+            }
+            if (!record.path.equals(path))
+                return null;
+        }
+
+        if (record.urns == null)
+            return null;
+        if (record.size != size || record.modTime != modTime) {
+            remove(path);
+            return null;
+        }
+        return record.urns;
+    }
+
+    /** Notes that path was hashed to urns when it had size and modTime. */
+    void put(String path, long size, long modTime, Set<URN> urns) {
+        pending.put(path, new Record(path, size, modTime, urns));
+    }
+
+    /** Notes that path no longer has URNs. */
+    void remove(String path) {
+        if (pending.containsKey(path) || index.get(hash(path)) >= 0)
+            pending.put(path, new Record(path, 0, 0, null));
+    }
+
+    /**
+     * Returns true if there are changes that have not been saved, or the
+     * log has not been written yet.
+     */
+    boolean hasChanges() {
+        return rewrite || !pending.isEmpty() || !file.exists();
+    }
+
+    /**
+     * Returns true if the log should be rewritten rather than appended to,
+     * because it is new, unreadable or has too many dead records.
+     */
+    boolean needsRewrite() {
+        int total = records + pending.size();
+        int live = index.size();
+        return rewrite || !file.exists()
+            || (total - live > MIN_DEAD_RECORDS && total > live * MAX_RECORDS_PER_ENTRY);
+    }
+
+    /**
+     * Appends the pending records to the log, or rewrites it if it
+     * {@link #needsRewrite() needs to be}.
+     *
+     * @return true if the changes were written
+     */
+    boolean save() {
+        return needsRewrite() ? rewrite() : append();
+    }
+
+    /**
+     * Appends the pending records to the log.
+     *
+     * @return true if the records were written
+     */
+    boolean append() {
+        if (pending.isEmpty())
+            return true;
+
+        long[] offsets = new long[pending.size()];
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            int i = 0;
+            for (Record record : pending.values()) {
+                offsets[i++] = end + out.size();
+                record.write(out);
+            }
+            out.flush();
+        } catch (IOException iox) {
+            LOG.warn("Unable to append to urn log", iox);
+            // the file may end with part of a record, start over next time.
+            rewrite = true;
+            return false;
+        } finally {
+            IOUtils.close(out);
+        }
+
+        int i = 0;
+        for (Record record : pending.values()) {
+            if (record.urns == null)
+                index.remove(hash(record.path));
+            else
+                index.put(hash(record.path), offsets[i]);
+            i++;
+        }
+        end = file.length();
+        records += pending.size();
+        pending.clear();
+        return true;
+    }
+
+    /**
+     * Replaces the log with one record per live path, including the pending
+     * records.
+     *
+     * @return true if the log was written
+     */
+    boolean rewrite() {
+        File tmp = new File(file.getPath() + ".tmp");
+        Index newIndex = new Index();
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (int i = 0; i < index.capacity(); i++) {
+                long offset = index.offsetAt(i);
+                if (offset < 0)
+                    continue;
+                Record record = readAt(offset);
+                if (!pending.containsKey(record.path)) {
+                    newIndex.put(index.hashAt(i), out.size());
+                    record.write(out);
+                }
+            }
+            for (Record record : pending.values()) {
+                if (record.urns != null) {
+                    newIndex.put(hash(record.path), out.size());
+                    record.write(out);
+                }
+            }
+            out.flush();
+        } catch (IOException iox) {
+            LOG.warn("Unable to rewrite urn log", iox);
+            return false;
+        } finally {
+            IOUtils.close(out);
+        }
+
+        closeReader();
+        if (!FileUtils.forceRename(tmp, file))
+            return false;
+        index.copy(newIndex);
+        records = index.size();
+        end = file.length();
+        pending.clear();
+        rewrite = false;
+        return true;
+    }
+
+    /** Closes the file the log is read from. */
+    void close() {
+        closeReader();
+    }
+
+    private void closeReader() {
+        IOUtils.close(reader);
+        reader = null;
+    }
+
+    /** Reads the record at the given offset in the file. */
+    private Record readAt(long offset) throws IOException {
+        if (reader == null)
+            reader = new RandomAccessFile(file, "r");
+        int length = 256;
+        while (true) {
+            length = (int)Math.min(length, end - offset);
+            byte[] data = new byte[length];
+            reader.seek(offset);
+            reader.readFully(data);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            try {
+                return Record.read(in.readByte(), in, false, false);
+            } catch (EOFException tooShort) {
+                if (offset + length >= end)
+                    throw tooShort;
+                length *= 2;
+            }
+        }
+    }
+
+    /** Returns the 64-bit FNV-1a hash of path, which is never 0. */
+    static long hash(String path) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < path.length(); i++) {
+            hash ^= path.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static class Record {
+        final String path;
+        final long size;
+        final long modTime;
+        /** The URNs, or null if this removes path or they were skipped. */
+        final Set<URN> urns;
+        /** The number of bytes this took in the log, if it was read. */
+        int length;
+
+        Record(String path, long size, long modTime, Set<URN> urns) {
+            this.path = path;
+            this.size = size;
+            this.modTime = modTime;
+            this.urns = urns;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(urns == null ? REMOVE : PUT);
+            out.writeUTF(path);
+            if (urns != null) {
+                out.writeLong(size);
+                out.writeLong(modTime);
+                out.writeByte(urns.size());
+                for (URN urn : urns)
+                    out.writeUTF(urn.httpStringValue());
+            }
+        }
+
+        /**
+         * Reads a record.
+         *
+         * @param firstVersion whether the record lacks the size of the file
+         * @param skipUrns whether to skip over the URNs rather than read them
+         */
+        static Record read(byte op, DataInputStream in, boolean firstVersion, boolean skipUrns)
+                throws IOException {
+            String path = in.readUTF();
+            int length = 3 + utfLength(path);
+            Record record;
+            if (op == REMOVE) {
+                record = new Record(path, 0, 0, null);
+            } else if (op == PUT) {
+                long size = firstVersion ? -1 : in.readLong();
+                long modTime = in.readLong();
+                int count = in.readUnsignedByte();
+                length += firstVersion ? 9 : 17;
+                UrnSet urns = skipUrns ? null : new UrnSet();
+                for (int i = 0; i < count; i++) {
+                    if (skipUrns) {
+                        // read rather than skip, which can go past the end
+                        int utf = in.readUnsignedShort();
+                        in.readFully(new byte[utf]);
+                        length += 2 + utf;
+                    } else {
+                        String urn = in.readUTF();
+                        length += 2 + utfLength(urn);
+                        urns.add(URN.createUrnFromString(urn));
+                    }
+                }
+                record = new Record(path, size, modTime, skipUrns ? null : UrnSet.unmodifiableSet(urns));
+            } else {
+                throw new IOException("bad record type: " + op);
+            }
+            record.length = length;
+            return record;
+        }
+
+        /** Returns the number of bytes writeUTF uses for the characters of s. */
+        private static int utfLength(String s) {
+            int length = 0;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c >= 0x0001 && c <= 0x007F)
+                    length++;
+                else if (c > 0x07FF)
+                    length += 3;
+                else
+                    length += 2;
+            }
+            return length;
+        }
+    }
+
+    /**
+     * An open addressing hash table from path hashes to file offsets, held
+     * in two arrays so each entry takes a few words rather than the several
+     * objects of a map entry.  Removed entries keep their slot, with a
+     * negative offset, until the table is resized.
+     */
+    static class Index {
+        private static final int MIN_CAPACITY = 16;
+
+        private long[] hashes;
+        private long[] offsets;
+        /** The number of slots with a hash. */
+        private int used;
+        /** The number of slots with an offset. */
+        private int live;
+
+        Index() {
+            clear();
+        }
+
+        void clear() {
+            hashes = new long[MIN_CAPACITY];
+            offsets = new long[MIN_CAPACITY];
+            used = 0;
+            live = 0;
+        }
+
+        /** Replaces this with the contents of other. */
+        void copy(Index other) {
+            hashes = other.hashes;
+            offsets = other.offsets;
+            used = other.used;
+            live = other.live;
+        }
+
+        int size() {
+            return live;
+        }
+
+        int capacity() {
+            return hashes.length;
+        }
+
+        long hashAt(int slot) {
+            return hashes[slot];
+        }
+
+        /** Returns the offset in the slot, or -1 if it has none. */
+        long offsetAt(int slot) {
+            return hashes[slot] == 0 ? -1 : offsets[slot];
+        }
+
+        /** Returns the offset of hash, or -1 if it has none. */
+        long get(long hash) {
+            int slot = find(hash);
+            return hashes[slot] == hash ? offsets[slot] : -1;
+        }
+
+        void put(long hash, long offset) {
+            int slot = find(hash);
+            if (hashes[slot] == 0) {
+                hashes[slot] = hash;
+                used++;
+                live++;
+            } else if (offsets[slot] < 0) {
+                live++;
+            }
+            offsets[slot] = offset;
+            if (used * 4 > hashes.length * 3)
+                resize();
+        }
+
+        void remove(long hash) {
+            int slot = find(hash);
+            if (hashes[slot] == hash && offsets[slot] >= 0) {
+                offsets[slot] = -1;
+                live--;
+            }
+        }
+
+        /** Returns the slot of hash, or the empty slot it would go in. */
+        private int find(long hash) {
+            int mask = hashes.length - 1;
+            int slot = (int)(hash ^ (hash >>> 32)) & mask;
+            while (hashes[slot] != 0 && hashes[slot] != hash)
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        /** Rehashes the live entries into a table twice their number. */
+        private void resize() {
+            long[] oldHashes = hashes;
+            long[] oldOffsets = offsets;
+            int capacity = MIN_CAPACITY;
+            while (capacity < live * 2)
+                capacity <<= 1;
+            hashes = new long[capacity];
+            offsets = new long[capacity];
+            used = 0;
+            live = 0;
+            for (int i = 0; i < oldHashes.length; i++) {
+                if (oldHashes[i] != 0 && oldOffsets[i] >= 0)
+                    put(oldHashes[i], oldOffsets[i]);
+            }
+        }
+    }
+}
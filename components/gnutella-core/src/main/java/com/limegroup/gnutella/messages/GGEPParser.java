@@ -2,6 +2,7 @@ package com.limegroup.gnutella.messages;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.limewire.core.settings.MessageSettings;
 import org.limewire.io.BadGGEPBlockException;
 import org.limewire.io.GGEP;
 
@@ -45,6 +46,7 @@ public class GGEPParser {
         GGEP secure = null;
         int secureStart = -1;
         int secureEnd = -1;
+        boolean lazy = MessageSettings.LAZY_GGEP_PARSING.getValue();
             
         try {
             while(idx < data.length) {
@@ -53,7 +55,8 @@ public class GGEPParser {
                 if(data[idx] != GGEP.GGEP_PREFIX_MAGIC_NUMBER)
                     break;
                 
-                GGEP ggep = new GGEP(data, idx, storage);
+                GGEP ggep = lazy ? GGEP.createLazy(data, idx, storage)
+                                 : new GGEP(data, idx, storage);
                 if(ggep.hasKey(GGEPKeys.GGEP_HEADER_SECURE_BLOCK)) {
                     secure = ggep;
                     secureStart = idx;
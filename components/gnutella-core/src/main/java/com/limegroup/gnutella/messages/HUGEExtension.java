@@ -8,6 +8,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import org.limewire.core.settings.MessageSettings;
 import org.limewire.io.BadGGEPBlockException;
 import org.limewire.io.GGEP;
 
@@ -78,6 +79,7 @@ public class HUGEExtension {
     }
 
     public HUGEExtension(byte[] extsBytes) {
+        boolean lazy = MessageSettings.LAZY_GGEP_PARSING.getValue();
         int currIndex = 0;
         // while we don't encounter a null....
         while ((currIndex < extsBytes.length) && 
@@ -89,11 +91,22 @@ public class HUGEExtension {
                 int[] endIndex = new int[1];
                 endIndex[0] = currIndex+1;
                 try {
-                    GGEP ggep = new GGEP(extsBytes, currIndex, endIndex);
-                    if (_ggep == null) {
-                        _ggep = new GGEP();
+                    GGEP ggep = lazy ? GGEP.createLazy(extsBytes, currIndex, endIndex)
+                                     : new GGEP(extsBytes, currIndex, endIndex);
+                    if (lazy && _ggep == null) {
+                        // a single block needs no merged copy, so it can
+                        // stay undecoded
+                        _ggep = ggep;
+                    } else {
+                        if (_ggep == null) {
+                            _ggep = new GGEP();
+                        } else if (_ggep == _ggepBlocks.get(0).getGGEP()) {
+                            GGEP merged = new GGEP();
+                            merged.merge(_ggep);
+                            _ggep = merged;
+                        }
+                        _ggep.merge(ggep);
                     }
-                    _ggep.merge(ggep);
                     if (_ggepBlocks == null) {
                         _ggepBlocks = new ArrayList<GGEPBlock>(2);
                     }
@@ -3,6 +3,7 @@ package com.limegroup.gnutella.messages;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 
 import com.limegroup.gnutella.messages.Message.Network;
 
@@ -19,7 +20,13 @@ import com.limegroup.gnutella.messages.Message.Network;
  * travel, <code>headerBuf</code> which can be used as an optimization to
  * reduce byte[] allocations, and <code>addr</code> which can be used to know
  * what host this message was read from.
- * 
+ * <p>
+ * Messages can also be read directly from a {@link ByteBuffer} with
+ * {@link #read(ByteBuffer, Network, byte, SocketAddress)}, in which case the
+ * header is decoded in place.  MessageParsers that also implement
+ * {@link BufferMessageParser} are then handed views of the buffer and only
+ * copy what the message keeps; other parsers receive copies, as with the
+ * stream methods.
  */
 public interface MessageFactory {
 
@@ -102,6 +109,28 @@ public interface MessageFactory {
     public Message read(InputStream in, Network network, byte[] headerBuf,
             byte softMax, SocketAddress addr) throws BadPacketException, IOException;
 
+    /**
+     * Reads a message from <code>buffer</code>, starting at its position.  The
+     * header is decoded in place, without copying it out of the buffer.
+     * <p>
+     * If the buffer contains a complete message, its position is advanced
+     * past the message, even if a BadPacketException is thrown, so that the
+     * next message can be read.  If the buffer does not contain a complete
+     * message, null is returned and the position is left unchanged.
+     * 
+     * @throws IOException if the message length is unreasonable. The caller
+     *         is not expected to recover from this.
+     */
+    public Message read(ByteBuffer buffer, Network network, byte softMax, SocketAddress addr)
+            throws BadPacketException, IOException;
+
+    /**
+     * Reads a message from the buffer using the specified network and the
+     * default soft max.
+     */
+    public Message read(ByteBuffer buffer, Network network, SocketAddress addr)
+            throws BadPacketException, IOException;
+
     /**
      * Creates a message based on the header & payload. The header, starting at
      * headerOffset, MUST be >= 19 bytes. Additional headers bytes will be
@@ -121,5 +150,22 @@ public interface MessageFactory {
         public Message parse(byte[] header, byte[] payload,
                 Network network, byte softMax, SocketAddress addr) throws BadPacketException, IOException;
     }
+    
+    /**
+     * A MessageParser that can parse messages from views of the buffer they
+     * were read into.
+     */
+    public interface BufferMessageParser extends MessageParser {
+        /**
+         * Parses a message from the given header & payload.  Both buffers
+         * are only valid for the duration of the call, as the underlying
+         * data is reused afterwards, so anything the message keeps must
+         * be copied.  The header is at least 19 bytes and starts at the
+         * header's position; the payload is between the payload's position
+         * and limit.
+         */
+        public Message parse(ByteBuffer header, ByteBuffer payload,
+                Network network, byte softMax, SocketAddress addr) throws BadPacketException, IOException;
+    }
    
 }
\ No newline at end of file
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -136,6 +137,60 @@ public class MessageFactoryImpl implements MessageFactory {
         return createMessage(buf, payload, network, softMax, addr);
     }
 
+    public Message read(ByteBuffer buffer, Network network, SocketAddress addr)
+            throws BadPacketException, IOException {
+        return read(buffer, network, defaultSoftMax, addr);
+    }
+
+    public Message read(ByteBuffer buffer, Network network, byte softMax, SocketAddress addr)
+            throws BadPacketException, IOException {
+        int start = buffer.position();
+        if (buffer.remaining() < 23)
+            return null;
+        
+        // 1. Unpack the length in place.  It's little-endian regardless of
+        // the buffer's byte order.
+        int length = 0;
+        for (int i = 22; i >= 19; i--)
+            length = (length << 8) | (buffer.get(start + i) & 0xFF);
+        if (length < 0 || length > MessageSettings.MAX_LENGTH.getValue()) {
+            throw new IOException("Unreasonable message length: " + length);
+        }
+        
+        // 2. Wait for the rest of the payload.
+        if (buffer.remaining() < 23 + length)
+            return null;
+        
+        // 3. Skip past the message, so that bad packets are consumed as well.
+        int end = start + 23 + length;
+        buffer.position(end);
+        
+        byte func = buffer.get(start + 16);
+        MessageParser parser = getParser(func);
+        if (parser == null) {
+            throw new BadPacketException("Unrecognized function code: " + func);
+        }
+        
+        if (parser instanceof BufferMessageParser) {
+            ByteBuffer header = buffer.asReadOnlyBuffer();
+            header.limit(start + 23);
+            header.position(start);
+            ByteBuffer payload = buffer.asReadOnlyBuffer();
+            payload.limit(end);
+            payload.position(start + 23);
+            return ((BufferMessageParser)parser).parse(header, payload, network, softMax, addr);
+        }
+        
+        // Otherwise copy, since parsers may keep the arrays.
+        byte[] header = new byte[23];
+        byte[] payload = length == 0 ? DataUtils.EMPTY_BYTE_ARRAY : new byte[length];
+        ByteBuffer copy = buffer.duplicate();
+        copy.position(start);
+        copy.get(header);
+        copy.get(payload);
+        return parser.parse(header, payload, network, softMax, addr);
+    }
+
     public Message createMessage(byte[] header, byte[] payload,
             Network network, byte softMax, SocketAddress addr) throws BadPacketException, IOException {
         if (header.length < 19) {
@@ -2,15 +2,17 @@ package com.limegroup.gnutella.messages;
 
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 
 import org.limewire.inspection.InspectablePrimitive;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.limegroup.gnutella.messages.Message.Network;
-import com.limegroup.gnutella.messages.MessageFactory.MessageParser;
+import com.limegroup.gnutella.messages.MessageFactory.BufferMessageParser;
 import com.limegroup.gnutella.messages.vendor.VendorMessageFactory;
 import com.limegroup.gnutella.routing.RouteTableMessage;
+import com.limegroup.gnutella.util.DataUtils;
 
 @Singleton
 public class MessageParserBinderImpl implements MessageParserBinder {
@@ -57,21 +59,43 @@ public class MessageParserBinderImpl implements MessageParserBinder {
     }
     
     /**
-     * An abstract class for Gnutella Message parsers.
+     * An abstract class for Gnutella Message parsers.  When parsing from a
+     * buffer, the header is checked before anything is copied, so messages
+     * that are dropped for their TTL or hops never allocate.
      */
-    public static abstract class GnutellaMessageParser implements MessageParser {
+    public static abstract class GnutellaMessageParser implements BufferMessageParser {
         
         public Message parse(byte[] header, byte[] payload,
                 Network network, byte max, SocketAddress address) throws BadPacketException, IOException {
-            
+            byte ttl = checkTTL(header[16], header[17], header[18], max);
 
-            // enforce ttl + hops <= max.
-            // except for PingReply messages
+            // Delayed GUID allocation
+            byte[] guid = new byte[16];
+            System.arraycopy(header, 0, guid, 0, guid.length /* 16 */);
             
-            byte func = header[16];
-            byte ttl = header[17];
-            byte hops = header[18];
+            return parse(guid, ttl, header[18], payload, network);
+        }
+        
+        public Message parse(ByteBuffer header, ByteBuffer payload,
+                Network network, byte max, SocketAddress address) throws BadPacketException, IOException {
+            int start = header.position();
+            byte hops = header.get(start + 18);
+            byte ttl = checkTTL(header.get(start + 16), header.get(start + 17), hops, max);
 
+            byte[] guid = new byte[16];
+            header.get(guid);
+            byte[] data = payload.hasRemaining() ? new byte[payload.remaining()] : DataUtils.EMPTY_BYTE_ARRAY;
+            payload.get(data);
+            
+            return parse(guid, ttl, hops, data, network);
+        }
+        
+        /**
+         * Enforces ttl + hops <= max, except for PingReply messages.
+         * 
+         * @return the ttl, readjusted if ttl + hops was too large
+         */
+        private static byte checkTTL(byte func, byte ttl, byte hops, byte max) throws BadPacketException {
             if (hops < 0) {
                 badHops++;
                 throw new BadPacketException("Negative (or very large) hops");
@@ -92,12 +116,7 @@ public class MessageParserBinderImpl implements MessageParserBinder {
                 // new ttl>=0
             } else
                 parsings++;
-
-            // Delayed GUID allocation
-            byte[] guid = new byte[16];
-            System.arraycopy(header, 0, guid, 0, guid.length /* 16 */);
-            
-            return parse(guid, ttl, hops, payload, network);
+            return ttl;
         }
         
         protected abstract Message parse(byte[] guid, byte ttl, byte hops, 
@@ -8,6 +8,7 @@ import java.util.Collection;
 
 import org.limewire.collection.BitNumbers;
 import org.limewire.core.settings.ApplicationSettings;
+import org.limewire.core.settings.MessageSettings;
 import org.limewire.io.BadGGEPBlockException;
 import org.limewire.io.BadGGEPPropertyException;
 import org.limewire.io.GGEP;
@@ -538,6 +539,8 @@ public class PingReplyFactoryImpl implements PingReplyFactory {
             return null;
 
         try {
+            if (MessageSettings.LAZY_GGEP_PARSING.getValue())
+                return GGEP.createLazy(PAYLOAD, PingReply.STANDARD_PAYLOAD_SIZE, null);
             return new GGEP(PAYLOAD, PingReply.STANDARD_PAYLOAD_SIZE, null);
         } catch (BadGGEPBlockException e) {
             return null;
@@ -0,0 +1,314 @@
+package com.limegroup.gnutella.routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.messages.QueryRequest;
+import com.limegroup.gnutella.util.Utilities;
+import com.limegroup.gnutella.xml.LimeXMLDocument;
+
+/**
+ * An index over the query route tables of many connections, so that an
+ * ultrapeer can find every leaf whose table a query hits at once instead of
+ * checking each table in turn.
+ * <p>
+ * For every table size in use the index keeps a column with one bitmask per
+ * table entry, where bit <i>n</i> is set if the <i>n</i>th leaf of that size
+ * has the entry. Each keyword of a query is hashed once per column, and the
+ * masks of the keywords are combined a word of leaves at a time. The answers
+ * are the same as {@link QueryRouteTable#contains(QueryRequest)} would give
+ * for each table.
+ * <p>
+ * The index must be kept in step with the tables: call
+ * {@link #reset(Object, QueryRouteTable)} after a table is reset (or to add
+ * a table), {@link #patched(Object, QueryRouteTable)} after a patch message
+ * is applied to it and {@link #remove(Object)} when the leaf goes away.
+ * <p>
+ * This class is thread-safe.
+ */
+public class QueryRouteIndex<K> {
+
+    /** Table size to the column of the tables with that size. LOCKING: this */
+    private final Map<Integer, Column> columns = new HashMap<Integer, Column>();
+
+    /** Leaf to where its table is in the index. LOCKING: this */
+    private final Map<K, Slot> slots = new HashMap<K, Slot>();
+
+    /** Replaces the entries of leaf with the entries of table. */
+    public synchronized void reset(K leaf, QueryRouteTable table) {
+        Slot slot = place(leaf, table.getSize());
+        slot.column.clearLeaf(slot.bit);
+        for (int entry : table.entries())
+            slot.column.set(entry, slot.bit);
+    }
+
+    /**
+     * Updates the entries of leaf that the last patch message applied to
+     * table covered.
+     */
+    public synchronized void patched(K leaf, QueryRouteTable table) {
+        Slot slot = slots.get(leaf);
+        if (slot == null || slot.column.size != table.getSize()) {
+            reset(leaf, table);
+            return;
+        }
+        int end = Math.min(table.getLastPatchEnd(), slot.column.size);
+        for (int i = table.getLastPatchStart(); i < end; i++) {
+            if (table.contains(i))
+                slot.column.set(i, slot.bit);
+            else
+                slot.column.clear(i, slot.bit);
+        }
+    }
+
+    /** Removes leaf from the index. */
+    public synchronized void remove(K leaf) {
+        Slot slot = slots.remove(leaf);
+        if (slot != null)
+            release(slot);
+    }
+
+    /** Returns the number of leaves in the index. */
+    public synchronized int size() {
+        return slots.size();
+    }
+
+    /**
+     * Returns the leaves whose tables could generate a response for qr, in
+     * no particular order.
+     */
+    public synchronized List<K> matches(QueryRequest qr) {
+        List<K> ret = null;
+        for (Column column : columns.values()) {
+            long[] hits = column.match(qr);
+            if (hits == null)
+                continue;
+            for (int w = 0; w < hits.length; w++) {
+                long word = hits[w];
+                while (word != 0) {
+                    int bit = (w << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    if (ret == null)
+                        ret = new ArrayList<K>();
+                    ret.add(column.<K>leaf(bit));
+                }
+            }
+        }
+        if (ret == null)
+            return Collections.emptyList();
+        return ret;
+    }
+
+    /** Returns the slot of leaf in the column for size, moving it if needed. */
+    private Slot place(K leaf, int size) {
+        Slot slot = slots.get(leaf);
+        if (slot != null) {
+            if (slot.column.size == size)
+                return slot;
+            release(slot);
+        }
+        Column column = columns.get(size);
+        if (column == null) {
+            column = new Column(size);
+            columns.put(size, column);
+        }
+        slot = new Slot(column, column.allocate(leaf));
+        slots.put(leaf, slot);
+        return slot;
+    }
+
+    private void release(Slot slot) {
+        slot.column.release(slot.bit);
+        if (slot.column.isEmpty())
+            columns.remove(slot.column.size);
+    }
+
+    private static class Slot {
+        private final Column column;
+        private final int bit;
+
+        Slot(Column column, int bit) {
+            this.column = column;
+            this.bit = bit;
+        }
+    }
+
+    /** The bitmasks of the leaves whose tables have the same size. */
+    private static class Column {
+        private final int size;
+        private final byte bits;
+        /** The number of longs in each mask. */
+        private int words;
+        /** The mask of entry i is in masks[i * words ... (i + 1) * words). */
+        private long[] masks;
+        /** The bits in use. */
+        private long[] occupied;
+        /** The leaf of each bit in use. */
+        private Object[] leaves;
+
+        Column(int size) {
+            this.size = size;
+            this.bits = Utilities.log2(size);
+            this.words = 1;
+            this.masks = new long[size];
+            this.occupied = new long[1];
+            this.leaves = new Object[64];
+        }
+
+        boolean isEmpty() {
+            for (long word : occupied) {
+                if (word != 0)
+                    return false;
+            }
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        <K> K leaf(int bit) {
+            return (K)leaves[bit];
+        }
+
+        /** Returns a free bit for leaf, growing the masks if there is none. */
+        int allocate(Object leaf) {
+            for (int w = 0; w < words; w++) {
+                if (occupied[w] != -1L) {
+                    int bit = (w << 6) + Long.numberOfTrailingZeros(~occupied[w]);
+                    occupied[w] |= 1L << bit;
+                    leaves[bit] = leaf;
+                    return bit;
+                }
+            }
+            grow();
+            return allocate(leaf);
+        }
+
+        void release(int bit) {
+            clearLeaf(bit);
+            occupied[bit >>> 6] &= ~(1L << bit);
+            leaves[bit] = null;
+        }
+
+        void set(int entry, int bit) {
+            masks[entry * words + (bit >>> 6)] |= 1L << bit;
+        }
+
+        void clear(int entry, int bit) {
+            masks[entry * words + (bit >>> 6)] &= ~(1L << bit);
+        }
+
+        /** Clears bit in every entry. */
+        void clearLeaf(int bit) {
+            long mask = ~(1L << bit);
+            for (int i = bit >>> 6; i < masks.length; i += words)
+                masks[i] &= mask;
+        }
+
+        private void grow() {
+            int newWords = words + 1;
+            long[] newMasks = new long[size * newWords];
+            for (int i = 0; i < size; i++)
+                System.arraycopy(masks, i * words, newMasks, i * newWords, words);
+            masks = newMasks;
+            occupied = Arrays.copyOf(occupied, newWords);
+            leaves = Arrays.copyOf(leaves, newWords << 6);
+            words = newWords;
+        }
+
+        /** ORs the mask of entry into result. */
+        private void or(long[] result, int entry) {
+            int base = entry * words;
+            for (int w = 0; w < words; w++)
+                result[w] |= masks[base + w];
+        }
+
+        /** ANDs the mask of entry into result, returning false if it becomes empty. */
+        private boolean and(long[] result, int entry) {
+            int base = entry * words;
+            long any = 0;
+            for (int w = 0; w < words; w++) {
+                result[w] &= masks[base + w];
+                any |= result[w];
+            }
+            return any != 0;
+        }
+
+        /** Counts a match for every leaf in result that has entry. */
+        private void count(long[] result, int entry, int[] counts) {
+            int base = entry * words;
+            for (int w = 0; w < words; w++) {
+                long word = result[w] & masks[base + w];
+                while (word != 0) {
+                    counts[(w << 6) + Long.numberOfTrailingZeros(word)]++;
+                    word &= word - 1;
+                }
+            }
+        }
+
+        /**
+         * Returns the bits of the leaves whose tables could generate a
+         * response for qr, or null if there are none.  Follows
+         * QueryRouteTable.contains(QueryRequest).
+         */
+        long[] match(QueryRequest qr) {
+            String query = qr.getQuery();
+            LimeXMLDocument richQuery = qr.getRichQuery();
+            if (query.length() == 0 && richQuery == null && !qr.hasQueryUrns())
+                return null;
+
+            long[] result = new long[words];
+            if (qr.hasQueryUrns()) {
+                for (URN urn : qr.getQueryUrns())
+                    or(result, HashFunction.hash(urn.toString(), bits));
+                return result;
+            }
+
+            System.arraycopy(occupied, 0, result, 0, words);
+            for (int i = 0; ; ) {
+                int j = HashFunction.keywordStart(query, i);
+                if (j < 0)
+                    break;
+                int k = HashFunction.keywordEnd(query, j);
+                if (!and(result, HashFunction.hash(query, j, k, bits)))
+                    return null;
+                i = k + 1;
+            }
+
+            if (richQuery == null)
+                return result;
+            if (!and(result, HashFunction.hash(richQuery.getSchemaURI(), bits)))
+                return null;
+
+            int[] counts = new int[words << 6];
+            int wordCount = 0;
+            for (String field : richQuery.getKeyWords()) {
+                for (int i = 0; ; ) {
+                    int j = HashFunction.keywordStart(field, i);
+                    if (j < 0)
+                        break;
+                    int k = HashFunction.keywordEnd(field, j);
+                    count(result, HashFunction.hash(field, j, k, bits), counts);
+                    wordCount++;
+                    i = k + 1;
+                }
+            }
+            for (String str : richQuery.getKeyWordsIndivisible()) {
+                count(result, HashFunction.hash(str, bits), counts);
+                wordCount++;
+            }
+
+            for (int bit = 0; bit < counts.length; bit++) {
+                int matchCount = counts[bit];
+                boolean hit = wordCount < 3 ? wordCount == matchCount
+                        : (float)matchCount / (float)wordCount > 0.67;
+                if (!hit)
+                    result[bit >>> 6] &= ~(1L << bit);
+            }
+            return result;
+        }
+    }
+}
@@ -101,6 +101,12 @@ public class QueryRouteTable {
     /** The index of the next table entry to patch. */
     private int nextPatch;
     
+    /** The first entry covered by the last patch message. */
+    private int lastPatchStart;
+    
+    /** The entry just past the last one covered by the last patch message. */
+    private int lastPatchEnd;
+    
     /** The uncompressor. This state must be maintained to implement chunked
      *  PATCH messages.  (You may need data from message N-1 to apply the patch
      *  in message N.) */
@@ -156,6 +162,8 @@ public class QueryRouteTable {
         this.sequenceNumber = -1;
         this.sequenceSize = -1;
         this.nextPatch = 0;
+        this.lastPatchStart = 0;
+        this.lastPatchEnd = 0;
         this.keywordPresent = (byte)(1 - infinity);
         this.keywordAbsent = (byte)(infinity - 1);
         this.infinity = infinity;
@@ -298,9 +306,27 @@ public class QueryRouteTable {
     
     // In the new version, we will not accept TTLs for methods.  Tables are only
     // 1 hop deep....
-    private final boolean contains(int hash) {
+    final boolean contains(int hash) {
         return storage.get(hash);
     }
+    
+    /** Returns the entries that are set, for QueryRouteIndex. */
+    Iterable<Integer> entries() {
+        return storage;
+    }
+    
+    /** Returns the first entry covered by the last patch message. */
+    int getLastPatchStart() {
+        return lastPatchStart;
+    }
+    
+    /**
+     * Returns the entry just past the last one covered by the last patch
+     * message.
+     */
+    int getLastPatchEnd() {
+        return lastPatchEnd;
+    }
 
     /**
      * <xmp>
@@ -412,6 +438,8 @@ public class QueryRouteTable {
     //allocations here if memory is at a premium.
 
     private void handlePatch(PatchTableMessage m) throws BadPacketException {
+        lastPatchStart = lastPatchEnd = nextPatch;
+        
         //0. Verify that m belongs in this sequence.  If we haven't just been
         //RESET, ensure that m's sequence size matches last message
         if (sequenceSize!=-1 && sequenceSize!=m.getSequenceSize())
@@ -453,20 +481,24 @@ public class QueryRouteTable {
             throw new BadPacketException("Unknown value for entry bits");
 
         //3. Add data[0...] to table[nextPatch...]            
-        for (int i=0; i<data.length; i++) {
-            if(nextPatch >= bitTableLength)
-                throw new BadPacketException("Tried to patch "+nextPatch
-                                             +" on a bitTable of size "
-                                             + bitTableLength);
-            // All negative values indicate presence
-            if (data[i] < 0) {
-                storage.set(nextPatch);
-            }
-            // All positive values indicate absence
-            else if (data[i] > 0) {
-                storage.clear(nextPatch);
+        try {
+            for (int i=0; i<data.length; i++) {
+                if(nextPatch >= bitTableLength)
+                    throw new BadPacketException("Tried to patch "+nextPatch
+                                                 +" on a bitTable of size "
+                                                 + bitTableLength);
+                // All negative values indicate presence
+                if (data[i] < 0) {
+                    storage.set(nextPatch);
+                }
+                // All positive values indicate absence
+                else if (data[i] > 0) {
+                    storage.clear(nextPatch);
+                }
+                nextPatch++;
             }
-            nextPatch++;
+        } finally {
+            lastPatchEnd = nextPatch;
         }
         storage.compact();
 
@@ -1,6 +1,7 @@
 package com.limegroup.gnutella.rudp;
 
 import org.limewire.core.settings.DownloadSettings;
+import org.limewire.rudp.CongestionControl;
 import org.limewire.rudp.RUDPSettings;
 
 import com.google.inject.Singleton;
@@ -28,4 +29,18 @@ class LimeRUDPSettings implements RUDPSettings {
         return DownloadSettings.SKIP_ACKS.getValue();
     }
 
+    public boolean isSelectiveAckEnabled() {
+        return DownloadSettings.RUDP_SELECTIVE_ACKS.getValue();
+    }
+
+    public CongestionControl getCongestionControl() {
+        if (DownloadSettings.RUDP_DELAY_BASED_CONGESTION.getValue())
+            return CongestionControl.LEDBAT;
+        return CongestionControl.REGULATED;
+    }
+
+    public int getDataWindowSize() {
+        return DownloadSettings.RUDP_WINDOW_SIZE.getValue();
+    }
+
 }
@@ -20,4 +20,8 @@ class LimeAckMessageImpl extends AbstractLimeRUDPMessage<AckMessage> implements
         return delegate.getWindowStart();
     }
 
+    public long getSelectiveAcks() {
+        return delegate.getSelectiveAcks();
+    }
+
 }
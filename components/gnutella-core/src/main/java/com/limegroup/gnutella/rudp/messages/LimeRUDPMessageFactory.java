@@ -59,6 +59,11 @@ class LimeRUDPMessageFactory implements RUDPMessageFactory {
                 delegate.createAckMessage(connectionID, sequenceNumber, windowStart, windowSpace));
     }
 
+    public AckMessage createAckMessage(byte connectionID, long sequenceNumber, long windowStart, int windowSpace, long selectiveAcks) {
+        return new LimeAckMessageImpl(
+                delegate.createAckMessage(connectionID, sequenceNumber, windowStart, windowSpace, selectiveAcks));
+    }
+
     public DataMessage createDataMessage(byte connectionID, long sequenceNumber, ByteBuffer chunk) {
         return new LimeDataMessageImpl(
                 delegate.createDataMessage(connectionID, sequenceNumber, chunk));
@@ -83,4 +88,9 @@ class LimeRUDPMessageFactory implements RUDPMessageFactory {
         return new LimeSynMessageImpl(
                 delegate.createSynMessage(connectionID, theirConnectionID, role));
     }
+
+    public SynMessage createSynMessage(byte connectionID, byte theirConnectionID, Role role, int windowSize, boolean selectiveAcks) {
+        return new LimeSynMessageImpl(
+                delegate.createSynMessage(connectionID, theirConnectionID, role, windowSize, selectiveAcks));
+    }
 }
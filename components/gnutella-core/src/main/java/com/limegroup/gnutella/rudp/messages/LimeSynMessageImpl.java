@@ -21,4 +21,12 @@ class LimeSynMessageImpl extends AbstractLimeRUDPMessage<SynMessage> implements
         return delegate.getRole();
     }
 
+    public boolean isSelectiveAckSupported() {
+        return delegate.isSelectiveAckSupported();
+    }
+
+    public int getWindowSize() {
+        return delegate.getWindowSize();
+    }
+
 }
@@ -1,6 +1,7 @@
 package com.limegroup.gnutella.tigertree;
 
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 import org.limewire.collection.Range;
@@ -33,6 +34,15 @@ public interface HashTree extends HTTPHeaderValue {
      */
     public boolean isCorrupt(Range in, RandomAccessFile raf, byte[] tmp);
 
+    /**
+     * Checks whether the data in the range matches the hash tree.
+     * @param in the Range 
+     * @param data the remaining bytes of data are those of the range; its
+     *        position is not changed
+     * @return true if the data in the range is corrupt.
+     */
+    public boolean isCorrupt(Range in, ByteBuffer data);
+
     /**
      * @return Thex URI for this HashTree
      * @see com.limegroup.gnutella.http.HTTPHeaderValue#httpStringValue()
@@ -32,6 +32,7 @@ import com.limegroup.gnutella.URN;
 import com.limegroup.gnutella.library.FileDesc;
 import com.limegroup.gnutella.library.IncompleteFileDesc;
 import com.limegroup.gnutella.library.Library;
+import com.limegroup.gnutella.library.UrnCache;
 
 /** This class maps SHA1_URNs to hash trees and roots. */
 /* This is public for tests, but only the interface should be used. */
@@ -62,11 +63,13 @@ public final class HashTreeCacheImpl implements HashTreeCache {
     
     private final HashTreeFactory tigerTreeFactory;
     private final Library managedFileList;
+    private final UrnCache urnCache;
     
     @Inject
-    HashTreeCacheImpl(HashTreeFactory tigerTreeFactory, Library managedFileList) {
+    HashTreeCacheImpl(HashTreeFactory tigerTreeFactory, Library managedFileList, UrnCache urnCache) {
         this.tigerTreeFactory = tigerTreeFactory;
         this.managedFileList = managedFileList;
+        this.urnCache = urnCache;
         Tuple<Map<URN, URN>, Map<URN, HashTree>> tuple = loadCaches();
         for(Map.Entry<URN, URN> entry : tuple.getFirst().entrySet()) {
             SHA1_TO_ROOT_MAP.put(entry.getKey(), new SimpleFuture<URN>(entry.getValue()));
@@ -187,6 +190,19 @@ public final class HashTreeCacheImpl implements HashTreeCache {
         URN sha1 = fd.getSHA1Urn();
         Future<HashTree> futureTree = TTREE_MAP.get(sha1);
         if(futureTree == null) {
+            // Build the tree from the leaves kept when the file was hashed,
+            // if there are any, instead of reading the file again.
+            List<byte[]> nodes = urnCache.removeTreeNodes(sha1);
+            if(nodes != null) {
+                if(LOG.isDebugEnabled()) {
+                    LOG.debug("Building: " + sha1 + " from hashed leaves");
+                }
+                HashTree tree = tigerTreeFactory.createHashTree(fd.getFileSize(), nodes, sha1);
+                hashTreeCalculated(sha1, tree);
+                futureTree = new SimpleFuture<HashTree>(tree);
+                TTREE_MAP.put(sha1, futureTree);
+                return futureTree;
+            }
             if(LOG.isDebugEnabled()) {
                 LOG.debug("Scheduling: " + sha1 + " for full tree");
             }
@@ -3,6 +3,7 @@ package com.limegroup.gnutella.tigertree;
 import java.io.IOException;
 import java.util.List;
 
+import com.limegroup.gnutella.URN;
 import com.limegroup.gnutella.library.FileDesc;
 
 /**
@@ -16,4 +17,10 @@ public interface HashTreeFactory {
      * Creates a new TigerTree for the given FileDesc.
      */
     HashTree createHashTree(FileDesc fd) throws IOException;
+
+    /**
+     * Creates a new TigerTree from the leaves of a file of the given size,
+     * hashed at the node size {@link HashTreeUtils} picks for that size.
+     */
+    HashTree createHashTree(long fileSize, List<byte[]> nodes, URN sha1);
 }
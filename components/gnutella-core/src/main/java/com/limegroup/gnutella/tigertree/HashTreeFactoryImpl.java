@@ -81,7 +81,11 @@ public class HashTreeFactoryImpl implements HashTreeFactory {
         // do the actual hashing
         int nodeSize = HashTreeUtils.calculateNodeSize(fileSize, HashTreeUtils.calculateDepth(fileSize));
         List<byte[]> nodes = HashTreeUtils.createTreeNodes(nodeSize, fileSize, is, new Tiger());
+        return createHashTree(fileSize, nodes, sha1);
+    }
 
+    public HashTree createHashTree(long fileSize, List<byte[]> nodes, URN sha1) {
+        int nodeSize = HashTreeUtils.calculateNodeSize(fileSize, HashTreeUtils.calculateDepth(fileSize));
         // calculate the intermediary nodes to get the root hash & others.
         List<List<byte[]>> allNodes = HashTreeUtils.createAllParentNodes(nodes, new Tiger());
         return createHashTree(allNodes, sha1.toString(), fileSize, nodeSize);
@@ -3,6 +3,7 @@ package com.limegroup.gnutella.tigertree;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
@@ -99,23 +100,7 @@ class HashTreeImpl implements Serializable, HashTree {
      * @see com.limegroup.gnutella.tigertree.TigerTree#isCorrupt(org.limewire.collection.Range, byte[], int)
      */
     public boolean isCorrupt(Range in, byte[] data, int length) {
-        assert(in.getHigh() <= FILE_SIZE);
-        
-        // if the interval is not a fixed chunk, we cannot verify it.
-        // (actually we can but its more complicated) 
-        if (in.getLow() % _nodeSize == 0 && 
-                in.getHigh() - in.getLow() +1 <= _nodeSize &&
-                (in.getHigh() == in.getLow()+_nodeSize-1 || in.getHigh() == FILE_SIZE -1)) {
-            MerkleTree digest = new MerkleTree(new Tiger());
-            digest.update(data, 0, length);
-            byte [] hash = digest.digest();
-            byte [] treeHash = NODES.get((int)(in.getLow() / _nodeSize));
-            boolean ok = Arrays.equals(treeHash, hash);
-            if (LOG.isDebugEnabled())
-                LOG.debug("interval "+in+" verified "+ok);
-            return !ok;
-        } 
-        return true;
+        return isCorrupt(in, ByteBuffer.wrap(data, 0, length));
     }
 
     /* (non-Javadoc)
@@ -156,6 +141,29 @@ class HashTreeImpl implements Serializable, HashTree {
         return true;
     }
     
+    /* (non-Javadoc)
+     * @see com.limegroup.gnutella.tigertree.HashTree#isCorrupt(org.limewire.collection.Range, java.nio.ByteBuffer)
+     */
+    public boolean isCorrupt(Range in, ByteBuffer data) {
+        assert in.getHigh() <= FILE_SIZE : "invalid range "+in+" vs "+FILE_SIZE;
+        
+        // if the interval is not a fixed chunk, we cannot verify it.
+        // (actually we can but its more complicated) 
+        if (in.getLow() % _nodeSize == 0 && 
+                in.getHigh() - in.getLow() +1 <= _nodeSize &&
+                (in.getHigh() == in.getLow()+_nodeSize-1 || in.getHigh() == FILE_SIZE -1)) {
+            MerkleTree digest = new MerkleTree(new Tiger());
+            digest.update(data.duplicate());
+            byte [] hash = digest.digest();
+            byte [] treeHash = NODES.get((int)(in.getLow() / _nodeSize));
+            boolean ok = Arrays.equals(treeHash, hash);
+            if (LOG.isDebugEnabled())
+                LOG.debug("interval "+in+" verified "+ok);
+            return !ok;
+        } 
+        return true;
+    }
+    
     /* (non-Javadoc)
      * @see com.limegroup.gnutella.tigertree.TigerTree#httpStringValue()
      */
@@ -0,0 +1,244 @@
+package com.limegroup.gnutella.uploader;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.limewire.inspection.Inspectable;
+import org.limewire.inspection.InspectionPoint;
+import org.limewire.listener.EventListener;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.limegroup.gnutella.Response;
+import com.limegroup.gnutella.ResponseFactory;
+import com.limegroup.gnutella.library.FileDesc;
+import com.limegroup.gnutella.library.FileView;
+import com.limegroup.gnutella.library.FileViewChangeEvent;
+import com.limegroup.gnutella.messages.OutgoingQueryReplyFactory;
+import com.limegroup.gnutella.messages.QueryReply;
+import com.limegroup.gnutella.messages.QueryReplyFactory;
+
+/**
+ * Keeps the query replies sent for browses of each file view, so browsing
+ * the same view again does not create the responses and encode the replies
+ * again.
+ * <p>
+ * The files of a view are divided into pages by their index, each holding
+ * the replies for the files of {@link #FILES_PER_PAGE} consecutive
+ * indices.  Pages are dropped when a file of theirs is added, removed or
+ * changed, so a change only costs encoding the one page again.  Since
+ * replies also carry our address and push proxies, pages are only used
+ * for {@link #PAGE_LIFETIME} milliseconds.
+ */
+@Singleton
+public class BrowseReplyCache {
+
+    private static final Log LOG = LogFactory.getLog(BrowseReplyCache.class);
+
+    /** The number of file indices that share a page. */
+    static final int FILES_PER_PAGE = 64;
+
+    /** The number of responses in each reply. */
+    static final int RESPONSES_PER_REPLY = 10;
+
+    /** The number of milliseconds a page is used for. */
+    static final long PAGE_LIFETIME = 60 * 1000;
+
+    private final Provider<ResponseFactory> responseFactory;
+
+    private final OutgoingQueryReplyFactory outgoingQueryReplyFactory;
+
+    private final QueryReplyFactory queryReplyFactory;
+
+    /**
+     * The pages of each view by page number.
+     * LOCKING: this
+     */
+    private final Map<FileView, Map<Integer, Page>> views = new WeakHashMap<FileView, Map<Integer, Page>>();
+
+    /** LOCKING: this */
+    private int hits, misses, invalidations;
+
+    @SuppressWarnings("unused")
+    @InspectionPoint("browse reply cache")
+    private final Inspectable inspectable = new Inspectable() {
+        @Override
+        public Object inspect() {
+            Map<String, Object> data = new HashMap<String, Object>();
+            synchronized (BrowseReplyCache.this) {
+                int pages = 0;
+                for (Map<Integer, Page> viewPages : views.values())
+                    pages += viewPages.size();
+                data.put("hits", hits);
+                data.put("misses", misses);
+                data.put("invalidations", invalidations);
+                data.put("views", views.size());
+                data.put("pages", pages);
+            }
+            return data;
+        }
+    };
+
+    @Inject
+    public BrowseReplyCache(Provider<ResponseFactory> responseFactory,
+            OutgoingQueryReplyFactory outgoingQueryReplyFactory,
+            QueryReplyFactory queryReplyFactory) {
+        this.responseFactory = responseFactory;
+        this.outgoingQueryReplyFactory = outgoingQueryReplyFactory;
+        this.queryReplyFactory = queryReplyFactory;
+    }
+
+    /**
+     * Returns the page the file belongs to.
+     */
+    static int getPage(FileDesc fd) {
+        return fd.getIndex() / FILES_PER_PAGE;
+    }
+
+    /**
+     * Returns the replies for files, which are the files of view that
+     * belong to one page in the order the view iterates them.
+     *
+     * @param guid the GUID of the replies
+     */
+    List<QueryReply> getReplies(FileView view, List<FileDesc> files, byte[] guid,
+            boolean requestorCanDoFWT) {
+        int number = getPage(files.get(0));
+        long now = System.currentTimeMillis();
+        Page page;
+        synchronized (this) {
+            Map<Integer, Page> pages = getPages(view);
+            page = pages.get(number);
+            if (page != null && !page.isFor(files, requestorCanDoFWT, now)) {
+                pages.remove(number);
+                page = null;
+            }
+            if (page != null)
+                hits++;
+            else
+                misses++;
+        }
+
+        if (page != null)
+            return copy(page.replies, guid);
+
+        Response[] responses = new Response[files.size()];
+        for (int i = 0; i < responses.length; i++)
+            responses[i] = responseFactory.get().createResponse(files.get(i));
+        List<QueryReply> replies = outgoingQueryReplyFactory.createReplies(responses,
+                RESPONSES_PER_REPLY, null, guid, (byte)1, false, requestorCanDoFWT);
+        synchronized (this) {
+            getPages(view).put(number, new Page(files, replies, requestorCanDoFWT, now));
+        }
+        return replies;
+    }
+
+    /**
+     * Returns the cached replies with the given GUID.  The payloads are
+     * shared, so this is cheap.
+     */
+    private List<QueryReply> copy(List<QueryReply> replies, byte[] guid) {
+        List<QueryReply> copies = new ArrayList<QueryReply>(replies.size());
+        for (QueryReply reply : replies) {
+            try {
+                copies.add(queryReplyFactory.createQueryReply(guid, reply));
+            } catch (IllegalArgumentException e) {
+                // our address was not valid when the page was created, the
+                // browsing host does not care about the GUID
+                LOG.debug("unable to copy reply", e);
+                copies.add(reply);
+            }
+        }
+        return copies;
+    }
+
+    /**
+     * Returns the pages of view, listening for its changes the first time.
+     * LOCKING: this
+     */
+    private Map<Integer, Page> getPages(FileView view) {
+        Map<Integer, Page> pages = views.get(view);
+        if (pages == null) {
+            pages = new HashMap<Integer, Page>();
+            views.put(view, pages);
+            view.addListener(new Invalidator());
+        }
+        return pages;
+    }
+
+    /**
+     * Drops the pages of the files that changed.
+     */
+    private class Invalidator implements EventListener<FileViewChangeEvent> {
+        public void handleEvent(FileViewChangeEvent event) {
+            switch (event.getType()) {
+            case FILE_ADDED:
+            case FILE_REMOVED:
+            case FILE_META_CHANGED:
+                invalidate(event.getFileView(), event.getFileDesc());
+                break;
+            case FILE_CHANGED:
+                invalidate(event.getFileView(), event.getOldValue());
+                invalidate(event.getFileView(), event.getFileDesc());
+                break;
+            case FILES_CLEARED:
+                synchronized (BrowseReplyCache.this) {
+                    Map<Integer, Page> pages = views.get(event.getFileView());
+                    if (pages != null) {
+                        invalidations += pages.size();
+                        pages.clear();
+                    }
+                }
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    private synchronized void invalidate(FileView view, FileDesc fd) {
+        if (fd == null)
+            return;
+        Map<Integer, Page> pages = views.get(view);
+        if (pages != null && pages.remove(getPage(fd)) != null)
+            invalidations++;
+    }
+
+    /**
+     * The replies for the files of a page.
+     */
+    private static class Page {
+        private final FileDesc[] files;
+        private final List<QueryReply> replies;
+        private final boolean requestorCanDoFWT;
+        private final long created;
+
+        Page(List<FileDesc> files, List<QueryReply> replies, boolean requestorCanDoFWT, long created) {
+            this.files = files.toArray(new FileDesc[files.size()]);
+            this.replies = replies;
+            this.requestorCanDoFWT = requestorCanDoFWT;
+            this.created = created;
+        }
+
+        /**
+         * Returns whether this page holds the replies for exactly files and
+         * is still fresh, which also guards against missed changes.
+         */
+        boolean isFor(List<FileDesc> files, boolean requestorCanDoFWT, long now) {
+            if (now - created > PAGE_LIFETIME || this.requestorCanDoFWT != requestorCanDoFWT
+                    || this.files.length != files.size())
+                return false;
+            for (int i = 0; i < this.files.length; i++) {
+                if (this.files[i] != files.get(i))
+                    return false;
+            }
+            return true;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
@@ -23,13 +24,17 @@ import org.apache.http.nio.protocol.SimpleNHttpRequestHandler;
 import org.apache.http.protocol.HttpContext;
 import org.limewire.collection.MultiIterable;
 import org.limewire.core.api.browse.server.BrowseTracker;
+import org.limewire.core.settings.UploadSettings;
 import org.limewire.http.HttpCoreUtils;
 import org.limewire.http.entity.AbstractProducingNHttpEntity;
+import org.limewire.http.reactor.HttpIOSession;
 import org.limewire.i18n.I18nMarker;
 import org.limewire.io.GUID;
 import org.limewire.nio.channel.NoInterestWritableByteChannel;
 
 import com.google.inject.Provider;
+import com.limegroup.gnutella.BandwidthManager;
+import com.limegroup.gnutella.BandwidthManager.UploadClass;
 import com.limegroup.gnutella.Constants;
 import com.limegroup.gnutella.Response;
 import com.limegroup.gnutella.ResponseFactory;
@@ -66,17 +71,23 @@ public class BrowseRequestHandler extends SimpleNHttpRequestHandler {
 
     private final HttpRequestFileViewProvider browseRequestFileListProvider;
     private final BrowseTracker tracker;
+    private final Provider<BandwidthManager> bandwidthManager;
+    private final BrowseReplyCache browseReplyCache;
 
     BrowseRequestHandler(HTTPUploadSessionManager sessionManager,
             Provider<ResponseFactory> responseFactory,
             OutgoingQueryReplyFactory outgoingQueryReplyFactory,
             HttpRequestFileViewProvider browseRequestFileListProvider,
-            BrowseTracker tracker) {
+            BrowseTracker tracker,
+            Provider<BandwidthManager> bandwidthManager,
+            BrowseReplyCache browseReplyCache) {
         this.sessionManager = sessionManager;
         this.responseFactory = responseFactory;
         this.outgoingQueryReplyFactory = outgoingQueryReplyFactory;
         this.browseRequestFileListProvider = browseRequestFileListProvider;
         this.tracker = tracker;
+        this.bandwidthManager = bandwidthManager;
+        this.browseReplyCache = browseReplyCache;
     }
     
     public ConsumingNHttpEntity entityRequest(HttpEntityEnclosingRequest request,
@@ -120,7 +131,10 @@ public class BrowseRequestHandler extends SimpleNHttpRequestHandler {
                 
                 response.setStatusCode(HttpStatus.SC_NOT_ACCEPTABLE);
             } else {
-                response.setEntity(new BrowseResponseEntity(uploader, files));
+                if (UploadSettings.BROWSE_REPLY_CACHE.getValue())
+                    response.setEntity(new BrowseResponseEntity(uploader, lists.iterator()));
+                else
+                    response.setEntity(new BrowseResponseEntity(uploader, files));
                 response.setStatusCode(HttpStatus.SC_OK);
             }
         } catch (com.limegroup.gnutella.uploader.HttpException he) {
@@ -174,6 +188,15 @@ public class BrowseRequestHandler extends SimpleNHttpRequestHandler {
 
         private Iterator<FileDesc> iterator;
         
+        /** The views whose files are sent from the cached replies, null if not cached. */
+        private Iterator<FileView> views;
+        
+        /** The view of the files of iterator, if cached. */
+        private FileView view;
+        
+        /** The next file to send from the cached replies, if already read. */
+        private FileDesc nextFile;
+        
         private MessageWriter sender;
         
         private volatile int pendingMessageCount = 0;
@@ -189,6 +212,15 @@ public class BrowseRequestHandler extends SimpleNHttpRequestHandler {
             
             setContentType(Constants.QUERYREPLY_MIME_TYPE);
         }
+        
+        /**
+         * Creates an entity that sends the files of views from the replies
+         * kept in the {@link BrowseReplyCache}.
+         */
+        public BrowseResponseEntity(HTTPUploader uploader, Iterator<FileView> views) {
+            this(uploader, Collections.<FileDesc>emptyList());
+            this.views = views;
+        }
 
         @Override
         public long getContentLength() {
@@ -204,6 +236,11 @@ public class BrowseRequestHandler extends SimpleNHttpRequestHandler {
                 }                
             };
             
+            if (UploadSettings.CLASSED_UPLOAD_BANDWIDTH.getValue()) {
+                HttpIOSession ioSession = uploader.getSession().getIOSession();
+                ioSession.setThrottle(bandwidthManager.get().getUploadThrottle(ioSession.getSocket(), UploadClass.BROWSE));
+            }
+            
             sender = new MessageWriter(new ConnectionStats(), new BasicQueue(), sentMessageHandler);
             sender.setWriteChannel(new NoInterestWritableByteChannel(new ContentEncoderChannel(
                     contentEncoder)));
@@ -217,7 +254,46 @@ public class BrowseRequestHandler extends SimpleNHttpRequestHandler {
             assert more || pendingMessageCount == 0;
             
             activateTimeout();
-            return more || iterator.hasNext();
+            return more || hasMoreFiles();
+        }
+        
+        private boolean hasMoreFiles() {
+            if (views == null)
+                return iterator.hasNext();
+            return nextFile != null || nextFile() != null;
+        }
+        
+        /**
+         * Reads the next file of the cached views into nextFile.
+         */
+        private FileDesc nextFile() {
+            while (!iterator.hasNext() && views.hasNext()) {
+                view = views.next();
+                iterator = view.pausableIterable().iterator();
+            }
+            nextFile = iterator.hasNext() ? iterator.next() : null;
+            return nextFile;
+        }
+        
+        /**
+         * Adds the cached replies for the files of the next page to the
+         * message queue.
+         */
+        private void addPage() {
+            if (nextFile == null && nextFile() == null)
+                return;
+            
+            FileView pageView = view;
+            int page = BrowseReplyCache.getPage(nextFile);
+            List<FileDesc> files = new ArrayList<FileDesc>();
+            do {
+                files.add(nextFile);
+            } while (nextFile() != null && view == pageView && BrowseReplyCache.getPage(nextFile) == page);
+            
+            for (QueryReply queryReply : browseReplyCache.getReplies(pageView, files, sessionGUID.bytes(), requestorCanDoFWT)) {
+                sender.send(queryReply);
+                pendingMessageCount++;
+            }
         }
         
         /**
@@ -229,6 +305,11 @@ public class BrowseRequestHandler extends SimpleNHttpRequestHandler {
                 return;
             }
             
+            if (views != null) {
+                addPage();
+                return;
+            }
+            
             List<Response> responses = new ArrayList<Response>(RESPONSES_PER_REPLY); 
             for (int i = 0; iterator.hasNext() && i < RESPONSES_PER_REPLY; i++) {
                 FileDesc fileDesc = iterator.next();
@@ -6,6 +6,7 @@ import org.limewire.http.auth.RequiresAuthentication;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
+import com.limegroup.gnutella.BandwidthManager;
 import com.limegroup.gnutella.ResponseFactory;
 import com.limegroup.gnutella.messages.OutgoingQueryReplyFactory;
 import com.limegroup.gnutella.uploader.authentication.HttpRequestFileViewProvider;
@@ -17,23 +18,29 @@ public class BrowseRequestHandlerFactory {
     private final Provider<ResponseFactory> responseFactory;
     private final OutgoingQueryReplyFactory outgoingQueryReplyFactory;
     private final BrowseTracker tracker;
+    private final Provider<BandwidthManager> bandwidthManager;
+    private final BrowseReplyCache browseReplyCache;
 
     @Inject
     public BrowseRequestHandlerFactory(HTTPUploadSessionManager sessionManager,
             Provider<ResponseFactory> responseFactory,
             OutgoingQueryReplyFactory outgoingQueryReplyFactory,
-            BrowseTracker tracker) {
+            BrowseTracker tracker,
+            Provider<BandwidthManager> bandwidthManager,
+            BrowseReplyCache browseReplyCache) {
         this.sessionManager = sessionManager;
         this.responseFactory = responseFactory;
         this.outgoingQueryReplyFactory = outgoingQueryReplyFactory;
         this.tracker = tracker;
+        this.bandwidthManager = bandwidthManager;
+        this.browseReplyCache = browseReplyCache;
     }
     
     public BrowseRequestHandler createBrowseRequestHandler(HttpRequestFileViewProvider browseRequestFileListProvider,
                                                            boolean requiresAuthentication) {
         if(!requiresAuthentication) {
             return new BrowseRequestHandler(sessionManager, responseFactory, outgoingQueryReplyFactory,
-                    browseRequestFileListProvider, tracker);
+                    browseRequestFileListProvider, tracker, bandwidthManager, browseReplyCache);
         } else {
             return new ProtectedBrowseRequestHandler(sessionManager, responseFactory, outgoingQueryReplyFactory,
                     browseRequestFileListProvider);
@@ -43,7 +50,7 @@ public class BrowseRequestHandlerFactory {
     @RequiresAuthentication 
     class ProtectedBrowseRequestHandler extends BrowseRequestHandler {
         ProtectedBrowseRequestHandler(HTTPUploadSessionManager sessionManager, Provider<ResponseFactory> responseFactory, OutgoingQueryReplyFactory outgoingQueryReplyFactory, HttpRequestFileViewProvider browseRequestFileListProvider) {
-            super(sessionManager, responseFactory, outgoingQueryReplyFactory, browseRequestFileListProvider, tracker);
+            super(sessionManager, responseFactory, outgoingQueryReplyFactory, browseRequestFileListProvider, tracker, bandwidthManager, browseReplyCache);
         }
     }
 
@@ -18,10 +18,12 @@ import org.apache.http.nio.protocol.SimpleNHttpRequestHandler;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
 import org.limewire.core.settings.SharingSettings;
+import org.limewire.core.settings.UploadSettings;
 import org.limewire.http.BasicHeaderProcessor;
 import org.limewire.http.MalformedHeaderException;
 import org.limewire.http.RangeHeaderInterceptor;
 import org.limewire.http.RangeHeaderInterceptor.Range;
+import org.limewire.io.NetworkInstanceUtils;
 
 import com.google.inject.Provider;
 import com.limegroup.gnutella.DownloadManager;
@@ -86,6 +88,8 @@ public class FileRequestHandler extends SimpleNHttpRequestHandler {
 
     private final AlternateLocationFactory alternateLocationFactory;
 
+    private final NetworkInstanceUtils networkInstanceUtils;
+
     private final Provider<DownloadManager> downloadManager;
 
     private final Provider<HashTreeCache> tigerTreeCache;
@@ -94,6 +98,8 @@ public class FileRequestHandler extends SimpleNHttpRequestHandler {
 
     private final HashTreeWriteHandlerFactory tigerWriteHandlerFactory;
 
+    private final HotContentCache hotContentCache;
+
     private final HttpRequestFileViewProvider fileListProvider;
 
     FileRequestHandler(HTTPUploadSessionManager sessionManager, Library library,
@@ -101,9 +107,10 @@ public class FileRequestHandler extends SimpleNHttpRequestHandler {
             Provider<CreationTimeCache> creationTimeCache,
             FileResponseEntityFactory fileResponseEntityFactory, AltLocManager altLocManager,
             AlternateLocationFactory alternateLocationFactory,
+            NetworkInstanceUtils networkInstanceUtils,
             Provider<DownloadManager> downloadManager, Provider<HashTreeCache> tigerTreeCache,
             PushEndpointFactory pushEndpointFactory,
-            HashTreeWriteHandlerFactory tigerWriteHandlerFactory, 
+            HashTreeWriteHandlerFactory tigerWriteHandlerFactory, HotContentCache hotContentCache,
             HttpRequestFileViewProvider fileListProvider) {
         this.sessionManager = sessionManager;
         this.library = library;
@@ -113,10 +120,12 @@ public class FileRequestHandler extends SimpleNHttpRequestHandler {
         this.fileResponseEntityFactory = fileResponseEntityFactory;
         this.altLocManager = altLocManager;
         this.alternateLocationFactory = alternateLocationFactory;
+        this.networkInstanceUtils = networkInstanceUtils;
         this.downloadManager = downloadManager;
         this.tigerTreeCache = tigerTreeCache;
         this.pushEndpointFactory = pushEndpointFactory;
         this.tigerWriteHandlerFactory = tigerWriteHandlerFactory;
+        this.hotContentCache = hotContentCache;
         this.fileListProvider = fileListProvider;
     }
     
@@ -175,7 +184,7 @@ public class FileRequestHandler extends SimpleNHttpRequestHandler {
         processor.addInterceptor(rangeHeaderInterceptor);
         processor.addInterceptor(new FeatureHeaderInterceptor(uploader));
         processor.addInterceptor(new AltLocHeaderInterceptor(uploader, altLocManager,
-                alternateLocationFactory));
+                alternateLocationFactory, networkInstanceUtils));
         processor.addInterceptor(new FWNodeInfoInterceptor(uploader, pushEndpointFactory));
         if (!uploader.getFileName().toUpperCase(Locale.US).startsWith("LIMEWIRE")) {
             processor.addInterceptor(new UserAgentHeaderInterceptor(uploader));
@@ -320,7 +329,7 @@ public class FileRequestHandler extends SimpleNHttpRequestHandler {
         addThexUriHeader(response, fd, friendId);
 
         response.setEntity(fileResponseEntityFactory.createFileResponseEntity(uploader, fd
-                .getFile()));
+                .getFile(), urn));
         uploader.setState(UploadStatus.UPLOADING);
 
         if (uploader.isPartial()) {
@@ -376,8 +385,12 @@ public class FileRequestHandler extends SimpleNHttpRequestHandler {
             return;
         }
 
-        HashTreeWriteHandler tigerWriteHandler = tigerWriteHandlerFactory
-                .createTigerWriteHandler(tree);
+        // trees requested over and over are only encoded once
+        HashTreeWriteHandler tigerWriteHandler;
+        if (UploadSettings.HOT_CONTENT_CACHE.getValue())
+            tigerWriteHandler = hotContentCache.getTigerWriteHandler(fd.getSHA1Urn(), tree);
+        else
+            tigerWriteHandler = tigerWriteHandlerFactory.createTigerWriteHandler(tree);
 
         // XXX reset range to size of THEX tree
         int outputLength = tigerWriteHandler.getOutputLength();
@@ -389,8 +402,8 @@ public class FileRequestHandler extends SimpleNHttpRequestHandler {
         // response.addHeader(HTTPHeaderName.GNUTELLA_CONTENT_URN.create(fd.getSHA1Urn()));
 
         uploader.setState(UploadStatus.THEX_REQUEST);
-        response.setEntity(new THEXResponseEntity(uploader, tigerWriteHandler, uploader
-                .getFileSize()));
+        response.setEntity(fileResponseEntityFactory.createTHEXResponseEntity(uploader,
+                tigerWriteHandler, uploader.getFileSize()));
         response.setStatusCode(HttpStatus.SC_OK);
     }
 
@@ -1,6 +1,7 @@
 package com.limegroup.gnutella.uploader;
 
 import org.limewire.http.auth.RequiresAuthentication;
+import org.limewire.io.NetworkInstanceUtils;
 
 import com.google.inject.Inject;
 import com.google.inject.Provider;
@@ -34,6 +35,8 @@ class FileRequestHandlerFactoryImpl implements FileRequestHandlerFactory {
 
     private final AlternateLocationFactory alternateLocationFactory;
 
+    private final NetworkInstanceUtils networkInstanceUtils;
+
     private final Provider<DownloadManager> downloadManager;
 
     private final Provider<HashTreeCache> tigerTreeCache;
@@ -41,6 +44,8 @@ class FileRequestHandlerFactoryImpl implements FileRequestHandlerFactory {
     private final PushEndpointFactory pushEndpointFactory;
 
     private final HashTreeWriteHandlerFactory tigerWriteHandlerFactory;
+
+    private final HotContentCache hotContentCache;
     
     @Inject
     public FileRequestHandlerFactoryImpl(HTTPUploadSessionManager sessionManager, Library library,
@@ -48,9 +53,10 @@ class FileRequestHandlerFactoryImpl implements FileRequestHandlerFactory {
             Provider<CreationTimeCache> creationTimeCache,
             FileResponseEntityFactory fileResponseEntityFactory, AltLocManager altLocManager,
             AlternateLocationFactory alternateLocationFactory,
+            NetworkInstanceUtils networkInstanceUtils,
             Provider<DownloadManager> downloadManager, Provider<HashTreeCache> tigerTreeCache,
             PushEndpointFactory pushEndpointFactory,
-            HashTreeWriteHandlerFactory tigerWriteHandlerFactory) {
+            HashTreeWriteHandlerFactory tigerWriteHandlerFactory, HotContentCache hotContentCache) {
         this.sessionManager = sessionManager;
         this.library = library;
         this.httpHeaderUtils = httpHeaderUtils;
@@ -59,10 +65,12 @@ class FileRequestHandlerFactoryImpl implements FileRequestHandlerFactory {
         this.fileResponseEntityFactory = fileResponseEntityFactory;
         this.altLocManager = altLocManager;
         this.alternateLocationFactory = alternateLocationFactory;
+        this.networkInstanceUtils = networkInstanceUtils;
         this.downloadManager = downloadManager;
         this.tigerTreeCache = tigerTreeCache;
         this.pushEndpointFactory = pushEndpointFactory;
         this.tigerWriteHandlerFactory = tigerWriteHandlerFactory;
+        this.hotContentCache = hotContentCache;
     }
     
     /* (non-Javadoc)
@@ -72,20 +80,20 @@ class FileRequestHandlerFactoryImpl implements FileRequestHandlerFactory {
         if(!requiresAuthentication) {
             return new FileRequestHandler(sessionManager, library, httpHeaderUtils,
                     httpRequestHandlerFactory, creationTimeCache, fileResponseEntityFactory,
-                    altLocManager, alternateLocationFactory, downloadManager, tigerTreeCache,
-                    pushEndpointFactory, tigerWriteHandlerFactory, fileListProvider);
+                    altLocManager, alternateLocationFactory, networkInstanceUtils, downloadManager, tigerTreeCache,
+                    pushEndpointFactory, tigerWriteHandlerFactory, hotContentCache, fileListProvider);
         } else {
             return new ProtectedFileRequestHandler(sessionManager, library, httpHeaderUtils,
                     httpRequestHandlerFactory, creationTimeCache, fileResponseEntityFactory,
-                    altLocManager, alternateLocationFactory, downloadManager, tigerTreeCache,
-                    pushEndpointFactory, tigerWriteHandlerFactory, fileListProvider);
+                    altLocManager, alternateLocationFactory, networkInstanceUtils, downloadManager, tigerTreeCache,
+                    pushEndpointFactory, tigerWriteHandlerFactory, hotContentCache, fileListProvider);
         }
     }
     
     @RequiresAuthentication
     static class ProtectedFileRequestHandler extends FileRequestHandler {
-        ProtectedFileRequestHandler(HTTPUploadSessionManager sessionManager, Library library, HTTPHeaderUtils httpHeaderUtils, HttpRequestHandlerFactory httpRequestHandlerFactory, Provider<CreationTimeCache> creationTimeCache, FileResponseEntityFactory fileResponseEntityFactory, AltLocManager altLocManager, AlternateLocationFactory alternateLocationFactory, Provider<DownloadManager> downloadManager, Provider<HashTreeCache> tigerTreeCache, PushEndpointFactory pushEndpointFactory, HashTreeWriteHandlerFactory tigerWriteHandlerFactory, HttpRequestFileViewProvider fileListProvider) {
-            super(sessionManager, library, httpHeaderUtils, httpRequestHandlerFactory, creationTimeCache, fileResponseEntityFactory, altLocManager, alternateLocationFactory, downloadManager, tigerTreeCache, pushEndpointFactory, tigerWriteHandlerFactory, fileListProvider);
+        ProtectedFileRequestHandler(HTTPUploadSessionManager sessionManager, Library library, HTTPHeaderUtils httpHeaderUtils, HttpRequestHandlerFactory httpRequestHandlerFactory, Provider<CreationTimeCache> creationTimeCache, FileResponseEntityFactory fileResponseEntityFactory, AltLocManager altLocManager, AlternateLocationFactory alternateLocationFactory, NetworkInstanceUtils networkInstanceUtils, Provider<DownloadManager> downloadManager, Provider<HashTreeCache> tigerTreeCache, PushEndpointFactory pushEndpointFactory, HashTreeWriteHandlerFactory tigerWriteHandlerFactory, HotContentCache hotContentCache, HttpRequestFileViewProvider fileListProvider) {
+            super(sessionManager, library, httpHeaderUtils, httpRequestHandlerFactory, creationTimeCache, fileResponseEntityFactory, altLocManager, alternateLocationFactory, networkInstanceUtils, downloadManager, tigerTreeCache, pushEndpointFactory, tigerWriteHandlerFactory, hotContentCache, fileListProvider);
         }
     }
 
@@ -2,27 +2,47 @@ package com.limegroup.gnutella.uploader;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpEntity;
 import org.apache.http.nio.ContentEncoder;
 import org.apache.http.nio.IOControl;
+import org.limewire.concurrent.FutureEvent;
+import org.limewire.concurrent.ListeningFuture;
+import org.limewire.core.settings.UploadSettings;
 import org.limewire.http.entity.AbstractProducingNHttpEntity;
 import org.limewire.http.entity.FilePieceReader;
 import org.limewire.http.entity.Piece;
 import org.limewire.http.entity.PieceListener;
+import org.limewire.http.reactor.HttpChannel;
 import org.limewire.http.reactor.HttpIOSession;
+import org.limewire.io.IOUtils;
+import org.limewire.listener.EventListener;
 import org.limewire.nio.NIODispatcher;
+import org.limewire.nio.ssl.SSLUtils;
 
 import com.google.inject.Provider;
 import com.limegroup.gnutella.BandwidthManager;
+import com.limegroup.gnutella.BandwidthManager.UploadClass;
 import com.limegroup.gnutella.Constants;
+import com.limegroup.gnutella.URN;
 
 /**
  * An event based {@link HttpEntity} that uploads a {@link File}. A
  * corresponding {@link HTTPUploader} is updated with progress.
+ * <p>
+ * The file is normally read into buffers by a {@link FilePieceReader}. If
+ * {@link UploadSettings#ZERO_COPY_UPLOADS} is on and the upload is neither
+ * throttled nor encrypted, the file is instead transferred straight to the
+ * socket, or written from memory mapped regions if that is not possible.
+ * Otherwise, if {@link UploadSettings#HOT_CONTENT_CACHE} is on, the file is
+ * written from windows kept by the {@link HotContentCache}.
  */
 public class FileResponseEntity extends AbstractProducingNHttpEntity {
 
@@ -51,10 +71,36 @@ public class FileResponseEntity extends AbstractProducingNHttpEntity {
 
     private final Provider<BandwidthManager> bandwidthManager;
 
-    FileResponseEntity(HTTPUploader uploader, File file, Provider<BandwidthManager> bandwidthManager) {
+    /** The most bytes of the file mapped at once. */
+    private static final int MAP_SIZE = 1024 * 1024;
+
+    /** The file, if it is sent without the piece reader. */
+    private FileChannel fileChannel;
+
+    /**
+     * The channel the file is transferred to directly, or null if mapped
+     * regions of the file are written instead.
+     */
+    private HttpChannel directChannel;
+
+    /** The SHA1 of the file, or null if not known. */
+    private final URN urn;
+
+    private final HotContentCache hotContentCache;
+
+    /** Whether the file is written from windows of the hot content cache. */
+    private boolean cached;
+
+    /** The range of the file that is being mapped by the cache, or null. */
+    private ListeningFuture<ByteBuffer> pendingRange;
+
+    FileResponseEntity(HTTPUploader uploader, File file, URN urn,
+            Provider<BandwidthManager> bandwidthManager, HotContentCache hotContentCache) {
         this.uploader = uploader;
         this.file = file;
+        this.urn = urn;
         this.bandwidthManager = bandwidthManager;
+        this.hotContentCache = hotContentCache;
 
         setContentType(Constants.FILE_MIME_TYPE);
 
@@ -84,7 +130,31 @@ public class FileResponseEntity extends AbstractProducingNHttpEntity {
         }
         
         HttpIOSession ioSession = uploader.getSession().getIOSession();
-        ioSession.setThrottle(bandwidthManager.get().getWriteThrottle(ioSession.getSocket()));
+        if (UploadSettings.CLASSED_UPLOAD_BANDWIDTH.getValue())
+            ioSession.setThrottle(bandwidthManager.get().getUploadThrottle(ioSession.getSocket(), UploadClass.FILE));
+        else
+            ioSession.setThrottle(bandwidthManager.get().getWriteThrottle(ioSession.getSocket()));
+
+        if (UploadSettings.ZERO_COPY_UPLOADS.getValue()
+                && UploadSettings.UPLOAD_SPEED.getValue() == 100
+                && !SSLUtils.isTLSEnabled(ioSession.getSocket())) {
+            try {
+                fileChannel = new RandomAccessFile(file, "r").getChannel();
+                HttpChannel channel = ioSession.getHttpChannel();
+                if (channel != null && channel.canTransferFrom()) {
+                    directChannel = channel;
+                }
+                return;
+            } catch (IOException e) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug("Unable to open " + file.getName() + ", using piece reader", e);
+            }
+        }
+
+        if (UploadSettings.HOT_CONTENT_CACHE.getValue() && urn != null) {
+            cached = true;
+            return;
+        }
 
         reader = new FilePieceReader(NIODispatcher.instance().getBufferCache(), file, begin, length, new PieceHandler(ioctrl));
         reader.start();
@@ -98,12 +168,20 @@ public class FileResponseEntity extends AbstractProducingNHttpEntity {
         if (reader != null) {
             reader.shutdown();
         }
+        IOUtils.close(fileChannel);
     }
     
     @Override
     public boolean writeContent(ContentEncoder contentEncoder, IOControl ioctrl) throws IOException {
 //        Throwable t = new Throwable();
 //        LOG.debug(t, t);
+        if (fileChannel != null) {
+            return transferContent(contentEncoder);
+        }
+        if (cached) {
+            return writeCachedContent(contentEncoder, ioctrl);
+        }
+        
         // flush current buffer
         if (buffer != null && buffer.hasRemaining()) {
             int written = contentEncoder.write(buffer);
@@ -164,6 +242,105 @@ public class FileResponseEntity extends AbstractProducingNHttpEntity {
         return remaining > 0 || buffer.hasRemaining();
     }
 
+    /**
+     * Sends the file without the piece reader, either by transferring it
+     * to the socket or by writing mapped regions of it to
+     * <code>contentEncoder</code>.
+     */
+    private boolean transferContent(ContentEncoder contentEncoder) throws IOException {
+        long written;
+        do {
+            long position = begin + length - remaining;
+            if (directChannel != null && (buffer == null || !buffer.hasRemaining())) {
+                try {
+                    written = directChannel.transferFrom(fileChannel, position, remaining);
+                    remaining -= written;
+                    uploader.addAmountUploaded((int) written);
+                    continue;
+                } catch (IOException e) {
+                    // not all platforms can transfer to a socket, map the
+                    // file instead
+                    if (LOG.isDebugEnabled())
+                        LOG.debug("Transfer of " + file.getName() + " failed, mapping file", e);
+                    directChannel = null;
+                }
+            }
+            
+            if (buffer == null || !buffer.hasRemaining()) {
+                buffer = fileChannel.map(MapMode.READ_ONLY, position, Math.min(remaining, MAP_SIZE));
+                remaining -= buffer.remaining();
+            }
+            written = contentEncoder.write(buffer);
+            uploader.addAmountUploaded((int) written);
+        } while (written > 0 && (remaining > 0 || buffer != null && buffer.hasRemaining()));
+
+        if (remaining == 0 && (buffer == null || !buffer.hasRemaining())) {
+            if (LOG.isTraceEnabled())
+                LOG.trace("upload complete");
+            return false;
+        }
+        activateTimeout();
+        return true;
+    }
+
+    /**
+     * Writes the file from windows of the hot content cache to
+     * <code>contentEncoder</code>.
+     */
+    private boolean writeCachedContent(ContentEncoder contentEncoder, final IOControl ioctrl) throws IOException {
+        int written;
+        do {
+            if (buffer == null || !buffer.hasRemaining()) {
+                if (remaining == 0)
+                    break;
+                if (pendingRange == null)
+                    pendingRange = hotContentCache.getRange(urn, file, begin + length - remaining, remaining);
+                if (!pendingRange.isDone()) {
+                    // wait for the window to be mapped, the listener turns
+                    // interest back on
+                    ioctrl.suspendOutput();
+                    pendingRange.addFutureListener(new EventListener<FutureEvent<ByteBuffer>>() {
+                        @Override
+                        public void handleEvent(FutureEvent<ByteBuffer> event) {
+                            ioctrl.requestOutput();
+                        }
+                    });
+                    activateTimeout();
+                    if (LOG.isTraceEnabled())
+                        LOG.trace("Waiting for file contents to be mapped");
+                    return true;
+                }
+                buffer = getPendingRange();
+                remaining -= buffer.remaining();
+            }
+            written = contentEncoder.write(buffer);
+            uploader.addAmountUploaded(written);
+        } while (written > 0);
+
+        if (remaining == 0 && (buffer == null || !buffer.hasRemaining())) {
+            if (LOG.isTraceEnabled())
+                LOG.trace("upload complete");
+            return false;
+        }
+        activateTimeout();
+        return true;
+    }
+
+    /** Returns the range the cache mapped, and forgets its future. */
+    private ByteBuffer getPendingRange() throws IOException {
+        ListeningFuture<ByteBuffer> range = pendingRange;
+        pendingRange = null;
+        try {
+            return range.get();
+        } catch (InterruptedException e) {
+            throw (IOException)new IOException().initCause(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw (IOException)new IOException().initCause(e.getCause());
+        }
+    }
+
     @Override
     public void timeout() {
         if (LOG.isWarnEnabled())
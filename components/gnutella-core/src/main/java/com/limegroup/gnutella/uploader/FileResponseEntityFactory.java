@@ -2,9 +2,25 @@ package com.limegroup.gnutella.uploader;
 
 import java.io.File;
 
+import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.tigertree.HashTreeWriteHandler;
+
 public interface FileResponseEntityFactory {
 
     public abstract FileResponseEntity createFileResponseEntity(
             HTTPUploader uploader, File file);
 
-}
\ No newline at end of file
+    /**
+     * Creates an entity for file, which may be served from the contents
+     * cached for its SHA1.
+     */
+    public abstract FileResponseEntity createFileResponseEntity(
+            HTTPUploader uploader, File file, URN urn);
+
+    /**
+     * Creates an entity that sends the THEX tree written by tigerWriteHandler.
+     */
+    public abstract THEXResponseEntity createTHEXResponseEntity(
+            HTTPUploader uploader, HashTreeWriteHandler tigerWriteHandler, long size);
+
+}
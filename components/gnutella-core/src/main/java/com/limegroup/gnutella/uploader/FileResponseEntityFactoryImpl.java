@@ -6,21 +6,36 @@ import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import com.limegroup.gnutella.BandwidthManager;
+import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.tigertree.HashTreeWriteHandler;
 
 @Singleton
 public class FileResponseEntityFactoryImpl implements FileResponseEntityFactory {
 
     private final Provider<BandwidthManager> bandwidthManager;
 
+    private final HotContentCache hotContentCache;
+
     @Inject
-    public FileResponseEntityFactoryImpl(Provider<BandwidthManager> bandwidthManager) {
+    public FileResponseEntityFactoryImpl(Provider<BandwidthManager> bandwidthManager,
+            HotContentCache hotContentCache) {
         this.bandwidthManager = bandwidthManager;
-        
+        this.hotContentCache = hotContentCache;
     }
     
     public FileResponseEntity createFileResponseEntity(
             HTTPUploader uploader, File file) {
-        return new FileResponseEntity(uploader, file, bandwidthManager);
+        return createFileResponseEntity(uploader, file, null);
+    }
+
+    public FileResponseEntity createFileResponseEntity(
+            HTTPUploader uploader, File file, URN urn) {
+        return new FileResponseEntity(uploader, file, urn, bandwidthManager, hotContentCache);
+    }
+
+    public THEXResponseEntity createTHEXResponseEntity(
+            HTTPUploader uploader, HashTreeWriteHandler tigerWriteHandler, long size) {
+        return new THEXResponseEntity(uploader, tigerWriteHandler, size, bandwidthManager);
     }
 
 }
@@ -13,6 +13,7 @@ import java.util.StringTokenizer;
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.limewire.collection.BitNumbers;
+import org.limewire.core.settings.UploadSettings;
 import org.limewire.io.Connectable;
 import org.limewire.io.IpPort;
 import org.limewire.io.NetworkInstanceUtils;
@@ -224,6 +225,24 @@ public class HTTPHeaderUtils {
      */
     public void addAltLocationsHeader(HttpResponse response, AltLocTracker altLocTracker, AltLocManager altLocManager) {
         response.addHeader(HTTPHeaderName.GNUTELLA_CONTENT_URN.create(altLocTracker.getUrn()));
+        if (UploadSettings.COMPACT_ALT_LOCS.getValue()) {
+            HTTPHeaderValue value = altLocTracker.getNextDirectValueToSend(altLocManager);
+            if (value != null)
+                response.addHeader(HTTPHeaderName.ALT_LOCATION.create(value));
+        } else {
+            addDirectAltLocationsHeader(response, altLocTracker, altLocManager);
+        }
+
+        if (altLocTracker.wantsFAlts()) {
+            Collection<PushAltLoc> pushes = altLocTracker.getNextSetOfPushAltsToSend(altLocManager);
+            if (pushes.size() > 0) {
+                response.addHeader(HTTPHeaderName.FALT_LOCATION
+                        .create(new HTTPHeaderValueCollection(pushes)));
+            }
+        }
+    }
+
+    private void addDirectAltLocationsHeader(HttpResponse response, AltLocTracker altLocTracker, AltLocManager altLocManager) {
         Collection<DirectAltLoc> direct = altLocTracker.getNextSetOfAltsToSend(altLocManager);
         if (direct.size() > 0) {
             List<HTTPHeaderValue> ordered = new ArrayList<HTTPHeaderValue>(
@@ -248,14 +267,6 @@ public class HTTPHeaderUtils {
             response.addHeader(HTTPHeaderName.ALT_LOCATION
                     .create(new HTTPHeaderValueCollection(ordered)));
         }
-
-        if (altLocTracker.wantsFAlts()) {
-            Collection<PushAltLoc> pushes = altLocTracker.getNextSetOfPushAltsToSend(altLocManager);
-            if (pushes.size() > 0) {
-                response.addHeader(HTTPHeaderName.FALT_LOCATION
-                        .create(new HTTPHeaderValueCollection(pushes)));
-            }
-        }
     }
 
 //    public void addAltLocationsHeaders(HttpResponse response, HTTPUploader uploader, URN urn) {
@@ -0,0 +1,359 @@
+package com.limegroup.gnutella.uploader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.limewire.collection.FixedsizeForgetfulHashMap;
+import org.limewire.concurrent.ExecutorsHelper;
+import org.limewire.concurrent.ListeningExecutorService;
+import org.limewire.concurrent.ListeningFuture;
+import org.limewire.concurrent.SimpleFuture;
+import org.limewire.core.settings.UploadSettings;
+import org.limewire.inspection.Inspectable;
+import org.limewire.inspection.InspectionPoint;
+import org.limewire.io.IOUtils;
+import org.limewire.nio.statemachine.WriteState;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.tigertree.HashTree;
+import com.limegroup.gnutella.tigertree.HashTreeWriteHandler;
+import com.limegroup.gnutella.tigertree.HashTreeWriteHandlerFactory;
+import com.limegroup.gnutella.tigertree.ThexWriter;
+
+/**
+ * Keeps the contents most recently uploaded in memory, so that the same
+ * ranges and THEX trees requested by many downloaders are not read and
+ * encoded again for every request.
+ * <p>
+ * Files are held as memory mapped windows, which share the operating
+ * system's page cache, and THEX trees as their encoded bytes.  Windows are
+ * mapped and loaded in a queue of their own, never on the thread asking for
+ * them, and a window is only cached once it was asked for
+ * {@link #ADMIT_REQUESTS} times, so files uploaded once don't push out the
+ * hot ones.  The least recently used contents are evicted once they add up
+ * to more than {@link UploadSettings#HOT_CONTENT_CACHE_SIZE}.
+ */
+@Singleton
+public class HotContentCache {
+
+    private static final Log LOG = LogFactory.getLog(HotContentCache.class);
+
+    /** The size of each mapped window of a file. */
+    static final int WINDOW_SIZE = 1024 * 1024;
+
+    /** The number of times a window is asked for before it is cached. */
+    static final int ADMIT_REQUESTS = 2;
+
+    /** The most windows that are counted while they are not cached. */
+    private static final int MAX_CANDIDATES = 512;
+
+    /** The queue windows are mapped in. */
+    private final ListeningExecutorService QUEUE = ExecutorsHelper.newProcessingQueue("HotContentMapper");
+
+    private final HashTreeWriteHandlerFactory tigerWriteHandlerFactory;
+
+    /**
+     * The cached contents, least recently used first.
+     * LOCKING: this
+     */
+    private final LinkedHashMap<Object, Content> contents = new LinkedHashMap<Object, Content>(16, 0.75f, true);
+
+    /**
+     * The total size of the cached contents.
+     * LOCKING: this
+     */
+    private long size;
+
+    /**
+     * The number of times windows that are not cached were asked for,
+     * forgetting the least recently counted first.
+     * LOCKING: this
+     */
+    private final Map<WindowKey, Integer> candidates =
+        new FixedsizeForgetfulHashMap<WindowKey, Integer>(MAX_CANDIDATES);
+
+    /** LOCKING: this */
+    private int windowHits, windowMisses, thexHits, thexMisses;
+
+    @SuppressWarnings("unused")
+    @InspectionPoint("hot content cache")
+    private final Inspectable inspectable = new Inspectable() {
+        @Override
+        public Object inspect() {
+            Map<String, Object> data = new HashMap<String, Object>();
+            synchronized (HotContentCache.this) {
+                data.put("window hits", windowHits);
+                data.put("window misses", windowMisses);
+                data.put("thex hits", thexHits);
+                data.put("thex misses", thexMisses);
+                data.put("entries", contents.size());
+                data.put("size", size);
+            }
+            return data;
+        }
+    };
+
+    @Inject
+    public HotContentCache(HashTreeWriteHandlerFactory tigerWriteHandlerFactory) {
+        this.tigerWriteHandlerFactory = tigerWriteHandlerFactory;
+    }
+
+    /**
+     * Returns a future for a buffer with at most length bytes of file
+     * starting at position, which ends at the end of a window if the range
+     * crosses one.  The future is done already if the window is cached, and
+     * is otherwise finished once the window is mapped.
+     *
+     * @param urn the SHA1 of the file, null if it is not known, in which
+     *        case the contents are mapped but not cached
+     */
+    ListeningFuture<ByteBuffer> getRange(URN urn, final File file, final long position, final long length) {
+        final long index = position / WINDOW_SIZE;
+        // a file that changed since a window was cached must not be served
+        // from it, so the key includes the state of the file on disk.
+        WindowKey key = urn != null
+                ? new WindowKey(urn, file, file.lastModified(), file.length(), index)
+                : null;
+        if (key != null) {
+            synchronized (this) {
+                Content cached = contents.get(key);
+                if (cached != null) {
+                    windowHits++;
+                    ByteBuffer window = ((ByteBuffer)cached.value).duplicate();
+                    return new SimpleFuture<ByteBuffer>(slice(window, index, position, length));
+                }
+                windowMisses++;
+                Integer requests = candidates.remove(key);
+                requests = requests == null ? 1 : requests + 1;
+                if (requests < ADMIT_REQUESTS) {
+                    candidates.put(key, requests);
+                    key = null;
+                }
+            }
+        }
+
+        final WindowKey admitted = key;
+        return QUEUE.submit(new Callable<ByteBuffer>() {
+            public ByteBuffer call() throws IOException {
+                return slice(mapWindow(admitted, file, index), index, position, length);
+            }
+        });
+    }
+
+    private static ByteBuffer slice(ByteBuffer window, long index, long position, long length) {
+        window.position((int)(position - index * WINDOW_SIZE));
+        window.limit((int)Math.min(window.capacity(), window.position() + length));
+        return window.slice();
+    }
+
+    /**
+     * Maps and loads a window of file, caching it under key if key is not
+     * null and the file did not change in between.
+     */
+    private ByteBuffer mapWindow(WindowKey key, File file, long index) throws IOException {
+        MappedByteBuffer window;
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            long start = index * WINDOW_SIZE;
+            long length = Math.min(WINDOW_SIZE, channel.size() - start);
+            if (length <= 0)
+                throw new IOException("window " + index + " is past the end of " + file);
+            // the mapping stays valid once the channel is closed
+            window = channel.map(MapMode.READ_ONLY, start, length);
+            // don't cache what was mapped if the file changed in between
+            if (key != null && (channel.size() != key.length || file.lastModified() != key.lastModified))
+                key = null;
+        } finally {
+            IOUtils.close(channel);
+        }
+        // read it in here, so writing it doesn't wait for the disk
+        window.load();
+
+        if (key != null)
+            put(key, new Content(window, window.capacity()));
+        return window.duplicate();
+    }
+
+    /**
+     * Returns a handler that writes the THEX tree of the file with the
+     * given SHA1, encoding the tree only the first time it is requested.
+     */
+    HashTreeWriteHandler getTigerWriteHandler(URN urn, HashTree tree) {
+        ThexKey key = new ThexKey(urn, tree.getRootHash());
+        synchronized (this) {
+            Content cached = contents.get(key);
+            if (cached != null) {
+                thexHits++;
+                return (HashTreeWriteHandler)cached.value;
+            }
+            thexMisses++;
+        }
+
+        HashTreeWriteHandler handler = tigerWriteHandlerFactory.createTigerWriteHandler(tree);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(handler.getOutputLength());
+        try {
+            handler.write(out);
+        } catch (IOException e) {
+            LOG.debug("unable to encode tree", e);
+            return handler;
+        }
+        EncodedTree encoded = new EncodedTree(out.toByteArray(), handler.getOutputType());
+        put(key, new Content(encoded, encoded.data.length));
+        return encoded;
+    }
+
+    /** Adds content to the cache, evicting the least recently used contents. */
+    private synchronized void put(Object key, Content content) {
+        Content old = contents.put(key, content);
+        if (old != null)
+            size -= old.size;
+        size += content.size;
+
+        long maxSize = UploadSettings.HOT_CONTENT_CACHE_SIZE.getValue() * 1024L * 1024L;
+        for (Iterator<Content> i = contents.values().iterator(); size > maxSize && i.hasNext(); ) {
+            size -= i.next().size;
+            i.remove();
+        }
+        if (LOG.isDebugEnabled())
+            LOG.debug("cached " + key + ", " + contents.size() + " entries of " + size + " bytes");
+    }
+
+    synchronized long getSize() {
+        return size;
+    }
+
+    private static class Content {
+        private final Object value;
+        private final long size;
+
+        Content(Object value, long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    private static class WindowKey {
+        private final URN urn;
+        private final File file;
+        private final long lastModified;
+        private final long length;
+        private final long index;
+
+        WindowKey(URN urn, File file, long lastModified, long length, long index) {
+            this.urn = urn;
+            this.file = file;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof WindowKey))
+                return false;
+            WindowKey other = (WindowKey)o;
+            return index == other.index && lastModified == other.lastModified
+                && length == other.length && urn.equals(other.urn) && file.equals(other.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * urn.hashCode() + (int)index;
+        }
+
+        @Override
+        public String toString() {
+            return urn + "#" + index;
+        }
+    }
+
+    private static class ThexKey {
+        private final URN urn;
+        private final String root;
+
+        ThexKey(URN urn, String root) {
+            this.urn = urn;
+            this.root = root;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ThexKey))
+                return false;
+            ThexKey other = (ThexKey)o;
+            return urn.equals(other.urn) && root.equals(other.root);
+        }
+
+        @Override
+        public int hashCode() {
+            return urn.hashCode() ^ root.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return urn + "/thex";
+        }
+    }
+
+    /** Writes an already encoded THEX tree. */
+    private static class EncodedTree implements HashTreeWriteHandler {
+        private final byte[] data;
+        private final String type;
+
+        EncodedTree(byte[] data, String type) {
+            this.data = data;
+            this.type = type;
+        }
+
+        public void write(OutputStream os) throws IOException {
+            os.write(data);
+        }
+
+        public int getOutputLength() {
+            return data.length;
+        }
+
+        public String getOutputType() {
+            return type;
+        }
+
+        public ThexWriter createAsyncWriter() {
+            return new EncodedTreeWriter(ByteBuffer.wrap(data));
+        }
+    }
+
+    private static class EncodedTreeWriter extends WriteState implements ThexWriter {
+        private final ByteBuffer data;
+
+        EncodedTreeWriter(ByteBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        protected boolean processWrite(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+            while (data.hasRemaining() && channel.write(data) > 0);
+            return data.hasRemaining();
+        }
+
+        public long getAmountProcessed() {
+            return data.position();
+        }
+    }
+}
@@ -10,8 +10,12 @@ import org.apache.http.nio.ContentEncoderChannel;
 import org.apache.http.nio.IOControl;
 import org.limewire.core.settings.UploadSettings;
 import org.limewire.http.entity.AbstractProducingNHttpEntity;
+import org.limewire.http.reactor.HttpIOSession;
 import org.limewire.nio.NBThrottle;
 
+import com.google.inject.Provider;
+import com.limegroup.gnutella.BandwidthManager;
+import com.limegroup.gnutella.BandwidthManager.UploadClass;
 import com.limegroup.gnutella.tigertree.HashTreeWriteHandler;
 import com.limegroup.gnutella.tigertree.ThexWriter;
 
@@ -33,14 +37,18 @@ public class THEXResponseEntity extends AbstractProducingNHttpEntity {
     
     private final HashTreeWriteHandler tigerWriteHandler;
 
+    private final Provider<BandwidthManager> bandwidthManager;
+
     private ThexWriter writer;
 
     private long size;
 
-    public THEXResponseEntity(HTTPUploader uploader, HashTreeWriteHandler tigerWriteHandler, long size) {
+    public THEXResponseEntity(HTTPUploader uploader, HashTreeWriteHandler tigerWriteHandler, long size,
+            Provider<BandwidthManager> bandwidthManager) {
         this.uploader = uploader;
         this.tigerWriteHandler = tigerWriteHandler;
         this.size = size;
+        this.bandwidthManager = bandwidthManager;
 
         setContentType(tigerWriteHandler.getOutputType());
     }
@@ -54,8 +62,13 @@ public class THEXResponseEntity extends AbstractProducingNHttpEntity {
     public void initialize(ContentEncoder contentEncoder, IOControl ioctrl) throws IOException {
         this.writer = tigerWriteHandler.createAsyncWriter();
         
-        THROTTLE.setRate(UploadSettings.THEX_UPLOAD_SPEED.getValue());
-        uploader.getSession().getIOSession().setThrottle(THROTTLE);
+        HttpIOSession ioSession = uploader.getSession().getIOSession();
+        if (UploadSettings.CLASSED_UPLOAD_BANDWIDTH.getValue()) {
+            ioSession.setThrottle(bandwidthManager.get().getUploadThrottle(ioSession.getSocket(), UploadClass.THEX));
+        } else {
+            THROTTLE.setRate(UploadSettings.THEX_UPLOAD_SPEED.getValue());
+            ioSession.setThrottle(THROTTLE);
+        }
     }
 
     @Override
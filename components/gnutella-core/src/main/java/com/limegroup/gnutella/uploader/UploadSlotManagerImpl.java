@@ -404,16 +404,19 @@ public class UploadSlotManagerImpl implements UploadSlotManager {
         }
     }
     
-    public synchronized int getNumActive() {
-        return active.size();
+    // the counts are read without the lock, since they are asked for
+    // on every upload request
+    
+    public int getNumActive() {
+        return active.getCount();
     }
     
-    public synchronized int getNumQueued() {
-        return queued.size();
+    public int getNumQueued() {
+        return queued.getCount();
     }
     
-    public synchronized int getNumQueuedResumable() {
-        return queuedResumable.size();
+    public int getNumQueuedResumable() {
+        return queuedResumable.getCount();
     }
     
     public synchronized int getNumUsersForHost(String host) {
@@ -544,6 +547,12 @@ public class UploadSlotManagerImpl implements UploadSlotManager {
         private final QueueCounter counter = new QueueCounter(10);
         private volatile int maxSize;
         private volatile long lastMod;
+        /** The size of the list, which can be read without locking. */
+        private volatile int count;
+        
+        int getCount() {
+            return count;
+        }
         
         @Override
         public Object inspect() {
@@ -560,7 +569,9 @@ public class UploadSlotManagerImpl implements UploadSlotManager {
             lastMod = System.currentTimeMillis();
             counter.recordArrival();
             maxSize = Math.max(maxSize, 1 + size());
-            return super.add(e);
+            boolean ret = super.add(e);
+            count = size();
+            return ret;
         }
         
         @Override
@@ -569,13 +580,16 @@ public class UploadSlotManagerImpl implements UploadSlotManager {
             counter.recordArrival();
             maxSize = Math.max(maxSize, 1 + size());
             super.add(index, e);
+            count = size();
         }
         
         @Override
         public E remove(int index) {
             lastMod = System.currentTimeMillis();
             counter.recordDeparture();
-            return super.remove(index);
+            E ret = super.remove(index);
+            count = size();
+            return ret;
         }
         
         @Override
@@ -584,9 +598,16 @@ public class UploadSlotManagerImpl implements UploadSlotManager {
             if (ret) {
                 lastMod = System.currentTimeMillis();
                 counter.recordDeparture();
+                count = size();
             }
             return ret;
         }
+        
+        @Override
+        public void clear() {
+            super.clear();
+            count = 0;
+        }
     }
 
     public synchronized void cleanup() {
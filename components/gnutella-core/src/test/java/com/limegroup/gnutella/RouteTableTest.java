@@ -165,6 +165,48 @@ public final class RouteTableTest extends LimeTestCase {
         assertNull(rt.getReplyHandler(g1,0, (short) 0,(short) 0));                    
     }
 
+    public void testStriped() throws Exception {
+        byte[] g1=new byte[16]; g1[0]=(byte)1;
+        byte[] g2=new byte[16]; g2[0]=(byte)2;
+        ReplyHandler c1=new ReplyHandlerStub();
+        ReplyHandler c2=new ReplyHandlerStub();
+        ReplyHandler c3=new ReplyHandlerStub();
+
+        RouteTable rt=new RouteTable(1000, Integer.MAX_VALUE, true);
+        assertNotNull(rt.tryToRouteReply(g1, c1));         //g1->c1
+        assertNull(rt.tryToRouteReply(g1, c2));
+        assertSame(c1, rt.getReplyHandler(g1));
+        assertNull(rt.getReplyHandler(g2));
+        assertNotNull(rt.routeReply(g2, c2));              //g2->c2
+        assertSame(c2, rt.getReplyHandler(g2));
+
+        //Reply counting carries over when re-routing.
+        RouteTable.ReplyRoutePair rrp=rt.getReplyHandler(g1, 5, (short) 1,(short) 0);
+        assertSame(c1, rrp.getReplyHandler());
+        assertEquals(0, rrp.getBytesRouted());
+        rt.routeReply(g1, c3);                             //g1 -> <c3, 5>
+        rrp=rt.getReplyHandler(g1, 2, (short) 1,(short) 0);
+        assertSame(c3, rrp.getReplyHandler());
+        assertEquals(5, rrp.getBytesRouted());
+        assertEquals(1, rrp.getResultsRouted());
+
+        rt.removeReplyHandler(c3);                         //g1->null
+        assertNull(rt.getReplyHandler(g1));
+        assertNull(rt.tryToRouteReply(g1, c1));
+        assertEquals(2, (getMap(rt, "_handlerMap")).size());      //c1 and c2
+
+        //Entries expire after two generations.
+        int MSECS=1000;
+        rt=new RouteTable(MSECS/1000, Integer.MAX_VALUE, true);
+        rt.routeReply(g1, c1);
+        Thread.sleep(MSECS + 100);
+        assertNull(rt.tryToRouteReply(g1, c2));     //g1 is in the old generation
+        assertSame(c1, rt.getReplyHandler(g1));
+        Thread.sleep(MSECS + 100);
+        assertNotNull(rt.tryToRouteReply(g1, c2));  //g1 has expired
+        assertSame(c2, rt.getReplyHandler(g1));
+    }
+
     public void testTTLAdditions() {
         RouteTable rt=null;
         int MSECS=1000;
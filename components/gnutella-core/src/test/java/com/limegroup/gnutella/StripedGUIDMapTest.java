@@ -0,0 +1,99 @@
+package com.limegroup.gnutella;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.Test;
+
+import org.limewire.core.settings.MessageSettings;
+import org.limewire.io.GUID;
+import org.limewire.gnutella.tests.LimeTestCase;
+
+public class StripedGUIDMapTest extends LimeTestCase {
+
+    public StripedGUIDMapTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(StripedGUIDMapTest.class);
+    }
+
+    public void testPutGetRenew() throws Exception {
+        StripedGUIDMap<String> map = new StripedGUIDMap<String>(1000 * 1000, Integer.MAX_VALUE);
+        byte[] g1 = new byte[16]; g1[0] = 1;
+        byte[] g2 = new byte[16]; g2[15] = 2;
+        assertNull(map.get(g1));
+        assertNull(map.putIfAbsent(g1, "a"));
+        assertEquals("a", map.putIfAbsent(g1, "b"));
+        assertEquals("a", map.get(g1));
+        assertEquals("a", map.get(g1.clone()));
+        assertNull(map.renew(g2));
+        assertNull(map.putIfAbsent(g2, "c"));
+        assertEquals("c", map.renew(g2));
+        assertEquals(2, map.size());
+    }
+
+    public void testManyEntries() throws Exception {
+        StripedGUIDMap<Integer> map = new StripedGUIDMap<Integer>(1000 * 1000, Integer.MAX_VALUE);
+        Random random = new Random(1);
+        Map<GUID, Integer> expected = new HashMap<GUID, Integer>();
+        for (int i = 0; i < 20000; i++) {
+            byte[] guid = new byte[16];
+            random.nextBytes(guid);
+            // share the OOB bytes, as queries from one host do
+            guid[0] = guid[1] = guid[2] = guid[3] = 7;
+            expected.put(new GUID(guid), i);
+            assertNull(map.putIfAbsent(guid, i));
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<GUID, Integer> entry : expected.entrySet())
+            assertEquals(entry.getValue(), map.get(entry.getKey().bytes()));
+        
+        Map<byte[], Integer> copy = new HashMap<byte[], Integer>();
+        map.copyInto(copy);
+        assertEquals(expected.size(), copy.size());
+        for (Map.Entry<byte[], Integer> entry : copy.entrySet())
+            assertEquals(expected.get(new GUID(entry.getKey())), entry.getValue());
+    }
+
+    public void testGenerationsExpire() throws Exception {
+        StripedGUIDMap<String> map = new StripedGUIDMap<String>(500, Integer.MAX_VALUE);
+        byte[] g1 = new byte[16]; g1[0] = 1;
+        byte[] g2 = new byte[16]; g2[0] = 2;
+        map.putIfAbsent(g1, "a");
+        Thread.sleep(600);
+        // rotates: g1 is now in the old generation of its segment
+        map.putIfAbsent(g1, "b");
+        assertEquals("a", map.get(g1));
+        Thread.sleep(600);
+        map.putIfAbsent(g1, "b");
+        // g1 was in the old generation, which is now gone
+        assertEquals("b", map.get(g1));
+        assertNull(map.get(g2));
+    }
+
+    public void testRenewMovesOutOfOldGeneration() throws Exception {
+        StripedGUIDMap<String> map = new StripedGUIDMap<String>(500, Integer.MAX_VALUE);
+        byte[] g1 = new byte[16]; g1[0] = 1;
+        map.putIfAbsent(g1, "a");
+        Thread.sleep(600);
+        assertEquals("a", map.renew(g1));
+        Thread.sleep(600);
+        assertEquals("a", map.renew(g1));
+        assertEquals(1, map.size());
+    }
+
+    public void testZeroOOBBytes() throws Exception {
+        MessageSettings.GUID_ZERO_EXPERIMENT.setValue(true);
+        StripedGUIDMap<String> map = new StripedGUIDMap<String>(1000 * 1000, Integer.MAX_VALUE);
+        byte[] g1 = new byte[16]; g1[5] = 1;
+        byte[] g2 = g1.clone();
+        g2[0] = g2[3] = g2[13] = g2[14] = 9;
+        assertNull(map.putIfAbsent(g1, "a"));
+        assertEquals("a", map.get(g2));
+        MessageSettings.GUID_ZERO_EXPERIMENT.setValue(false);
+        assertNull(map.get(g2));
+    }
+}
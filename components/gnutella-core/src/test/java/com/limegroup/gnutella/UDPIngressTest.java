@@ -0,0 +1,126 @@
+package com.limegroup.gnutella;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+
+import org.limewire.nio.ByteBufferCache;
+import org.limewire.util.BaseTestCase;
+
+public class UDPIngressTest extends BaseTestCase {
+
+    public UDPIngressTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(UDPIngressTest.class);
+    }
+
+    public void testInlinePacketsAreHandledRightAway() throws Exception {
+        RecordingHandler handler = new RecordingHandler(null);
+        UDPIngress ingress = new UDPIngress(0, handler);
+        assertTrue(ingress.isInline());
+        ByteBuffer buffer = packet(7);
+        InetSocketAddress addr = new InetSocketAddress("1.2.3.4", 5);
+        assertFalse(ingress.offer(null, buffer, addr));
+        assertEquals(Collections.singletonList(7), handler.getPackets(addr));
+        assertEquals(1, ingress.getReceived());
+    }
+
+    public void testPacketsFromOneSourceKeepTheirOrder() throws Exception {
+        CountDownLatch done = new CountDownLatch(400);
+        RecordingHandler handler = new RecordingHandler(done);
+        UDPIngress ingress = new UDPIngress(4, handler);
+        ByteBufferCache cache = new ByteBufferCache();
+        List<InetSocketAddress> addrs = new ArrayList<InetSocketAddress>();
+        for (int i = 0; i < 4; i++)
+            addrs.add(new InetSocketAddress("1.2.3." + (i + 1), 6346));
+        for (int i = 0; i < 100; i++) {
+            for (InetSocketAddress addr : addrs)
+                assertTrue(ingress.offer(cache, packet(i), addr));
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 100; i++)
+            expected.add(i);
+        for (InetSocketAddress addr : addrs)
+            assertEquals(expected, handler.getPackets(addr));
+        assertEquals(400, ingress.getReceived());
+        assertEquals(0, ingress.getDropped());
+        assertEquals(0, ingress.getPending());
+    }
+
+    public void testPacketsAreDroppedWhenTooManyWait() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        UDPIngress ingress = new UDPIngress(1, new UDPIngress.PacketHandler() {
+            public void handlePacket(ByteBuffer buffer, InetSocketAddress addr) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        ByteBufferCache cache = new ByteBufferCache();
+        InetSocketAddress addr = new InetSocketAddress("1.2.3.4", 5);
+        assertTrue(ingress.offer(cache, packet(0), addr));
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < UDPIngress.MAX_PENDING; i++)
+            assertTrue(ingress.offer(cache, packet(i), addr));
+        assertFalse(ingress.offer(cache, packet(0), addr));
+        assertEquals(1, ingress.getDropped());
+        assertEquals(UDPIngress.MAX_PENDING + 2, ingress.getReceived());
+        release.countDown();
+
+        Map stats = (Map)ingress.inspect();
+        assertEquals(1L, stats.get("dropped"));
+        assertEquals(1, stats.get("threads"));
+    }
+
+    private static ByteBuffer packet(int value) {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(value);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static class RecordingHandler implements UDPIngress.PacketHandler {
+        private final Map<InetSocketAddress, List<Integer>> packets =
+            new HashMap<InetSocketAddress, List<Integer>>();
+        private final CountDownLatch latch;
+
+        RecordingHandler(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        public void handlePacket(ByteBuffer buffer, InetSocketAddress addr) {
+            synchronized (packets) {
+                List<Integer> list = packets.get(addr);
+                if (list == null) {
+                    list = new ArrayList<Integer>();
+                    packets.put(addr, list);
+                }
+                list.add(buffer.getInt());
+            }
+            if (latch != null)
+                latch.countDown();
+        }
+
+        List<Integer> getPackets(InetSocketAddress addr) {
+            synchronized (packets) {
+                return packets.get(addr);
+            }
+        }
+    }
+}
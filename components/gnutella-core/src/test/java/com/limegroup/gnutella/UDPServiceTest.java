@@ -0,0 +1,126 @@
+package com.limegroup.gnutella;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ScheduledExecutorService;
+
+import junit.framework.Test;
+
+import org.limewire.core.api.connection.FirewallTransferStatusEvent;
+import org.limewire.gnutella.tests.LimeTestUtils;
+import org.limewire.io.NetworkInstanceUtils;
+import org.limewire.listener.AsynchronousEventBroadcaster;
+import org.limewire.listener.ListenerSupport;
+import org.limewire.rudp.UDPSocketChannelConnectionEvent;
+import org.limewire.util.BaseTestCase;
+import org.limewire.util.PrivilegedAccessor;
+
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+import com.limegroup.gnutella.filters.IPFilter;
+import com.limegroup.gnutella.messages.MessageFactory;
+import com.limegroup.gnutella.messages.PingRequestFactory;
+
+public class UDPServiceTest extends BaseTestCase {
+
+    private InterleavingUDPService service;
+
+    private DatagramChannel channel;
+
+    private InetSocketAddress addr;
+
+    public UDPServiceTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(UDPServiceTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        Injector injector = LimeTestUtils.createInjector();
+        service = injector.getInstance(InterleavingUDPService.class);
+        channel = DatagramChannel.open();
+        PrivilegedAccessor.setValue(service, "_channel", channel);
+
+        DatagramChannel receiver = DatagramChannel.open();
+        receiver.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        addr = new InetSocketAddress("127.0.0.1", receiver.socket().getLocalPort());
+        receiver.close();
+        service.target = addr;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        channel.close();
+    }
+
+    public void testSendDuringDrainKeepsWriteInterest() throws Exception {
+        service.send(packet(), addr, true);
+        assertTrue(service.interest);
+
+        // a send lands while the drain turns write interest off
+        service.sendOnInterestOff = true;
+        assertTrue(service.handleWrite());
+        assertTrue(service.interest);
+
+        assertFalse(service.handleWrite());
+        assertFalse(service.interest);
+
+        // the next send must turn interest on again
+        service.send(packet(), addr, true);
+        assertTrue(service.interest);
+        assertFalse(service.handleWrite());
+        assertFalse(service.interest);
+    }
+
+    private ByteBuffer packet() {
+        return ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 });
+    }
+
+    /**
+     * Records write interest and can queue a message right as a drain
+     * turns it off.
+     */
+    static class InterleavingUDPService extends UDPService {
+
+        private volatile boolean interest;
+
+        private volatile boolean sendOnInterestOff;
+
+        private volatile InetSocketAddress target;
+
+        @Inject
+        public InterleavingUDPService(NetworkManager networkManager,
+                Provider<MessageDispatcher> messageDispatcher,
+                @Named("hostileFilter") Provider<IPFilter> ipFilter,
+                Provider<ConnectionManager> connectionManager,
+                Provider<MessageRouter> messageRouter, Provider<Acceptor> acceptor,
+                Provider<QueryUnicaster> queryUnicaster,
+                @Named("backgroundExecutor") ScheduledExecutorService backgroundExecutor,
+                ConnectionServices connectionServices,
+                MessageFactory messageFactory,
+                PingRequestFactory pingRequestFactory,
+                NetworkInstanceUtils networkInstanceUtils,
+                AsynchronousEventBroadcaster<FirewallTransferStatusEvent> fwtStatusBroadcaster,
+                ListenerSupport<UDPSocketChannelConnectionEvent> channelEventListenerSupport) {
+            super(networkManager, messageDispatcher, ipFilter, connectionManager,
+                    messageRouter, acceptor, queryUnicaster, backgroundExecutor,
+                    connectionServices, messageFactory, pingRequestFactory,
+                    networkInstanceUtils, fwtStatusBroadcaster, channelEventListenerSupport);
+        }
+
+        @Override
+        void interestWrite(DatagramChannel channel, boolean on) {
+            if (!on && sendOnInterestOff) {
+                sendOnInterestOff = false;
+                send(ByteBuffer.wrap(new byte[] { 5, 6, 7, 8 }), target, true);
+            }
+            interest = on;
+        }
+    }
+}
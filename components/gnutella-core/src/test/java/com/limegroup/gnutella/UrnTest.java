@@ -1,14 +1,24 @@
 package com.limegroup.gnutella;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.Random;
 
 import junit.framework.Test;
 
 import org.limewire.gnutella.tests.LimeTestUtils;
 import org.limewire.io.GUID;
 
+import com.limegroup.gnutella.security.Tiger;
+import com.limegroup.gnutella.tigertree.HashTreeUtils;
+
 
 /**
  * This class handles testing all methods of the urn class.  This test
@@ -227,6 +237,58 @@ public final class UrnTest extends org.limewire.gnutella.tests.LimeTestCase {
 	}
 
 
+	/**
+	 * Tests that hashing a file once for both URNs gives the same URNs
+	 * as hashing it separately for each.
+	 */
+	public void testUrnsAndTTRootFromFiles() throws Exception {
+		File[] testFiles = _testDir.listFiles();
+		int hashed = 0;
+		for(int i=0; i<testFiles.length && hashed < 10; i++) {
+			if(!testFiles[i].isFile())
+				continue;
+			UrnSet urns = URN.generateUrnsAndTTRootFromFile(testFiles[i]);
+			assertEquals(2, urns.size());
+			assertEquals(URN.createSHA1Urn(testFiles[i]), urns.getSHA1());
+			assertEquals(URN.createTTRootFile(testFiles[i]), urns.getTTRoot());
+			hashed++;
+		}
+		assertGreaterThan(0, hashed);
+	}
+
+	/**
+	 * Tests that the leaves kept while hashing a file once are the leaves
+	 * of its tiger tree, and give the tree root.
+	 */
+	public void testUrnsAndTreeNodesFromFile() throws Exception {
+		File file = new File(_scratchDir, "nodes");
+		byte[] data = new byte[3 * 1024 * 1024 + 1000];
+		new Random(6346).nextBytes(data);
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(data);
+		out.close();
+
+		List<byte[]> nodes = new ArrayList<byte[]>();
+		UrnSet urns = URN.generateUrnsAndTreeNodesFromFile(file, nodes);
+		assertEquals(URN.createSHA1Urn(file), urns.getSHA1());
+		assertEquals(URN.createTTRootFile(file), urns.getTTRoot());
+
+		int nodeSize = HashTreeUtils.calculateNodeSize(data.length, HashTreeUtils.calculateDepth(data.length));
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		List<byte[]> expected;
+		try {
+			expected = HashTreeUtils.createTreeNodes(nodeSize, data.length, in, new Tiger());
+		} finally {
+			in.close();
+		}
+		assertGreaterThan(1, nodes.size());
+		assertEquals(expected.size(), nodes.size());
+		for(int i = 0; i < nodes.size(); i++)
+			assertEquals(expected.get(i), nodes.get(i));
+		byte[] root = HashTreeUtils.createAllParentNodes(nodes, new Tiger()).get(0).get(0);
+		assertEquals(root, urns.getTTRoot().getBytes());
+	}
+
 	/**
 	 * Test the constructor that constructs a URN from a URN HTTP request.
 	 */
@@ -0,0 +1,166 @@
+package com.limegroup.gnutella.altlocs;
+
+import java.util.List;
+
+import junit.framework.Test;
+
+import org.limewire.io.Connectable;
+import org.limewire.util.BaseTestCase;
+
+import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.altlocs.CompactAltLocStore.Cursor;
+import com.limegroup.gnutella.helpers.UrnHelper;
+import com.limegroup.gnutella.http.HTTPHeaderValue;
+
+public class CompactAltLocStoreTest extends BaseTestCase {
+
+    private CompactAltLocStore store;
+
+    public CompactAltLocStoreTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(CompactAltLocStoreTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        store = new CompactAltLocStore();
+    }
+
+    public void testParse() throws Exception {
+        byte[] address = new byte[4];
+        assertEquals(5213, CompactAltLocStore.parse("1.2.3.4:5213", address));
+        assertEquals(new byte[] { 1, 2, 3, 4 }, address);
+        assertEquals(6346, CompactAltLocStore.parse("200.100.50.25", address));
+        assertEquals(new byte[] { (byte)200, 100, 50, 25 }, address);
+
+        assertEquals(-1, CompactAltLocStore.parse("1.2.3", address));
+        assertEquals(-1, CompactAltLocStore.parse("1.2.3.4.5", address));
+        assertEquals(-1, CompactAltLocStore.parse("1.2.3.256", address));
+        assertEquals(-1, CompactAltLocStore.parse("1.2..4", address));
+        assertEquals(-1, CompactAltLocStore.parse("1.2.3.4:", address));
+        assertEquals(-1, CompactAltLocStore.parse("1.2.3.4:0", address));
+        assertEquals(-1, CompactAltLocStore.parse("1.2.3.4:65536", address));
+        assertEquals(-1, CompactAltLocStore.parse("1.2.3.4:123456", address));
+        assertEquals(-1, CompactAltLocStore.parse("1.2.3.4:12a", address));
+        assertEquals(-1, CompactAltLocStore.parse("www.limewire.com:80", address));
+        assertEquals(-1, CompactAltLocStore.parse("192.168.0.1:6346", address));
+        assertEquals(-1, CompactAltLocStore.parse("0.0.0.0", address));
+        String push = "ABCDEFABCDEFABCDEFABCDEFABCDEFAB;1.1.1.1:1";
+        assertEquals(-1, CompactAltLocStore.parse(push, address));
+    }
+
+    public void testHeaderValueIsEncodedOnceNewestFirst() throws Exception {
+        assertNull(store.getHeaderValue(UrnHelper.SHA1, new Cursor()));
+        assertTrue(store.add(UrnHelper.SHA1, address(1, 2, 3, 4), 5, false));
+        assertTrue(store.add(UrnHelper.SHA1, address(2, 3, 4, 6), 6346, true));
+        assertTrue(store.add(UrnHelper.SHA1, address(7, 3, 2, 1), 6346, true));
+        Cursor cursor = new Cursor();
+        HTTPHeaderValue value = store.getHeaderValue(UrnHelper.SHA1, cursor);
+        assertEquals("tls=C,7.3.2.1,2.3.4.6,1.2.3.4:5", value.httpStringValue());
+        assertNull(store.getHeaderValue(UrnHelper.SHA1, cursor));
+        assertSame(value, store.getHeaderValue(UrnHelper.SHA1, new Cursor()));
+
+        // known locations leave the value alone
+        assertFalse(store.add(UrnHelper.SHA1, address(1, 2, 3, 4), 5, false));
+        assertSame(value, store.getHeaderValue(UrnHelper.SHA1, new Cursor()));
+
+        // a changed TLS capability does not, but is not sent again
+        assertTrue(store.add(UrnHelper.SHA1, address(1, 2, 3, 4), 5, true));
+        HTTPHeaderValue changed = store.getHeaderValue(UrnHelper.SHA1, new Cursor());
+        assertNotSame(value, changed);
+        assertEquals("tls=E,7.3.2.1,2.3.4.6,1.2.3.4:5", changed.httpStringValue());
+        assertNull(store.getHeaderValue(UrnHelper.SHA1, cursor));
+        assertEquals(3, store.getNumLocations(UrnHelper.SHA1));
+
+        assertTrue(store.remove(UrnHelper.SHA1, address(2, 3, 4, 6), 6346));
+        assertFalse(store.remove(UrnHelper.SHA1, address(2, 3, 4, 6), 6346));
+        assertEquals("tls=C,7.3.2.1,1.2.3.4:5", store.getHeaderValue(UrnHelper.SHA1,
+                new Cursor()).httpStringValue());
+    }
+
+    public void testLocationsAreSentInBatches() throws Exception {
+        for (int i = 1; i <= 25; i++)
+            store.add(UrnHelper.SHA1, address(1, 1, 1, i), 6346, false);
+        Cursor cursor = new Cursor();
+        HTTPHeaderValue newest = store.getHeaderValue(UrnHelper.SHA1, cursor);
+        assertEquals("1.1.1.25,1.1.1.24,1.1.1.23,1.1.1.22,1.1.1.21,"
+                + "1.1.1.20,1.1.1.19,1.1.1.18,1.1.1.17,1.1.1.16", newest.httpStringValue());
+        HTTPHeaderValue older = store.getHeaderValue(UrnHelper.SHA1, cursor);
+        assertEquals("1.1.1.15,1.1.1.14,1.1.1.13,1.1.1.12,1.1.1.11,"
+                + "1.1.1.10,1.1.1.9,1.1.1.8,1.1.1.7,1.1.1.6", older.httpStringValue());
+
+        // other uploads share the batches
+        Cursor other = new Cursor();
+        assertSame(newest, store.getHeaderValue(UrnHelper.SHA1, other));
+        assertSame(older, store.getHeaderValue(UrnHelper.SHA1, other));
+
+        // locations added since come before the rest of the older ones
+        store.add(UrnHelper.SHA1, address(1, 1, 2, 1), 6346, false);
+        store.add(UrnHelper.SHA1, address(1, 1, 2, 2), 6346, false);
+        assertEquals("1.1.2.2,1.1.2.1", store.getHeaderValue(UrnHelper.SHA1, cursor)
+                .httpStringValue());
+        assertEquals("1.1.1.5,1.1.1.4,1.1.1.3,1.1.1.2,1.1.1.1", store.getHeaderValue(
+                UrnHelper.SHA1, cursor).httpStringValue());
+        assertNull(store.getHeaderValue(UrnHelper.SHA1, cursor));
+    }
+
+    public void testOldestLocationsAreReplaced() throws Exception {
+        int max = CompactAltLocStore.MAX_LOCATIONS;
+        for (int i = 0; i < max + 10; i++)
+            store.add(UrnHelper.SHA1, address(1, 1, i / 250 + 1, i % 250 + 1), 6346, false);
+        assertEquals(max, store.getNumLocations(UrnHelper.SHA1));
+
+        // the first ten are gone
+        assertFalse(store.remove(UrnHelper.SHA1, address(1, 1, 1, 10), 6346));
+        assertTrue(store.remove(UrnHelper.SHA1, address(1, 1, 1, 11), 6346));
+
+        // removing from a wrapped ring keeps the order
+        List<Connectable> hosts = store.getLocations(UrnHelper.SHA1, max);
+        assertEquals(max - 1, hosts.size());
+        assertEquals("1.1.1.110", hosts.get(0).getAddress());
+        assertEquals("1.1.1.12", hosts.get(max - 2).getAddress());
+        assertTrue(store.add(UrnHelper.SHA1, address(2, 2, 2, 2), 6346, false));
+        assertEquals(max, store.getNumLocations(UrnHelper.SHA1));
+        assertEquals("2.2.2.2", store.getLocations(UrnHelper.SHA1, 1).get(0).getAddress());
+    }
+
+    public void testGetLocations() throws Exception {
+        store.add(UrnHelper.SHA1, address(1, 2, 3, 4), 5, true);
+        store.add(UrnHelper.SHA1, address(5, 6, 7, 8), 6346, false);
+        List<Connectable> hosts = store.getLocations(UrnHelper.SHA1, 10);
+        assertEquals(2, hosts.size());
+        assertEquals("5.6.7.8", hosts.get(0).getAddress());
+        assertEquals(6346, hosts.get(0).getPort());
+        assertFalse(hosts.get(0).isTLSCapable());
+        assertEquals("1.2.3.4", hosts.get(1).getAddress());
+        assertEquals(5, hosts.get(1).getPort());
+        assertTrue(hosts.get(1).isTLSCapable());
+        assertEquals(1, store.getLocations(UrnHelper.SHA1, 1).size());
+        assertTrue(store.getLocations(UrnHelper.UNIQUE_SHA1, 10).isEmpty());
+    }
+
+    public void testFilesAreKeptApart() throws Exception {
+        URN other = UrnHelper.UNIQUE_SHA1;
+        store.add(UrnHelper.SHA1, address(1, 2, 3, 4), 5, false);
+        store.add(other, address(1, 2, 3, 4), 5, false);
+        store.add(other, address(5, 6, 7, 8), 5, false);
+        assertEquals(2, store.getNumFiles());
+        assertEquals(1, store.getNumLocations(UrnHelper.SHA1));
+        assertEquals(2, store.getNumLocations(other));
+
+        store.clear(other);
+        assertEquals(0, store.getNumLocations(other));
+        assertNull(store.getHeaderValue(other, new Cursor()));
+        assertEquals(1, store.getNumFiles());
+
+        assertTrue(store.remove(UrnHelper.SHA1, address(1, 2, 3, 4), 5));
+        assertEquals(0, store.getNumFiles());
+    }
+
+    private static byte[] address(int a, int b, int c, int d) {
+        return new byte[] { (byte)a, (byte)b, (byte)c, (byte)d };
+    }
+}
@@ -12,6 +12,7 @@ import org.limewire.gnutella.tests.LimeTestUtils;
 import org.limewire.gnutella.tests.NetworkManagerStub;
 import org.limewire.io.GUID;
 import org.limewire.nio.channel.InterestReadableByteChannel;
+import org.limewire.util.PrivilegedAccessor;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Injector;
@@ -34,6 +35,8 @@ public final class MessageReaderTest extends LimeTestCase {
     
     private StubMessageReceiver STUB = new StubMessageReceiver();
     private final byte[] IP = new byte[] { (byte)127, 0, 0, 1 };
+    /** A header and the first part of a payload. */
+    private static final int HEADER_AND_PART = 23 + 100;
     private PingRequestFactory pingRequestFactory;
     private MessageReaderFactory messageReaderFactory;
     private MessageReader READER;
@@ -261,6 +264,27 @@ public final class MessageReaderTest extends LimeTestCase {
         assertEquals(buffer(out),  buffer(in));
     }
     
+    public void testBufferKeptForPendingLargeMessage() throws Exception {
+        ByteBuffer start = ByteBuffer.allocate(HEADER_AND_PART);
+        start.put(buffer(pingRequestFactory.createPingRequest((byte)1)));
+        start.order(ByteOrder.LITTLE_ENDIAN);
+        start.putInt(19, 20 * 1024);
+        start.position(0);
+        
+        // only part of a message larger than the buffer is here; it must
+        // not be shrunk back while the rest of the message is pending
+        READER.setReadChannel(channel(start));
+        READER.handleRead();
+        assertFalse(start.hasRemaining());
+        assertEquals(0, STUB.size());
+        ByteBuffer buffer = (ByteBuffer)PrivilegedAccessor.getValue(READER, "buffer");
+        assertEquals(20 * 1024 + 23, buffer.capacity());
+        assertEquals(HEADER_AND_PART, buffer.position());
+        
+        READER.handleRead();
+        assertSame(buffer, PrivilegedAccessor.getValue(READER, "buffer"));
+    }
+    
     public void testEOFInHeaderThrows() throws Exception {
         Message out = queryRequestFactory.createQuery("test");
         ByteBuffer b = buffer(out);
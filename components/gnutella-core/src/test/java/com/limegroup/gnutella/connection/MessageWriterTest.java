@@ -225,6 +225,43 @@ public final class MessageWriterTest extends LimeTestCase {
         assertEquals(buffer(m[8]), buffer(in[4]));
         assertEquals(buffer(m[9]), buffer(in[5]));
     }
+    
+    public void testBatchedWrite() throws Exception {
+        Message out1 = q("first long query");
+        Message out2 = q("second long query");
+        Message out3 = q("third long query");
+        int batch = out1.getTotalLength() + out2.getTotalLength() + 1;
+        MessageWriter writer = new MessageWriter(STATS, QUEUE, SENT, SINK, batch);
+        
+        // the first two don't fill a batch, so the third is serialized
+        // before anything is written, even though the sink is nearly full.
+        SINK.resize(out1.getTotalLength() + 20);
+        writer.send(out1);
+        writer.send(out2);
+        writer.send(out3);
+        assertTrue(writer.handleWrite());
+        assertEquals(3, SENT.size());
+        assertEquals(out1.getTotalLength() + 20, SINK.written());
+        
+        ByteBuffer buffer = ByteBuffer.allocate(1000);
+        buffer.put(SINK.getBuffer());
+        SINK.resize(10000);
+        assertFalse(writer.handleWrite());
+        assertFalse(SINK.interested());
+        buffer.put(SINK.getBuffer()).flip();
+        
+        Message in[] = read(buffer, 3);
+        assertFalse(buffer.hasRemaining());
+        assertEquals(buffer(out1), buffer(in[0]));
+        assertEquals(buffer(out2), buffer(in[1]));
+        assertEquals(buffer(out3), buffer(in[2]));
+        
+        // a batch that runs out of messages is written without waiting.
+        SINK.resize(10000);
+        writer.send(out1);
+        assertFalse(writer.handleWrite());
+        assertEquals(out1.getTotalLength(), SINK.written());
+    }
 	
 	private Message read(InputStream in) throws Exception {
 	    return messageFactory.read(in, Network.TCP, (byte)100);
@@ -0,0 +1,194 @@
+package com.limegroup.gnutella.downloader;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+
+import org.limewire.core.settings.DownloadSettings;
+import org.limewire.gnutella.tests.LimeTestCase;
+
+public class DiskControllerTest extends LimeTestCase {
+
+    private DiskController diskController;
+
+    public DiskControllerTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(DiskControllerTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        DownloadSettings.PER_VOLUME_DISK_QUEUES.setValue(true);
+        diskController = new DiskController();
+    }
+
+    public void testVolumes() throws Exception {
+        assertEquals(DiskController.getVolume(new File(_scratchDir, "a")),
+                DiskController.getVolume(new File(_scratchDir, "b")));
+        if (File.separatorChar == '/') {
+            assertEquals("/Volumes/Disk", DiskController.getVolume(new File("/Volumes/Disk/a/b")));
+            assertEquals("/mnt/usb", DiskController.getVolume(new File("/mnt/usb")));
+        }
+
+        DiskController.DiskQueue queue = diskController.getQueueFor(new File(_scratchDir, "a"));
+        assertSame(queue, diskController.getQueueFor(new File(_scratchDir, "b")));
+        assertNotSame(diskController.getDefaultQueue(), queue);
+
+        DownloadSettings.PER_VOLUME_DISK_QUEUES.setValue(false);
+        assertSame(diskController.getDefaultQueue(), diskController.getQueueFor(new File(_scratchDir, "a")));
+    }
+
+    public void testWritesToAFileRunInOffsetOrder() throws Exception {
+        DiskController.DiskQueue queue = diskController.getQueueFor(new File(_scratchDir, "a"));
+        Object a = new Object();
+        Object b = new Object();
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(5);
+
+        queue.addDiskJob(new Write(queue, a, 0, "a0", order, blocked, done));
+        queue.addDiskJob(new Write(queue, a, 30, "a30", order, null, done));
+        queue.addDiskJob(new Write(queue, b, 5, "b5", order, null, done));
+        queue.addDiskJob(new Write(queue, a, 10, "a10", order, null, done));
+        queue.addDiskJob(new Write(queue, a, 20, "a20", order, null, done));
+        blocked.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[a0, a10, a20, a30, b5]", order.toString());
+        assertEquals(0, queue.getDepth());
+        assertEquals(5L, queue.getStats().get("jobs"));
+    }
+
+    public void testVolumeQueueIsLimited() throws Exception {
+        DiskController.DiskQueue queue = diskController.getQueueFor(new File(_scratchDir, "a"));
+        Object target = new Object();
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(DiskController.MAX_CHUNKS_PER_VOLUME + 1);
+
+        queue.addDiskJob(new Write(queue, target, 0, "first", order, blocked, done));
+        for (int i = 1; i < DiskController.MAX_CHUNKS_PER_VOLUME; i++)
+            queue.addDiskJob(new Write(queue, target, i, "" + i, order, null, done));
+        assertNull(queue.getWriteChunk());
+        // other queues are not held up
+        byte[] chunk = diskController.getDefaultQueue().getWriteChunk();
+        assertNotNull(chunk);
+
+        // a delayed write on the full queue runs once its chunks are written
+        final DiskController.DiskQueue full = queue;
+        final Object delayedTarget = target;
+        final List<String> delayedOrder = order;
+        final CountDownLatch delayedDone = done;
+        queue.addDelayedWrite(new DelayedWrite() {
+            public boolean write() {
+                byte[] buf = full.getWriteChunk();
+                if (buf == null)
+                    return false;
+                full.addDiskJob(new Write(buf, delayedTarget, 1000, "delayed", delayedOrder, null, delayedDone));
+                return true;
+            }
+        });
+        assertFalse(queue.canWriteNow());
+        blocked.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("delayed", order.get(order.size() - 1));
+        assertTrue(queue.canWriteNow());
+    }
+
+    public void testEachQueueHasItsOwnVerifyingCache() throws Exception {
+        final DiskController.DiskQueue volume = diskController.getQueueFor(new File(_scratchDir, "a"));
+        final DiskController.DiskQueue queue = diskController.getDefaultQueue();
+        final byte[][] chunks = new byte[2][];
+        final CountDownLatch done = new CountDownLatch(2);
+        volume.addDiskJobWithoutChunk(new Runnable() {
+            public void run() {
+                chunks[0] = volume.getPowerOf2Chunk(1000);
+                done.countDown();
+            }
+        });
+        queue.addDiskJobWithoutChunk(new Runnable() {
+            public void run() {
+                chunks[1] = queue.getPowerOf2Chunk(1000);
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1024, chunks[0].length);
+        assertNotSame(chunks[0], chunks[1]);
+        assertEquals(2048, diskController.getSizeOfVerifyingCache());
+
+        // every queue clears its cache on its own thread
+        diskController.clearCaches();
+        final CountDownLatch cleared = new CountDownLatch(2);
+        for (DiskController.DiskQueue q : new DiskController.DiskQueue[] { volume, queue }) {
+            q.addDiskJobWithoutChunk(new Runnable() {
+                public void run() {
+                    cleared.countDown();
+                }
+            });
+        }
+        assertTrue(cleared.await(5, TimeUnit.SECONDS));
+        assertEquals(0, diskController.getSizeOfVerifyingCache());
+    }
+
+    private static class Write extends ChunkDiskJob {
+        private final Object target;
+        private final long offset;
+        private final String name;
+        private final List<String> order;
+        private final CountDownLatch before;
+        private final CountDownLatch done;
+
+        Write(DiskController.DiskQueue queue, Object target, long offset, String name,
+                List<String> order, CountDownLatch before, CountDownLatch done) {
+            this(queue.getWriteChunk(), target, offset, name, order, before, done);
+        }
+
+        Write(byte[] buf, Object target, long offset, String name,
+                List<String> order, CountDownLatch before, CountDownLatch done) {
+            super(buf);
+            assertNotNull(buf);
+            this.target = target;
+            this.offset = offset;
+            this.name = name;
+            this.order = order;
+            this.before = before;
+            this.done = done;
+        }
+
+        @Override
+        Object getTarget() {
+            return target;
+        }
+
+        @Override
+        long getOffset() {
+            return offset;
+        }
+
+        @Override
+        void runChunkJob(byte[] buf) {
+            try {
+                if (before != null)
+                    before.await();
+            } catch (InterruptedException ie) {
+                throw new RuntimeException(ie);
+            }
+            order.add(name);
+        }
+
+        @Override
+        void finish() {
+            done.countDown();
+        }
+    }
+}
@@ -13,11 +13,12 @@ class DownloadWorkerStub extends DownloadWorker {
 
     public DownloadWorkerStub(DownloadWorkerSupport manager, RemoteFileDescContext rfd, VerifyingFile vf,
             HTTPDownloaderFactory httpDownloaderFactory,
-            ScheduledExecutorService backgroundExecutor, ScheduledExecutorService nioExecutor,
+            ScheduledExecutorService backgroundExecutor,
             Provider<PushDownloadManager> pushDownloadManager, SocketsManager socketsManager,
             TLSManager TLSManager) {
-        super(manager, rfd, vf, httpDownloaderFactory, backgroundExecutor, nioExecutor,
-                pushDownloadManager, socketsManager, new DownloadStatsTrackerImpl(), TLSManager);
+        super(manager, rfd, vf, httpDownloaderFactory, backgroundExecutor,
+                pushDownloadManager, socketsManager, new DownloadStatsTrackerImpl(), TLSManager,
+                new SourceHistory());
     }
 
     @Override
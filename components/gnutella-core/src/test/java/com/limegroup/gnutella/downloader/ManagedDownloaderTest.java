@@ -771,7 +771,6 @@ public class ManagedDownloaderTest extends LimeTestCase {
     private static class AltLocWorkerStubFactory implements DownloadWorkerFactory {
         private final HTTPDownloaderFactory httpDownloaderFactory;
         private final ScheduledExecutorService backgroundExecutor;
-        private final ScheduledExecutorService nioExecutor;
         private final Provider<PushDownloadManager> pushDownloadManager;
         private final SocketsManager socketsManager;
         private final NetworkManager networkManager;
@@ -780,13 +779,11 @@ public class ManagedDownloaderTest extends LimeTestCase {
         public AltLocWorkerStubFactory(
                 HTTPDownloaderFactory httpDownloaderFactory,
                 @Named("backgroundExecutor") ScheduledExecutorService backgroundExecutor,
-                @Named("nioExecutor") ScheduledExecutorService nioExecutor,
                 Provider<PushDownloadManager> pushDownloadManager,
                 SocketsManager socketsManager,
                 NetworkManager networkManager) {
             this.httpDownloaderFactory = httpDownloaderFactory;
             this.backgroundExecutor = backgroundExecutor;
-            this.nioExecutor = nioExecutor;
             this.pushDownloadManager = pushDownloadManager;
             this.socketsManager = socketsManager;
             this.networkManager = networkManager;
@@ -795,7 +792,7 @@ public class ManagedDownloaderTest extends LimeTestCase {
         public DownloadWorker create(DownloadWorkerSupport manager,
                 RemoteFileDescContext rfd, VerifyingFile vf) {
             return new AltLocWorkerStub(manager, rfd, vf, httpDownloaderFactory,
-                    backgroundExecutor, nioExecutor, pushDownloadManager,
+                    backgroundExecutor, pushDownloadManager,
                     socketsManager, networkManager);
         }
     }
@@ -805,10 +802,10 @@ public class ManagedDownloaderTest extends LimeTestCase {
         
         public AltLocWorkerStub(DownloadWorkerSupport manager, RemoteFileDescContext rfd, VerifyingFile vf,
                 HTTPDownloaderFactory httpDownloaderFactory,
-                ScheduledExecutorService backgroundExecutor, ScheduledExecutorService nioExecutor,
+                ScheduledExecutorService backgroundExecutor,
                 Provider<PushDownloadManager> pushDownloadManager, SocketsManager socketsManager,
                 TLSManager TLSManager) {
-            super(manager, rfd, vf, httpDownloaderFactory, backgroundExecutor, nioExecutor,
+            super(manager, rfd, vf, httpDownloaderFactory, backgroundExecutor,
                     pushDownloadManager, socketsManager, TLSManager);
         }
 
@@ -0,0 +1,76 @@
+package com.limegroup.gnutella.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import junit.framework.Test;
+
+import org.limewire.gnutella.tests.LimeTestCase;
+
+public class MappedIncompleteFileTest extends LimeTestCase {
+
+    private RandomAccessFile raf;
+
+    public MappedIncompleteFileTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(MappedIncompleteFileTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        File file = new File(_scratchDir, "mapped");
+        file.delete();
+        raf = new RandomAccessFile(file, "rw");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        raf.close();
+    }
+
+    public void testWriteAndRead() throws Exception {
+        MappedIncompleteFile mapped = new MappedIncompleteFile(raf.getChannel(), 100);
+        mapped.write(10, new byte[] { 0, 1, 2, 3, 4 }, 1, 3);
+
+        ByteBuffer read = mapped.read(9, 5);
+        assertEquals(5, read.remaining());
+        assertEquals(0, read.get());
+        assertEquals(1, read.get());
+        assertEquals(2, read.get());
+        assertEquals(3, read.get());
+        assertEquals(0, read.get());
+
+        // written through to the file
+        byte[] onDisk = new byte[3];
+        raf.seek(10);
+        raf.readFully(onDisk);
+        assertEquals(new byte[] { 1, 2, 3 }, onDisk);
+
+        try {
+            mapped.write(99, new byte[2], 0, 2);
+            fail("wrote past the end");
+        } catch (IOException expected) {}
+        mapped.close();
+    }
+
+    public void testRangesAcrossWindows() throws Exception {
+        long size = MappedIncompleteFile.WINDOW_SIZE + 1000;
+        MappedIncompleteFile mapped = new MappedIncompleteFile(raf.getChannel(), size);
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte)i;
+        long position = MappedIncompleteFile.WINDOW_SIZE - 50;
+        mapped.write(position, data, 0, data.length);
+
+        ByteBuffer read = mapped.read(position, data.length);
+        byte[] back = new byte[data.length];
+        read.get(back);
+        assertEquals(data, back);
+        mapped.close();
+    }
+}
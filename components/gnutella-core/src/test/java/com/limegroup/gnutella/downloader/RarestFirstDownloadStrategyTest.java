@@ -0,0 +1,94 @@
+package com.limegroup.gnutella.downloader;
+
+import junit.framework.Test;
+
+import org.limewire.collection.IntervalSet;
+import org.limewire.collection.Range;
+import org.limewire.core.settings.DownloadSettings;
+import org.limewire.gnutella.tests.LimeTestCase;
+
+public class RarestFirstDownloadStrategyTest extends LimeTestCase {
+
+    private static final long BLOCK = 100;
+
+    private static final long FILE_SIZE = 10 * BLOCK;
+
+    private SourceAvailability availability;
+
+    private RarestFirstDownloadStrategy strategy;
+
+    public RarestFirstDownloadStrategyTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(RarestFirstDownloadStrategyTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        availability = new SourceAvailability(BLOCK);
+        strategy = new RarestFirstDownloadStrategy(new TestSequentialStrategy(), availability);
+    }
+
+    public void testCountsAreUpdated() {
+        IntervalSet first = IntervalSet.createSingletonSet(0, 2 * BLOCK - 1);
+        IntervalSet second = IntervalSet.createSingletonSet(BLOCK + 50, 3 * BLOCK + 10);
+        availability.add(first);
+        availability.add(second);
+        availability.add(null);
+        assertEquals(1, availability.getCount(0));
+        assertEquals(2, availability.getCount(BLOCK));
+        assertEquals(1, availability.getCount(3 * BLOCK));
+        assertEquals(0, availability.getCount(4 * BLOCK));
+        assertEquals(0, availability.getCount(100 * BLOCK));
+
+        availability.update(first, IntervalSet.createSingletonSet(9 * BLOCK, 10 * BLOCK - 1));
+        assertEquals(0, availability.getCount(0));
+        assertEquals(1, availability.getCount(BLOCK));
+        assertEquals(1, availability.getCount(9 * BLOCK));
+
+        availability.remove(second);
+        assertEquals(0, availability.getCount(BLOCK));
+        assertEquals(0, availability.getCount(3 * BLOCK));
+    }
+
+    public void testPicksRarestBlocks() throws Exception {
+        availability.add(IntervalSet.createSingletonSet(0, 5 * BLOCK - 1));
+        availability.add(IntervalSet.createSingletonSet(0, 2 * BLOCK - 1));
+        availability.add(IntervalSet.createSingletonSet(3 * BLOCK, FILE_SIZE - 1));
+
+        // blocks 2 and 5 to 9 have one source, the others two
+        IntervalSet candidates = IntervalSet.createSingletonSet(0, FILE_SIZE - 1);
+        IntervalSet rarest = strategy.getRarest(candidates);
+        assertEquals(2, rarest.getNumberOfIntervals());
+        assertEquals(Range.createRange(2 * BLOCK, 3 * BLOCK - 1), rarest.getFirst());
+        assertEquals(Range.createRange(5 * BLOCK, FILE_SIZE - 1), rarest.getLast());
+
+        assertEquals(Range.createRange(2 * BLOCK, 3 * BLOCK - 1),
+                strategy.pickAssignment(candidates, candidates.clone(), BLOCK));
+
+        // candidates that do not line up with blocks keep their bounds
+        candidates = IntervalSet.createSingletonSet(50, 2 * BLOCK + 49);
+        assertEquals(Range.createRange(2 * BLOCK, 2 * BLOCK + 49),
+                strategy.pickAssignment(candidates, candidates.clone(), BLOCK));
+    }
+
+    public void testEqualAvailabilityLeavesChoiceToDelegate() throws Exception {
+        IntervalSet candidates = IntervalSet.createSingletonSet(BLOCK + 10, 4 * BLOCK);
+        assertEquals(candidates, strategy.getRarest(candidates));
+        assertEquals(Range.createRange(BLOCK + 10, 2 * BLOCK - 1),
+                strategy.pickAssignment(candidates, candidates.clone(), BLOCK));
+    }
+
+    public void testFactory() {
+        DownloadSettings.RAREST_FIRST_SELECTION.setValue(false);
+        assertInstanceof(RandomDownloadStrategy.class,
+                SelectionStrategyFactory.getStrategyFor("zip", FILE_SIZE, availability));
+        DownloadSettings.RAREST_FIRST_SELECTION.setValue(true);
+        assertInstanceof(RarestFirstDownloadStrategy.class,
+                SelectionStrategyFactory.getStrategyFor("zip", FILE_SIZE, availability));
+        assertInstanceof(RandomDownloadStrategy.class,
+                SelectionStrategyFactory.getStrategyFor("zip", FILE_SIZE, null));
+    }
+}
@@ -57,6 +57,7 @@ public class SourceRankerFactoryTest extends BaseTestCase {
     @Override
     protected void tearDown() throws Exception {
         DownloadSettings.USE_HEADPINGS.revertToDefault();
+        DownloadSettings.THROUGHPUT_SOURCE_RANKING.revertToDefault();
     }
     
     
@@ -99,6 +100,18 @@ public class SourceRankerFactoryTest extends BaseTestCase {
         context.assertIsSatisfied();
     }
 
+    public void testGetAppropriateRankerReturnsThroughputRanker() {
+        DownloadSettings.THROUGHPUT_SOURCE_RANKING.setValue(true);
+        SourceRanker ranker = factory.getAppropriateRanker();
+        assertTrue(ranker instanceof ThroughputRanker);
+        assertSame(ranker, factory.getAppropriateRanker(ranker));
+
+        DownloadSettings.THROUGHPUT_SOURCE_RANKING.setValue(false);
+        expectPingRanker();
+        assertTrue(factory.getAppropriateRanker(ranker) instanceof FriendsFirstSourceRanker);
+        context.assertIsSatisfied();
+    }
+
     private SourceRanker getLegacyRanker() {
         expectLegacyRanker();
         SourceRanker ranker = factory.getAppropriateRanker();
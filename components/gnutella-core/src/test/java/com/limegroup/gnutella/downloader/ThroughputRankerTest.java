@@ -0,0 +1,126 @@
+package com.limegroup.gnutella.downloader;
+
+import java.util.Collections;
+
+import junit.framework.Test;
+
+import org.limewire.core.settings.DownloadSettings;
+import org.limewire.gnutella.tests.LimeTestCase;
+import org.limewire.gnutella.tests.LimeTestUtils;
+import org.limewire.io.ConnectableImpl;
+
+import com.google.inject.Injector;
+import com.limegroup.gnutella.RemoteFileDesc;
+import com.limegroup.gnutella.URN;
+
+/**
+ * Tests that the throughput ranker picks sources by their history.
+ */
+public class ThroughputRankerTest extends LimeTestCase {
+
+    private SourceHistory history;
+
+    private ThroughputRanker ranker;
+
+    private RemoteFileDescFactory remoteFileDescFactory;
+
+    public ThroughputRankerTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(ThroughputRankerTest.class);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        DownloadSettings.THROUGHPUT_SOURCE_RANKING.setValue(true);
+        Injector injector = LimeTestUtils.createInjectorNonEagerly();
+        remoteFileDescFactory = injector.getInstance(RemoteFileDescFactory.class);
+        history = new SourceHistory();
+        ranker = new ThroughputRanker(history);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        DownloadSettings.THROUGHPUT_SOURCE_RANKING.revertToDefault();
+    }
+
+    public void testPrefersMeasuredThroughputOverAdvertisedSpeed() throws Exception {
+        RemoteFileDesc fast = newRFD("1.2.3.4", 56);
+        RemoteFileDesc advertised = newRFD("5.6.7.8", 10000);
+        history.responded(fast, 100);
+        history.downloaded(fast, 1024 * 1024, 1000);
+
+        ranker.addToPool(new RemoteFileDescContext(advertised));
+        ranker.addToPool(new RemoteFileDescContext(fast));
+        assertSame(fast, ranker.getBest().getRemoteFileDesc());
+        assertSame(advertised, ranker.getBest().getRemoteFileDesc());
+        assertFalse(ranker.hasMore());
+    }
+
+    public void testFailingSourcesAreRankedLower() throws Exception {
+        RemoteFileDesc failing = newRFD("1.2.3.4", 1000);
+        RemoteFileDesc reliable = newRFD("5.6.7.8", 1000);
+        for (int i = 0; i < 3; i++) {
+            history.failed(failing);
+            history.responded(reliable, 1000);
+        }
+
+        ranker.addToPool(new RemoteFileDescContext(failing));
+        ranker.addToPool(new RemoteFileDescContext(reliable));
+        assertSame(reliable, ranker.getBest().getRemoteFileDesc());
+    }
+
+    public void testHostsAreJudgedByTheirNetwork() throws Exception {
+        history.responded(newRFD("1.2.3.4", 56), 50);
+        history.downloaded(newRFD("1.2.3.4", 56), 1024 * 1024, 500);
+        RemoteFileDesc neighbour = newRFD("1.2.3.5", 56);
+        RemoteFileDesc stranger = newRFD("5.6.7.8", 1000);
+
+        ranker.addToPool(new RemoteFileDescContext(stranger));
+        ranker.addToPool(new RemoteFileDescContext(neighbour));
+        assertSame(neighbour, ranker.getBest().getRemoteFileDesc());
+    }
+
+    public void testBusySourcesAreRankedLast() throws Exception {
+        RemoteFileDesc fast = newRFD("1.2.3.4", 56);
+        RemoteFileDesc slow = newRFD("5.6.7.8", 56);
+        history.downloaded(fast, 1024 * 1024, 100);
+        RemoteFileDescContext busy = new RemoteFileDescContext(fast);
+        busy.setRetryAfter(60);
+
+        ranker.addToPool(busy);
+        ranker.addToPool(new RemoteFileDescContext(slow));
+        assertEquals(1, ranker.getNumBusyHosts());
+        assertSame(slow, ranker.getBest().getRemoteFileDesc());
+        assertSame(busy, ranker.getBest());
+    }
+
+    public void testHistoryIsNotKeptWhenDisabled() throws Exception {
+        DownloadSettings.THROUGHPUT_SOURCE_RANKING.setValue(false);
+        RemoteFileDesc rfd = newRFD("1.2.3.4", 56);
+        double expected = history.getExpectedRate(rfd, VerifyingFile.DEFAULT_CHUNK_SIZE);
+        history.downloaded(rfd, 1024 * 1024, 100);
+        assertEquals(expected, history.getExpectedRate(rfd, VerifyingFile.DEFAULT_CHUNK_SIZE));
+    }
+
+    public void testHistoryIsSavedBetweenSessions() throws Exception {
+        RemoteFileDesc rfd = newRFD("1.2.3.4", 56);
+        history.responded(rfd, 200);
+        history.downloaded(rfd, 1024 * 1024, 1000);
+        double expected = history.getExpectedRate(rfd, VerifyingFile.DEFAULT_CHUNK_SIZE);
+        history.stop();
+
+        SourceHistory loaded = new SourceHistory();
+        assertNotEquals(expected, loaded.getExpectedRate(rfd, VerifyingFile.DEFAULT_CHUNK_SIZE));
+        loaded.start();
+        assertEquals(expected, loaded.getExpectedRate(rfd, VerifyingFile.DEFAULT_CHUNK_SIZE));
+    }
+
+    private RemoteFileDesc newRFD(String host, int speed) throws Exception {
+        return remoteFileDescFactory.createRemoteFileDesc(new ConnectableImpl(host, 1, false), 0,
+                "asdf", TestFile.length(), new byte[16], speed, 4, false, null,
+                Collections.<URN>emptySet(), false, "", -1);
+    }
+}
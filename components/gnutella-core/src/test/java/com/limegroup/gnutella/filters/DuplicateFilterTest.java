@@ -191,6 +191,25 @@ public class DuplicateFilterTest extends LimeTestCase {
         context.assertIsSatisfied();
     }
 
+    public void testHashedQueryDuplicate() throws Exception {
+        filter = new DuplicateFilter(0.0001f);
+        filter.setQueryLag(50);
+        filter.setGUIDLag(50);
+        
+        // new GUIDs each time, so only the query test applies
+        assertTrue(filter.allow(queryRequestFactory.createQuery("tests")));
+        assertFalse(filter.allow(queryRequestFactory.createQuery("tests")));
+        assertTrue(filter.allow(queryRequestFactory.createQuery("other tests")));
+        assertTrue(filter.allow(queryRequestFactory.createQuery(UrnHelper.SHA1)));
+        assertFalse(filter.allow(queryRequestFactory.createQuery(UrnHelper.SHA1)));
+        assertTrue(filter.allow(queryRequestFactory.createQuery(UrnHelper.UNIQUE_SHA1)));
+        for (int i = 0; i < 1000; i++)
+            assertTrue(filter.allow(queryRequestFactory.createQuery("query " + i)));
+        
+        waitForQueryRequestFilterToBePurged();
+        assertTrue(filter.allow(queryRequestFactory.createQuery("tests")));
+    }
+
     // TODO, remove dependencies by mocking LimeXMLDocument
     public void testXMLDuplicate() throws Exception {
         
@@ -7,6 +7,7 @@ import org.hamcrest.TypeSafeMatcher;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.limewire.collection.IntSet;
+import org.limewire.core.settings.SearchSettings;
 import org.limewire.lifecycle.Service;
 import org.limewire.lifecycle.ServiceRegistry;
 import org.limewire.listener.EventListener;
@@ -94,6 +95,16 @@ public class SharedFilesKeywordIndexImplTest extends BaseTestCase {
         assertNull(result);
     }
     
+    public void testRenamedFilesEventWithPostingLists() throws Exception {
+        SearchSettings.POSTING_LIST_KEYWORD_INDEX.setValue(true);
+        try {
+            keywordIndex = new SharedFilesKeywordIndexImpl(library, null, null, null, null, null, sharedFileList, incompleteFileList);
+            testRenamedFilesEvent();
+        } finally {
+            SearchSettings.POSTING_LIST_KEYWORD_INDEX.revertToDefault();
+        }
+    }
+    
     private static class GetterMatcher<T> extends TypeSafeMatcher<T> {
         private final AtomicReference<T> ref = new AtomicReference<T>();
         
@@ -0,0 +1,211 @@
+package com.limegroup.gnutella.library;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Set;
+
+import junit.framework.Test;
+
+import org.limewire.gnutella.tests.LimeTestCase;
+
+import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.UrnSet;
+import com.limegroup.gnutella.helpers.UrnHelper;
+
+public class UrnCacheLogTest extends LimeTestCase {
+
+    private File file;
+
+    public UrnCacheLogTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(UrnCacheLogTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        file = new File(_scratchDir, "urns.log");
+        file.delete();
+    }
+
+    public void testAppendAndReload() throws Exception {
+        Set<URN> a = new UrnSet(UrnHelper.SHA1);
+        a.add(UrnHelper.TTROOT);
+        Set<URN> b = new UrnSet(UrnHelper.UNIQUE_SHA1);
+
+        UrnCacheLog log = new UrnCacheLog(file);
+        assertFalse(log.open());
+        assertTrue(log.needsRewrite());
+        assertTrue(log.save());
+        assertFalse(log.needsRewrite());
+        assertFalse(log.hasChanges());
+
+        log.put("/a", 10, 1, a);
+        log.put("/b", 20, 2, b);
+        assertTrue(log.hasChanges());
+        assertTrue(log.save());
+        long length = file.length();
+        assertEquals(a, log.get("/a", 10, 1));
+        assertEquals(b, log.get("/b", 20, 2));
+        log.remove("/b");
+        log.put("/a", 30, 3, a);
+        assertTrue(log.save());
+        assertGreaterThan(length, file.length());
+        assertNull(log.get("/b", 20, 2));
+        log.close();
+
+        log = new UrnCacheLog(file);
+        assertTrue(log.open());
+        assertFalse(log.hasChanges());
+        assertEquals(a, log.get("/a", 30, 3));
+        assertNull(log.get("/b", 20, 2));
+        assertNull(log.get("/c", 20, 2));
+        log.close();
+    }
+
+    public void testChangedFileIsRemoved() throws Exception {
+        Set<URN> urns = new UrnSet(UrnHelper.SHA1);
+        UrnCacheLog log = new UrnCacheLog(file);
+        log.open();
+        log.put("/a", 10, 1, urns);
+        assertTrue(log.save());
+
+        // a different size or time is a miss, and drops the record
+        assertNull(log.get("/a", 11, 1));
+        assertTrue(log.hasChanges());
+        assertNull(log.get("/a", 10, 1));
+        assertTrue(log.save());
+        log.close();
+
+        log = new UrnCacheLog(file);
+        assertTrue(log.open());
+        assertNull(log.get("/a", 10, 1));
+        log.close();
+    }
+
+    public void testIncompleteRecordIsDropped() throws Exception {
+        UrnCacheLog log = new UrnCacheLog(file);
+        log.open();
+        log.put("/a", 10, 1, new UrnSet(UrnHelper.SHA1));
+        assertTrue(log.save());
+        long good = file.length();
+        log.put("/b", 20, 2, new UrnSet(UrnHelper.UNIQUE_SHA1));
+        assertTrue(log.save());
+        log.close();
+
+        // cut the last record short, as a crash while appending would
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 5);
+        raf.close();
+
+        log = new UrnCacheLog(file);
+        assertTrue(log.open());
+        assertNotNull(log.get("/a", 10, 1));
+        assertNull(log.get("/b", 20, 2));
+        assertEquals(good, file.length());
+
+        // appending continues after the last good record
+        log.put("/c", 30, 3, new UrnSet(UrnHelper.UNIQUE_SHA1));
+        assertTrue(log.save());
+        log.close();
+        log = new UrnCacheLog(file);
+        assertTrue(log.open());
+        assertNotNull(log.get("/a", 10, 1));
+        assertNotNull(log.get("/c", 30, 3));
+        log.close();
+    }
+
+    public void testRewritesWhenMostlyDead() throws Exception {
+        UrnCacheLog log = new UrnCacheLog(file);
+        Set<URN> urns = new UrnSet(UrnHelper.SHA1);
+        log.open();
+        log.put("/a", 10, 1, urns);
+        log.put("/b", 10, 1, urns);
+        assertTrue(log.save());
+        long recordLength = (file.length() - 8) / 2;
+        for (int i = 0; i <= 2000; i++) {
+            log.put("/a", 10, i, urns);
+            assertTrue(log.save());
+        }
+        // without rewrites the log would hold 2003 records
+        assertLessThan(8 + 1100 * recordLength, file.length());
+        assertEquals(urns, log.get("/a", 10, 2000));
+        assertEquals(urns, log.get("/b", 10, 1));
+        log.close();
+
+        log = new UrnCacheLog(file);
+        assertTrue(log.open());
+        assertEquals(urns, log.get("/a", 10, 2000));
+        assertEquals(urns, log.get("/b", 10, 1));
+        log.close();
+    }
+
+    public void testIndexGrows() throws Exception {
+        UrnCacheLog log = new UrnCacheLog(file);
+        Set<URN> urns = new UrnSet(UrnHelper.SHA1);
+        log.open();
+        for (int i = 0; i < 1000; i++)
+            log.put("/" + i, i, i, urns);
+        assertTrue(log.save());
+        for (int i = 0; i < 1000; i += 2)
+            log.remove("/" + i);
+        assertTrue(log.save());
+        log.close();
+
+        log = new UrnCacheLog(file);
+        assertTrue(log.open());
+        for (int i = 0; i < 1000; i++) {
+            if (i % 2 == 0)
+                assertNull(log.get("/" + i, i, i));
+            else
+                assertEquals(urns, log.get("/" + i, i, i));
+        }
+        log.close();
+    }
+
+    public void testUnknownFormatIsRewritten() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeInt(42);
+        raf.close();
+        UrnCacheLog log = new UrnCacheLog(file);
+        assertFalse(log.open());
+        assertTrue(log.needsRewrite());
+        assertTrue(log.save());
+        assertTrue(new UrnCacheLog(file).open());
+    }
+
+    public void testFirstVersionIsUpgraded() throws Exception {
+        File hashed = new File(_scratchDir, "hashed");
+        FileOutputStream data = new FileOutputStream(hashed);
+        data.write(new byte[] { 1, 2, 3 });
+        data.close();
+
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(0x55524E4C);
+        out.writeInt(1);
+        out.writeByte(1);
+        out.writeUTF(hashed.getPath());
+        out.writeLong(hashed.lastModified());
+        out.writeByte(1);
+        out.writeUTF(UrnHelper.SHA1.httpStringValue());
+        out.close();
+
+        UrnCacheLog log = new UrnCacheLog(file);
+        assertTrue(log.open());
+        assertTrue(log.needsRewrite());
+        Set<URN> urns = log.get(hashed.getPath(), 3, hashed.lastModified());
+        assertEquals(new UrnSet(UrnHelper.SHA1), urns);
+        assertTrue(log.save());
+        log.close();
+
+        log = new UrnCacheLog(file);
+        assertTrue(log.open());
+        assertFalse(log.needsRewrite());
+        assertEquals(urns, log.get(hashed.getPath(), 3, hashed.lastModified()));
+        log.close();
+    }
+}
@@ -3,6 +3,7 @@ package com.limegroup.gnutella.library;
 import java.io.File;
 import java.io.FileFilter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -17,13 +18,17 @@ import junit.framework.Test;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.limewire.concurrent.ExecutorsHelper;
+import org.limewire.core.settings.SharingSettings;
 import org.limewire.gnutella.tests.LimeTestCase;
 import org.limewire.lifecycle.ServiceScheduler;
 import org.limewire.util.AssignParameterAction;
 import org.limewire.util.TestUtils;
 
 import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.UrnSet;
 import com.limegroup.gnutella.helpers.UrnHelper;
+import com.limegroup.gnutella.security.Tiger;
+import com.limegroup.gnutella.tigertree.HashTreeUtils;
 
 
 /**
@@ -113,6 +118,55 @@ public final class UrnCacheTest extends LimeTestCase {
         context.assertIsSatisfied();
     }
 
+    public void testMigratesToLog() throws Exception {
+        Collection<FileAndUrns> faus = createLotsOfUrns();
+        urnCache.persistCache();
+        assertTrue(cacheExists());
+        
+        SharingSettings.URN_CACHE_LOG.setValue(true);
+        urnCache = new UrnCache(ExecutorsHelper.newProcessingQueue("test"), null);
+        for(FileAndUrns fau : faus)
+            assertEquals(fau.urns, urnCache.getUrns(fau.file));
+        urnCache.persistCache();
+        assertFalse("old cache should be gone", cacheExists());
+        File log = new File(_settingsDir, "fileurns.log");
+        assertTrue(log.exists());
+        
+        // removals are appended to the log
+        FileAndUrns removed = faus.iterator().next();
+        long length = log.length();
+        urnCache.removeUrns(removed.file);
+        urnCache.persistCache();
+        assertGreaterThan(length, log.length());
+        
+        urnCache = new UrnCache(ExecutorsHelper.newProcessingQueue("test"), null);
+        for(FileAndUrns fau : faus) {
+            if(fau == removed)
+                assertTrue(urnCache.getUrns(fau.file).isEmpty());
+            else
+                assertEquals(fau.urns, urnCache.getUrns(fau.file));
+        }
+    }
+
+    public void testKeepsTreeNodesOfSinglePass() throws Exception {
+        SharingSettings.SINGLE_PASS_HASHING.setValue(true);
+        for(FileAndUrns fau : createLotsOfUrns()) {
+            URN sha1 = UrnSet.getSha1(fau.urns);
+            List<byte[]> nodes = urnCache.removeTreeNodes(sha1);
+            assertNotNull(nodes);
+            byte[] root = HashTreeUtils.createAllParentNodes(nodes, new Tiger()).get(0).get(0);
+            assertEquals(UrnSet.resolve(fau.urns).getTTRoot().getBytes(), root);
+            assertNull(urnCache.removeTreeNodes(sha1));
+        }
+    }
+
+    public void testVolumeIsFileSystemRoot() throws Exception {
+        File volume = UrnCache.getVolume(new File(_scratchDir, "file"));
+        assertContains(Arrays.asList(File.listRoots()), volume);
+        assertEquals(volume, UrnCache.getVolume(_scratchDir));
+        assertEquals(volume, UrnCache.getVolume(volume));
+    }
+
 	private Collection<FileAndUrns> createLotsOfUrns() throws Exception {
         File path = TestUtils.getResourceFile(FILE_PATH);
         File[] files = path.listFiles(new FileFilter() { 
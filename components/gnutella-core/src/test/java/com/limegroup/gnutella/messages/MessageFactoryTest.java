@@ -1,16 +1,26 @@
 package com.limegroup.gnutella.messages;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 import junit.framework.Test;
 
 import org.limewire.gnutella.tests.LimeTestUtils;
 import org.limewire.util.BaseTestCase;
 
 import com.google.inject.Injector;
+import com.limegroup.gnutella.messages.Message.Network;
+import com.limegroup.gnutella.messages.MessageFactory.MessageParser;
 
 
 public class MessageFactoryTest extends BaseTestCase {
 
     private MessageFactory messageFactory;
+    private PingRequestFactory pingRequestFactory;
+    private QueryRequestFactory queryRequestFactory;
 
     public MessageFactoryTest(String name) {
         super(name);
@@ -24,6 +34,8 @@ public class MessageFactoryTest extends BaseTestCase {
     protected void setUp() throws Exception {
         Injector injector = LimeTestUtils.createInjectorNonEagerly();
         messageFactory = injector.getInstance(MessageFactory.class);
+        pingRequestFactory = injector.getInstance(PingRequestFactory.class);
+        queryRequestFactory = injector.getInstance(QueryRequestFactory.class);
     }
 
     public void testGetParser() {
@@ -32,4 +44,90 @@ public class MessageFactoryTest extends BaseTestCase {
         assertNotNull(messageFactory.getParser((byte) 0x100));
     }
 
+    public void testReadFromBuffer() throws Exception {
+        Message ping = pingRequestFactory.createPingRequest((byte)1);
+        Message query = queryRequestFactory.createQuery("buffer");
+        byte[] data = bytes(ping, query);
+        ByteBuffer buffer = ByteBuffer.allocate(data.length + 10);
+        buffer.position(10);
+        buffer.put(data);
+        buffer.flip();
+        buffer.position(10);
+        
+        Message in = messageFactory.read(buffer, Network.TCP, null);
+        assertInstanceof(PingRequest.class, in);
+        assertEquals(bytes(ping), bytes(in));
+        assertEquals(10 + bytes(ping).length, buffer.position());
+        
+        in = messageFactory.read(buffer, Network.TCP, (byte)7, null);
+        assertInstanceof(QueryRequest.class, in);
+        assertEquals(bytes(query), bytes(in));
+        assertFalse(buffer.hasRemaining());
+        
+        // the message must not share the buffer
+        Arrays.fill(buffer.array(), (byte)0);
+        assertEquals(bytes(query), bytes(in));
+    }
+    
+    public void testReadFromBufferIncomplete() throws Exception {
+        byte[] data = bytes(queryRequestFactory.createQuery("incomplete"));
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, 20);
+        assertNull(messageFactory.read(buffer, Network.TCP, null));
+        assertEquals(0, buffer.position());
+        buffer.limit(data.length - 1);
+        assertNull(messageFactory.read(buffer, Network.TCP, null));
+        assertEquals(0, buffer.position());
+        buffer.limit(data.length);
+        assertNotNull(messageFactory.read(buffer, Network.TCP, null));
+    }
+    
+    public void testReadFromBufferSkipsBadPackets() throws Exception {
+        byte[] query = bytes(queryRequestFactory.createQuery("bad"));
+        query[18] = 100; // hops
+        byte[] ping = bytes(pingRequestFactory.createPingRequest((byte)1));
+        ByteBuffer buffer = ByteBuffer.allocate(query.length + ping.length);
+        buffer.put(query).put(ping).flip();
+        try {
+            messageFactory.read(buffer, Network.TCP, null);
+            fail("expected bad packet");
+        } catch(BadPacketException expected) {}
+        assertEquals(query.length, buffer.position());
+        assertInstanceof(PingRequest.class, messageFactory.read(buffer, Network.TCP, null));
+        
+        ByteBuffer tooLong = ByteBuffer.wrap(ping.clone());
+        tooLong.put(22, (byte)0x7F);
+        try {
+            messageFactory.read(tooLong, Network.TCP, null);
+            fail("expected iox");
+        } catch(IOException expected) {}
+    }
+    
+    public void testReadFromBufferCopiesForPlainParsers() throws Exception {
+        final byte[][] parsed = new byte[2][];
+        messageFactory.setParser((byte)0x77, new MessageParser() {
+            public Message parse(byte[] header, byte[] payload, Network network, byte softMax,
+                    SocketAddress addr) {
+                parsed[0] = header;
+                parsed[1] = payload;
+                return null;
+            }
+        });
+        byte[] data = new byte[23 + 3];
+        data[16] = 0x77;
+        data[19] = 3;
+        data[24] = 5;
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        assertNull(messageFactory.read(buffer, Network.UDP, null));
+        assertFalse(buffer.hasRemaining());
+        assertNotSame(data, parsed[0]);
+        assertEquals(23, parsed[0].length);
+        assertEquals(new byte[] { 0, 5, 0 }, parsed[1]);
+    }
+    
+    private static byte[] bytes(Message... messages) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Message m : messages)
+            m.write(out);
+        return out.toByteArray();
+    }
 }
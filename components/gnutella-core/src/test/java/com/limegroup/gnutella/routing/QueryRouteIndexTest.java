@@ -0,0 +1,106 @@
+package com.limegroup.gnutella.routing;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.Test;
+
+import org.limewire.gnutella.tests.LimeTestUtils;
+
+import com.google.inject.Injector;
+import com.limegroup.gnutella.helpers.UrnHelper;
+import com.limegroup.gnutella.messages.QueryRequest;
+import com.limegroup.gnutella.messages.QueryRequestFactory;
+
+public class QueryRouteIndexTest extends org.limewire.gnutella.tests.LimeTestCase {
+    private QueryRequestFactory queryRequestFactory;
+
+    public QueryRouteIndexTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(QueryRouteIndexTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        Injector injector = LimeTestUtils.createInjectorNonEagerly();
+        queryRequestFactory = injector.getInstance(QueryRequestFactory.class);
+    }
+
+    public void testMatchesAgreeWithTables() throws Exception {
+        // more than 64 leaves of one size, so the masks take two words
+        QueryRouteTable[] tables = new QueryRouteTable[80];
+        QueryRouteIndex<Integer> index = new QueryRouteIndex<Integer>();
+        for (int i = 0; i < tables.length; i++) {
+            tables[i] = new QueryRouteTable(i % 5 == 0 ? 2048 : 1024);
+            tables[i].add("common leaf" + i);
+            if (i % 3 == 0)
+                tables[i].add("third");
+            if (i == 70)
+                tables[i].addIndivisible(UrnHelper.UNIQUE_SHA1.toString());
+            index.reset(i, tables[i]);
+        }
+        assertEquals(tables.length, index.size());
+
+        assertMatches(tables, index, queryRequestFactory.createQuery("common", (byte)3));
+        assertMatches(tables, index, queryRequestFactory.createQuery("common third", (byte)3));
+        assertMatches(tables, index, queryRequestFactory.createQuery("third leaf42", (byte)3));
+        assertMatches(tables, index, queryRequestFactory.createQuery("nothing", (byte)3));
+        assertMatches(tables, index, queryRequestFactory.createQuery(UrnHelper.UNIQUE_SHA1));
+        assertEquals(tables.length, index.matches(queryRequestFactory.createQuery("common", (byte)3)).size());
+
+        index.remove(3);
+        index.remove(3);
+        assertEquals(tables.length - 1, index.size());
+        assertFalse(index.matches(queryRequestFactory.createQuery("common", (byte)3)).contains(3));
+
+        // a reset to another size moves the leaf
+        tables[4] = new QueryRouteTable(2048);
+        tables[4].add("moved");
+        index.reset(4, tables[4]);
+        assertEquals(1, index.matches(queryRequestFactory.createQuery("moved", (byte)3)).size());
+        assertFalse(index.matches(queryRequestFactory.createQuery("common", (byte)3)).contains(4));
+    }
+
+    public void testPatchesUpdateIndex() throws Exception {
+        QueryRouteTable source = new QueryRouteTable(5000);
+        source.add("good book");
+        QueryRouteTable received = new QueryRouteTable(5000);
+        QueryRouteIndex<String> index = new QueryRouteIndex<String>();
+        apply(source.encode(null), received, index);
+        assertEquals(received, source);
+        assertTrue(index.matches(queryRequestFactory.createQuery("good book", (byte)3)).contains("leaf"));
+
+        QueryRouteTable next = new QueryRouteTable(5000);
+        next.add("bad book");
+        apply(next.encode(source), received, index);
+        assertEquals(received, next);
+        assertTrue(index.matches(queryRequestFactory.createQuery("bad book", (byte)3)).contains("leaf"));
+        assertTrue(index.matches(queryRequestFactory.createQuery("good", (byte)3)).isEmpty());
+    }
+
+    private void apply(Iterable<RouteTableMessage> messages, QueryRouteTable table,
+                       QueryRouteIndex<String> index) throws Exception {
+        for (RouteTableMessage m : messages) {
+            if (m instanceof PatchTableMessage) {
+                table.patch((PatchTableMessage)m);
+                index.patched("leaf", table);
+            } else {
+                table.reset((ResetTableMessage)m);
+                index.reset("leaf", table);
+            }
+        }
+    }
+
+    private void assertMatches(QueryRouteTable[] tables, QueryRouteIndex<Integer> index,
+                               QueryRequest query) {
+        Set<Integer> expected = new HashSet<Integer>();
+        for (int i = 0; i < tables.length; i++) {
+            if (tables[i].contains(query))
+                expected.add(i);
+        }
+        assertEquals(expected, new HashSet<Integer>(index.matches(query)));
+    }
+}
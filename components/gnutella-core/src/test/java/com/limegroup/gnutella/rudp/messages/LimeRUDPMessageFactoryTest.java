@@ -42,11 +42,13 @@ public class LimeRUDPMessageFactoryTest extends BaseTestCase {
     public void testCreateLocalMessages() {
         LimeRUDPMessageFactory f = new LimeRUDPMessageFactory(new StubRUDPMessageFactory());
         checkMessage(f.createAckMessage((byte)1, 1, 1, 1), LimeAckMessageImpl.class);
+        checkMessage(f.createAckMessage((byte)1, 1, 1, 1, 1), LimeAckMessageImpl.class);
         checkMessage(f.createDataMessage((byte)1, 1, null), LimeDataMessageImpl.class);
         checkMessage(f.createFinMessage((byte)1, 1, (byte)1), LimeFinMessageImpl.class);
         checkMessage(f.createKeepAliveMessage((byte)1, 1, 1), LimeKeepAliveMessageImpl.class);
         checkMessage(f.createSynMessage((byte)1, Role.REQUESTOR), LimeSynMessageImpl.class);
         checkMessage(f.createSynMessage((byte)1, (byte)1, Role.ACCEPTOR), LimeSynMessageImpl.class);
+        checkMessage(f.createSynMessage((byte)1, (byte)1, Role.ACCEPTOR, 20, true), LimeSynMessageImpl.class);
     }
     
     public void testCreateNetworkMessages() throws Exception {
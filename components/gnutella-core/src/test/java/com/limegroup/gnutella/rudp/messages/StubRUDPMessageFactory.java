@@ -26,6 +26,11 @@ public class StubRUDPMessageFactory implements RUDPMessageFactory {
         return new StubAckMessage();
     }
 
+    public AckMessage createAckMessage(byte connectionID, long sequenceNumber,
+            long windowStart, int windowSpace, long selectiveAcks) {
+        return new StubAckMessage();
+    }
+
     public DataMessage createDataMessage(byte connectionID,
             long sequenceNumber, ByteBuffer chunk) {
         return new StubDataMessage();
@@ -69,4 +74,9 @@ public class StubRUDPMessageFactory implements RUDPMessageFactory {
         return new StubSynMessage();
     }
 
+    public SynMessage createSynMessage(byte connectionID, byte theirConnectionID, Role role,
+            int windowSize, boolean selectiveAcks) {
+        return new StubSynMessage();
+    }
+
 }
@@ -19,4 +19,12 @@ public class StubSynMessage extends StubRUDPMessage implements SynMessage {
         return Role.UNDEFINED;
     }
 
+    public boolean isSelectiveAckSupported() {
+        return false;
+    }
+
+    public int getWindowSize() {
+        return 0;
+    }
+
 }
@@ -1,21 +1,26 @@
 package com.limegroup.gnutella.uploader;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Test;
 
 import org.apache.http.message.BasicHeader;
+import org.limewire.core.settings.UploadSettings;
 import org.limewire.gnutella.tests.LimeTestCase;
 import org.limewire.gnutella.tests.LimeTestUtils;
 import org.limewire.io.Connectable;
 import org.limewire.io.IpPort;
+import org.limewire.io.NetworkInstanceUtils;
+import org.limewire.io.SimpleNetworkInstanceUtils;
 
 import com.google.inject.Injector;
 import com.limegroup.gnutella.altlocs.AltLocListener;
 import com.limegroup.gnutella.altlocs.AltLocManager;
 import com.limegroup.gnutella.altlocs.AlternateLocation;
 import com.limegroup.gnutella.altlocs.AlternateLocationFactory;
+import com.limegroup.gnutella.altlocs.CompactAltLocStore.Cursor;
 import com.limegroup.gnutella.altlocs.DirectAltLoc;
 import com.limegroup.gnutella.helpers.UrnHelper;
 import com.limegroup.gnutella.http.AltLocHeaderInterceptor;
@@ -24,6 +29,7 @@ public class AltLocHeaderInterceptorTest extends LimeTestCase {
 
     private AltLocManager altLocManager;
     private AlternateLocationFactory alternateLocationFactory;
+    private NetworkInstanceUtils networkInstanceUtils;
 
     public AltLocHeaderInterceptorTest(String name) {
         super(name);
@@ -40,6 +46,8 @@ public class AltLocHeaderInterceptorTest extends LimeTestCase {
         altLocManager = injector.getInstance(AltLocManager.class);
         
         alternateLocationFactory = injector.getInstance(AlternateLocationFactory.class);
+        
+        networkInstanceUtils = injector.getInstance(NetworkInstanceUtils.class);
     }
     
     private void check(AlternateLocation loc, String ip, int port, boolean tls) {
@@ -80,7 +88,7 @@ public class AltLocHeaderInterceptorTest extends LimeTestCase {
         };
         
         MockHTTPUploader uploader = new MockHTTPUploader();
-        AltLocHeaderInterceptor interceptor = new AltLocHeaderInterceptor(uploader, altLocManager, alternateLocationFactory);
+        AltLocHeaderInterceptor interceptor = new AltLocHeaderInterceptor(uploader, altLocManager, alternateLocationFactory, networkInstanceUtils);
         List<AlternateLocation> addedLocs = ((StubAltLocTracker)uploader.getAltLocTracker()).getAddedLocs();
         
         altLocManager.addListener(UrnHelper.SHA1, listener);
@@ -111,5 +119,70 @@ public class AltLocHeaderInterceptorTest extends LimeTestCase {
         }
     }
     
+    public void testReadAltLocsInCompactForm() throws Exception {
+        UploadSettings.COMPACT_ALT_LOCS.setValue(true);
+        try {
+            MockHTTPUploader uploader = new MockHTTPUploader();
+            AltLocHeaderInterceptor interceptor = new AltLocHeaderInterceptor(uploader, altLocManager, alternateLocationFactory, networkInstanceUtils);
+            interceptor.process(new BasicHeader("X-Alt", "tls=60,1.2.3.4:5213,8.3.2.1,6.3.2.1:52\r\n"), null);
+            
+            // no locations were created
+            assertTrue(((StubAltLocTracker)uploader.getAltLocTracker()).getAddedLocs().isEmpty());
+            assertFalse(altLocManager.getDirect(UrnHelper.SHA1).hasAlternateLocations());
+            assertTrue(altLocManager.hasAltlocs(UrnHelper.SHA1));
+            assertEquals("tls=C,6.3.2.1:52,8.3.2.1,1.2.3.4:5213",
+                    altLocManager.getDirectHeaderValue(UrnHelper.SHA1, new Cursor()).httpStringValue());
+            
+            interceptor.process(new BasicHeader("X-NAlt", "8.3.2.1,6.3.2.1:52"), null);
+            assertEquals("1.2.3.4:5213", altLocManager.getDirectHeaderValue(UrnHelper.SHA1, new Cursor()).httpStringValue());
+        } finally {
+            UploadSettings.COMPACT_ALT_LOCS.revertToDefault();
+        }
+    }
+    
+    public void testReadAltLocsInCompactFormSkipsSelf() throws Exception {
+        UploadSettings.COMPACT_ALT_LOCS.setValue(true);
+        networkInstanceUtils = new SimpleNetworkInstanceUtils() {
+            @Override
+            public boolean isMe(byte[] address, int port) {
+                return Arrays.equals(new byte[] { 8, 3, 2, 1 }, address) && port == 6346;
+            }
+        };
+        try {
+            MockHTTPUploader uploader = new MockHTTPUploader();
+            AltLocHeaderInterceptor interceptor = new AltLocHeaderInterceptor(uploader, altLocManager, alternateLocationFactory, networkInstanceUtils);
+            interceptor.process(new BasicHeader("X-Alt", "tls=60,1.2.3.4:5213,8.3.2.1,6.3.2.1:52\r\n"), null);
+            
+            // the tls index still counts the skipped location
+            assertEquals("tls=8,6.3.2.1:52,1.2.3.4:5213",
+                    altLocManager.getDirectHeaderValue(UrnHelper.SHA1, new Cursor()).httpStringValue());
+        } finally {
+            UploadSettings.COMPACT_ALT_LOCS.revertToDefault();
+        }
+    }
     
+    public void testReadAltLocsInCompactFormNotifiesListeners() throws Exception {
+        UploadSettings.COMPACT_ALT_LOCS.setValue(true);
+        final AtomicInteger received = new AtomicInteger(0);
+        AltLocListener listener = new AltLocListener() {
+            public void locationAdded(AlternateLocation loc) {
+                check(loc, "1.2.3.4", 5213, false);
+                received.incrementAndGet();
+            }
+        };
+        altLocManager.addListener(UrnHelper.SHA1, listener);
+        try {
+            MockHTTPUploader uploader = new MockHTTPUploader();
+            AltLocHeaderInterceptor interceptor = new AltLocHeaderInterceptor(uploader, altLocManager, alternateLocationFactory, networkInstanceUtils);
+            interceptor.process(new BasicHeader("X-Alt", "1.2.3.4:5213"), null);
+        } finally {
+            altLocManager.removeListener(UrnHelper.SHA1, listener);
+            UploadSettings.COMPACT_ALT_LOCS.revertToDefault();
+        }
+        
+        // a download is interested, so the location is kept in both forms
+        assertEquals(1, received.get());
+        assertEquals(1, altLocManager.getDirect(UrnHelper.SHA1).getAltLocsSize());
+        assertEquals("1.2.3.4:5213", altLocManager.getDirectHeaderValue(UrnHelper.SHA1, new Cursor()).httpStringValue());
+    }
 }
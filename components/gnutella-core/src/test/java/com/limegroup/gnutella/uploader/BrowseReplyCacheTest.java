@@ -0,0 +1,151 @@
+package com.limegroup.gnutella.uploader;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Test;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.limewire.listener.EventListener;
+import org.limewire.security.SecurityToken;
+import org.limewire.util.BaseTestCase;
+import org.limewire.util.MatchAndCopy;
+import org.limewire.util.PrivilegedAccessor;
+
+import com.google.inject.Provider;
+import com.limegroup.gnutella.Response;
+import com.limegroup.gnutella.ResponseFactory;
+import com.limegroup.gnutella.library.FileDesc;
+import com.limegroup.gnutella.library.FileView;
+import com.limegroup.gnutella.library.FileViewChangeEvent;
+import com.limegroup.gnutella.messages.OutgoingQueryReplyFactory;
+import com.limegroup.gnutella.messages.QueryReply;
+import com.limegroup.gnutella.messages.QueryReplyFactory;
+
+public class BrowseReplyCacheTest extends BaseTestCase {
+
+    private static final byte[] GUID = new byte[16];
+
+    private Mockery context;
+
+    private FileView view;
+
+    private ResponseFactory responseFactory;
+
+    private OutgoingQueryReplyFactory outgoingQueryReplyFactory;
+
+    private QueryReplyFactory queryReplyFactory;
+
+    private BrowseReplyCache cache;
+
+    private MatchAndCopy<EventListener> listener;
+
+    public BrowseReplyCacheTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(BrowseReplyCacheTest.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    protected void setUp() throws Exception {
+        context = new Mockery();
+        view = context.mock(FileView.class);
+        responseFactory = context.mock(ResponseFactory.class);
+        outgoingQueryReplyFactory = context.mock(OutgoingQueryReplyFactory.class);
+        queryReplyFactory = context.mock(QueryReplyFactory.class);
+        listener = new MatchAndCopy<EventListener>(EventListener.class);
+        context.checking(new Expectations() {{
+            one(view).addListener(with(listener));
+        }});
+        cache = new BrowseReplyCache(new Provider<ResponseFactory>() {
+            public ResponseFactory get() {
+                return responseFactory;
+            }
+        }, outgoingQueryReplyFactory, queryReplyFactory);
+    }
+
+    public void testRepeatedPagesAreCopied() throws Exception {
+        final List<FileDesc> files = Arrays.asList(file(1), file(2));
+        final QueryReply reply = context.mock(QueryReply.class, "reply");
+        final QueryReply copy = context.mock(QueryReply.class, "copy");
+        context.checking(new Expectations() {{
+            exactly(2).of(responseFactory).createResponse(with(any(FileDesc.class)));
+            will(returnValue(null));
+            one(outgoingQueryReplyFactory).createReplies(with(any(Response[].class)),
+                    with(equal(BrowseReplyCache.RESPONSES_PER_REPLY)), with(aNull(SecurityToken.class)),
+                    with(same(GUID)), with(equal((byte)1)), with(equal(false)), with(equal(true)));
+            will(returnValue(Collections.singletonList(reply)));
+            one(queryReplyFactory).createQueryReply(GUID, reply);
+            will(returnValue(copy));
+        }});
+
+        assertEquals(Collections.singletonList(reply), cache.getReplies(view, files, GUID, true));
+        assertEquals(Collections.singletonList(copy), cache.getReplies(view, files, GUID, true));
+        assertEquals(1, PrivilegedAccessor.getValue(cache, "hits"));
+        assertEquals(1, PrivilegedAccessor.getValue(cache, "misses"));
+        context.assertIsSatisfied();
+    }
+
+    public void testDifferentFilesAreEncodedAgain() throws Exception {
+        context.checking(new Expectations() {{
+            allowing(responseFactory).createResponse(with(any(FileDesc.class)));
+            exactly(3).of(outgoingQueryReplyFactory).createReplies(with(any(Response[].class)),
+                    with(any(Integer.class)), with(aNull(SecurityToken.class)), with(same(GUID)),
+                    with(any(Byte.class)), with(any(Boolean.class)), with(any(Boolean.class)));
+            will(returnValue(Collections.emptyList()));
+        }});
+
+        FileDesc first = file(1);
+        cache.getReplies(view, Arrays.asList(first, file(2)), GUID, true);
+        cache.getReplies(view, Arrays.asList(first), GUID, true);
+        cache.getReplies(view, Arrays.asList(first), GUID, false);
+        assertEquals(3, PrivilegedAccessor.getValue(cache, "misses"));
+        context.assertIsSatisfied();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testChangesDropPages() throws Exception {
+        final FileDesc first = file(1);
+        final FileDesc other = file(BrowseReplyCache.FILES_PER_PAGE);
+        context.checking(new Expectations() {{
+            allowing(responseFactory).createResponse(with(any(FileDesc.class)));
+            allowing(outgoingQueryReplyFactory).createReplies(with(any(Response[].class)),
+                    with(any(Integer.class)), with(aNull(SecurityToken.class)), with(same(GUID)),
+                    with(any(Byte.class)), with(any(Boolean.class)), with(any(Boolean.class)));
+            will(returnValue(Collections.emptyList()));
+        }});
+        cache.getReplies(view, Arrays.asList(first), GUID, true);
+        cache.getReplies(view, Arrays.asList(other), GUID, true);
+
+        // a change in the second page leaves the first alone
+        listener.getLastMatch().handleEvent(new FileViewChangeEvent(view,
+                FileViewChangeEvent.Type.FILE_META_CHANGED, file(BrowseReplyCache.FILES_PER_PAGE + 1)));
+        assertEquals(1, PrivilegedAccessor.getValue(cache, "invalidations"));
+        cache.getReplies(view, Arrays.asList(first), GUID, true);
+        cache.getReplies(view, Arrays.asList(other), GUID, true);
+        assertEquals(1, PrivilegedAccessor.getValue(cache, "hits"));
+        assertEquals(3, PrivilegedAccessor.getValue(cache, "misses"));
+
+        listener.getLastMatch().handleEvent(new FileViewChangeEvent(view,
+                FileViewChangeEvent.Type.FILES_CLEARED, false));
+        assertEquals(3, PrivilegedAccessor.getValue(cache, "invalidations"));
+        context.assertIsSatisfied();
+    }
+
+    private FileDesc file(final int index) {
+        final FileDesc fd = context.mock(FileDesc.class, "file " + index);
+        context.checking(new Expectations() {{
+            allowing(fd).getIndex();
+            will(returnValue(index));
+            allowing(fd).getFile();
+            will(returnValue(new File("file" + index)));
+        }});
+        return fd;
+    }
+}
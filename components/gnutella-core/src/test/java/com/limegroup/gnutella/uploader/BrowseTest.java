@@ -21,6 +21,7 @@ import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.params.HttpProtocolParams;
 import org.limewire.core.settings.ConnectionSettings;
 import org.limewire.core.settings.NetworkSettings;
+import org.limewire.core.settings.UploadSettings;
 import org.limewire.gnutella.tests.LimeTestCase;
 import org.limewire.gnutella.tests.LimeTestUtils;
 import org.limewire.http.httpclient.HttpClientUtils;
@@ -92,6 +93,17 @@ public class BrowseTest extends LimeTestCase {
     }
 
     public void testBrowse() throws Exception {
+        assertBrowse();
+    }
+
+    public void testBrowseReplyCache() throws Exception {
+        UploadSettings.BROWSE_REPLY_CACHE.setValue(true);
+        // the second browse is sent from the cached replies
+        assertBrowse();
+        assertBrowse();
+    }
+
+    private void assertBrowse() throws Exception {
         HttpGet method = new HttpGet(host + "/");
         method.addHeader("Accept", "application/x-gnutella-packets");
         HttpResponse response = null;
@@ -15,6 +15,7 @@ import org.apache.http.HttpResponse;
 import org.apache.http.HttpVersion;
 import org.apache.http.message.BasicHttpResponse;
 import org.limewire.collection.BitNumbers;
+import org.limewire.core.settings.UploadSettings;
 import org.limewire.gnutella.tests.LimeTestUtils;
 import org.limewire.gnutella.tests.NetworkManagerStub;
 import org.limewire.io.Connectable;
@@ -47,6 +48,7 @@ import com.limegroup.gnutella.connection.ConnectionCheckerManager;
 import com.limegroup.gnutella.connection.RoutedConnectionFactory;
 import com.limegroup.gnutella.filters.IPFilter;
 import com.limegroup.gnutella.helpers.UrnHelper;
+import com.limegroup.gnutella.http.AltLocTracker;
 import com.limegroup.gnutella.messages.PingRequestFactory;
 import com.limegroup.gnutella.messages.vendor.CapabilitiesVMFactory;
 import com.limegroup.gnutella.simpp.SimppManager;
@@ -119,6 +121,34 @@ public class HTTPHeaderUtilsTest extends BaseTestCase {
         assertEquals("tls=68,1.2.3.4:5,2.3.4.6,7.3.2.1,2.1.5.3:6201,1.2.65.2", header.getValue());
     }
     
+    public void testWritesCompactAltsOnce() throws Exception {
+        UploadSettings.COMPACT_ALT_LOCS.setValue(true);
+        try {
+            AltLocTracker altLocTracker = new AltLocTracker(UrnHelper.SHA1);
+            HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+            httpHeaderUtils.addAltLocationsHeader(response, altLocTracker, altLocManager);
+            assertNull(response.getLastHeader("X-Alt"));
+            
+            altLocManager.addDirect(UrnHelper.SHA1, new byte[] { 1, 2, 3, 4 }, 5, false);
+            altLocManager.addDirect(UrnHelper.SHA1, new byte[] { 2, 3, 4, 6 }, 6346, true);
+            response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+            httpHeaderUtils.addAltLocationsHeader(response, altLocTracker, altLocManager);
+            assertEquals("tls=8,2.3.4.6,1.2.3.4:5", response.getLastHeader("X-Alt").getValue());
+            
+            // nothing new
+            response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+            httpHeaderUtils.addAltLocationsHeader(response, altLocTracker, altLocManager);
+            assertNull(response.getLastHeader("X-Alt"));
+            
+            altLocManager.addDirect(UrnHelper.SHA1, new byte[] { 7, 3, 2, 1 }, 6346, false);
+            response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+            httpHeaderUtils.addAltLocationsHeader(response, altLocTracker, altLocManager);
+            assertEquals("7.3.2.1", response.getLastHeader("X-Alt").getValue());
+        } finally {
+            UploadSettings.COMPACT_ALT_LOCS.revertToDefault();
+        }
+    }
+    
     public void testWritePushProxiesWhenEmpty() throws Exception {
         HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
         httpHeaderUtils.addProxyHeader(response);
@@ -0,0 +1,126 @@
+package com.limegroup.gnutella.uploader;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import junit.framework.Test;
+
+import org.limewire.core.settings.UploadSettings;
+import org.limewire.gnutella.tests.LimeTestCase;
+import org.limewire.util.PrivilegedAccessor;
+
+import com.limegroup.gnutella.URN;
+
+public class HotContentCacheTest extends LimeTestCase {
+
+    private File file;
+
+    private URN urn;
+
+    private HotContentCache cache;
+
+    public HotContentCacheTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(HotContentCacheTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        file = new File(_scratchDir, "hot");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(2 * HotContentCache.WINDOW_SIZE + 10);
+        raf.seek(HotContentCache.WINDOW_SIZE - 1);
+        raf.write(new byte[] { 1, 2 });
+        raf.close();
+        urn = URN.createSHA1Urn("urn:sha1:PLSTHIPQGSSZTS5FJUPAKUZWUGYQYPFB");
+        cache = new HotContentCache(null);
+    }
+
+    public void testRangesEndAtWindows() throws Exception {
+        ByteBuffer range = getRange(urn, HotContentCache.WINDOW_SIZE - 1, 100);
+        assertEquals(1, range.remaining());
+        assertEquals(1, range.get());
+
+        range = getRange(urn, HotContentCache.WINDOW_SIZE, 100);
+        assertEquals(100, range.remaining());
+        assertEquals(2, range.get());
+
+        range = getRange(urn, 2 * HotContentCache.WINDOW_SIZE, 100);
+        assertEquals(10, range.remaining());
+    }
+
+    public void testWindowsAreCachedOnceRequestedAgain() throws Exception {
+        getRange(urn, 0, 10);
+        getRange(urn, HotContentCache.WINDOW_SIZE, 10);
+        assertEquals(0L, cache.getSize());
+
+        // the second request admits the window, the third is a hit
+        getRange(urn, 100, 10);
+        assertEquals(3, PrivilegedAccessor.getValue(cache, "windowMisses"));
+        assertEquals((long)HotContentCache.WINDOW_SIZE, cache.getSize());
+        Future<ByteBuffer> hit = cache.getRange(urn, file, 200, 10);
+        assertTrue(hit.isDone());
+        assertEquals(10, hit.get().remaining());
+        assertEquals(1, PrivilegedAccessor.getValue(cache, "windowHits"));
+
+        // without a urn nothing is cached
+        getRange(null, HotContentCache.WINDOW_SIZE, 10);
+        getRange(null, HotContentCache.WINDOW_SIZE, 10);
+        assertEquals(3, PrivilegedAccessor.getValue(cache, "windowMisses"));
+        assertEquals((long)HotContentCache.WINDOW_SIZE, cache.getSize());
+    }
+
+    public void testMissingWindowFails() throws Exception {
+        try {
+            getRange(urn, 3 * HotContentCache.WINDOW_SIZE, 10);
+            fail("expected exception");
+        } catch (ExecutionException expected) {
+            assertInstanceof(IOException.class, expected.getCause());
+        }
+    }
+
+    public void testChangedFileIsMappedAgain() throws Exception {
+        getRange(urn, HotContentCache.WINDOW_SIZE - 1, 1);
+        assertEquals(1, getRange(urn, HotContentCache.WINDOW_SIZE - 1, 1).get());
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(HotContentCache.WINDOW_SIZE - 1);
+        raf.write(3);
+        raf.setLength(2 * HotContentCache.WINDOW_SIZE + 20);
+        raf.close();
+        file.setLastModified(file.lastModified() + 2000);
+
+        assertEquals(3, getRange(urn, HotContentCache.WINDOW_SIZE - 1, 1).get());
+        assertEquals(3, PrivilegedAccessor.getValue(cache, "windowMisses"));
+        assertEquals(0, PrivilegedAccessor.getValue(cache, "windowHits"));
+    }
+
+    public void testLeastRecentlyUsedAreEvicted() throws Exception {
+        UploadSettings.HOT_CONTENT_CACHE_SIZE.setValue(2 * HotContentCache.WINDOW_SIZE / (1024 * 1024));
+        for (int i = 0; i < HotContentCache.ADMIT_REQUESTS; i++) {
+            getRange(urn, 0, 10);
+            getRange(urn, HotContentCache.WINDOW_SIZE, 10);
+        }
+        getRange(urn, 0, 10);
+        for (int i = 0; i < HotContentCache.ADMIT_REQUESTS; i++)
+            getRange(urn, 2 * HotContentCache.WINDOW_SIZE, 10);
+        assertEquals(HotContentCache.WINDOW_SIZE + 10L, cache.getSize());
+
+        // the second window was evicted, the first was used more recently
+        getRange(urn, 0, 10);
+        assertEquals(2, PrivilegedAccessor.getValue(cache, "windowHits"));
+        getRange(urn, HotContentCache.WINDOW_SIZE, 10);
+        assertEquals(3 * HotContentCache.ADMIT_REQUESTS + 1, PrivilegedAccessor.getValue(cache, "windowMisses"));
+    }
+
+    private ByteBuffer getRange(URN urn, long position, long length) throws Exception {
+        return cache.getRange(urn, file, position, length).get();
+    }
+}
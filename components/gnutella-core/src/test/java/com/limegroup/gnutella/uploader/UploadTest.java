@@ -545,6 +545,67 @@ public class UploadTest extends LimeTestCase {
         }
     }
 
+    public void testHTTP11ZeroCopyDownload() throws Exception {
+        UploadSettings.ZERO_COPY_UPLOADS.setValue(true);
+        UploadSettings.UPLOAD_SPEED.setValue(100);
+        // two requests on one connection, to check the first one is complete
+        for (String range : new String[] { "bytes=2-5", "bytes=20-" }) {
+            HttpGet method = new HttpGet(fileNameUrl);
+            method.addHeader("Range", range);
+            HttpResponse response = null;
+            try {
+                response = client.execute(method);
+                assertEquals(HttpStatus.SC_PARTIAL_CONTENT, response.getStatusLine().getStatusCode());
+                String expected = range.equals("bytes=2-5") ? "cdef" : "uvwxyz";
+                assertEquals(expected, EntityUtils.toString(response.getEntity()));
+            } finally {
+                HttpClientUtils.releaseConnection(response);
+            }
+        }
+    }
+
+    public void testHTTP11HotContentCache() throws Exception {
+        UploadSettings.HOT_CONTENT_CACHE.setValue(true);
+        HotContentCache cache = injector.getInstance(HotContentCache.class);
+        for (String range : new String[] { "bytes=2-5", "bytes=20-", "bytes=2-5" }) {
+            HttpGet method = new HttpGet(fileNameUrl);
+            method.addHeader("Range", range);
+            HttpResponse response = null;
+            try {
+                response = client.execute(method);
+                assertEquals(HttpStatus.SC_PARTIAL_CONTENT, response.getStatusLine().getStatusCode());
+                String expected = range.equals("bytes=2-5") ? "cdef" : "uvwxyz";
+                assertEquals(expected, EntityUtils.toString(response.getEntity()));
+            } finally {
+                HttpClientUtils.releaseConnection(response);
+            }
+        }
+        // the window is cached once it is requested again
+        assertEquals(2, PrivilegedAccessor.getValue(cache, "windowMisses"));
+        assertEquals(1, PrivilegedAccessor.getValue(cache, "windowHits"));
+
+        HashTree tree = getThexTree(injector.getInstance(HashTreeCache.class));
+        byte[] first = null;
+        for (int i = 0; i < 2; i++) {
+            HttpGet method = new HttpGet("http://localhost:" + PORT + "/uri-res/N2X?" + hash);
+            HttpResponse response = null;
+            try {
+                response = client.execute(method);
+                assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+                byte[] thex = EntityUtils.toByteArray(response.getEntity());
+                if (first == null)
+                    first = thex;
+                else
+                    assertEquals(first, thex);
+            } finally {
+                HttpClientUtils.releaseConnection(response);
+            }
+        }
+        assertNotNull(tree);
+        assertEquals(1, PrivilegedAccessor.getValue(cache, "thexMisses"));
+        assertEquals(1, PrivilegedAccessor.getValue(cache, "thexHits"));
+    }
+
     public void testHTTP11DownloadRangeNoSpace() throws Exception {
         HttpGet method = new HttpGet(fileNameUrl);
         method.addHeader(new BasicHeader("Range", "bytes 2-5") {
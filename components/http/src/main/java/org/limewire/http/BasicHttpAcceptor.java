@@ -4,8 +4,6 @@ import java.io.IOException;
 import java.net.Socket;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
@@ -44,7 +42,6 @@ import org.limewire.lifecycle.Service;
 import org.limewire.net.ConnectionAcceptor;
 import org.limewire.net.ConnectionDispatcher;
 import org.limewire.nio.NIODispatcher;
-import org.limewire.service.ErrorService;
 
 /**
  * Processes HTTP requests which are forwarded to {@link HttpRequestHandler}
@@ -73,7 +70,7 @@ public abstract class BasicHttpAcceptor implements ConnectionAcceptor, Service {
 
     private final HttpParams params; 
     
-    private DispatchedIOReactor reactor;
+    private volatile DispatchedIOReactor reactor;
 
     private ConnectionEventListener connectionListener;
 
@@ -122,11 +119,10 @@ public abstract class BasicHttpAcceptor implements ConnectionAcceptor, Service {
     }
     
     /**
-     * Note: Needs to be called from the NIODispatcher thread.
+     * Creates the reactor.  It is not bound to a channel, every session it
+     * accepts runs on the NIO thread of its own socket.
      */
     private void initializeReactor() {
-        assert NIODispatcher.instance().isDispatchThread();
-        
         this.connectionListener = new ConnectionEventListener();
 
         responseFactory = new DefaultHttpResponseFactory();
@@ -136,7 +132,7 @@ public abstract class BasicHttpAcceptor implements ConnectionAcceptor, Service {
         serviceHandler.setEventListener(connectionListener);
         serviceHandler.setHandlerResolver(this.registry);
 
-        this.reactor = new DefaultDispatchedIOReactor(params, NIODispatcher.instance().getScheduledExecutorService());
+        this.reactor = new DefaultDispatchedIOReactor(params);
         IOEventDispatch ioEventDispatch = new DefaultServerIOEventDispatch(
                 serviceHandler, params);
         try {
@@ -264,25 +260,7 @@ public abstract class BasicHttpAcceptor implements ConnectionAcceptor, Service {
             throw new IllegalStateException();
         }
         
-        final AtomicBoolean inited = new AtomicBoolean(false);
-        try {
-            Future<?> result = NIODispatcher.instance().getScheduledExecutorService().submit(new Runnable() {
-                public void run() {
-                    initializeReactor();
-                    inited.set(true);
-                }
-            });
-            
-            // wait for reactor to finish initialization
-            result.get();
-        } catch (InterruptedException e) {
-            if (inited.get())
-                LOG.warn("Interrupted while waiting for reactor initialization", e);
-            else
-                ErrorService.error(e); // this is a problem.
-        } catch (ExecutionException e) {
-            ErrorService.error(e);
-        }
+        initializeReactor();
     }
 
     /**
@@ -36,7 +36,7 @@ public abstract class AbstractProducingNHttpEntity extends AbstractHttpEntity im
     protected void activateTimeout() {
         if (this.watchdog == null) {
             this.watchdog = new StalledUploadWatchdog(timeout, NIODispatcher.instance()
-                    .getScheduledExecutorService());
+                    .getCurrentScheduledExecutorService());
         }
         this.watchdog.activate(timeoutable);
     }
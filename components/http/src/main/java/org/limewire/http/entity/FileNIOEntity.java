@@ -240,7 +240,7 @@ public class FileNIOEntity extends FileEntity implements ProducingNHttpEntity {
 
     protected void activateTimeout() {
         if (this.watchdog == null) {
-            this.watchdog = new StalledUploadWatchdog(timeout, NIODispatcher.instance().getScheduledExecutorService());
+            this.watchdog = new StalledUploadWatchdog(timeout, NIODispatcher.instance().getCurrentScheduledExecutorService());
         }
         this.watchdog.activate(timeoutable);
     }
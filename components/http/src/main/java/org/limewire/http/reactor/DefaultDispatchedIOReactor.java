@@ -17,6 +17,7 @@ import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.ExecutionContext;
 import org.limewire.io.IOUtils;
 import org.limewire.nio.AbstractNBSocket;
+import org.limewire.nio.NIODispatcher;
 import org.limewire.nio.channel.ThrottleWriter;
 
 /**
@@ -37,6 +38,19 @@ public class DefaultDispatchedIOReactor implements DispatchedIOReactor {
     
     private final Executor ioExecutor;
     
+    /**
+     * Constructs a reactor whose sessions run their tasks on the NIO thread
+     * of their socket.
+     */
+    public DefaultDispatchedIOReactor(final HttpParams params) {
+        this(params, null);
+    }
+    
+    /**
+     * Constructs a reactor whose sessions run their tasks on 
+     * <code>ioExecutor</code>, or on the NIO thread of their socket if it
+     * is null.
+     */
     public DefaultDispatchedIOReactor(final HttpParams params, final Executor ioExecutor) {
         if (params == null) {
             throw new IllegalArgumentException();
@@ -68,7 +82,8 @@ public class DefaultDispatchedIOReactor implements DispatchedIOReactor {
      * Connects <code>socket</code> to LimeWire's NIO layer. 
      */
     protected NHttpConnection connectSocket(AbstractNBSocket socket, Object attachment, String word) {
-        final HttpIOSession session = new HttpIOSession(socket, ioExecutor);        
+        final HttpIOSession session = new HttpIOSession(socket, ioExecutor != null ? ioExecutor
+                : NIODispatcher.instance().getScheduledExecutorService(socket.getChannel()));
         
         session.setAttribute(IOSession.ATTACHMENT_KEY, attachment);
         session.setSocketTimeout(HttpConnectionParams.getSoTimeout(this.params));
@@ -76,7 +91,8 @@ public class DefaultDispatchedIOReactor implements DispatchedIOReactor {
         HttpChannel channel = new HttpChannel(session, eventDispatch, word);
         session.setHttpChannel(channel);
 
-        ThrottleWriter throttleWriter = new ThrottleWriter(null);
+        ThrottleWriter throttleWriter = new ThrottleWriter(null, null,
+                NIODispatcher.instance().getScheduledExecutorService(socket.getChannel()));
         session.setThrottleChannel(throttleWriter);
         channel.setWriteChannel(throttleWriter);
         
@@ -3,15 +3,19 @@ package org.limewire.http.reactor;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.nio.reactor.IOEventDispatch;
+import org.limewire.nio.NIOSocket;
 import org.limewire.nio.channel.ChannelReadObserver;
 import org.limewire.nio.channel.ChannelWriter;
 import org.limewire.nio.channel.InterestReadableByteChannel;
 import org.limewire.nio.channel.InterestWritableByteChannel;
+import org.limewire.nio.ssl.SSLUtils;
 import org.limewire.util.BufferUtils;
 import org.limewire.util.StringUtils;
 
@@ -134,6 +138,39 @@ public class HttpChannel implements ByteChannel, ChannelReadObserver, ChannelWri
         return written;
     }
 
+    /**
+     * Returns true if {@link #transferFrom(FileChannel, long, long)} can
+     * write to the socket of this channel, i.e. it is a plain TCP socket.
+     */
+    public boolean canTransferFrom() {
+        return session.getSocket() instanceof NIOSocket
+                && !SSLUtils.isTLSEnabled(session.getSocket());
+    }
+
+    /**
+     * Writes up to <code>count</code> bytes of <code>src</code> from
+     * <code>position</code> straight to the socket using
+     * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+     * which lets the operating system send the file without copying it.
+     * Nothing is written while earlier writes are still buffered.
+     * <p>
+     * The data bypasses the channels in between, including the throttle, so
+     * this must only be used if the session is not throttled.
+     * 
+     * @return the number of bytes written
+     * @see #canTransferFrom()
+     */
+    public long transferFrom(FileChannel src, long position, long count) throws IOException {
+        InterestWritableByteChannel source = writeSource;
+        if (source == null || source.hasBufferedOutput()) {
+            return 0;
+        }
+        SocketChannel target = ((NIOSocket) session.getSocket()).getChannel();
+        long written = src.transferTo(position, Math.min(count, Integer.MAX_VALUE), target);
+        upCount((int) written);
+        return written;
+    }
+
     public void handleRead() throws IOException {
         if (!readInterest) {
             LOG
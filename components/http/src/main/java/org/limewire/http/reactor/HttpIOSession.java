@@ -66,6 +66,13 @@ public class HttpIOSession implements IOSession {
         return channel;
     }
 
+    /**
+     * Returns the channel of this session.
+     */
+    public HttpChannel getHttpChannel() {
+        return channel;
+    }
+
     public void close() {
         if (this.closed.getAndSet(true)) {
             return;
@@ -22,6 +22,7 @@ import org.limewire.net.SocketsManager;
 import org.limewire.net.SocketsManager.ConnectType;
 import org.limewire.nio.AbstractNBSocket;
 import org.limewire.nio.NBSocket;
+import org.limewire.nio.NIODispatcher;
 import org.limewire.nio.observer.ConnectObserver;
 
 public class LimeConnectingIOReactor implements ConnectingIOReactor {
@@ -39,6 +40,11 @@ public class LimeConnectingIOReactor implements ConnectingIOReactor {
     
     private final HttpBandwidthTracker up, down;
     
+    /**
+     * Constructs a reactor whose sessions run their tasks on 
+     * <code>ioExecutor</code>, or on the NIO thread of their socket if it
+     * is null.
+     */
     public LimeConnectingIOReactor(final HttpParams params, final Executor ioExecutor,
             SocketsManager socketsManager, HttpBandwidthTracker up, HttpBandwidthTracker down) {
         if (params == null) {
@@ -57,6 +63,14 @@ public class LimeConnectingIOReactor implements ConnectingIOReactor {
         this(params, ioExecutor,socketsManager, new HttpBandwidthTracker(), new HttpBandwidthTracker());
     }
     
+    /**
+     * Constructs a reactor whose sessions run their tasks on the NIO thread
+     * of their socket.
+     */
+    public LimeConnectingIOReactor(final HttpParams params, SocketsManager socketsManager) {
+        this(params, null, socketsManager);
+    }
+    
     public void execute(IOEventDispatch eventDispatch) throws IOException {
         if (!(eventDispatch instanceof DefaultClientIOEventDispatch)) {
             throw new IllegalArgumentException("Event dispatch must be of type DefaultClientIOEventDispatch");
@@ -122,7 +136,8 @@ public class LimeConnectingIOReactor implements ConnectingIOReactor {
             socket.setSoLinger(linger > 0, linger);
         }
         
-        final HttpIOSession session = new HttpIOSession(socket, ioExecutor); 
+        final HttpIOSession session = new HttpIOSession(socket, ioExecutor != null ? ioExecutor
+                : NIODispatcher.instance().getScheduledExecutorService(socket.getChannel()));
         
         session.setAttribute(IOSession.ATTACHMENT_KEY, attachment);
         session.setSocketTimeout(HttpConnectionParams.getSoTimeout(this.params));
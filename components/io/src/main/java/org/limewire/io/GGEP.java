@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -26,6 +27,12 @@ import org.limewire.util.StringUtils;
  * necessary (e.g., for query replies), GGEP will COBS-encode values to remove
  * null bytes.  The order of the extensions is immaterial.  Extensions supported
  * by LimeWire have keys specified in this class (prefixed by GGEP_HEADER...)  
+ * <p>
+ * A block created with {@link #createLazy(byte[], int, int[])} is a view over
+ * the bytes it was read from.  Only the structure of the block is checked up
+ * front; keys are looked up and values are decoded when they are asked for.
+ * Such a block is decoded into a map the first time it is modified, and until
+ * then it is written out by copying the original bytes.
  */
 public class GGEP {
 
@@ -50,7 +57,18 @@ public class GGEP {
      * strings.  But strings are convenient for keys since they define hashCode
      * and equals.
      */
-    private final Map<String, Object> _props = new TreeMap<String, Object>();
+    private volatile Map<String, Object> _props;
+
+    /**
+     * The bytes a lazily decoded block was read from, or null if this block
+     * was decoded eagerly or has been modified since.  The block spans
+     * _raw[_rawBegin] up to _raw[_rawEnd-1].
+     */
+    private volatile byte[] _raw;
+
+    private final int _rawBegin;
+
+    private final int _rawEnd;
 
     /** True if COBS encoding is required. */
     private final boolean useCOBS;
@@ -73,6 +91,9 @@ public class GGEP {
      */
     public GGEP(boolean useCOBS) {
         this.useCOBS = useCOBS;
+        this._props = new TreeMap<String, Object>();
+        this._rawBegin = -1;
+        this._rawEnd = -1;
     }    
 
     /**  Creates a new empty GGEP block that does not needs COBS encoding. */
@@ -109,6 +130,10 @@ public class GGEP {
     public GGEP(byte[] messageBytes, final int beginOffset, int[] endOffset) 
       throws BadGGEPBlockException {
 
+        _props = new TreeMap<String, Object>();
+        _rawBegin = -1;
+        _rawEnd = -1;
+
         if (messageBytes.length - beginOffset < 4)
             throw new BadGGEPBlockException();
 
@@ -198,21 +223,198 @@ public class GGEP {
         
         useCOBS = tUseCOBS;
     }
+
+    /** Constructs a lazily decoded view over an already checked block. */
+    private GGEP(byte[] raw, int begin, int end, boolean useCOBS) {
+        this._raw = raw;
+        this._rawBegin = begin;
+        this._rawEnd = end;
+        this.useCOBS = useCOBS;
+    }
+
+    /**
+     * Returns a lazily decoded GGEP view of the block beginning at
+     * messageBytes[beginOffset].  The extension headers are checked as
+     * {@link #GGEP(byte[], int, int[])} does, but no values are copied or
+     * decoded until they are read.  Values whose COBS encoding or compression
+     * is corrupt are treated as having no data, rather than failing the
+     * whole block.
+     * <p>
+     * messageBytes must not be modified while the returned block is in use.
+     * 
+     * @param messageBytes the bytes of the message.
+     * @param beginOffset the begin index of the GGEP prefix.
+     * @param endOffset if non-null and not empty, endOffset[0] is set to one
+     *  above the ending index of the block.
+     * @exception BadGGEPBlockException Thrown if the block is malformed.
+     */
+    public static GGEP createLazy(byte[] messageBytes, int beginOffset, int[] endOffset) 
+      throws BadGGEPBlockException {
+        if (messageBytes.length - beginOffset < 4)
+            throw new BadGGEPBlockException();
+        if (messageBytes[beginOffset] != GGEP_PREFIX_MAGIC_NUMBER)
+            throw new BadGGEPBlockException();
+        
+        boolean tUseCOBS = false;
+        boolean onLastExtension = false;
+        int currIndex = beginOffset + 1;
+        int[] toIncrement = new int[1];
+        while (!onLastExtension) {
+            if (currIndex >= messageBytes.length)
+                throw new BadGGEPBlockException();
+            byte flags = messageBytes[currIndex];
+            sanityCheck(flags);
+            onLastExtension = isLastExtension(flags);
+            currIndex += 1 + deriveHeaderLength(flags);
+            if (currIndex > messageBytes.length)
+                throw new BadGGEPBlockException();
+            int dataLength = deriveDataLength(messageBytes, currIndex, toIncrement);
+            currIndex += toIncrement[0];
+            if (dataLength > 0) {
+                if (dataLength > messageBytes.length - currIndex)
+                    throw new BadGGEPBlockException();
+                if (isEncoded(flags))
+                    tUseCOBS = true;
+                currIndex += dataLength;
+            }
+        }
+        
+        if ((endOffset != null) && (endOffset.length > 0))
+            endOffset[0] = currIndex;
+        
+        return new GGEP(messageBytes, beginOffset, currIndex, tUseCOBS);
+    }
     
     /**
      * Merges the other's GGEP with this' GGEP.
      */
     public void merge(GGEP other) {
-        _props.putAll(other._props);
+        Map<String, Object> otherProps = other.props();
+        mutableProps().putAll(otherProps);
     }   
 
-    private void sanityCheck(byte headerFlags) throws BadGGEPBlockException {
+    /**
+     * Returns the decoded key/value pairs, decoding a lazy block if
+     * necessary.  A lazy block keeps its original bytes.
+     */
+    private Map<String, Object> props() {
+        Map<String, Object> props = _props;
+        if (props == null) {
+            synchronized (this) {
+                props = _props;
+                if (props == null) {
+                    props = decodeAll(_raw, _rawBegin, _rawEnd);
+                    _props = props;
+                }
+            }
+        }
+        return props;
+    }
+
+    /**
+     * Returns the decoded key/value pairs for modification.  A lazy block
+     * forgets its original bytes, so it will be encoded from the map.
+     */
+    private Map<String, Object> mutableProps() {
+        Map<String, Object> props = props();
+        _raw = null;
+        return props;
+    }
+
+    /**
+     * Returns the index of the flags of the last extension in the raw block
+     * whose header is key, or -1 if there is none.  
+     */
+    private int indexOf(byte[] raw, String key) {
+        int keyLength = key.length();
+        int found = -1;
+        int[] toIncrement = new int[1];
+        try {
+            for (int currIndex = _rawBegin + 1; currIndex < _rawEnd; ) {
+                int headerLen = raw[currIndex] & 0x0F;
+                if (headerLen == keyLength && matches(raw, currIndex + 1, key))
+                    found = currIndex;
+                currIndex += 1 + headerLen;
+                int dataLength = deriveDataLength(raw, currIndex, toIncrement);
+                currIndex += toIncrement[0] + dataLength;
+            }
+        } catch (BadGGEPBlockException impossible) {
+            // the block was checked when it was created.
+            throw new IllegalStateException(impossible);
+        }
+        return found;
+    }
+
+    private static boolean matches(byte[] raw, int offset, String key) {
+        for (int i = 0; i < key.length(); i++) {
+            if (raw[offset + i] != key.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the value of the extension whose flags are at raw[index].
+     * @return the value, or null if the extension has no data
+     * @exception IOException the value could not be decoded
+     */
+    private static byte[] decodeValue(byte[] raw, int index) throws IOException {
+        byte flags = raw[index];
+        int currIndex = index + 1 + (flags & 0x0F);
+        int[] toIncrement = new int[1];
+        int dataLength;
+        try {
+            dataLength = deriveDataLength(raw, currIndex, toIncrement);
+        } catch (BadGGEPBlockException impossible) {
+            throw new IllegalStateException(impossible);
+        }
+        if (dataLength == 0)
+            return null;
+        currIndex += toIncrement[0];
+        byte[] data = new byte[dataLength];
+        System.arraycopy(raw, currIndex, data, 0, dataLength);
+        if (isEncoded(flags))
+            data = GGEP.cobsDecode(data);
+        if (isCompressed(flags))
+            data = IOUtils.inflate(data);
+        return data;
+    }
+
+    /** Decodes every extension of the raw block into a new map. */
+    private static Map<String, Object> decodeAll(byte[] raw, int begin, int end) {
+        Map<String, Object> props = new TreeMap<String, Object>();
+        int[] toIncrement = new int[1];
+        try {
+            for (int currIndex = begin + 1; currIndex < end; ) {
+                byte flags = raw[currIndex];
+                int headerLen = flags & 0x0F;
+                String extensionHeader = StringUtils.getASCIIString(raw, currIndex + 1, headerLen);
+                try {
+                    byte[] data = decodeValue(raw, currIndex);
+                    if (isCompressed(flags))
+                        props.put(extensionHeader, new NeedsCompression(data));
+                    else
+                        props.put(extensionHeader, data);
+                } catch (IOException corrupt) {
+                    props.put(extensionHeader, null);
+                }
+                currIndex += 1 + headerLen;
+                int dataLength = deriveDataLength(raw, currIndex, toIncrement);
+                currIndex += toIncrement[0] + dataLength;
+            }
+        } catch (BadGGEPBlockException impossible) {
+            throw new IllegalStateException(impossible);
+        }
+        return props;
+    }
+
+    private static void sanityCheck(byte headerFlags) throws BadGGEPBlockException {
         // the 4th bit in the header's first byte must be 0.
         if ((headerFlags & 0x10) != 0)
             throw new BadGGEPBlockException();
     }
         
-    private boolean isLastExtension(byte headerFlags) {
+    private static boolean isLastExtension(byte headerFlags) {
         boolean retBool = false;
         // the 8th bit in the header's first byte, when set, indicates that
         // this header is the last....
@@ -222,7 +424,7 @@ public class GGEP {
     }
 
 
-    private boolean isEncoded(byte headerFlags) {
+    private static boolean isEncoded(byte headerFlags) {
         boolean retBool = false;
         // the 7th bit in the header's first byte, when set, indicates that
         // this header is the encoded with COBS
@@ -232,7 +434,7 @@ public class GGEP {
     }
 
 
-    private boolean isCompressed(byte headerFlags) {
+    private static boolean isCompressed(byte headerFlags) {
         boolean retBool = false;
         // the 6th bit in the header's first byte, when set, indicates that
         // this header is the compressed with deflate
@@ -242,7 +444,7 @@ public class GGEP {
     }
 
 
-    private int deriveHeaderLength(byte headerFlags) 
+    private static int deriveHeaderLength(byte headerFlags) 
         throws BadGGEPBlockException {
         int retInt = 0;
         // bits 0-3 give the length of the extension header (1-15)
@@ -255,7 +457,7 @@ public class GGEP {
     /** @param increment a int array of size >0.  i'll put the number of bytes
      *  devoted to data storage in increment[0].
      */
-    private int deriveDataLength(byte[] buff, int beginOffset, int increment[]) 
+    private static int deriveDataLength(byte[] buff, int beginOffset, int increment[]) 
         throws BadGGEPBlockException {
         int length = 0, iterations = 0;
         // the length is stored in at most 3 bytes....
@@ -281,11 +483,19 @@ public class GGEP {
      *  @exception IOException thrown if had error writing to out.
      */
     public void write(OutputStream out) throws IOException {
-        if (getHeaders().size() > 0) {
+        byte[] raw = _raw;
+        if (raw != null) {
+            // unmodified since it was read, so the original bytes will do
+            out.write(raw, _rawBegin, _rawEnd - _rawBegin);
+            return;
+        }
+        
+        Map<String, Object> props = props();
+        if (props.size() > 0) {
             // start with the magic prefix
             out.write(GGEP_PREFIX_MAGIC_NUMBER);
 
-            Iterator<String> headers = getHeaders().iterator();
+            Iterator<String> headers = props.keySet().iterator();
             // for each header, write the GGEP header and data
             while (headers.hasNext()) {
                 String currHeader = headers.next();
@@ -333,7 +543,7 @@ public class GGEP {
     }
     
     private final boolean shouldCompress(String header) {
-        return (_props.get(header) instanceof NeedsCompression);
+        return (props().get(header) instanceof NeedsCompression);
     }
     
     private void writeHeader(String header, final int dataLen, 
@@ -431,7 +641,7 @@ public class GGEP {
         if(value == null)
             throw new IllegalArgumentException("null value for key: " + key);
         //validateValue(value); // done when writing.  TODO: do here?
-        _props.put(key, new NeedsCompression(value));
+        mutableProps().put(key, new NeedsCompression(value));
     }
     
     /** 
@@ -455,7 +665,7 @@ public class GGEP {
     public void put(String key, byte[] value) throws IllegalArgumentException {
         validateKey(key);
         validateValue(value, key);
-        _props.put(key, value);
+        mutableProps().put(key, value);
     }
 
     /** 
@@ -524,7 +734,16 @@ public class GGEP {
      */
     public void put(String key) throws IllegalArgumentException {
         validateKey(key);
-        _props.put(key, null);
+        mutableProps().put(key, null);
+    }
+
+    /**
+     * Removes a key and its value, if this has the key.
+     * @param key the name of the GGEP extension
+     */
+    public void remove(String key) {
+        if (hasKey(key))
+            mutableProps().remove(key);
     }
 
     /**
@@ -608,7 +827,10 @@ public class GGEP {
      * @return true if this has a key
      */
     public boolean hasKey(String key) {
-        return _props.containsKey(key);
+        byte[] raw = _raw;
+        if (raw != null)
+            return indexOf(raw, key) != -1;
+        return props().containsKey(key);
     }
     
     /** Returns true if the GGEP has a non-null value for the key. */
@@ -618,25 +840,38 @@ public class GGEP {
 
     /** 
      * Returns the set of keys.
-     * @return a set of all the GGEP extension header name in this, each
-     *  as a String.
+     * @return an unmodifiable set of all the GGEP extension header name
+     *  in this, each as a String.
      */
     public Set<String> getHeaders() {
-        return _props.keySet();
+        return Collections.unmodifiableSet(props().keySet());
     }
     
     /**
      * Returns whether this GGEP is empty or not.
      */
     public boolean isEmpty() {
-        return _props.isEmpty();
+        if (_raw != null)
+            return false; // a block always has at least one extension
+        return props().isEmpty();
     }
     
     /**
      * Gets the byte[] data from props.
      */
     public byte[] get(String key) {
-        Object value = _props.get(key);
+        byte[] raw = _raw;
+        if (raw != null && _props == null) {
+            int index = indexOf(raw, key);
+            if (index == -1)
+                return null;
+            try {
+                return decodeValue(raw, index);
+            } catch (IOException corrupt) {
+                return null;
+            }
+        }
+        Object value = props().get(key);
         if(value instanceof NeedsCompression)
             return ((NeedsCompression)value).data;
         else
@@ -689,7 +924,7 @@ public class GGEP {
     /** Returns true if this is a subset of other, e.g., all of this' keys 
      *  can be found in OTHER with the same value. */
     private boolean subset(GGEP other) {
-        for(String key : _props.keySet()) {
+        for(String key : props().keySet()) {
             byte[] v1= this.get(key);
             byte[] v2= other.get(key);
             //Remember that v1 and v2 can be null.
@@ -705,7 +940,7 @@ public class GGEP {
     @Override
     public int hashCode() {
         if(hashCode == 0) {
-            hashCode = 37 * _props.hashCode();
+            hashCode = 37 * props().hashCode();
         }
         return hashCode;
     }
@@ -11,6 +11,7 @@ import org.limewire.io.IOUtils;
 import org.limewire.util.BaseTestCase;
 import org.limewire.util.ByteUtils;
 import org.limewire.util.NameValue;
+import org.limewire.util.PrivilegedAccessor;
 import org.limewire.util.StringUtils;
 
 import junit.framework.Test;
@@ -959,6 +960,122 @@ public class GGEPTest extends BaseTestCase {
 
     }
     
+    public void testLazyReadsValues() throws Exception {
+        byte[] nulls = new byte[] { 0, 1, 0, 2 };
+        GGEP one = new GGEP(true);
+        one.put("A", nulls);
+        one.put("B");
+        one.put("N", 1234);
+        one.putCompressed("Z", new byte[200]);
+        byte[] block = one.toByteArray();
+        
+        byte[] data = new byte[block.length + 5];
+        data[0] = 7;
+        System.arraycopy(block, 0, data, 1, block.length);
+        int[] end = new int[1];
+        GGEP lazy = GGEP.createLazy(data, 1, end);
+        assertEquals(block.length + 1, end[0]);
+        
+        assertTrue(lazy.hasKey("A"));
+        assertTrue(lazy.hasKey("B"));
+        assertFalse(lazy.hasKey("C"));
+        assertFalse(lazy.hasKey("AB"));
+        assertEquals(nulls, lazy.getBytes("A"));
+        assertNull(lazy.get("B"));
+        assertFalse(lazy.hasValueFor("B"));
+        assertEquals(1234, lazy.getInt("N"));
+        assertEquals(new byte[200], lazy.getBytes("Z"));
+        assertFalse(lazy.isEmpty());
+        assertEquals(one, lazy);
+        assertEquals(new GGEP(data, 1, null), lazy);
+    }
+    
+    public void testLazyWritesOriginalBytes() throws Exception {
+        GGEP one = new GGEP();
+        one.put("K", "value");
+        one.put("L", 5);
+        byte[] block = one.toByteArray();
+        
+        GGEP lazy = GGEP.createLazy(block, 0, null);
+        assertEquals(block, lazy.toByteArray());
+        // reading does not change what is written
+        assertEquals("value", lazy.getString("K"));
+        assertEquals(one, lazy);
+        assertEquals(2, lazy.getHeaders().size());
+        assertNotNull(PrivilegedAccessor.getValue(lazy, "_raw"));
+        assertEquals(block, lazy.toByteArray());
+        
+        lazy.put("M", 6);
+        lazy.remove("L");
+        lazy.remove("N");
+        GGEP written = new GGEP(lazy.toByteArray(), 0, null);
+        assertEquals("value", written.getString("K"));
+        assertFalse(written.hasKey("L"));
+        assertEquals(6, written.getInt("M"));
+    }
+    
+    public void testLazyMerge() throws Exception {
+        GGEP a = new GGEP();
+        a.put("A", 1);
+        GGEP b = new GGEP();
+        b.put("B", 2);
+        GGEP lazyA = GGEP.createLazy(a.toByteArray(), 0, null);
+        GGEP lazyB = GGEP.createLazy(b.toByteArray(), 0, null);
+        byte[] bBytes = lazyB.toByteArray();
+        
+        lazyA.merge(lazyB);
+        assertEquals(1, lazyA.getInt("A"));
+        assertEquals(2, lazyA.getInt("B"));
+        assertEquals(2, lazyA.getHeaders().size());
+        // the merged-from block is not modified
+        assertEquals(bBytes, lazyB.toByteArray());
+        assertEquals(2, new GGEP(lazyA.toByteArray(), 0, null).getHeaders().size());
+    }
+    
+    public void testLazyRejectsBadBlocks() throws Exception {
+        GGEP one = new GGEP();
+        one.put("Key", "some value");
+        byte[] block = one.toByteArray();
+        
+        try {
+            GGEP.createLazy(block, 1, null);
+            fail("no magic number");
+        } catch (BadGGEPBlockException expected) {}
+        
+        byte[] truncated = new byte[block.length - 2];
+        System.arraycopy(block, 0, truncated, 0, truncated.length);
+        try {
+            GGEP.createLazy(truncated, 0, null);
+            fail("truncated");
+        } catch (BadGGEPBlockException expected) {}
+        
+        byte[] notLast = block.clone();
+        notLast[1] &= 0x7F;
+        try {
+            GGEP.createLazy(notLast, 0, null);
+            fail("no last extension");
+        } catch (BadGGEPBlockException expected) {}
+    }
+    
+    public void testLazyCorruptValue() throws Exception {
+        // a COBS-encoded value whose code runs past the end of the data
+        byte[] block = new byte[] { GGEP.GGEP_PREFIX_MAGIC_NUMBER, 
+                (byte)0xC1, 'C', 0x42, 9, 1, 
+        };
+        try {
+            new GGEP(block, 0, null);
+            fail("expected bad cobs");
+        } catch (BadGGEPBlockException expected) {}
+        
+        GGEP lazy = GGEP.createLazy(block, 0, null);
+        assertTrue(lazy.hasKey("C"));
+        assertNull(lazy.get("C"));
+        try {
+            lazy.getBytes("C");
+            fail("expected bad property");
+        } catch (BadGGEPPropertyException expected) {}
+        assertEquals(block, lazy.toByteArray());
+    }
 
     public static void main(String argv[]) {
         junit.textui.TestRunner.run(suite());
@@ -53,6 +53,7 @@ import org.limewire.mojito.db.EvictorManager;
 import org.limewire.mojito.db.Storable;
 import org.limewire.mojito.db.StorableModelManager;
 import org.limewire.mojito.db.StorablePublisher;
+import org.limewire.mojito.db.impl.ConcurrentDatabaseImpl;
 import org.limewire.mojito.db.impl.DatabaseImpl;
 import org.limewire.mojito.exceptions.NotBootstrappedException;
 import org.limewire.mojito.io.MessageDispatcher;
@@ -88,6 +89,7 @@ import org.limewire.mojito.routing.impl.LocalContact;
 import org.limewire.mojito.routing.impl.RouteTableImpl;
 import org.limewire.mojito.security.SecurityTokenHelper;
 import org.limewire.mojito.settings.ContextSettings;
+import org.limewire.mojito.settings.DatabaseSettings;
 import org.limewire.mojito.settings.KademliaSettings;
 import org.limewire.mojito.statistics.DHTStats;
 import org.limewire.mojito.statistics.DHTStatsManager;
@@ -473,7 +475,11 @@ public class Context implements MojitoDHT, RouteTable.ContactPinger {
         }
         
         if (database == null) {
-            database = new DatabaseImpl();
+            if (DatabaseSettings.CONCURRENT_DATABASE.getValue()) {
+                database = new ConcurrentDatabaseImpl();
+            } else {
+                database = new DatabaseImpl();
+            }
         }
         
         this.database = database;
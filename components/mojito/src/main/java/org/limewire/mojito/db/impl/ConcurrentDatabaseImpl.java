@@ -0,0 +1,712 @@
+/*
+ * Mojito Distributed Hash Table (Mojito DHT)
+ * Copyright (C) 2006-2007 LimeWire LLC
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.limewire.mojito.db.impl;
+
+import java.io.Serializable;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.limewire.io.NetworkUtils;
+import org.limewire.mojito.KUID;
+import org.limewire.mojito.db.DHTValueEntity;
+import org.limewire.mojito.db.Database;
+import org.limewire.mojito.db.DatabaseSecurityConstraint;
+import org.limewire.mojito.routing.Contact;
+import org.limewire.mojito.settings.DatabaseSettings;
+import org.limewire.mojito.util.ContactUtils;
+
+/**
+ * A {@link Database} that can be used by many threads at once.
+ * <p>
+ * The keys are spread over a number of shards, each with a lock of its
+ * own, so store requests, FIND_VALUE lookups and the <code>DatabaseCleaner</code>
+ * only wait for each other if they touch keys of the same shard. The keys
+ * are indexed in a <code>ConcurrentHashMap</code> and the request load of
+ * a key is updated with a compare-and-set, so {@link #getRequestLoad(KUID, boolean)}
+ * takes no lock at all. The number of values per IP address and per Class C
+ * Network are counted without a lock, too. The limits are checked before the
+ * value is added, so concurrent stores from one address may go over them
+ * by the number of stores that raced.
+ * <p>
+ * The values are kept within a byte budget. The size of a value is its
+ * payload plus a rough estimate of the rest of the <code>DHTValueEntity</code>.
+ * Once the budget is exceeded the remote values of the keys that were least
+ * recently stored or looked up are evicted until the values fit into
+ * seven eighths of it. Local values are never evicted, expired values are
+ * still removed by the <code>DatabaseCleaner</code>. The bytes of the remote
+ * values are counted separately, so once only local values are left stores
+ * don't try to evict anymore, and only the keys with remote values are
+ * sorted.
+ */
+public class ConcurrentDatabaseImpl implements Database {
+
+    private static final long serialVersionUID = 6319440468542185932L;
+
+    private static final Log LOG = LogFactory.getLog(ConcurrentDatabaseImpl.class);
+
+    /**
+     * A rough estimate of the size of a <code>DHTValueEntity</code>
+     * without its payload (the Contacts, KUIDs and the map entry).
+     */
+    static final int ENTITY_OVERHEAD = 256;
+
+    /**
+     * The keys and their values. The values of a key are guarded by
+     * the lock of the key's shard.
+     */
+    private final ConcurrentMap<KUID, Bag> database = new ConcurrentHashMap<KUID, Bag>();
+
+    /**
+     * The locks of the shards.
+     */
+    private final Shard[] shards;
+
+    /**
+     * The maximum number of bytes the values may take up.
+     */
+    private final long maxSize;
+
+    /**
+     * The DatabaseSecurityConstraint handle.
+     */
+    private volatile DatabaseSecurityConstraint securityConstraint
+        = new DefaultDatabaseSecurityConstraint();
+
+    /**
+     * A Map of masked IP address to number of values.
+     */
+    private final ConcurrentMap<Integer, AtomicInteger> valuesPerNetwork
+        = new ConcurrentHashMap<Integer, AtomicInteger>();
+
+    /**
+     * A Map of IP address to number of values.
+     */
+    private final ConcurrentMap<Integer, AtomicInteger> valuesPerAddress
+        = new ConcurrentHashMap<Integer, AtomicInteger>();
+
+    /**
+     * The number of values.
+     */
+    private final AtomicInteger valueCount = new AtomicInteger();
+
+    /**
+     * The number of bytes the values take up.
+     */
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * The number of bytes the remote values take up.
+     */
+    private final AtomicLong remoteSize = new AtomicLong();
+
+    /**
+     * Whether or not values are being evicted right now.
+     */
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    public ConcurrentDatabaseImpl() {
+        this(DatabaseSettings.DATABASE_SHARDS.getValue(),
+                DatabaseSettings.MAX_DATABASE_BYTES.getValue());
+    }
+
+    /**
+     * Creates a <code>ConcurrentDatabaseImpl</code> with the given
+     * number of shards and byte budget.
+     */
+    public ConcurrentDatabaseImpl(int shardCount, long maxSize) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount=" + shardCount);
+        }
+
+        if (maxSize <= 0L) {
+            throw new IllegalArgumentException("maxSize=" + maxSize);
+        }
+
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+        }
+
+        this.maxSize = maxSize;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.Database#setDatabaseSecurityConstraint(org.limewire.mojito.db.DatabaseSecurityConstraint)
+     */
+    public void setDatabaseSecurityConstraint(
+            DatabaseSecurityConstraint securityConstraint) {
+
+        if (securityConstraint == null) {
+            securityConstraint = new DefaultDatabaseSecurityConstraint();
+        }
+
+        this.securityConstraint = securityConstraint;
+    }
+
+    /**
+     * Returns the lock of the shard the given key belongs to.
+     */
+    private Shard getShard(KUID primaryKey) {
+        int hash = primaryKey.hashCode();
+        hash ^= (hash >>> 16);
+        return shards[(hash & Integer.MAX_VALUE) % shards.length];
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.Database#getKeyCount()
+     */
+    public int getKeyCount() {
+        return database.size();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.Database#getValueCount()
+     */
+    public int getValueCount() {
+        return valueCount.get();
+    }
+
+    /**
+     * Returns the number of bytes the values take up.
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.Database#clear()
+     */
+    public void clear() {
+        for (KUID primaryKey : database.keySet()) {
+            Shard shard = getShard(primaryKey);
+            synchronized (shard) {
+                Bag bag = database.remove(primaryKey);
+                if (bag != null) {
+                    for (DHTValueEntity entity : bag.values.values()) {
+                        removed(bag, entity);
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.Database#store(org.limewire.mojito.db.DHTValueEntity)
+     */
+    public boolean store(DHTValueEntity entity) {
+        boolean stored;
+        Shard shard = getShard(entity.getPrimaryKey());
+        synchronized (shard) {
+            if (!allowStore(entity)) {
+                return false;
+            }
+
+            if (entity.getValue().size() == 0) {
+                return remove(entity.getPrimaryKey(), entity.getSecondaryKey()) != null;
+            }
+
+            stored = add(entity);
+        }
+
+        if (stored && size.get() > maxSize && remoteSize.get() > 0L) {
+            evict();
+        }
+        return stored;
+    }
+
+    /**
+     * Adds the given <code>DHTValueEntity</code> to the Database.
+     *
+     * LOCKING: the shard of the entity's primary key
+     */
+    private boolean add(DHTValueEntity entity) {
+        KUID primaryKey = entity.getPrimaryKey();
+        Bag bag = database.get(primaryKey);
+        if (bag == null) {
+            bag = new Bag();
+            database.put(primaryKey, bag);
+        }
+
+        DHTValueEntity existing = bag.values.put(entity.getSecondaryKey(), entity);
+        if (existing != null) {
+            removed(bag, existing);
+        }
+
+        bag.lastAccessTime = System.currentTimeMillis();
+
+        valueCount.incrementAndGet();
+        size.addAndGet(sizeOf(entity));
+        if (!entity.isLocalValue()) {
+            bag.remoteValues++;
+            remoteSize.addAndGet(sizeOf(entity));
+        }
+        incrementValueCount(entity, valuesPerAddress, DatabaseImpl.IPV4_ADDRESS_NETMASK);
+        incrementValueCount(entity, valuesPerNetwork, NetworkUtils.CLASS_C_NETMASK);
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.Database#remove(org.limewire.mojito.KUID, org.limewire.mojito.KUID)
+     */
+    public DHTValueEntity remove(KUID primaryKey, KUID secondaryKey) {
+        Shard shard = getShard(primaryKey);
+        synchronized (shard) {
+            Bag bag = database.get(primaryKey);
+            if (bag == null) {
+                return null;
+            }
+
+            DHTValueEntity entity = bag.values.remove(secondaryKey);
+            if (entity != null) {
+                if (bag.values.isEmpty()) {
+                    database.remove(primaryKey);
+                }
+                removed(bag, entity);
+            }
+            return entity;
+        }
+    }
+
+    /**
+     * Updates the counters for a value that was removed from the given Bag.
+     *
+     * LOCKING: the shard of the entity's primary key
+     */
+    private void removed(Bag bag, DHTValueEntity entity) {
+        valueCount.decrementAndGet();
+        size.addAndGet(-sizeOf(entity));
+        if (!entity.isLocalValue()) {
+            bag.remoteValues--;
+            remoteSize.addAndGet(-sizeOf(entity));
+        }
+        decrementValueCount(entity, valuesPerAddress, DatabaseImpl.IPV4_ADDRESS_NETMASK);
+        decrementValueCount(entity, valuesPerNetwork, NetworkUtils.CLASS_C_NETMASK);
+    }
+
+    /**
+     * Returns the number of bytes the given value is accounted for.
+     */
+    private static long sizeOf(DHTValueEntity entity) {
+        return ENTITY_OVERHEAD + entity.getValue().size();
+    }
+
+    /**
+     * Evicts the remote values of the least recently used keys
+     * until the values fit into seven eighths of the byte budget or
+     * no remote values are left. Only one thread evicts at a time,
+     * the others carry on.
+     */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            long target = maxSize - maxSize/8L;
+
+            // Keys with local values only can't be evicted
+            List<Map.Entry<KUID, Bag>> entries = new ArrayList<Map.Entry<KUID, Bag>>();
+            final Map<Bag, Long> accessTimes = new HashMap<Bag, Long>();
+            for (Map.Entry<KUID, Bag> entry : database.entrySet()) {
+                Bag bag = entry.getValue();
+                if (bag.remoteValues > 0) {
+                    entries.add(entry);
+                    accessTimes.put(bag, bag.lastAccessTime);
+                }
+            }
+
+            Collections.sort(entries, new Comparator<Map.Entry<KUID, Bag>>() {
+                public int compare(Map.Entry<KUID, Bag> o1, Map.Entry<KUID, Bag> o2) {
+                    long t1 = accessTimes.get(o1.getValue());
+                    long t2 = accessTimes.get(o2.getValue());
+                    return t1 < t2 ? -1 : (t1 > t2 ? 1 : 0);
+                }
+            });
+
+            int evicted = 0;
+            for (Map.Entry<KUID, Bag> entry : entries) {
+                if (size.get() <= target || remoteSize.get() == 0L) {
+                    break;
+                }
+
+                KUID primaryKey = entry.getKey();
+                synchronized (getShard(primaryKey)) {
+                    Bag bag = database.get(primaryKey);
+                    if (bag == null) {
+                        continue;
+                    }
+
+                    for (DHTValueEntity entity : new ArrayList<DHTValueEntity>(bag.values.values())) {
+                        if (!entity.isLocalValue()) {
+                            remove(primaryKey, entity.getSecondaryKey());
+                            evicted++;
+                        }
+                    }
+                }
+            }
+
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Evicted " + evicted + " values, " + size.get() + " bytes left");
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * Returns the number of values that are currently stored under
+     * the same Class C Network.
+     */
+    public int getValuesPerNetwork(DHTValueEntity entity) {
+        return getValueCount(entity, valuesPerNetwork, NetworkUtils.CLASS_C_NETMASK);
+    }
+
+    /**
+     * Returns the number of values that are currently stored under
+     * the same IP Address.
+     */
+    public int getValuesPerAddress(DHTValueEntity entity) {
+        return getValueCount(entity, valuesPerAddress, DatabaseImpl.IPV4_ADDRESS_NETMASK);
+    }
+
+    /**
+     * Returns the masked IP address of the creator of the given value,
+     * or null if it's a local value or not an IPv4 address.
+     */
+    private static Integer getMaskedAddress(DHTValueEntity entity, int netmask) {
+        if (entity.isLocalValue()) {
+            return null;
+        }
+
+        Contact node = entity.getCreator();
+        InetAddress addr = ((InetSocketAddress)node.getContactAddress()).getAddress();
+        if (addr instanceof Inet4Address) {
+            return NetworkUtils.getMaskedIP(addr, netmask);
+        }
+        return null;
+    }
+
+    /**
+     * A helper method to get the number of values that are currently stored
+     * under a certain masked IP address.
+     */
+    private static int getValueCount(DHTValueEntity entity,
+            ConcurrentMap<Integer, AtomicInteger> map, int netmask) {
+        Integer masked = getMaskedAddress(entity, netmask);
+        if (masked != null) {
+            AtomicInteger count = map.get(masked);
+            if (count != null) {
+                return count.get();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * A helper method to increment the number of values that are stored
+     * under a certain masked IP address. A counter that went down to zero
+     * is on its way out of the map and is never incremented again.
+     */
+    private static void incrementValueCount(DHTValueEntity entity,
+            ConcurrentMap<Integer, AtomicInteger> map, int netmask) {
+        Integer masked = getMaskedAddress(entity, netmask);
+        if (masked == null) {
+            return;
+        }
+
+        while (true) {
+            AtomicInteger count = map.get(masked);
+            if (count == null) {
+                count = map.putIfAbsent(masked, new AtomicInteger(1));
+                if (count == null) {
+                    return;
+                }
+            }
+
+            int value = count.get();
+            if (value == 0) {
+                map.remove(masked, count);
+            } else if (count.compareAndSet(value, value + 1)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * A helper method to decrement the number of values that are stored
+     * under a certain masked IP address.
+     */
+    private static void decrementValueCount(DHTValueEntity entity,
+            ConcurrentMap<Integer, AtomicInteger> map, int netmask) {
+        Integer masked = getMaskedAddress(entity, netmask);
+        if (masked == null) {
+            return;
+        }
+
+        AtomicInteger count = map.get(masked);
+        if (count != null && count.decrementAndGet() == 0) {
+            map.remove(masked, count);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.Database#getRequestLoad(org.limewire.mojito.KUID, boolean)
+     */
+    public float getRequestLoad(KUID primaryKey, boolean incrementLoad) {
+        Bag bag = database.get(primaryKey);
+        if (bag == null) {
+            return 0f;
+        }
+
+        if (incrementLoad) {
+            return bag.incrementRequestLoad(System.currentTimeMillis());
+        }
+        return bag.requestLoad.get().load;
+    }
+
+    /**
+     * An internal helper method that checks for possible flooding
+     * and then delegates calls to the <code>DatabaseSecurityConstraint</code> instance
+     * if possible.
+     *
+     * LOCKING: the shard of the entity's primary key
+     */
+    private boolean allowStore(DHTValueEntity entity) {
+        if (entity.isLocalValue()) {
+            return true;
+        }
+
+        if (DatabaseSettings.VALIDATE_VALUE_CREATOR.getValue()
+                && !entity.isDirect()) {
+
+            if (!ContactUtils.isValidSocketAddress(entity.getCreator())) {
+                if (LOG.isInfoEnabled()) {
+                    LOG.info("The Creator of " + entity + " has an invalid address");
+                }
+                return false;
+            }
+
+            if (ContactUtils.isPrivateAddress(entity.getCreator())) {
+                if (LOG.isInfoEnabled()) {
+                    LOG.info("The Creator of " + entity + " has a private address");
+                }
+                return false;
+            }
+        }
+
+        if (entity.getValue().size() != 0) {
+            if (DatabaseSettings.LIMIT_VALUES_PER_ADDRESS.getValue()
+                    && getValuesPerAddress(entity) >= DatabaseSettings.MAX_VALUES_PER_ADDRESS.getValue()) {
+                return false;
+            }
+
+            if (DatabaseSettings.LIMIT_VALUES_PER_NETWORK.getValue()
+                    && getValuesPerNetwork(entity) >= DatabaseSettings.MAX_VALUES_PER_NETWORK.getValue()) {
+                return false;
+            }
+        }
+
+        // Check with the security constraint now
+        Bag bag = database.get(entity.getPrimaryKey());
+        DatabaseSecurityConstraint dbsc = securityConstraint;
+        if (dbsc != null && bag != null) {
+            return dbsc.allowStore(this, Collections.unmodifiableMap(bag.values), entity);
+        }
+
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.Database#get(org.limewire.mojito.KUID)
+     */
+    public Map<KUID, DHTValueEntity> get(KUID primaryKey) {
+        synchronized (getShard(primaryKey)) {
+            Bag bag = database.get(primaryKey);
+            if (bag != null) {
+                bag.lastAccessTime = System.currentTimeMillis();
+                return Collections.unmodifiableMap(
+                        new HashMap<KUID, DHTValueEntity>(bag.values));
+            }
+        }
+        return Collections.emptyMap();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.Database#contains(org.limewire.mojito.KUID, org.limewire.mojito.KUID)
+     */
+    public boolean contains(KUID primaryKey, KUID secondaryKey) {
+        synchronized (getShard(primaryKey)) {
+            Bag bag = database.get(primaryKey);
+            return (bag != null && bag.values.containsKey(secondaryKey));
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.Database#keySet()
+     */
+    public Set<KUID> keySet() {
+        return new HashSet<KUID>(database.keySet());
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.Database#values()
+     */
+    public Collection<DHTValueEntity> values() {
+        List<DHTValueEntity> values = new ArrayList<DHTValueEntity>(getValueCount());
+        for (KUID primaryKey : database.keySet()) {
+            synchronized (getShard(primaryKey)) {
+                Bag bag = database.get(primaryKey);
+                if (bag != null) {
+                    values.addAll(bag.values.values());
+                }
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        for (KUID primaryKey : database.keySet()) {
+            Map<KUID, DHTValueEntity> values = get(primaryKey);
+            buffer.append("Bag: ").append(primaryKey).append("\n");
+            buffer.append("Load: ").append(getRequestLoad(primaryKey, false)).append("\n");
+            buffer.append("Values:").append("\n");
+            for (DHTValueEntity entity : values.values()) {
+                buffer.append(entity).append("\n");
+            }
+        }
+
+        buffer.append("-------------\n");
+        buffer.append("TOTAL: ").append(getKeyCount())
+            .append("/").append(getValueCount()).append("\n");
+        return buffer.toString();
+    }
+
+    /**
+     * The lock of a shard.
+     */
+    private static final class Shard implements Serializable {
+        private static final long serialVersionUID = -1203859176512340128L;
+    }
+
+    /**
+     * The values of a key, when the key was last used and its request load.
+     */
+    private static final class Bag implements Serializable {
+
+        private static final long serialVersionUID = 8712302395018813620L;
+
+        /** LOCKING: the shard of the key */
+        private final Map<KUID, DHTValueEntity> values = new HashMap<KUID, DHTValueEntity>(4);
+
+        /** The number of remote values, LOCKING: the shard of the key */
+        private volatile int remoteValues;
+
+        /** The time the key was last stored or looked up */
+        private volatile long lastAccessTime;
+
+        /** The request load, replaced with a compare-and-set */
+        private final AtomicReference<RequestLoad> requestLoad
+            = new AtomicReference<RequestLoad>(RequestLoad.NONE);
+
+        /**
+         * Updates the request load the way {@link DHTValueEntityBag#incrementRequestLoad()}
+         * does, retrying if another request got there first.
+         */
+        float incrementRequestLoad(long now) {
+            while (true) {
+                RequestLoad current = requestLoad.get();
+                RequestLoad next = current.next(now);
+                if (requestLoad.compareAndSet(current, next)) {
+                    return next.load;
+                }
+            }
+        }
+    }
+
+    /**
+     * An immutable pair of the request load and the time
+     * of the last request.
+     */
+    private static final class RequestLoad implements Serializable {
+
+        private static final long serialVersionUID = -2786051356431874129L;
+
+        private static final RequestLoad NONE = new RequestLoad(0f, 0L);
+
+        private final float load;
+
+        private final long lastRequestTime;
+
+        private RequestLoad(float load, long lastRequestTime) {
+            this.load = load;
+            this.lastRequestTime = lastRequestTime;
+        }
+
+        /**
+         * Returns the request load after a request at the given time.
+         */
+        RequestLoad next(long now) {
+            if (lastRequestTime == 0L) {
+                return new RequestLoad(0f, now);
+            }
+
+            //we don't want to skew the results with delays that are too small!
+            float delay = Math.max((now - lastRequestTime)/1000f, 0.01f); //in sec
+
+            if (delay > DatabaseSettings.VALUE_REQUEST_LOAD_NULLING_DELAY.getValue()) {
+                return new RequestLoad(0f, now); //we can't trust the value anymore
+            }
+
+            float smoothingFactor = DatabaseSettings.VALUE_REQUEST_LOAD_SMOOTHING_FACTOR.getValue();
+            return new RequestLoad(load + smoothingFactor*((1f/delay) - load), now);
+        }
+    }
+}
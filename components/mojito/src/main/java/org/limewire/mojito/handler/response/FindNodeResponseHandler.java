@@ -77,7 +77,7 @@ public class FindNodeResponseHandler
     @Override
     protected void response(ResponseMessage message, long time) throws IOException {
         super.response(message, time);
-        lookupStat.addReply();
+        lookupStat.addReply(time);
     }
 
     @Override
@@ -79,7 +79,7 @@ public class FindValueResponseHandler extends LookupResponseHandler<FindValueRes
     @Override
     protected void response(ResponseMessage message, long time) throws IOException {
         super.response(message, time);
-        lookupStat.addReply();
+        lookupStat.addReply(time);
     }
 
     @Override
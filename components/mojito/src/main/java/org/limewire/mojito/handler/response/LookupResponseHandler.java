@@ -53,6 +53,7 @@ import org.limewire.mojito.routing.Contact;
 import org.limewire.mojito.routing.RouteTable.SelectMode;
 import org.limewire.mojito.settings.KademliaSettings;
 import org.limewire.mojito.settings.LookupSettings;
+import org.limewire.mojito.settings.NetworkSettings;
 import org.limewire.mojito.util.ContactUtils;
 import org.limewire.mojito.util.ContactsScrubber;
 import org.limewire.mojito.util.EntryImpl;
@@ -66,6 +67,15 @@ import org.limewire.security.SecurityToken;
  * different lookup termination conditions.
  * <p>
  * Think of the LookupResponseHandler as some kind of State-Machine.
+ * <p>
+ * If {@link LookupSettings#ADAPTIVE_LOOKUP} is true the lookup adapts
+ * to the Contacts it queries. Requests time out after the smoothed RTT
+ * of the Contact, or of the responses to this lookup if the Contact's
+ * is unknown. A request that takes longer than that is stalled and
+ * no longer counts against the parallelism, so a slow Contact doesn't
+ * hold up the lookup. And the lookup finishes as soon as the k-closest
+ * Contacts responded and none of the outstanding requests can come from
+ * a closer Contact.
  */
 public abstract class LookupResponseHandler<V extends LookupResult> extends AbstractResponseHandler<V> {
     
@@ -133,6 +143,22 @@ public abstract class LookupResponseHandler<V extends LookupResult> extends Abst
      */
     private boolean deleteFurthest = true;
     
+    /** Whether or not this lookup adapts to the RTTs of the Contacts. */
+    private final boolean adaptive;
+    
+    /** The outstanding requests of an adaptive lookup. */
+    private final Map<KUID, ActiveRequest> activeRequests 
+        = new HashMap<KUID, ActiveRequest>();
+    
+    /** The number of outstanding requests that are stalled. */
+    private int stalledSearches = 0;
+    
+    /** The smoothed RTT of the responses to this lookup. */
+    private long srtt = -1L;
+    
+    /** The mean deviation of the RTT of the responses to this lookup. */
+    private long rttvar = -1L;
+    
     /**
      * Creates a new LookupResponseHandler.
      */
@@ -146,6 +172,8 @@ public abstract class LookupResponseHandler<V extends LookupResult> extends Abst
         setParallelism(-1); // Default number of parallel lookups
         setResultSetSize(-1); // Default result set size
         setDeleteFurthest(LookupSettings.DELETE_FURTHEST_CONTACT.getValue());
+        
+        this.adaptive = LookupSettings.ADAPTIVE_LOOKUP.getValue();
     }
     
     /**
@@ -364,6 +392,11 @@ public abstract class LookupResponseHandler<V extends LookupResult> extends Abst
         
         currentHop = hop.intValue();
         
+        if (adaptive) {
+            removeActiveRequest(contact.getNodeID());
+            addRoundTripTime(time);
+        }
+        
         if (nextStep(message)) {
             nextLookupStep();
         }
@@ -436,6 +469,10 @@ public abstract class LookupResponseHandler<V extends LookupResult> extends Abst
         Integer hop = hopMap.remove(nodeId);
         assert (hop != null);
         
+        if (adaptive) {
+            removeActiveRequest(nodeId);
+        }
+        
         if (routeTableNodes.contains(nodeId)) {
             routeTableFailureCount++;
         }
@@ -532,6 +569,14 @@ public abstract class LookupResponseHandler<V extends LookupResult> extends Abst
                                 + currentHop + " hops, " + totalTime + "ms and " + queried.size() 
                                 + " queried Nodes with " + bestResponse + " as best match");
                     }
+                } else if (adaptive && isStable(worst)) {
+                    if (LOG.isTraceEnabled()) {
+                        LOG.trace("Lookup for " + lookupId + " terminates after "
+                                + currentHop + " hops and " + totalTime + "ms without waiting for " 
+                                + getActiveSearches() + " further away Nodes");
+                    }
+                    
+                    killActiveSearches();
                 }
                 
                 // finishLookup() gets called if activeSearches is zero!
@@ -539,7 +584,7 @@ public abstract class LookupResponseHandler<V extends LookupResult> extends Abst
             }
         }
         
-        int numLookups = getParallelism() - getActiveSearches();
+        int numLookups = getParallelism() + getStalledSearches() - getActiveSearches();
         if (numLookups > 0) {
             Collection<Contact> toQueryList = getContactsToQuery(lookupId, numLookups);
             for (Contact node : toQueryList) {
@@ -567,7 +612,24 @@ public abstract class LookupResponseHandler<V extends LookupResult> extends Abst
         }
         
         markAsQueried(node);
-        boolean requestWasSent = context.getMessageDispatcher().send(node, request, this);
+        
+        boolean requestWasSent = false;
+        if (adaptive) {
+            long expected = getExpectedRoundTripTime(node);
+            long timeout = -1L;
+            if (expected > 0L) {
+                timeout = Math.min(getTimeout(), 
+                        Math.max(expected, NetworkSettings.MIN_TIMEOUT_RTT.getValue()));
+            }
+            
+            requestWasSent = context.getMessageDispatcher().send(node, request, this, timeout);
+            if (requestWasSent) {
+                activeRequests.put(node.getNodeID(), 
+                        new ActiveRequest(System.currentTimeMillis(), expected));
+            }
+        } else {
+            requestWasSent = context.getMessageDispatcher().send(node, request, this);
+        }
         
         if (requestWasSent) {
             incrementActiveSearches();
@@ -575,6 +637,112 @@ public abstract class LookupResponseHandler<V extends LookupResult> extends Abst
         return requestWasSent;
     }
     
+    /**
+     * Returns the time (in ms) a response from the given Contact 
+     * should arrive within, or -1 if there's no RTT to go by. A 
+     * Contact without a RTT of its own is given twice the time 
+     * of the responses to this lookup.
+     */
+    private long getExpectedRoundTripTime(Contact node) {
+        long rtt = node.getSmoothedRoundTripTime();
+        long dev = node.getRoundTripTimeDeviation();
+        if (rtt <= 0L) {
+            Contact existing = context.getRouteTable().get(node.getNodeID());
+            if (existing != null) {
+                rtt = existing.getSmoothedRoundTripTime();
+                dev = existing.getRoundTripTimeDeviation();
+            }
+        }
+        
+        if (rtt > 0L) {
+            return rtt + 4L * dev;
+        } else if (srtt > 0L) {
+            return 2L * (srtt + 4L * rttvar);
+        }
+        return -1L;
+    }
+    
+    /**
+     * Adds the RTT of a response to the smoothed RTT of this lookup.
+     */
+    private void addRoundTripTime(long rtt) {
+        if (rtt <= 0L) {
+            return;
+        }
+        
+        if (srtt <= 0L) {
+            srtt = rtt;
+            rttvar = rtt / 2L;
+        } else {
+            rttvar = (3L * rttvar + Math.abs(srtt - rtt)) / 4L;
+            srtt = (7L * srtt + rtt) / 8L;
+        }
+    }
+    
+    /**
+     * Removes the outstanding request to the given Node.
+     */
+    private void removeActiveRequest(KUID nodeId) {
+        ActiveRequest request = activeRequests.remove(nodeId);
+        if (request != null && request.stalled) {
+            stalledSearches--;
+        }
+    }
+    
+    /**
+     * Returns true if none of the outstanding requests went to a
+     * Node that is nearer to the lookup ID than the given Node.
+     */
+    private boolean isStable(KUID worst) {
+        // Bootstrap lookups update the RouteTables of the Nodes 
+        // they contact, let them run their course
+        if (context.isLocalNodeID(lookupId)) {
+            return false;
+        }
+        
+        for (KUID nodeId : activeRequests.keySet()) {
+            if (nodeId.isNearerTo(lookupId, worst)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Marks the requests that take longer than expected as
+     * stalled and sends requests in their place.
+     */
+    @Override
+    protected void tick() {
+        if (!adaptive || activeRequests.isEmpty()) {
+            return;
+        }
+        
+        long now = System.currentTimeMillis();
+        long minStallTime = LookupSettings.MIN_LOOKUP_STALL_TIME.getValue();
+        long lookupStallTime = (srtt > 0L ? 2L * (srtt + 4L * rttvar) : Long.MAX_VALUE);
+        
+        boolean stalled = false;
+        for (ActiveRequest request : activeRequests.values()) {
+            long stallTime = (request.expected > 0L ? request.expected : lookupStallTime);
+            if (!request.stalled 
+                    && (now - request.time) >= Math.max(minStallTime, stallTime)) {
+                request.stalled = true;
+                stalledSearches++;
+                stalled = true;
+            }
+        }
+        
+        if (stalled) {
+            try {
+                nextLookupStep();
+            } catch (IOException err) {
+                LOG.error("IOException", err);
+            }
+            finishLookupIfDone();
+        }
+    }
+    
     /**
      * Creates and returns a LookupRequest message.
      */
@@ -621,6 +789,8 @@ public abstract class LookupResponseHandler<V extends LookupResult> extends Abst
      */
     protected void killActiveSearches() {
         activeSearches = 0;
+        activeRequests.clear();
+        stalledSearches = 0;
     }
     
     /**
@@ -631,6 +801,15 @@ public abstract class LookupResponseHandler<V extends LookupResult> extends Abst
         return activeSearches;
     }
     
+    /**
+     * Returns the number of stalled searches that are 
+     * made up for with further searches.
+     */
+    protected int getStalledSearches() {
+        return Math.min(stalledSearches, 
+                LookupSettings.MAX_STALLED_LOOKUPS.getValue());
+    }
+    
     /**
      * Returns whether or not there are currently any
      * searches active.
@@ -788,6 +967,26 @@ public abstract class LookupResponseHandler<V extends LookupResult> extends Abst
         return currentHop;
     }
     
+    /**
+     * An outstanding request of an adaptive lookup.
+     */
+    private static class ActiveRequest {
+        
+        /** The time the request was sent. */
+        private final long time;
+        
+        /** The time the response is expected within or -1. */
+        private final long expected;
+        
+        /** Whether or not the request is stalled. */
+        private boolean stalled = false;
+        
+        private ActiveRequest(long time, long expected) {
+            this.time = time;
+            this.expected = expected;
+        }
+    }
+    
     @Override
     public String toString() {
         long time = getElapsedTime();
@@ -250,6 +250,17 @@ public abstract class MessageDispatcher {
         return send(new Tag(contact, request, responseHandler));
     }
     
+    /**
+     * Sends a RequestMessage to the given Contact and registers
+     * a ResponseHandler that times out after the given number of
+     * milliseconds (or after the handler's timeout if it's negative).
+     */
+    public boolean send(Contact contact, RequestMessage request, 
+            ResponseHandler responseHandler, long timeout) throws IOException {
+        return send(new Tag(contact.getNodeID(), contact.getContactAddress(), 
+                request, responseHandler, timeout));
+    }
+    
     /**
      * The actual send method.
      */
@@ -156,6 +156,16 @@ public interface Contact extends Serializable {
      */
     public long getRoundTripTime();
     
+    /**
+     * Returns the smoothed Round Trip Time (SRTT) or -1 if it's unknown.
+     */
+    public long getSmoothedRoundTripTime();
+    
+    /**
+     * Returns the mean deviation of the Round Trip Time or -1 if it's unknown.
+     */
+    public long getRoundTripTimeDeviation();
+    
     /**
      * Returns an adaptive timeout based on the RTT and number of failures.
      */
@@ -277,6 +277,20 @@ public class LocalContact implements Contact {
     public long getRoundTripTime() {
         return 0L;
     }
+    
+    /**
+     * Hard coded to return 0L.
+     */
+    public long getSmoothedRoundTripTime() {
+        return 0L;
+    }
+    
+    /**
+     * Hard coded to return 0L.
+     */
+    public long getRoundTripTimeDeviation() {
+        return 0L;
+    }
 
     /**
      * Does nothing.
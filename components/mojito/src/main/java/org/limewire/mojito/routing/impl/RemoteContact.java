@@ -67,6 +67,12 @@ public class RemoteContact implements Contact {
     /** The Round Trip Time (RTT). */
     private transient long rtt = -1L;
     
+    /** The smoothed Round Trip Time (SRTT). */
+    private transient long srtt = -1L;
+    
+    /** The mean deviation of the Round Trip Time. */
+    private transient long rttvar = -1L;
+    
     /** The time of the last successful contact. */
     private volatile long timeStamp = 0L;
     
@@ -122,6 +128,8 @@ public class RemoteContact implements Contact {
     private void init() {
         sourceAddress = null;
         rtt = -1;
+        srtt = -1;
+        rttvar = -1;
         state = State.UNKNOWN;
     }
 
@@ -172,6 +180,16 @@ public class RemoteContact implements Contact {
             throw new IllegalArgumentException("Node IDs do not match: " + this + " vs. " + existing);
         }
         
+        // Carry the smoothed RTT over and add our own sample to it
+        long sample = rtt;
+        if (existing.getSmoothedRoundTripTime() > 0L) {
+            srtt = existing.getSmoothedRoundTripTime();
+            rttvar = existing.getRoundTripTimeDeviation();
+            if (sample > 0L) {
+                addRoundTripTime(sample);
+            }
+        }
+        
         if (rtt < 0L) {
             rtt = existing.getRoundTripTime();
         }
@@ -217,6 +235,31 @@ public class RemoteContact implements Contact {
     
     public void setRoundTripTime(long rtt) {
         this.rtt = rtt;
+        if (rtt > 0L) {
+            addRoundTripTime(rtt);
+        }
+    }
+    
+    /**
+     * Updates the smoothed RTT and its deviation the way TCP
+     * does (RFC 2988).
+     */
+    private void addRoundTripTime(long rtt) {
+        if (srtt <= 0L) {
+            srtt = rtt;
+            rttvar = rtt / 2L;
+        } else {
+            rttvar = (3L * rttvar + Math.abs(srtt - rtt)) / 4L;
+            srtt = (7L * srtt + rtt) / 8L;
+        }
+    }
+    
+    public long getSmoothedRoundTripTime() {
+        return srtt;
+    }
+    
+    public long getRoundTripTimeDeviation() {
+        return rttvar;
     }
     
     public void setTimeStamp(long timeStamp) {
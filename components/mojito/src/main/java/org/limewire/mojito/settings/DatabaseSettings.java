@@ -184,4 +184,25 @@ public final class DatabaseSettings extends MojitoProps {
     public static final BooleanSetting VALIDATE_VALUE_CREATOR
         = FACTORY.createRemoteBooleanSetting("VALIDATE_VALUE_CREATOR", 
                 false, "Mojito.ValidateValueCreator");
+    
+    /**
+     * Whether or not to use the {@link org.limewire.mojito.db.impl.ConcurrentDatabaseImpl}
+     * that spreads the keys over shards with locks of their own and evicts
+     * the least recently used values once they exceed MAX_DATABASE_BYTES.
+     */
+    public static final BooleanSetting CONCURRENT_DATABASE
+        = FACTORY.createBooleanSetting("CONCURRENT_DATABASE", false);
+    
+    /**
+     * The number of shards of the concurrent Database.
+     */
+    public static final IntSetting DATABASE_SHARDS
+        = FACTORY.createIntSetting("DATABASE_SHARDS", 32, 1, 1024);
+    
+    /**
+     * The maximum number of bytes the values in the concurrent 
+     * Database may take up.
+     */
+    public static final LongSetting MAX_DATABASE_BYTES
+        = FACTORY.createLongSetting("MAX_DATABASE_BYTES", 16L*1024L*1024L);
 }
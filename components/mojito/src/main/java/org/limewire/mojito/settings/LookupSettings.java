@@ -97,6 +97,29 @@ public class LookupSettings extends MojitoProps {
         = FACTORY.createRemoteFloatSetting("CONTACTS_SCRUBBER_REQUIRED_RATIO", 
                 0.0f, "Mojito.ContactsScrubberRequiredRatio", 0.0f, 1.0f);
     
+    /**
+     * Whether or not lookups time out their requests after the smoothed
+     * RTT of the Contacts they query, send more requests while others 
+     * are stalled and finish as soon as the k-closest Contacts can no
+     * longer change.
+     */
+    public static final BooleanSetting ADAPTIVE_LOOKUP
+        = FACTORY.createBooleanSetting("ADAPTIVE_LOOKUP", false);
+    
+    /**
+     * The maximum number of requests an adaptive lookup sends on top
+     * of its parallelism while others are stalled.
+     */
+    public static final IntSetting MAX_STALLED_LOOKUPS
+        = FACTORY.createIntSetting("MAX_STALLED_LOOKUPS", 5, 0, 30);
+    
+    /**
+     * The time (in ms) after which an adaptive lookup considers a
+     * request stalled at the earliest.
+     */
+    public static final LongSetting MIN_LOOKUP_STALL_TIME
+        = FACTORY.createLongSetting("MIN_LOOKUP_STALL_TIME", 100L);
+    
     /**
      * Returns the lock timeout for a lookup process.
      * 
@@ -80,6 +80,16 @@ public class GlobalLookupStatisticContainer extends StatisticContainer {
     */
    public Statistic GLOBAL_FIND_VALUE_LOOKUP_HOPS = new SimpleStatistic();
    
+   /**
+    * <tt>Statistic</tt> for the spread of the lookup times.
+    */
+   public Statistic GLOBAL_LOOKUP_TIME_HISTOGRAM = new LatencyHistogram();
+   
+   /**
+    * <tt>Statistic</tt> for the spread of the lookup response times.
+    */
+   public Statistic GLOBAL_LOOKUP_RESPONSE_TIME_HISTOGRAM = new LatencyHistogram();
+   
    public void addSingleLookupStatistic(SingleLookupStatisticContainer lookupStat) {
        synchronized (singleLookups) {
            GLOBAL_LOOKUPS.incrementStat();
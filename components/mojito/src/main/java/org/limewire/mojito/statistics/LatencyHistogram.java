@@ -0,0 +1,86 @@
+/*
+ * Mojito Distributed Hash Table (Mojito DHT)
+ * Copyright (C) 2006-2007 LimeWire LLC
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+ 
+package org.limewire.mojito.statistics;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A <tt>Statistic</tt> that counts the times (in ms) it's given in 
+ * buckets of growing size, so the spread of the lookup latencies 
+ * shows besides their average.
+ */
+class LatencyHistogram extends SimpleStatistic {
+    
+    /** The upper bounds (exclusive) of the buckets. */
+    private static final int[] BOUNDS = { 
+        10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 
+    };
+    
+    /** The counts of the buckets, the last one is for everything else. */
+    private final int[] counts = new int[BOUNDS.length + 1];
+    
+    @Override
+    public void addData(int time) {
+        int bucket = 0;
+        while (bucket < BOUNDS.length && time >= BOUNDS[bucket]) {
+            bucket++;
+        }
+        
+        synchronized (counts) {
+            counts[bucket]++;
+        }
+        
+        super.addData(time);
+    }
+    
+    /**
+     * Returns a copy of the bucket counts.
+     */
+    public int[] getCounts() {
+        synchronized (counts) {
+            return counts.clone();
+        }
+    }
+    
+    @Override
+    public void clearData() {
+        super.clearData();
+        synchronized (counts) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = 0;
+            }
+        }
+    }
+    
+    @Override
+    public void storeStats(Writer writer) throws IOException {
+        super.storeStats(writer);
+        
+        int[] counts = getCounts();
+        for (int i = 0; i < counts.length; i++) {
+            writer.write("\t");
+            writer.write(i < BOUNDS.length ? "<" + BOUNDS[i] : ">=" + BOUNDS[BOUNDS.length-1]);
+            writer.write(":");
+            writer.write(Integer.toString(counts[i]));
+        }
+        writer.flush();
+    }
+}
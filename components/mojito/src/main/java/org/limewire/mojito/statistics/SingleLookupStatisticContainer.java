@@ -24,6 +24,7 @@ import java.io.Writer;
 
 import org.limewire.mojito.Context;
 import org.limewire.mojito.KUID;
+import org.limewire.statistic.Statistic;
 
 
 abstract class SingleLookupStatisticContainer extends StatisticContainer {
@@ -31,6 +32,11 @@ abstract class SingleLookupStatisticContainer extends StatisticContainer {
     protected final KUID lookupKey;
     private final GlobalLookupStatisticContainer globalLookupStats;
     
+    /**
+     * <tt>Statistic</tt> for the spread of the response times of this lookup.
+     */
+    public Statistic LOOKUP_RESPONSE_TIME_HISTOGRAM = new LatencyHistogram();
+    
     protected SingleLookupStatisticContainer(Context context, KUID lookupKey) {
         this.lookupKey = lookupKey;
         this.globalLookupStats = context.getGlobalLookupStats();
@@ -53,6 +59,8 @@ abstract class SingleLookupStatisticContainer extends StatisticContainer {
         }
         globalLookupStats.GLOBAL_LOOKUP_TIME.addData(time);
         globalLookupStats.GLOBAL_LOOKUP_TIME.storeCurrentStat();
+        globalLookupStats.GLOBAL_LOOKUP_TIME_HISTOGRAM.addData(time);
+        globalLookupStats.GLOBAL_LOOKUP_TIME_HISTOGRAM.storeCurrentStat();
     }
     
     public void addRequest() {
@@ -63,6 +71,20 @@ abstract class SingleLookupStatisticContainer extends StatisticContainer {
         globalLookupStats.GLOBAL_LOOKUP_REPLIES.incrementStat();
     }
     
+    /**
+     * Adds a reply that arrived after the given time (in ms).
+     */
+    public void addReply(long time) {
+        if (time >= 0L) {
+            int t = (int)Math.min(time, Integer.MAX_VALUE);
+            LOOKUP_RESPONSE_TIME_HISTOGRAM.addData(t);
+            LOOKUP_RESPONSE_TIME_HISTOGRAM.storeCurrentStat();
+            globalLookupStats.GLOBAL_LOOKUP_RESPONSE_TIME_HISTOGRAM.addData(t);
+            globalLookupStats.GLOBAL_LOOKUP_RESPONSE_TIME_HISTOGRAM.storeCurrentStat();
+        }
+        addReply();
+    }
+    
     public void addTimeout() {
         globalLookupStats.GLOBAL_LOOKUP_TIMEOUTS.incrementStat();
     }
@@ -0,0 +1,300 @@
+/*
+ * Mojito Distributed Hash Table (Mojito DHT)
+ * Copyright (C) 2006-2007 LimeWire LLC
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.limewire.mojito.db;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.Test;
+
+import org.limewire.mojito.KUID;
+import org.limewire.mojito.MojitoDHT;
+import org.limewire.mojito.MojitoFactory;
+import org.limewire.mojito.MojitoTestCase;
+import org.limewire.mojito.db.impl.ConcurrentDatabaseImpl;
+import org.limewire.mojito.db.impl.DHTValueImpl;
+import org.limewire.mojito.db.impl.DatabaseImpl;
+import org.limewire.mojito.routing.Contact;
+import org.limewire.mojito.routing.ContactFactory;
+import org.limewire.mojito.routing.Vendor;
+import org.limewire.mojito.routing.Version;
+import org.limewire.mojito.settings.DatabaseSettings;
+import org.limewire.util.PrivilegedAccessor;
+import org.limewire.util.StringUtils;
+
+public class ConcurrentDatabaseTest extends MojitoTestCase {
+
+    /** The accounted size of a value with a 100 byte payload */
+    private static final int VALUE_SIZE = 256 + 100;
+
+    public ConcurrentDatabaseTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(ConcurrentDatabaseTest.class);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    private static DHTValueEntity createRemoteDHTValue(int host, KUID primaryKey, byte[] value) {
+        InetSocketAddress addr = new InetSocketAddress("10.0." + (host / 256) + "." + (host % 256), 1111);
+        Contact node = ContactFactory.createLiveContact(addr, Vendor.UNKNOWN, Version.ZERO,
+                KUID.createRandomID(), addr, 0, Contact.DEFAULT_FLAG);
+        return new DHTValueEntity(node, node, primaryKey,
+                new DHTValueImpl(DHTValueType.TEST, Version.ZERO, value), false);
+    }
+
+    private static DHTValueEntity createLocalDHTValue(byte[] value) {
+        Contact node = ContactFactory.createLocalContact(Vendor.UNKNOWN, Version.ZERO,
+                KUID.createRandomID(), 0, false);
+        return new DHTValueEntity(node, node, KUID.createRandomID(),
+                new DHTValueImpl(DHTValueType.TEST, Version.ZERO, value), true);
+    }
+
+    public void testStoreAndRemove() {
+        Database database = new ConcurrentDatabaseImpl();
+
+        DHTValueEntity value1 = createRemoteDHTValue(1, KUID.createRandomID(),
+                StringUtils.toAsciiBytes("Hello World"));
+        assertTrue(database.store(value1));
+        assertEquals(1, database.getKeyCount());
+        assertEquals(1, database.getValueCount());
+        assertTrue(database.contains(value1.getPrimaryKey(), value1.getSecondaryKey()));
+        assertTrue(Arrays.equals(StringUtils.toAsciiBytes("Hello World"),
+                database.get(value1.getPrimaryKey())
+                    .get(value1.getSecondaryKey()).getValue().getValue()));
+
+        // A second value under the same key
+        DHTValueEntity value2 = createRemoteDHTValue(2, value1.getPrimaryKey(),
+                StringUtils.toAsciiBytes("Mojito"));
+        assertTrue(database.store(value2));
+        assertEquals(1, database.getKeyCount());
+        assertEquals(2, database.getValueCount());
+        assertEquals(2, database.get(value1.getPrimaryKey()).size());
+
+        // Replacing a value doesn't change the counts
+        DHTValueEntity value3 = new DHTValueEntity(value2.getCreator(), value2.getSender(),
+                value2.getPrimaryKey(), new DHTValueImpl(DHTValueType.TEST, Version.ZERO,
+                        StringUtils.toAsciiBytes("Tonic")), false);
+        assertTrue(database.store(value3));
+        assertEquals(2, database.getValueCount());
+        assertEquals(2, database.values().size());
+
+        // An empty value removes the value
+        DHTValueEntity remove = new DHTValueEntity(value1.getCreator(), value1.getSender(),
+                value1.getPrimaryKey(), DHTValue.EMPTY_VALUE, false);
+        assertTrue(database.store(remove));
+        assertFalse(database.contains(value1.getPrimaryKey(), value1.getSecondaryKey()));
+        assertEquals(1, database.getValueCount());
+
+        assertNotNull(database.remove(value3.getPrimaryKey(), value3.getSecondaryKey()));
+        assertNull(database.remove(value3.getPrimaryKey(), value3.getSecondaryKey()));
+        assertEquals(0, database.getKeyCount());
+        assertEquals(0, database.getValueCount());
+        assertTrue(database.get(value1.getPrimaryKey()).isEmpty());
+        assertEquals(0L, ((ConcurrentDatabaseImpl)database).getSize());
+    }
+
+    public void testMaxValuesPerAddress() {
+        DatabaseSettings.LIMIT_VALUES_PER_ADDRESS.setValue(true);
+        DatabaseSettings.MAX_VALUES_PER_ADDRESS.setValue(5);
+        DatabaseSettings.LIMIT_VALUES_PER_NETWORK.setValue(false);
+
+        ConcurrentDatabaseImpl database = new ConcurrentDatabaseImpl();
+
+        List<DHTValueEntity> values = new ArrayList<DHTValueEntity>();
+        for (int i = 0; i < 5; i++) {
+            DHTValueEntity entity = createRemoteDHTValue(1, KUID.createRandomID(), new byte[1]);
+            assertTrue(database.store(entity));
+            values.add(entity);
+        }
+
+        assertFalse(database.store(createRemoteDHTValue(1, KUID.createRandomID(), new byte[1])));
+        assertTrue(database.store(createRemoteDHTValue(2, KUID.createRandomID(), new byte[1])));
+        assertEquals(5, database.getValuesPerAddress(values.get(0)));
+
+        // Freeing a slot lets the address store again
+        database.remove(values.get(0).getPrimaryKey(), values.get(0).getSecondaryKey());
+        assertEquals(4, database.getValuesPerAddress(values.get(0)));
+        assertTrue(database.store(createRemoteDHTValue(1, KUID.createRandomID(), new byte[1])));
+
+        database.clear();
+        assertEquals(0, database.getValuesPerAddress(values.get(0)));
+        assertEquals(0, database.getValuesPerNetwork(values.get(0)));
+    }
+
+    public void testRequestLoad() throws Exception {
+        Database database = new ConcurrentDatabaseImpl();
+        DHTValueEntity entity = createLocalDHTValue(StringUtils.toAsciiBytes("Hello World"));
+        database.store(entity);
+
+        KUID primaryKey = entity.getPrimaryKey();
+        assertEquals(0f, database.getRequestLoad(primaryKey, true));
+
+        Thread.sleep(500);
+        float load = database.getRequestLoad(primaryKey, true);
+        assertGreaterThan(
+                DatabaseSettings.VALUE_REQUEST_LOAD_SMOOTHING_FACTOR.getValue(), load);
+        assertEquals(load, database.getRequestLoad(primaryKey, false));
+        Thread.sleep(500);
+        assertGreaterThan(load, database.getRequestLoad(primaryKey, true));
+
+        assertEquals(0f, database.getRequestLoad(KUID.createRandomID(), true));
+    }
+
+    public void testEvictsLeastRecentlyUsedValues() throws Exception {
+        DatabaseSettings.LIMIT_VALUES_PER_ADDRESS.setValue(false);
+        DatabaseSettings.LIMIT_VALUES_PER_NETWORK.setValue(false);
+
+        ConcurrentDatabaseImpl database = new ConcurrentDatabaseImpl(4, 16 * VALUE_SIZE);
+
+        DHTValueEntity local = createLocalDHTValue(new byte[100]);
+        assertTrue(database.store(local));
+
+        List<DHTValueEntity> values = new ArrayList<DHTValueEntity>();
+        for (int i = 0; i < 15; i++) {
+            DHTValueEntity entity = createRemoteDHTValue(i, KUID.createRandomID(), new byte[100]);
+            assertTrue(database.store(entity));
+            values.add(entity);
+            Thread.sleep(5);
+        }
+        assertEquals(16, database.getValueCount());
+        assertEquals(16 * VALUE_SIZE, database.getSize());
+
+        // Looking up the oldest value makes it the most recently used
+        Thread.sleep(5);
+        database.get(values.get(0).getPrimaryKey());
+        Thread.sleep(5);
+
+        assertTrue(database.store(createRemoteDHTValue(100, KUID.createRandomID(), new byte[100])));
+
+        // Down to 14 values, the local value and the looked up value survived
+        assertEquals(14, database.getValueCount());
+        assertEquals(14 * VALUE_SIZE, database.getSize());
+        assertTrue(database.contains(local.getPrimaryKey(), local.getSecondaryKey()));
+        assertTrue(database.contains(values.get(0).getPrimaryKey(), values.get(0).getSecondaryKey()));
+        for (DHTValueEntity entity : values.subList(1, 4)) {
+            assertFalse(database.contains(entity.getPrimaryKey(), entity.getSecondaryKey()));
+        }
+        for (DHTValueEntity entity : values.subList(4, values.size())) {
+            assertTrue(database.contains(entity.getPrimaryKey(), entity.getSecondaryKey()));
+        }
+    }
+
+    public void testLocalValuesOverBudget() throws Exception {
+        DatabaseSettings.LIMIT_VALUES_PER_ADDRESS.setValue(false);
+        DatabaseSettings.LIMIT_VALUES_PER_NETWORK.setValue(false);
+
+        ConcurrentDatabaseImpl database = new ConcurrentDatabaseImpl(4, 4 * VALUE_SIZE);
+
+        for (int i = 0; i < 6; i++) {
+            assertTrue(database.store(createLocalDHTValue(new byte[100])));
+        }
+        assertEquals(6 * VALUE_SIZE, database.getSize());
+
+        // Only the remote value can go
+        DHTValueEntity remote = createRemoteDHTValue(1, KUID.createRandomID(), new byte[100]);
+        assertTrue(database.store(remote));
+        assertFalse(database.contains(remote.getPrimaryKey(), remote.getSecondaryKey()));
+        assertEquals(6, database.getValueCount());
+        assertEquals(0L, ((AtomicLong)PrivilegedAccessor.getValue(database, "remoteSize")).get());
+
+        assertTrue(database.store(createLocalDHTValue(new byte[100])));
+        assertEquals(7 * VALUE_SIZE, database.getSize());
+    }
+
+    public void testConcurrentStoresAndRemoves() throws Exception {
+        DatabaseSettings.LIMIT_VALUES_PER_ADDRESS.setValue(true);
+        DatabaseSettings.MAX_VALUES_PER_ADDRESS.setValue(Integer.MAX_VALUE - 1);
+        DatabaseSettings.LIMIT_VALUES_PER_NETWORK.setValue(false);
+        DatabaseSettings.MAX_VALUES_PER_KEY.setValue(10);
+
+        final ConcurrentDatabaseImpl database = new ConcurrentDatabaseImpl(8, Long.MAX_VALUE);
+        final KUID[] keys = new KUID[512];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = KUID.createRandomID();
+        }
+
+        final int threads = 8;
+        final int stores = 500;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        for (int t = 0; t < threads; t++) {
+            final int host = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < stores; i++) {
+                            DHTValueEntity entity = createRemoteDHTValue(host,
+                                    keys[i % keys.length], new byte[10]);
+                            assertTrue(database.store(entity));
+                            database.getRequestLoad(entity.getPrimaryKey(), true);
+                            database.values();
+                            if (i % 2 == 0) {
+                                assertNotNull(database.remove(entity.getPrimaryKey(),
+                                        entity.getSecondaryKey()));
+                            }
+                        }
+                    } catch (Throwable err) {
+                        synchronized (errors) {
+                            errors.add(err);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        start.countDown();
+        done.await();
+        assertEquals(errors.toString(), 0, errors.size());
+
+        int expected = threads * stores / 2;
+        assertEquals(expected, database.getValueCount());
+        assertEquals(expected, database.values().size());
+        assertEquals(expected * (256L + 10L), database.getSize());
+        assertEquals(stores / 2, database.getKeyCount());
+
+        DHTValueEntity probe = createRemoteDHTValue(0, KUID.createRandomID(), new byte[10]);
+        assertEquals(stores / 2, database.getValuesPerAddress(probe));
+    }
+
+    public void testSelectedBySetting() {
+        MojitoDHT dht = MojitoFactory.createDHT();
+        assertInstanceof(DatabaseImpl.class, dht.getDatabase());
+        dht.close();
+
+        DatabaseSettings.CONCURRENT_DATABASE.setValue(true);
+        dht = MojitoFactory.createDHT();
+        assertInstanceof(ConcurrentDatabaseImpl.class, dht.getDatabase());
+        dht.close();
+    }
+}
@@ -0,0 +1,372 @@
+package org.limewire.mojito.handler.response;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import junit.framework.TestSuite;
+
+import org.limewire.concurrent.OnewayExchanger;
+import org.limewire.mojito.Context;
+import org.limewire.mojito.KUID;
+import org.limewire.mojito.MojitoDHT;
+import org.limewire.mojito.MojitoFactory;
+import org.limewire.mojito.MojitoTestCase;
+import org.limewire.mojito.io.MessageDispatcher;
+import org.limewire.mojito.io.MessageDispatcherFactory;
+import org.limewire.mojito.io.MessageDispatcherImpl;
+import org.limewire.mojito.io.Tag;
+import org.limewire.mojito.messages.DHTMessage;
+import org.limewire.mojito.messages.FindNodeRequest;
+import org.limewire.mojito.messages.FindNodeResponse;
+import org.limewire.mojito.result.FindNodeResult;
+import org.limewire.mojito.routing.Contact;
+import org.limewire.mojito.routing.RouteTable.SelectMode;
+import org.limewire.mojito.settings.ContextSettings;
+import org.limewire.mojito.settings.LookupSettings;
+import org.limewire.mojito.settings.NetworkSettings;
+
+/**
+ * Runs lookups in a network of DHTs on the loopback where some
+ * Nodes stop answering FIND_NODE requests after the bootstrap and
+ * checks when the lookups send their requests and when they finish.
+ * Every test builds its own network, so the RTTs learned in one
+ * don't carry over to another.
+ * <p>
+ * No request times out in less than MIN_TIMEOUT, so a request that
+ * wasn't answered and was sent less than MIN_TIMEOUT ago is still
+ * outstanding.
+ */
+public class LookupLatencyTest extends MojitoTestCase {
+
+    private static final int NODES = 40;
+
+    private static final int UNRESPONSIVE_NODES = 10;
+
+    private static final int LOOKUPS = 10;
+
+    private static final int PARALLELISM = 3;
+
+    /**
+     * The number of closest Nodes the targeted lookups look for,
+     * fewer than the number of Nodes they query at once.
+     */
+    private static final int RESULT_SET_SIZE = 2;
+
+    private static final int TARGETED_LOOKUPS = 5;
+
+    private static final long MIN_TIMEOUT = 1000L;
+
+    private List<MojitoDHT> dhts;
+
+    private Set<KUID> unresponsive;
+
+    private DroppingMessageDispatcher lookupDispatcher;
+
+    public LookupLatencyTest(String name) {
+        super(name);
+    }
+
+    public static TestSuite suite() {
+        return buildTestSuite(LookupLatencyTest.class);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        NetworkSettings.DEFAULT_TIMEOUT.setValue(1500);
+        NetworkSettings.MIN_TIMEOUT_RTT.setValue(MIN_TIMEOUT);
+        ContextSettings.WAIT_ON_LOCK.setValue(30000);
+        dhts = new ArrayList<MojitoDHT>();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (MojitoDHT dht : dhts) {
+            dht.close();
+        }
+    }
+
+    /**
+     * Creates and bootstraps the network, and makes every fourth
+     * Node but the one that does the lookups stop answering.
+     */
+    private Context createNetwork(boolean adaptive) throws Exception {
+        List<DroppingMessageDispatcher> dispatchers
+            = new ArrayList<DroppingMessageDispatcher>();
+
+        for (int i = 0; i < NODES; i++) {
+            MojitoDHT dht = MojitoFactory.createDHT("DHT-" + i);
+            dhts.add(dht);
+
+            final DroppingMessageDispatcher dispatcher
+                = new DroppingMessageDispatcher((Context)dht);
+            dispatchers.add(dispatcher);
+            dht.setMessageDispatcher(new MessageDispatcherFactory() {
+                public MessageDispatcher create(Context context) {
+                    return dispatcher;
+                }
+            });
+
+            dht.bind(new InetSocketAddress(3000 + i));
+            dht.start();
+
+            if (i > 0) {
+                dht.bootstrap(new InetSocketAddress("localhost", 3000)).get();
+            }
+        }
+        dhts.get(0).bootstrap(dhts.get(1).getContactAddress()).get();
+
+        unresponsive = new HashSet<KUID>();
+        for (int i = 0; i < UNRESPONSIVE_NODES; i++) {
+            dispatchers.get(NODES - 1 - 4*i).unresponsive = true;
+            unresponsive.add(dhts.get(NODES - 1 - 4*i).getLocalNodeID());
+        }
+
+        lookupDispatcher = dispatchers.get(0);
+        lookupDispatcher.recording = true;
+
+        LookupSettings.FIND_NODE_PARALLEL_LOOKUPS.setValue(PARALLELISM);
+        LookupSettings.ADAPTIVE_LOOKUP.setValue(adaptive);
+        return (Context)dhts.get(0);
+    }
+
+    public void testStaticLookupsWaitForTimeouts() throws Exception {
+        Context context = createNetwork(false);
+
+        for (int i = 0; i < TARGETED_LOOKUPS; i++) {
+            KUID lookupId = getTargetBeforeUnresponsiveNode(context);
+            lookup(context, lookupId);
+            long finished = System.currentTimeMillis();
+
+            List<Request> requests = lookupDispatcher.getRequests(lookupId);
+            assertEquals(0, getOutstandingRequests(requests, finished));
+        }
+
+        int queriedUnresponsive = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            KUID lookupId = KUID.createRandomID();
+            FindNodeResult result = context.lookup(lookupId).get();
+            long finished = System.currentTimeMillis();
+            assertFalse(result.getPath().isEmpty());
+
+            List<Request> requests = lookupDispatcher.getRequests(lookupId);
+            queriedUnresponsive += getUnresponsiveRequests(requests).size();
+            assertFalse(isWidened(requests));
+            assertEquals(0, getOutstandingRequests(requests, finished));
+        }
+        assertGreaterThan(0, queriedUnresponsive);
+    }
+
+    public void testAdaptiveLookupsMakeUpForStalledRequests() throws Exception {
+        Context context = createNetwork(true);
+
+        int widened = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            KUID lookupId = KUID.createRandomID();
+            FindNodeResult result = context.lookup(lookupId).get();
+            assertFalse(result.getPath().isEmpty());
+
+            if (isWidened(lookupDispatcher.getRequests(lookupId))) {
+                widened++;
+            }
+        }
+        assertGreaterThan(0, widened);
+    }
+
+    public void testAdaptiveLookupsDoNotWaitForFurtherAwayNodes() throws Exception {
+        Context context = createNetwork(true);
+
+        for (int i = 0; i < TARGETED_LOOKUPS; i++) {
+            KUID lookupId = getTargetBeforeUnresponsiveNode(context);
+            FindNodeResult result = lookup(context, lookupId);
+            long finished = System.currentTimeMillis();
+            assertEquals(RESULT_SET_SIZE, result.getPath().size());
+
+            // at least the request to the third closest Node is
+            // still outstanding
+            List<Request> requests = lookupDispatcher.getRequests(lookupId);
+            assertGreaterThan(0, getOutstandingRequests(requests, finished));
+        }
+    }
+
+    /**
+     * Returns a random ID whose two closest alive Nodes answer and
+     * whose third closest alive Node doesn't, so a lookup for the
+     * RESULT_SET_SIZE closest Nodes queries all three at once.
+     * Nodes that timed out are no longer alive, so these lookups
+     * come first.
+     */
+    private KUID getTargetBeforeUnresponsiveNode(Context context) {
+        for (int i = 0; i < 100000; i++) {
+            KUID lookupId = KUID.createRandomID();
+            List<Contact> closest = new ArrayList<Contact>(context.getRouteTable().select(
+                    lookupId, PARALLELISM, SelectMode.ALIVE));
+            if (closest.size() == PARALLELISM
+                    && !unresponsive.contains(closest.get(0).getNodeID())
+                    && !unresponsive.contains(closest.get(1).getNodeID())
+                    && unresponsive.contains(closest.get(2).getNodeID())) {
+                return lookupId;
+            }
+        }
+        fail("No ID in front of an unresponsive Node");
+        return null;
+    }
+
+    /**
+     * Looks up the RESULT_SET_SIZE closest Nodes to the given ID,
+     * starting with the closest alive Nodes from the RouteTable.
+     */
+    private FindNodeResult lookup(Context context, KUID lookupId) throws Exception {
+        OnewayExchanger<FindNodeResult, ExecutionException> exchanger
+            = new OnewayExchanger<FindNodeResult, ExecutionException>(true);
+        FindNodeResponseHandler handler 
+            = new FindNodeResponseHandler(context, lookupId, RESULT_SET_SIZE);
+        handler.setSelectAliveNodesOnly(true);
+        handler.start(exchanger);
+        return exchanger.get();
+    }
+
+    /**
+     * Returns the requests that went to unresponsive Nodes.
+     */
+    private List<Request> getUnresponsiveRequests(List<Request> requests) {
+        List<Request> ret = new ArrayList<Request>();
+        for (Request request : requests) {
+            if (unresponsive.contains(request.nodeId)) {
+                ret.add(request);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the number of requests that were neither answered
+     * nor could have timed out at the given time.
+     */
+    private int getOutstandingRequests(List<Request> requests, long time) {
+        int outstanding = 0;
+        for (Request request : requests) {
+            if (request.time <= time 
+                    && (request.answered < 0L || request.answered > time)
+                    && time - request.time < MIN_TIMEOUT) {
+                outstanding++;
+            }
+        }
+        return outstanding;
+    }
+
+    /**
+     * Returns true if a request was sent while as many requests
+     * as the parallelism were outstanding.
+     */
+    private boolean isWidened(List<Request> requests) {
+        for (int i = 0; i < requests.size(); i++) {
+            Request request = requests.get(i);
+            if (getOutstandingRequests(requests.subList(0, i), request.time) >= PARALLELISM) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A FIND_NODE request sent by the Node that does the lookups.
+     */
+    private static class Request {
+
+        private final KUID lookupId;
+
+        private final KUID nodeId;
+
+        private final long time;
+
+        /** The time the request was answered or -1. */
+        private volatile long answered = -1L;
+
+        public Request(KUID lookupId, KUID nodeId, long time) {
+            this.lookupId = lookupId;
+            this.nodeId = nodeId;
+            this.time = time;
+        }
+    }
+
+    /**
+     * A MessageDispatcher that drops FIND_NODE requests if
+     * it's unresponsive and records the ones it sends along
+     * with when they were answered.
+     */
+    private static class DroppingMessageDispatcher extends MessageDispatcherImpl {
+
+        private volatile boolean unresponsive = false;
+
+        private volatile boolean recording = false;
+
+        private final List<Request> requests = new ArrayList<Request>();
+
+        public DroppingMessageDispatcher(Context context) {
+            super(context);
+        }
+
+        @Override
+        protected void handleMessage(DHTMessage message) {
+            if (unresponsive && message instanceof FindNodeRequest) {
+                return;
+            }
+            if (recording && message instanceof FindNodeResponse) {
+                answered(message.getContact().getNodeID());
+            }
+            super.handleMessage(message);
+        }
+
+        @Override
+        protected boolean send(Tag tag) throws IOException {
+            if (recording && tag.getMessage() instanceof FindNodeRequest) {
+                FindNodeRequest request = (FindNodeRequest)tag.getMessage();
+                synchronized (requests) {
+                    requests.add(new Request(request.getLookupID(),
+                            tag.getNodeID(), System.currentTimeMillis()));
+                }
+            }
+            return super.send(tag);
+        }
+
+        /**
+         * Marks the first unanswered request to the given Node
+         * as answered.
+         */
+        private void answered(KUID nodeId) {
+            synchronized (requests) {
+                for (Request request : requests) {
+                    if (request.nodeId.equals(nodeId) && request.answered < 0L) {
+                        request.answered = System.currentTimeMillis();
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the requests of the given lookup in the order
+         * they were sent.
+         */
+        public List<Request> getRequests(KUID lookupId) {
+            List<Request> ret = new ArrayList<Request>();
+            synchronized (requests) {
+                for (Request request : requests) {
+                    if (request.lookupId.equals(lookupId)) {
+                        ret.add(request);
+                    }
+                }
+            }
+            return ret;
+        }
+    }
+}
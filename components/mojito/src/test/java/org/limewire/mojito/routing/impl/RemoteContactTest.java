@@ -178,6 +178,47 @@ public class RemoteContactTest extends MojitoTestCase {
         assertEquals(NetworkSettings.MIN_TIMEOUT_RTT.getValue(), node2.getAdaptativeTimeout());
     }
     
+    public void testSmoothedRoundTripTime() {
+        Contact node1 = ContactFactory.createLiveContact(
+                new InetSocketAddress("localhost", 1024), 
+                Vendor.UNKNOWN, Version.ZERO, KUID.createRandomID(), 
+                new InetSocketAddress("localhost", 2048), 
+                0, Contact.DEFAULT_FLAG);
+        
+        assertEquals(-1L, node1.getSmoothedRoundTripTime());
+        assertEquals(-1L, node1.getRoundTripTimeDeviation());
+        
+        node1.setRoundTripTime(800L);
+        assertEquals(800L, node1.getSmoothedRoundTripTime());
+        assertEquals(400L, node1.getRoundTripTimeDeviation());
+        
+        node1.setRoundTripTime(0L);
+        assertEquals(800L, node1.getSmoothedRoundTripTime());
+        
+        node1.setRoundTripTime(160L);
+        assertEquals(720L, node1.getSmoothedRoundTripTime());
+        assertEquals(460L, node1.getRoundTripTimeDeviation());
+        assertEquals(160L, node1.getRoundTripTime());
+        
+        // A new instance of the same Node carries the estimate over
+        Contact node2 = ContactFactory.createLiveContact(
+                new InetSocketAddress("localhost", 1024), 
+                Vendor.UNKNOWN, Version.ZERO, node1.getNodeID(), 
+                new InetSocketAddress("localhost", 2048), 
+                0, Contact.DEFAULT_FLAG);
+        node2.setRoundTripTime(80L);
+        node2.updateWithExistingContact(node1);
+        assertEquals(640L, node2.getSmoothedRoundTripTime());
+        assertEquals(80L, node2.getRoundTripTime());
+        
+        Contact node3 = ContactFactory.createUnknownContact(
+                Vendor.UNKNOWN, Version.ZERO, node1.getNodeID(), 
+                new InetSocketAddress("localhost", 2048));
+        node3.updateWithExistingContact(node1);
+        assertEquals(720L, node3.getSmoothedRoundTripTime());
+        assertEquals(460L, node3.getRoundTripTimeDeviation());
+    }
+    
     public void testPublicPrivateAddress() {
         setLocalIsPrivate(true);
         
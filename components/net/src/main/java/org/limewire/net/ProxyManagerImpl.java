@@ -19,6 +19,7 @@ import org.apache.commons.logging.LogFactory;
 import org.limewire.io.IOUtils;
 import org.limewire.io.NetworkInstanceUtils;
 import org.limewire.net.ProxySettings.ProxyType;
+import org.limewire.nio.NIODispatcher;
 import org.limewire.nio.channel.NIOMultiplexor;
 import org.limewire.nio.observer.ConnectObserver;
 import org.limewire.nio.statemachine.BlockingStateMachine;
@@ -345,7 +346,8 @@ class ProxyManagerImpl implements ProxyManager {
             s.setSoTimeout(timeout);
             if(LOG.isDebugEnabled())
                 LOG.debug("Connected to proxy, beginning proxy handshake for addr: " + addr);
-            IOStateMachine machine = new IOStateMachine(this, getProxyStates(proxyType, addr));
+            IOStateMachine machine = new IOStateMachine(this, getProxyStates(proxyType, addr),
+                    NIODispatcher.instance().getScheduledExecutorService(s.getChannel()));
             ((NIOMultiplexor)socket).setReadObserver(machine);
             ((NIOMultiplexor)socket).setWriteObserver(machine);
         }
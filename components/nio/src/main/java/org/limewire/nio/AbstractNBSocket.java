@@ -98,7 +98,8 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
      * Sets the initial reader value.
      */
     public final void setInitialReader() {
-        reader = new NIOInputStream(this, this, getBaseReadChannel());
+        reader = new NIOInputStream(this, this, getBaseReadChannel(),
+                NIODispatcher.instance().getScheduledExecutorService(getChannel()));
     }
     
     /**
@@ -107,7 +108,8 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
     public final void setInitialWriter() {
         InterestWritableByteChannel base = getBaseWriteChannel();
         writer = getBottomFromChain(base);
-        nioOutputStream = new NIOOutputStream(this, base);
+        nioOutputStream = new NIOOutputStream(this, base,
+                NIODispatcher.instance().getScheduledExecutorService(getChannel()));
     }
     
     private InterestWritableByteChannel getBottomFromChain(InterestWritableByteChannel top) {
@@ -142,7 +144,7 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
      * in reading is turned on.
      */
     public final void setReadObserver(final ChannelReadObserver newReader) {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        NIODispatcher.instance().getScheduledExecutorService(getChannel()).execute(new Runnable() {
             public void run() {
                 ReadObserver oldReader = reader;
                 try {
@@ -204,7 +206,7 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
      * write, then an <code>IllegalStateException</code> is thrown.
      */
     public final void setWriteObserver(final ChannelWriter newWriter) {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        NIODispatcher.instance().getScheduledExecutorService(getChannel()).execute(new Runnable() {
             public void run() {
                 try {
                     if(writer.handleWrite())
@@ -359,7 +361,7 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
             
             if(getChannel().connect(addr)) {
                 // Make sure connecting callbacks are always on the NIO thread.
-                NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+                NIODispatcher.instance().getScheduledExecutorService(getChannel()).execute(new Runnable() {
                     public void run() {
                         // ensure it's registered in the selector, so it can be notified
                         // for reading|writing, and polled for readiness
@@ -367,7 +369,7 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
                         try {
                             observer.handleConnect(AbstractNBSocket.this);
                         } catch(IOException iox) {
-                            NIODispatcher.instance().executeLaterAlways(new Runnable() {
+                            NIODispatcher.instance().executeLaterAlways(getChannel(), new Runnable() {
                                 public void run() {
                                     shutdown();
                                 }
@@ -381,7 +383,7 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
                 return false;
             }
         } catch(IOException failed) {
-            NIODispatcher.instance().executeLaterAlways(new Runnable() {
+            NIODispatcher.instance().executeLaterAlways(getChannel(), new Runnable() {
                 public void run() {
                     shutdown();
                 }
@@ -419,13 +421,14 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
         } else {
             Callable<InputStream> callable = new Callable<InputStream>() {
                 public InputStream call() throws IOException {
-                    NIOInputStream stream = new NIOInputStream(AbstractNBSocket.this, AbstractNBSocket.this, null).init();
+                    NIOInputStream stream = new NIOInputStream(AbstractNBSocket.this, AbstractNBSocket.this, null,
+                            NIODispatcher.instance().getScheduledExecutorService(getChannel())).init();
                     setReadObserver(stream);
                     return stream.getInputStream();
                 }
             };
             
-            Future<InputStream> future = NIODispatcher.instance().getScheduledExecutorService().submit(callable);
+            Future<InputStream> future = NIODispatcher.instance().getScheduledExecutorService(getChannel()).submit(callable);
             try {
                 return future.get();
             } catch(ExecutionException ee) {
@@ -497,7 +500,7 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
         shutdownSocketAndChannels();
         shutdownObservers();
                 
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        NIODispatcher.instance().getScheduledExecutorService(getChannel()).execute(new Runnable() {
             public void run() {
                 if(nioOutputStream != null)
                     nioOutputStream.shutdown();
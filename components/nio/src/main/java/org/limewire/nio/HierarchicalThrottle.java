@@ -0,0 +1,367 @@
+package org.limewire.nio;
+
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A throttle that shares its bandwidth among classes of traffic, each of
+ * which is a {@link NBThrottle} of its own.
+ * <p>
+ * Every allocation period the bandwidth is divided among the classes that
+ * have interested listeners in proportion to their weights, never giving a
+ * class more than its ceiling.  Bandwidth that an idle class or a capped
+ * class does not use is shared by the others; an idle class gets nothing
+ * until a listener is interested in it, which reallocates the bandwidth on
+ * the next tick.  Within a class, listeners
+ * take turns in FIFO order as they do with any <code>NBThrottle</code>, so
+ * every connection of a class gets an equal part of the class' bandwidth.
+ * Listeners that use this throttle itself share a class named "default",
+ * which is added the first time it's needed.
+ * <p>
+ * Only this throttle is ticked by {@link NIODispatcher}; it ticks its
+ * classes and tells them of selectable keys, starting with a different
+ * class every time so no class is always served first.
+ */
+public class HierarchicalThrottle extends NBThrottle {
+
+    /** The number of milliseconds between reallocations of the bandwidth. */
+    private static final int ALLOCATION_PERIOD = 100;
+
+    /** The name of the class of listeners that use this throttle itself. */
+    public static final String DEFAULT_CLASS = "default";
+
+    /** The number of milliseconds between measurements of the class rates. */
+    private static final int MEASUREMENT_PERIOD = 1000;
+
+    /** The weight of the newest measurement in the measured rates. */
+    private static final float MEASUREMENT_WEIGHT = 0.5f;
+
+    private final boolean forWriting;
+
+    private final int millisPerTick;
+
+    private final List<ClassThrottle> classes = new CopyOnWriteArrayList<ClassThrottle>();
+
+    /** The class of listeners that use this throttle itself, or null. */
+    private volatile ClassThrottle defaultClass;
+
+    /** The bandwidth shared by all classes. */
+    private volatile float bytesPerSecond;
+
+    /** LOCKING: this */
+    private long nextAllocation = -1;
+
+    /** LOCKING: this */
+    private long lastMeasurement = -1;
+
+    /**
+     * The class that is told of selectable keys first.
+     * LOCKING: this
+     */
+    private int firstClass;
+
+    /**
+     * Constructs a throttle for writing or reading that shares
+     * bytesPerSecond among its classes.
+     */
+    public HierarchicalThrottle(boolean forWriting, float bytesPerSecond) {
+        this(forWriting, bytesPerSecond, true, ALLOCATION_PERIOD);
+    }
+
+    /**
+     * Constructs a throttle that is only added to <code>NIODispatcher</code>
+     * if addToDispatcher is true.
+     */
+    protected HierarchicalThrottle(boolean forWriting, float bytesPerSecond,
+            boolean addToDispatcher, int millisPerTick) {
+        super(forWriting, 0, false, millisPerTick);
+        this.forWriting = forWriting;
+        this.millisPerTick = millisPerTick;
+        this.bytesPerSecond = bytesPerSecond;
+        // only once the classes can be ticked
+        if (addToDispatcher)
+            NIODispatcher.instance().addThrottle(this);
+    }
+
+    /**
+     * Adds a class of traffic and returns the throttle its listeners must
+     * use.
+     *
+     * @param weight the share of the bandwidth the class gets relative to
+     *        the other busy classes
+     * @param ceiling the most bytes per second the class may use
+     */
+    public ClassThrottle addClass(String name, int weight, float ceiling) {
+        if (weight < 1)
+            throw new IllegalArgumentException("weight cannot be " + weight);
+        ClassThrottle throttle = new ClassThrottle(name, weight, ceiling);
+        classes.add(throttle);
+        // give the new class its share right away
+        reallocate();
+        return throttle;
+    }
+
+    /**
+     * Makes the next tick reallocate the bandwidth.
+     */
+    private synchronized void reallocate() {
+        nextAllocation = -1;
+    }
+
+    /**
+     * Sets the bandwidth shared by all classes, which is reallocated on the
+     * next tick.
+     */
+    @Override
+    public void setRate(float bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Returns the class of listeners that use this throttle itself,
+     * adding it if it doesn't exist yet.
+     */
+    private ClassThrottle getDefaultClass() {
+        ClassThrottle throttle = defaultClass;
+        if (throttle == null) {
+            synchronized (this) {
+                throttle = defaultClass;
+                if (throttle == null)
+                    defaultClass = throttle = addClass(DEFAULT_CLASS, 1, Float.MAX_VALUE);
+            }
+        }
+        return throttle;
+    }
+
+    /**
+     * Interests the listener in the default class.
+     */
+    @Override
+    public void interest(ThrottleListener writer) {
+        getDefaultClass().interest(writer);
+    }
+
+    /**
+     * Requests bandwidth from the default class.
+     */
+    @Override
+    public int request() {
+        return getDefaultClass().request();
+    }
+
+    /**
+     * Releases bandwidth to the default class.
+     */
+    @Override
+    public void release(int amount) {
+        getDefaultClass().release(amount);
+    }
+
+    @Override
+    public long nextTickTime() {
+        long next = Long.MAX_VALUE;
+        for (ClassThrottle throttle : classes)
+            next = Math.min(next, throttle.nextTickTime());
+        return next;
+    }
+
+    @Override
+    synchronized void tick(long currentTime) {
+        if (currentTime >= nextAllocation) {
+            allocate();
+            nextAllocation = currentTime + ALLOCATION_PERIOD;
+        }
+        if (lastMeasurement == -1) {
+            lastMeasurement = currentTime;
+        } else if (currentTime - lastMeasurement >= MEASUREMENT_PERIOD) {
+            for (ClassThrottle throttle : classes)
+                throttle.measure(currentTime - lastMeasurement);
+            lastMeasurement = currentTime;
+        }
+        for (ClassThrottle throttle : classes)
+            throttle.tick(currentTime);
+    }
+
+    @Override
+    void selectableKeys(Collection<? extends SelectionKey> keys) {
+        int size = classes.size();
+        if (size == 0)
+            return;
+        int first;
+        synchronized (this) {
+            first = firstClass = (firstClass + 1) % size;
+        }
+        for (int i = 0; i < size; i++)
+            classes.get((first + i) % size).selectableKeys(keys);
+    }
+
+    /**
+     * Divides the bandwidth among the busy classes by weight, never giving
+     * a class more than its ceiling, and gives the idle classes nothing, so
+     * the rates never add up to more than the bandwidth.
+     */
+    private void allocate() {
+        // doubles, since the unlimited rate is Float.MAX_VALUE
+        double remaining = bytesPerSecond;
+        List<ClassThrottle> busy = new ArrayList<ClassThrottle>();
+        for (ClassThrottle throttle : classes) {
+            // before looking, so an interest from now on reallocates
+            boolean wasIdle = throttle.idle;
+            throttle.idle = true;
+            if (throttle.nextTickTime() != Long.MAX_VALUE) {
+                throttle.idle = false;
+                // a class that had nothing can start right away
+                if (wasIdle)
+                    throttle.resetTick();
+                busy.add(throttle);
+            } else {
+                throttle.setRate(0);
+            }
+        }
+
+        // cap the classes whose share is above their ceiling until the
+        // shares of the others fit
+        boolean capped = true;
+        while (capped && !busy.isEmpty()) {
+            capped = false;
+            long busyWeight = totalWeight(busy);
+            for (Iterator<ClassThrottle> i = busy.iterator(); i.hasNext(); ) {
+                ClassThrottle throttle = i.next();
+                if (throttle.ceiling < remaining * throttle.weight / busyWeight) {
+                    throttle.setRate(throttle.ceiling);
+                    remaining -= throttle.ceiling;
+                    i.remove();
+                    capped = true;
+                }
+            }
+        }
+        long busyWeight = totalWeight(busy);
+        for (ClassThrottle throttle : busy)
+            throttle.setRate(share(remaining, throttle, busyWeight));
+    }
+
+    private static float share(double bytesPerSecond, ClassThrottle throttle, long totalWeight) {
+        return (float)Math.min(throttle.ceiling, bytesPerSecond * throttle.weight / totalWeight);
+    }
+
+    private static long totalWeight(List<ClassThrottle> throttles) {
+        long total = 0;
+        for (ClassThrottle throttle : throttles)
+            total += throttle.weight;
+        return total;
+    }
+
+    /**
+     * Returns the number of bytes per second each class has used, by the
+     * name of the class.
+     */
+    public Map<String, Float> getMeasuredRates() {
+        Map<String, Float> rates = new HashMap<String, Float>();
+        for (ClassThrottle throttle : classes)
+            rates.put(throttle.name, throttle.getMeasuredRate());
+        return rates;
+    }
+
+    /**
+     * The throttle of a class of traffic, which gets its bandwidth from a
+     * <code>HierarchicalThrottle</code>.
+     */
+    public class ClassThrottle extends NBThrottle {
+
+        private final String name;
+
+        private final int weight;
+
+        private volatile float ceiling;
+
+        /** The number of bytes given out and not released since the last measurement. */
+        private final AtomicLong used = new AtomicLong();
+
+        private volatile float measuredRate;
+
+        private volatile float allocatedRate;
+
+        /** Whether this class had no interested listeners when last allocated. */
+        private volatile boolean idle = true;
+
+        ClassThrottle(String name, int weight, float ceiling) {
+            super(forWriting, 0, false, millisPerTick);
+            this.name = name;
+            this.weight = weight;
+            this.ceiling = ceiling;
+        }
+
+        /**
+         * Sets the most bytes per second this class may use.
+         */
+        public void setCeiling(float ceiling) {
+            this.ceiling = ceiling;
+        }
+
+        @Override
+        public void setRate(float bytesPerSecond) {
+            allocatedRate = bytesPerSecond;
+            super.setRate(bytesPerSecond);
+        }
+
+        /**
+         * Returns the bytes per second this class was last allocated.
+         */
+        public float getAllocatedRate() {
+            return allocatedRate;
+        }
+
+        /**
+         * Returns the bytes per second this class has used recently.
+         */
+        public float getMeasuredRate() {
+            return measuredRate;
+        }
+
+        /**
+         * Interests the listener, reallocating the bandwidth on the next
+         * tick if this class was idle and so has none.
+         */
+        @Override
+        public void interest(ThrottleListener writer) {
+            super.interest(writer);
+            if (idle)
+                reallocate();
+        }
+
+        @Override
+        public int request() {
+            int amount = super.request();
+            used.addAndGet(amount);
+            return amount;
+        }
+
+        @Override
+        public void release(int amount) {
+            super.release(amount);
+            // requests outside of selectableKeys are given nothing, so only
+            // what was actually given can be released
+            long current;
+            do {
+                current = used.get();
+            } while (!used.compareAndSet(current, Math.max(0, current - amount)));
+        }
+
+        private void measure(long elapsed) {
+            float rate = used.getAndSet(0) * 1000f / elapsed;
+            measuredRate = MEASUREMENT_WEIGHT * rate + (1 - MEASUREMENT_WEIGHT) * measuredRate;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
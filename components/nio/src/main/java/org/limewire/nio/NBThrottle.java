@@ -2,13 +2,16 @@ package org.limewire.nio;
 
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -80,6 +83,12 @@ import java.util.Set;
  * Note that due to the nature of <code>Throttle</code> and {@link NIODispatcher},
  * ready parties may be told to <code>WriteObserver.handleWrite()</code> twice during each 
  * selection event. The latter will always return 0 to a request.
+ * <p>
+ * When <code>NIODispatcher</code> runs more than one selector thread, each
+ * of them ticks the throttle and offers it the keys it selected. Each thread
+ * picks its ready parties under the throttle's lock but processes them after
+ * releasing it, so threads do not wait on each other's I/O while still
+ * sharing the bandwidth of each tick.
  */
 public class NBThrottle implements Throttle {
     
@@ -106,10 +115,10 @@ public class NBThrottle implements Throttle {
     private volatile int _bytesPerTick;
     
     /** The amount currently available in this tick. */
-    private volatile int _available;
+    private final AtomicInteger _available = new AtomicInteger();
     
     /** The next time a tick should occur. */
-    private long _nextTickTime = -1;
+    private volatile long _nextTickTime = -1;
     
     /**
      * A list of ThrottleListeners that are interested in bandwidthAvailable events.
@@ -132,15 +141,17 @@ public class NBThrottle implements Throttle {
     private Map<Object, ThrottleListener> _interested = new LinkedHashMap<Object, ThrottleListener>();
     
     /**
-     * Attachments that are ready-op'd.
+     * The state of each selector thread that offers keys to this throttle.
      * <p>
-     * This is temporary per each selectableKeys call, but is cached to avoid regenerating
-     * each time.
+     * A selector thread only ever offers its own keys, so keeping the state
+     * per thread keeps it per selector loop.
      */
-    private Map<Object, SelectionKey> _ready = new HashMap<Object, SelectionKey>();
-    
-    /** Whether or not we're currently active in the selectableKeys portion. */
-    private boolean _active = false;
+    private final ThreadLocal<LoopState> _loopState = new ThreadLocal<LoopState>() {
+        @Override
+        protected LoopState initialValue() {
+            return new LoopState();
+        }
+    };
     
     /**
      * Constructs a throttle using the default values for latency and availability.
@@ -203,9 +214,22 @@ public class NBThrottle implements Throttle {
     
     /**
      * Notification from the NIODispatcher that a bunch of keys are now selectable.
+     * <p>
+     * The ready parties are chosen while holding the lock, but processed
+     * outside of it.
      */
     void selectableKeys(Collection<? extends SelectionKey> keys) {
-        if(_available >= MINIMUM_TO_GIVE && !_interested.isEmpty()) {
+        if(_available.get() < MINIMUM_TO_GIVE)
+            return;
+        
+        LoopState state = _loopState.get();
+        Map<Object, SelectionKey> ready = state.ready;
+        List<Object> attachments = state.attachments;
+        List<ThrottleListener> listeners = state.listeners;
+        synchronized(this) {
+            if(_interested.isEmpty())
+                return;
+            
             for(Iterator<? extends SelectionKey> i = keys.iterator(); i.hasNext(); ) {
                 SelectionKey key = i.next();
                 try {
@@ -213,7 +237,7 @@ public class NBThrottle implements Throttle {
                         Object attachment = NIODispatcher.instance().attachment(key.attachment());
                         if(_interested.containsKey(attachment)) {
                             //LOG.debug("Adding: " + attachment + " to ready");
-                            _ready.put(attachment, key);
+                            ready.put(attachment, key);
                         }
                     }
                 } catch(CancelledKeyException ignored) {
@@ -221,33 +245,52 @@ public class NBThrottle implements Throttle {
                 }
             }
             
-            //LOG.trace("Interested: " + _interested.size() + ", ready: " + _ready.size());
+            //LOG.trace("Interested: " + _interested.size() + ", ready: " + ready.size());
             
-            _active = true;
-            long now = System.currentTimeMillis();
-            Iterator<Map.Entry<Object, ThrottleListener>> i = _interested.entrySet().iterator();
-            for(; i.hasNext(); ) {
+            for(Iterator<Map.Entry<Object, ThrottleListener>> i = _interested.entrySet().iterator(); i.hasNext(); ) {
                 Map.Entry<Object, ThrottleListener> next = i.next();
                 ThrottleListener listener = next.getValue();
-                Object attachment = next.getKey();
-                SelectionKey key = _ready.remove(attachment);
                 if(!listener.isOpen()) {
                     //LOG.trace("Removing closed but interested party: " + next.getKey());
                     i.remove();
-                } else if(key != null) {
-                    i.remove();
-                    //LOG.debug("Processing: " + key.attachment());
-                    listener.requestBandwidth();
-                    try {
-                        NIODispatcher.instance().process(now, key, key.attachment(), _processOp);
-                    } finally {
-                        listener.releaseBandwidth();
-                    }
-                    if (_available < MINIMUM_TO_GIVE)
-                        break;
+                } else if(ready.containsKey(next.getKey())) {
+                    // in FIFO order, removed from interested once processed.
+                    attachments.add(next.getKey());
+                    listeners.add(listener);
+                }
+            }
+        }
+
+        state.active = true;
+        try {
+            long now = System.currentTimeMillis();
+            for(int i = 0; i < attachments.size(); i++) {
+                if(_available.get() < MINIMUM_TO_GIVE)
+                    break;
+                
+                Object attachment = attachments.get(i);
+                ThrottleListener listener = listeners.get(i);
+                synchronized(this) {
+                    // another tick may have replaced or dropped it meanwhile.
+                    if(_interested.get(attachment) != listener)
+                        continue;
+                    _interested.remove(attachment);
+                }
+                
+                SelectionKey key = ready.get(attachment);
+                //LOG.debug("Processing: " + key.attachment());
+                listener.requestBandwidth();
+                try {
+                    NIODispatcher.instance().process(now, key, key.attachment(), _processOp);
+                } finally {
+                    listener.releaseBandwidth();
                 }
             }
-            _active = false;
+        } finally {
+            state.active = false;
+            ready.clear();
+            attachments.clear();
+            listeners.clear();
         }
     }
     
@@ -262,7 +305,7 @@ public class NBThrottle implements Throttle {
             wakeup = _requests.isEmpty();
             _requests.add(writer);
         }
-        if (wakeup || _available >= MINIMUM_TO_GIVE)
+        if (wakeup || _available.get() >= MINIMUM_TO_GIVE)
             NIODispatcher.instance().wakeup();
     }
     
@@ -270,20 +313,23 @@ public class NBThrottle implements Throttle {
      * Requests some bytes to write.
      */
     public int request() {
-        if(!_active) // failsafe to ensure request only occurs when we want it
+        if(!_loopState.get().active) // failsafe to ensure request only occurs when we want it
             return 0;
         
-        int ret = Math.min(_available, MAXIMUM_TO_GIVE);
-        _available -= ret;
-        return ret;
+        while(true) {
+            int available = _available.get();
+            int ret = Math.max(0, Math.min(available, MAXIMUM_TO_GIVE));
+            if(_available.compareAndSet(available, available - ret))
+                return ret;
+        }
     }
     
     /**
      * Releases some unwritten bytes back to the available pool.
      */
     public void release(int amount) {
-        if(_active) // failsafe to ensure releasing only occurs when we want it
-            _available += amount;
+        if(_loopState.get().active) // failsafe to ensure releasing only occurs when we want it
+            _available.addAndGet(amount);
         //LOG.trace("RETR: " + amount + ", REMAINING: " + _available + ", ALL: " + wroteAll + ", FROM: " + attachment);
     }
     
@@ -294,16 +340,24 @@ public class NBThrottle implements Throttle {
      * <code>false</code> if there are still some requests that require further 
      * tick notifications.
      */
-    void tick(long currentTime) {
+    synchronized void tick(long currentTime) {
         if(currentTime >= _nextTickTime) {
-            _available = _bytesPerTick;
+            _available.set(_bytesPerTick);
             _nextTickTime = currentTime + MILLIS_PER_TICK;
             spreadBandwidth();
-        } else if(_available >= MINIMUM_TO_GIVE) {
+        } else if(_available.get() >= MINIMUM_TO_GIVE) {
             spreadBandwidth();
         }
     }
     
+    /**
+     * Makes the next tick give out a new tick's worth of bandwidth, rather
+     * than wait for the current tick to end.
+     */
+    void resetTick() {
+        _nextTickTime = -1;
+    }
+    
     public long nextTickTime() {
         synchronized(_requests) {
             if (_requests.isEmpty() && _interested.isEmpty())
@@ -332,6 +386,24 @@ public class NBThrottle implements Throttle {
             }
         }
     }
-}
-    
     
+    /** What a selector thread keeps between its selectableKeys calls. */
+    private static class LoopState {
+        /**
+         * Attachments that are ready-op'd.
+         * <p>
+         * This is temporary per each selectableKeys call, but is cached to avoid
+         * regenerating each time.
+         */
+        private final Map<Object, SelectionKey> ready = new HashMap<Object, SelectionKey>();
+        
+        /** The ready interested attachments, in the order they are processed. */
+        private final List<Object> attachments = new ArrayList<Object>();
+        
+        /** The listeners owning the attachments. */
+        private final List<ThrottleListener> listeners = new ArrayList<ThrottleListener>();
+        
+        /** Whether this thread is processing keys and may request bandwidth. */
+        private boolean active;
+    }
+}
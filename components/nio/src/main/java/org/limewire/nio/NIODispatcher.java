@@ -20,6 +20,8 @@ import java.util.Map;
 import java.util.concurrent.AbstractExecutorService;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.DelayQueue;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.ScheduledExecutorService;
@@ -85,32 +87,58 @@ import org.limewire.service.ErrorService;
  * <p>
  * If any unhandled events occur while processing an event for a specific Observer, 
  * that Observer will be shutdown and will no longer receive events. If any 
- * <code>IOExceptions</code> occur while handling events for an Observer, 
+ * <code>IOExceptions</code> occur while handling events for an Observer,
  * <code>handleIOException</code> is called on that Observer.
+ * <p>
+ * By default all channels are handled on a single thread. If the
+ * <code>org.limewire.nio.dispatchThreads</code> system property is set to
+ * more than one, that many selector threads are run and each channel is
+ * assigned to one of them by its identity hash. A channel's events, and
+ * tasks given to {@link #getScheduledExecutorService(SelectableChannel)} or
+ * {@link #executeLaterAlways(SelectableChannel, Runnable)} for it, always run
+ * in order on its thread; the observers of different channels may run
+ * concurrently. Channels registered with a secondary <code>Selector</code>
+ * and tasks given to {@link #getScheduledExecutorService()} are handled on
+ * the primary thread.
  */
 @EagerSingleton
-public class NIODispatcher implements Runnable {
+public class NIODispatcher {
     
     private static final Log LOG = LogFactory.getLog(NIODispatcher.class);
     
+    /**
+     * The number of selector threads to run, read from the
+     * <code>org.limewire.nio.dispatchThreads</code> system property.
+     * Defaults to a single thread.
+     */
+    private static final int DISPATCH_THREADS =
+        Math.max(1, Integer.getInteger("org.limewire.nio.dispatchThreads", 1));
+    
     private static final NIODispatcher INSTANCE = new NIODispatcher();
     public static final NIODispatcher instance() { return INSTANCE; }
     private NIODispatcher() {
-        boolean failed = false;
-        try {
-            primarySelector = Selector.open();
-        } catch(IOException iox) {
-            failed = true;
+        List<SelectorLoop> created = new ArrayList<SelectorLoop>(DISPATCH_THREADS);
+        for(int i = 0; i < DISPATCH_THREADS; i++) {
+            Selector selector;
+            try {
+                selector = Selector.open();
+            } catch(IOException iox) {
+                selector = null;
+            }
+            // if a secondary selector can't be opened, run with the loops we have.
+            if(selector == null && i > 0)
+                break;
+            created.add(new SelectorLoop(i == 0 ? "NIODispatcher" : "NIODispatcher-" + i, selector));
+            if(selector == null)
+                break;
         }
         
-        if(!failed) {
-            dispatchThread = ThreadExecutor.newManagedThread(this, "NIODispatcher");
-            dispatchThread.start();
-        } else {
-            dispatchThread = null;
-        }
+        loops = created.toArray(new SelectorLoop[created.size()]);
+        primary = loops[0];
+        EXECUTOR = primary.executor;
         
-        EXECUTOR = new NIOExecutorService(dispatchThread);
+        for(SelectorLoop loop : loops)
+            loop.start();
     }
     
     /**
@@ -125,11 +153,17 @@ public class NIODispatcher implements Runnable {
     /** The length of time between clearing intervals for the cache. */
     private static final long CACHE_CLEAR_INTERVAL = 30000;
     
-    /** The thread this is being run on. */
-    private final Thread dispatchThread;
+    /**
+     * The selector loops, each running on its own thread.
+     * Channels are spread across them by identity hash.
+     */
+    private final SelectorLoop[] loops;
     
-    /** Queue lock. */
-    private final Object Q_LOCK = new Object();
+    /**
+     * The first loop.  It polls the secondary Selectors and handles
+     * all channels registered with them.
+     */
+    private final SelectorLoop primary;
     
     /** Stats for the selector */
     @InspectionPoint("nio selector stats")
@@ -138,7 +172,7 @@ public class NIODispatcher implements Runnable {
     /** A listener to notify the NIO thread when a selector has a pending event. */
     private final TransportListener TRANSPORT_LISTENER = new MyTransportListener();
     
-    /** An ExecutorService that invokes runnables on the NIO thread. */
+    /** An ExecutorService that invokes runnables on the primary NIO thread. */
     private final ScheduledExecutorService EXECUTOR;
     
     /**
@@ -146,73 +180,56 @@ public class NIODispatcher implements Runnable {
      * be used to register that channel with.
      */
     private final Map<Class<? extends SelectableChannel>, Selector> OTHER_SELECTORS =
-        new HashMap<Class<? extends SelectableChannel>, Selector>();
+        new ConcurrentHashMap<Class<? extends SelectableChannel>, Selector>();
     
-    /** A list of other Selectors that should be polled. */
+    /** A list of other Selectors that should be polled by the primary loop. */
     private final List <Selector> POLLERS = new ArrayList<Selector>();
     
-    /** The invokeLater queue. */
-    private Collection <Runnable> LATER = new LinkedList<Runnable>();
-    
-    /** A queue of DelayedRunnables to process tasks. */
-    private final BlockingQueue<ScheduledFutureTask> DELAYED = new DelayQueue<ScheduledFutureTask>();
-    
-    /** The throttle queue. */
-    private final List <NBThrottle> THROTTLE = new ArrayList<NBThrottle>();
-    
-    /** The timeout manager. */
-    private final TimeoutController TIMEOUTER = new TimeoutController();
-    
     /**
-     * A common ByteBufferCache that classes can use.
-     * TODO: Move somewhere else.
+     * The throttle queue.  Every loop ticks the throttles and offers them
+     * its selected keys.
      */
-    private final ByteBufferCache BUFFER_CACHE = new ByteBufferCache();
-    
-    /** The selector this uses. */
-    private Selector primarySelector = null;
-    
-    /** The current iteration of selection. */
-    private long iteration = 0;
-    
-    /** Whether or not we've tried to wake up the selector. */
-    private volatile boolean wokeup = false;
-    
-    /** The last time the ByteBufferCache was cleared. */
-    private long lastCacheClearTime;
+    private final List <NBThrottle> THROTTLE = new CopyOnWriteArrayList<NBThrottle>();
     
     /** Returns true if the NIODispatcher is merrily chugging along. */
     public boolean isRunning() {
-        return dispatchThread != null;
+        return primary.thread != null;
     }
 
-    /** Determine if this is the dispatch thread. */
+    /** Determine if this is a dispatch thread. */
     public boolean isDispatchThread() {
-        return Thread.currentThread() == dispatchThread;
+        return currentLoop() != null;
     }
     
-    /** Gets the common <code>ByteBufferCache</code>. */
+    /**
+     * Gets the common <code>ByteBufferCache</code> of the current dispatch
+     * thread, or of the primary one if this is not a dispatch thread.
+     */
     public ByteBufferCache getBufferCache() {
-        return BUFFER_CACHE;
+        SelectorLoop loop = currentLoop();
+        return loop != null ? loop.BUFFER_CACHE : primary.BUFFER_CACHE;
+    }
+    
+    /**
+     * Gets the common <code>ByteBufferCache</code> of the dispatch thread
+     * handling the given channel.
+     */
+    public ByteBufferCache getBufferCache(SelectableChannel channel) {
+        return loopFor(channel).BUFFER_CACHE;
     }
     
     /** Returns the number of timeouts that are pending. */
     public int getNumPendingTimeouts() {
-        return TIMEOUTER.getNumPendingTimeouts();
+        int pending = 0;
+        for(SelectorLoop loop : loops)
+            pending += loop.TIMEOUTER.getNumPendingTimeouts();
+        return pending;
     }
 
     /** Adds a <code>Throttle</code> into the throttle requesting loop. */
     // TODO: have some way to remove Throttles, or make these use WeakReferences
     public void addThrottle(final NBThrottle t) {
-        if(Thread.currentThread() == dispatchThread)
-            THROTTLE.add(t);
-        else {
-            executeLaterAlways(new Runnable() {
-                public void run() {
-                    THROTTLE.add(t);
-                }
-            });
-        }
+        THROTTLE.add(t);
     }
     
     /** Registers a channel for nothing. */
@@ -247,13 +264,11 @@ public class NIODispatcher implements Runnable {
     
     /** Register interest. */
     private void register(SelectableChannel channel, IOErrorObserver handler, int op, int timeout) {
-        if(Thread.currentThread() == dispatchThread) {
-            registerImpl(getSelectorFor(channel), channel, op, handler, timeout);
+        SelectorLoop loop = loopFor(channel);
+        if(Thread.currentThread() == loop.thread) {
+            registerImpl(loop, channel, op, handler, timeout);
         } else {
-            synchronized(Q_LOCK) {
-                LATER.add(new RegisterOp(channel, handler, op, timeout));
-            }
-            wakeup();
+            loop.executeLaterAlways(new RegisterOp(loop, channel, handler, op, timeout));
         }
     }
     
@@ -308,7 +323,7 @@ public class NIODispatcher implements Runnable {
                 
                 // if we're turning it on and it wasn't on before...
                 if(on && (oldOps & op) != op)
-                    wakeup();
+                    ((Attachment)sk.attachment()).loop.wakeup();
             }
         } catch(CancelledKeyException ignored) {
             // Because closing can happen in any thread, the key may be cancelled
@@ -321,11 +336,32 @@ public class NIODispatcher implements Runnable {
     private Selector getSelectorFor(SelectableChannel channel) {
         Selector sel = OTHER_SELECTORS.get(channel.getClass());
         if(sel == null)
-            return primarySelector; // default selector
+            return loopFor(channel).selector; // default selector
         else
             return sel;      // custom selector
     }
     
+    /**
+     * Returns the loop that handles the given channel.  Channels of the
+     * secondary Selectors are handled by the primary loop, which polls
+     * them; all others are spread across the loops by identity hash.
+     */
+    private SelectorLoop loopFor(SelectableChannel channel) {
+        if(loops.length == 1 || channel == null || OTHER_SELECTORS.containsKey(channel.getClass()))
+            return primary;
+        return loops[(System.identityHashCode(channel) & Integer.MAX_VALUE) % loops.length];
+    }
+    
+    /** Returns the loop running on the current thread, or null if none. */
+    private SelectorLoop currentLoop() {
+        Thread current = Thread.currentThread();
+        for(SelectorLoop loop : loops) {
+            if(loop.thread == current)
+                return loop;
+        }
+        return null;
+    }
+    
     /** Shuts down the handler, possibly scheduling it for shutdown in the 
      * <code>NIODispatch</code> thread. */
     public void shutdown(Shutdownable handler) {
@@ -338,7 +374,7 @@ public class NIODispatcher implements Runnable {
      * registered.
      */
     public void registerSelector(final Selector newSelector, final Class<? extends SelectableChannel> channelClass) {
-        if(Thread.currentThread() == dispatchThread) {
+        if(Thread.currentThread() == primary.thread) {
             POLLERS.add(newSelector);
             OTHER_SELECTORS.put(channelClass, newSelector);
         } else {
@@ -355,7 +391,7 @@ public class NIODispatcher implements Runnable {
      * Removes a registered Selector.
      */
     public void removeSelector(final Selector selector) {
-        if(Thread.currentThread() == dispatchThread) {
+        if(Thread.currentThread() == primary.thread) {
             POLLERS.remove(selector);
             OTHER_SELECTORS.remove(selector);
         } else {
@@ -370,7 +406,7 @@ public class NIODispatcher implements Runnable {
     
     /**
      * Retrieves the <code>ExecutorService</code> this <code>NIODispatcher</code> uses to
-     * run things on the NIO Thread.
+     * run things on the primary NIO Thread.
      * If tasks are submitted for execution while already on the NIO thread,
      * the task will be immediately run. Otherwise,
      * the tasks will be scheduled for running as soon as possible on the
@@ -380,12 +416,37 @@ public class NIODispatcher implements Runnable {
         return EXECUTOR;
     }
     
+    /**
+     * Retrieves the <code>ExecutorService</code> that runs things on the NIO
+     * thread handling the given channel.  Tasks submitted to it run in order
+     * with the events of that channel.
+     */
+    public ScheduledExecutorService getScheduledExecutorService(SelectableChannel channel) {
+        return loopFor(channel).executor;
+    }
+    
+    /**
+     * Retrieves the <code>ExecutorService</code> that runs things on the
+     * current NIO thread, or on the primary NIO thread if this is not a
+     * NIO thread.  Event handlers of a channel use it to schedule more
+     * work for that channel.
+     */
+    public ScheduledExecutorService getCurrentScheduledExecutorService() {
+        SelectorLoop loop = currentLoop();
+        return loop != null ? loop.executor : EXECUTOR;
+    }
+    
     /** Submits the runnable for execution later, even if the current thread is the NIO thread. */
     public void executeLaterAlways(Runnable runner) {
-        synchronized(Q_LOCK) {
-            LATER.add(runner);
-        }
-        wakeup();
+        primary.executeLaterAlways(runner);
+    }
+    
+    /**
+     * Submits the runnable for execution later on the NIO thread handling
+     * the given channel, even if the current thread is that thread.
+     */
+    public void executeLaterAlways(SelectableChannel channel, Runnable runner) {
+        loopFor(channel).executeLaterAlways(runner);
     }
     
     /** Gets the underlying attachment for the given <code>SelectionKey</code>'s attachment. */
@@ -468,16 +529,17 @@ public class NIODispatcher implements Runnable {
     /**
      * Does a real registration.
      */
-    private void registerImpl(Selector selector, SelectableChannel channel, int op,
+    private void registerImpl(SelectorLoop loop, SelectableChannel channel, int op,
                               IOErrorObserver attachment, int timeout) {
         try {
+            Selector selector = getSelectorFor(channel);
             SelectionKey existing = channel.keyFor(selector);
             if(existing != null) {
                 Attachment old = (Attachment)existing.attachment();
                 old.discard();
             }
             
-            Attachment guard = new Attachment(attachment);
+            Attachment guard = new Attachment(loop, attachment);
             SelectionKey key = channel.register(selector, op, guard);
             guard.setKey(key);
             if(timeout != 0) 
@@ -489,47 +551,6 @@ public class NIODispatcher implements Runnable {
         }
     }
     
-    /**
-     * Adds any pending actions.
-     * <p>
-     * This works by adding any pending actions into a local list and then replacing
-     * LATER with a new list.  This is done so that actions to the outside world
-     * don't need to hold Q_LOCK.
-     * <p>
-     * Throttle is ticked outside the lock because ticking only hits items in this
-     * package and we can ensure it doesn't deadlock.
-     */
-    private void runPendingTasks() {
-        long now = System.currentTimeMillis();
-        Collection<Runnable> localLater;
-        synchronized(Q_LOCK) {
-            localLater = LATER;
-            LATER = new LinkedList<Runnable>();
-        }
-        
-        DELAYED.drainTo(localLater);
-        
-        if(now > lastCacheClearTime + CACHE_CLEAR_INTERVAL) {
-            BUFFER_CACHE.clearCache();
-            lastCacheClearTime = now;
-        }
-        
-        if(!localLater.isEmpty()) {
-            for(Runnable item : localLater) {
-                try {
-                    item.run();
-                } catch(Throwable t) {
-                    LOG.error(t);
-                    ErrorService.error(t);
-                }
-            }
-        }
-        
-        now = System.currentTimeMillis();
-        for(NBThrottle t: THROTTLE)
-            t.tick(now);
-    }
-    
     /**
      * Runs through all secondary Selectors and returns a 
      * Collection of <code>SelectionKey</code>s that they selected.
@@ -580,161 +601,26 @@ public class NIODispatcher implements Runnable {
     }
     
     /**
-     * Wakes up the primary selector if it wasn't already woken up,
-     * and the current thread is not the dispatch thread.
+     * Wakes up the selectors that weren't already woken up,
+     * unless the current thread is their dispatch thread.
      */
     void wakeup() {
-        if(!wokeup && Thread.currentThread() != dispatchThread && primarySelector != null) {
-            wokeup = true;
-            primarySelector.wakeup();
-        }
-    }
-    
-    /**
-     * The actual NIO run loop.
-     */
-    private void process() throws ProcessingException, SpinningException {
-        boolean checkTime = false;
-        long startSelect = -1;
-        int zeroes = 0;
-        int ignores = 0;
-        
-        while(true) {
-            runPendingTasks();
-            
-            Collection<SelectionKey> polled = pollOtherSelectors();
-            boolean immediate = !polled.isEmpty();
-            try {
-                if(!immediate && checkTime)
-                    startSelect = System.currentTimeMillis();
-                
-                if(!immediate) {
-                	long delay = nextSelectTimeout();
-                	if (delay == 0) {
-                		immediate = true;
-                    } else {
-                        long nanoNow = System.nanoTime();
-                        try {
-                            if (Thread.interrupted())
-                                LOG.warn("interrupted?");
-                            primarySelector.select(Math.min(delay, Integer.MAX_VALUE));
-                        } finally {
-                            stats.updateSelectTime(System.nanoTime() - nanoNow);
-                        }
-                    }
-                }
-                
-                if (immediate) {
-                    stats.countSelectNow();
-                    primarySelector.selectNow();
-                }
-            } catch (NullPointerException err) {
-                LOG.warn("npe", err);
-                continue;
-            } catch (CancelledKeyException err) {
-                LOG.warn("cancelled", err);
-                continue;
-            } catch (IOException iox) {
-                throw new ProcessingException(iox);
-            }
-            
-            Collection<SelectionKey> keys = primarySelector.selectedKeys();
-            if(!immediate && !wokeup) {
-                if(keys.isEmpty()) {
-                    long now = System.currentTimeMillis();
-                    if(startSelect == -1) {
-                        LOG.trace("No keys selected, starting spin check.");
-                        checkTime = true;
-                    } else if(startSelect + 30 >= now) {
-                        if(LOG.isWarnEnabled())
-                            LOG.warn("Spinning detected, current spins: " + zeroes+" startSelect "+startSelect+" now "+now+" keys "+primarySelector.keys());
-                        if(zeroes++ > SPIN_AMOUNT)
-                            throw new SpinningException();
-                    } else { // waited the timeout just fine, reset everything.
-                        checkTime = false;
-                        startSelect = -1;
-                        zeroes = 0;
-                        ignores = 0;
-                    }
-                    TIMEOUTER.processTimeouts(now);
-                    continue;                
-                } else if (checkTime) {             
-                    // skip up to certain number of good selects if we suspect the selector is broken
-                    ignores++;
-                    if (ignores > MAX_IGNORES) {
-                        checkTime = false;
-                        zeroes = 0;
-                        startSelect = -1;
-                        ignores = 0;
-                    }
-                }
-            }
-            
-            if(LOG.isTraceEnabled())
-                LOG.trace("Selected keys: (" + keys.size() + "), polled: (" + polled.size() + "). wokeup "+wokeup+" immediate "+immediate);
-            
-            Collection<SelectionKey> allKeys;
-            if(!polled.isEmpty()) {
-                allKeys = new HashSet<SelectionKey>(keys.size() + polled.size());
-                allKeys.addAll(keys);
-                allKeys.addAll(polled);
-            } else {
-                allKeys = keys;
-            }
-            
-            readyThrottles(allKeys);
-            
-            long now = System.currentTimeMillis();
-            for(SelectionKey sk : allKeys) 
-				process(now, sk, sk.attachment(), 0xFFFF);
-            
-            keys.clear();
-            iteration++;
-            TIMEOUTER.processTimeouts(now);
-            wokeup = false;
-        }
-    }
-    
-    /**
-     * @return the timeout of the next select call. 0 if it should be immediate
-     */
-    private long nextSelectTimeout() {
-        // first see when the next throttle should tick
-        long next = Long.MAX_VALUE;
-        for (Throttle t : THROTTLE)
-            next = Math.min(next, t.nextTickTime());
-        long now = System.currentTimeMillis();
-        next -= now;
-        if (next <= 0)
-            return 0;
-
-        // then check when the next timeout is due
-        long timeout = TIMEOUTER.getNextExpireTime();
-        if (timeout > -1)
-            next = Math.min(next, timeout - now);
-        if (next <= 0)
-            return 0;
-
-        // then see when the next scheduled task is due
-        // Note: DelayedQueue.peek() returns the element even if not expired.
-        Delayed nextScheduled = DELAYED.peek();
-        if (nextScheduled != null)
-            next = Math.min(next, nextScheduled.getDelay(TimeUnit.MILLISECONDS));
-        return Math.max(0, next);
+        for(SelectorLoop loop : loops)
+            loop.wakeup();
     }
     
     /**
      * Returns true if this channel is going to have handleRead called on its
      * attachment in this iteration of the NIODispatcher's processing.
      * <p>
-     * This must be called from the NIODispatch thread to have any meaningful impact.
+     * This must be called from the NIODispatch thread of the channel to have any meaningful impact.
      */
     boolean isReadReadyThisIteration(SelectableChannel channel) {
         SelectionKey sk = channel.keyFor(getSelectorFor(channel));
         Object proxyAttachment = sk.attachment();
         if(proxyAttachment instanceof Attachment) {
             Attachment proxy = (Attachment)sk.attachment();
-            if(proxy.lastMod == iteration+1) {
+            if(proxy.lastMod == proxy.loop.iteration+1) {
                 if(sk.isValid()) {
                     try {
                         return (sk.readyOps() & (~proxy.handled) & SelectionKey.OP_READ) != 0;
@@ -759,6 +645,7 @@ public class NIODispatcher implements Runnable {
         //       it is reset to 0 whenever the item is being processed for the first
         //       time in a given iteration.
 
+        long iteration = proxy.loop.iteration;
         if(proxy.lastMod <= iteration)
             proxy.handled = 0;
             
@@ -814,74 +701,332 @@ public class NIODispatcher implements Runnable {
     }
     
     /**
-     * Swaps all channels out of the old selector & puts them in the new one.
+     * A selector and the thread that selects on it, along with the
+     * per-thread state: the queue of pending tasks, the timeouts of the
+     * channels it handles and a <code>ByteBufferCache</code>.
      */
-    private void swapSelector() {
-        Selector oldSelector = primarySelector;
-        Collection<SelectionKey> oldKeys = Collections.emptySet();
-        try {
-            if(oldSelector != null)
-                oldKeys = oldSelector.keys();
-        } catch(ClosedSelectorException ignored) {
-            LOG.warn("error getting keys", ignored);
+    private class SelectorLoop implements Runnable {
+        
+        /** The thread this is being run on. */
+        private final Thread thread;
+        
+        /** Queue lock. */
+        private final Object Q_LOCK = new Object();
+        
+        /** The invokeLater queue. */
+        private Collection <Runnable> LATER = new LinkedList<Runnable>();
+        
+        /** A queue of DelayedRunnables to process tasks. */
+        private final BlockingQueue<ScheduledFutureTask> DELAYED = new DelayQueue<ScheduledFutureTask>();
+        
+        /** The timeout manager. */
+        private final TimeoutController TIMEOUTER = new TimeoutController();
+        
+        /**
+         * A common ByteBufferCache that classes can use.
+         * TODO: Move somewhere else.
+         */
+        private final ByteBufferCache BUFFER_CACHE = new ByteBufferCache();
+        
+        /** An ExecutorService that invokes runnables on this loop's thread. */
+        private final NIOExecutorService executor;
+        
+        /** The selector this uses. */
+        private volatile Selector selector;
+        
+        /** The current iteration of selection. */
+        private volatile long iteration = 0;
+        
+        /** Whether or not we've tried to wake up the selector. */
+        private volatile boolean wokeup = false;
+        
+        /** The last time the ByteBufferCache was cleared. */
+        private long lastCacheClearTime;
+        
+        SelectorLoop(String name, Selector selector) {
+            this.selector = selector;
+            if(selector != null)
+                thread = ThreadExecutor.newManagedThread(this, name);
+            else
+                thread = null;
+            executor = new NIOExecutorService(this);
         }
         
-        try {
-            primarySelector = Selector.open();
-        } catch(IOException iox) {
-            LOG.error("Can't make a new selector!!!", iox);
-            throw new RuntimeException(iox);
+        void start() {
+            if(thread != null)
+                thread.start();
         }
         
-        // We do not have to concern ourselves with secondary selectors,
-        // because we only retrieves keys from the primary one.
-        for(SelectionKey key : oldKeys ) {
-            try {
-                SelectableChannel channel = key.channel();
-                Attachment attachment = (Attachment)key.attachment();
-                int ops = key.interestOps();
+        /** Submits the runnable for execution later, even if the current thread is this loop's. */
+        void executeLaterAlways(Runnable runner) {
+            synchronized(Q_LOCK) {
+                LATER.add(runner);
+            }
+            wakeup();
+        }
+        
+        /**
+         * Wakes up the selector if it wasn't already woken up,
+         * and the current thread is not this loop's thread.
+         */
+        void wakeup() {
+            Selector sel = selector;
+            if(!wokeup && Thread.currentThread() != thread && sel != null) {
+                wokeup = true;
+                sel.wakeup();
+            }
+        }
+        
+        /**
+         * Adds any pending actions.
+         * <p>
+         * This works by adding any pending actions into a local list and then replacing
+         * LATER with a new list.  This is done so that actions to the outside world
+         * don't need to hold Q_LOCK.
+         * <p>
+         * Throttle is ticked outside the lock because ticking only hits items in this
+         * package and we can ensure it doesn't deadlock.
+         */
+        private void runPendingTasks() {
+            long now = System.currentTimeMillis();
+            Collection<Runnable> localLater;
+            synchronized(Q_LOCK) {
+                localLater = LATER;
+                LATER = new LinkedList<Runnable>();
+            }
+            
+            DELAYED.drainTo(localLater);
+            
+            if(now > lastCacheClearTime + CACHE_CLEAR_INTERVAL) {
+                BUFFER_CACHE.clearCache();
+                lastCacheClearTime = now;
+            }
+            
+            if(!localLater.isEmpty()) {
+                for(Runnable item : localLater) {
+                    try {
+                        item.run();
+                    } catch(Throwable t) {
+                        LOG.error(t);
+                        ErrorService.error(t);
+                    }
+                }
+            }
+            
+            now = System.currentTimeMillis();
+            for(NBThrottle t: THROTTLE)
+                t.tick(now);
+        }
+        
+        /**
+         * The actual NIO run loop.
+         */
+        private void process() throws ProcessingException, SpinningException {
+            boolean checkTime = false;
+            long startSelect = -1;
+            int zeroes = 0;
+            int ignores = 0;
+            
+            while(true) {
+                runPendingTasks();
+                
+                Collection<SelectionKey> polled;
+                if(this == primary)
+                    polled = pollOtherSelectors();
+                else
+                    polled = Collections.emptySet();
+                boolean immediate = !polled.isEmpty();
                 try {
-                    SelectionKey newKey = channel.register(primarySelector, ops, attachment);
-                    attachment.setKey(newKey);
-                } catch(IOException iox) {
-                    attachment.attachment.handleIOException(iox);
+                    if(!immediate && checkTime)
+                        startSelect = System.currentTimeMillis();
+                    
+                    if(!immediate) {
+                        long delay = nextSelectTimeout();
+                        if (delay == 0) {
+                            immediate = true;
+                        } else {
+                            long nanoNow = System.nanoTime();
+                            try {
+                                if (Thread.interrupted())
+                                    LOG.warn("interrupted?");
+                                selector.select(Math.min(delay, Integer.MAX_VALUE));
+                            } finally {
+                                stats.updateSelectTime(System.nanoTime() - nanoNow);
+                            }
+                        }
+                    }
+                    
+                    if (immediate) {
+                        stats.countSelectNow();
+                        selector.selectNow();
+                    }
+                } catch (NullPointerException err) {
+                    LOG.warn("npe", err);
+                    continue;
+                } catch (CancelledKeyException err) {
+                    LOG.warn("cancelled", err);
+                    continue;
+                } catch (IOException iox) {
+                    throw new ProcessingException(iox);
+                }
+                
+                Collection<SelectionKey> keys = selector.selectedKeys();
+                if(!immediate && !wokeup) {
+                    if(keys.isEmpty()) {
+                        long now = System.currentTimeMillis();
+                        if(startSelect == -1) {
+                            LOG.trace("No keys selected, starting spin check.");
+                            checkTime = true;
+                        } else if(startSelect + 30 >= now) {
+                            if(LOG.isWarnEnabled())
+                                LOG.warn("Spinning detected, current spins: " + zeroes+" startSelect "+startSelect+" now "+now+" keys "+selector.keys());
+                            if(zeroes++ > SPIN_AMOUNT)
+                                throw new SpinningException();
+                        } else { // waited the timeout just fine, reset everything.
+                            checkTime = false;
+                            startSelect = -1;
+                            zeroes = 0;
+                            ignores = 0;
+                        }
+                        TIMEOUTER.processTimeouts(now);
+                        continue;                
+                    } else if (checkTime) {             
+                        // skip up to certain number of good selects if we suspect the selector is broken
+                        ignores++;
+                        if (ignores > MAX_IGNORES) {
+                            checkTime = false;
+                            zeroes = 0;
+                            startSelect = -1;
+                            ignores = 0;
+                        }
+                    }
+                }
+                
+                if(LOG.isTraceEnabled())
+                    LOG.trace("Selected keys: (" + keys.size() + "), polled: (" + polled.size() + "). wokeup "+wokeup+" immediate "+immediate);
+                
+                Collection<SelectionKey> allKeys;
+                if(!polled.isEmpty()) {
+                    allKeys = new HashSet<SelectionKey>(keys.size() + polled.size());
+                    allKeys.addAll(keys);
+                    allKeys.addAll(polled);
+                } else {
+                    allKeys = keys;
                 }
-            } catch(CancelledKeyException ignored) {
-                LOG.warn("key cancelled while swapping", ignored);
+                
+                readyThrottles(allKeys);
+                
+                long now = System.currentTimeMillis();
+                for(SelectionKey sk : allKeys) 
+                    NIODispatcher.this.process(now, sk, sk.attachment(), 0xFFFF);
+                
+                keys.clear();
+                iteration++;
+                TIMEOUTER.processTimeouts(now);
+                wokeup = false;
             }
         }
         
-        try {
-            if(oldSelector != null)
-                oldSelector.close();
-        } catch(IOException ignored) {
-            LOG.warn("error closing old selector", ignored);
+        /**
+         * @return the timeout of the next select call. 0 if it should be immediate
+         */
+        private long nextSelectTimeout() {
+            // first see when the next throttle should tick
+            long next = Long.MAX_VALUE;
+            for (Throttle t : THROTTLE)
+                next = Math.min(next, t.nextTickTime());
+            long now = System.currentTimeMillis();
+            next -= now;
+            if (next <= 0)
+                return 0;
+
+            // then check when the next timeout is due
+            long timeout = TIMEOUTER.getNextExpireTime();
+            if (timeout > -1)
+                next = Math.min(next, timeout - now);
+            if (next <= 0)
+                return 0;
+
+            // then see when the next scheduled task is due
+            // Note: DelayedQueue.peek() returns the element even if not expired.
+            Delayed nextScheduled = DELAYED.peek();
+            if (nextScheduled != null)
+                next = Math.min(next, nextScheduled.getDelay(TimeUnit.MILLISECONDS));
+            return Math.max(0, next);
         }
-    }
-    
-    /**
-     * The <code>run</code> loop.
-     */
-    public void run() {
-        while(true) {
+        
+        /**
+         * Swaps all channels out of the old selector & puts them in the new one.
+         */
+        private void swapSelector() {
+            Selector oldSelector = selector;
+            Collection<SelectionKey> oldKeys = Collections.emptySet();
             try {
-                if(primarySelector == null)
-                    primarySelector = Selector.open();
-                process();
-            } catch(SpinningException spin) {
-                LOG.warn("selector is spinning!", spin);
-                swapSelector();
-            } catch(ProcessingException uhoh) {
-                LOG.warn("unknown exception while selecting", uhoh);
-                swapSelector();
+                if(oldSelector != null)
+                    oldKeys = oldSelector.keys();
+            } catch(ClosedSelectorException ignored) {
+                LOG.warn("error getting keys", ignored);
+            }
+            
+            Selector newSelector;
+            try {
+                newSelector = Selector.open();
             } catch(IOException iox) {
-                LOG.error("Unable to create a new Selector!!!", iox);
+                LOG.error("Can't make a new selector!!!", iox);
                 throw new RuntimeException(iox);
-            } catch(Throwable err) {
-                LOG.error("Error in Selector!", err);
-                ErrorService.error(err);
-                
-                swapSelector();
+            }
+            
+            // We do not have to concern ourselves with secondary selectors,
+            // because we only retrieves keys from the primary one.
+            for(SelectionKey key : oldKeys ) {
+                try {
+                    SelectableChannel channel = key.channel();
+                    Attachment attachment = (Attachment)key.attachment();
+                    int ops = key.interestOps();
+                    try {
+                        SelectionKey newKey = channel.register(newSelector, ops, attachment);
+                        attachment.setKey(newKey);
+                    } catch(IOException iox) {
+                        attachment.attachment.handleIOException(iox);
+                    }
+                } catch(CancelledKeyException ignored) {
+                    LOG.warn("key cancelled while swapping", ignored);
+                }
+            }
+            selector = newSelector;
+            
+            try {
+                if(oldSelector != null)
+                    oldSelector.close();
+            } catch(IOException ignored) {
+                LOG.warn("error closing old selector", ignored);
+            }
+        }
+        
+        /**
+         * The <code>run</code> loop.
+         */
+        public void run() {
+            while(true) {
+                try {
+                    if(selector == null)
+                        selector = Selector.open();
+                    process();
+                } catch(SpinningException spin) {
+                    LOG.warn("selector is spinning!", spin);
+                    swapSelector();
+                } catch(ProcessingException uhoh) {
+                    LOG.warn("unknown exception while selecting", uhoh);
+                    swapSelector();
+                } catch(IOException iox) {
+                    LOG.error("Unable to create a new Selector!!!", iox);
+                    throw new RuntimeException(iox);
+                } catch(Throwable err) {
+                    LOG.error("Error in Selector!", err);
+                    ErrorService.error(err);
+                    
+                    swapSelector();
+                }
             }
         }
     }
@@ -892,6 +1037,7 @@ public class NIODispatcher implements Runnable {
      * keeping track of the number of successive hits, etc...
      */
     class Attachment implements Timeoutable {        
+        private final SelectorLoop loop;
         private final IOErrorObserver attachment;
         private long lastMod;
         private int handled;
@@ -904,6 +1050,11 @@ public class NIODispatcher implements Runnable {
         private volatile boolean discarded;
         
         Attachment(IOErrorObserver attachment) {
+            this(primary, attachment);
+        }
+
+        Attachment(SelectorLoop loop, IOErrorObserver attachment) {
+            this.loop = loop;
             this.attachment = attachment;
         }
         
@@ -958,7 +1109,7 @@ public class NIODispatcher implements Runnable {
                 timeoutActive = true;
                 storedTimeoutLength = timeoutLength;
                 storedExpireTime = now + timeoutLength;
-                TIMEOUTER.addTimeout(this, now, timeoutLength);
+                loop.TIMEOUTER.addTimeout(this, now, timeoutLength);
             }
         }
         
@@ -974,7 +1125,7 @@ public class NIODispatcher implements Runnable {
                             timeToUse = storedTimeoutLength;
                             storedExpireTime = -1;
                         } else if(expireTime < storedExpireTime) {
-                            TIMEOUTER.addTimeout(this, now, storedExpireTime - now);
+                            loop.TIMEOUTER.addTimeout(this, now, storedExpireTime - now);
                         } else { // expireTime > storedExpireTime
                             storedExpireTime = -1;
                             if(LOG.isWarnEnabled())
@@ -1003,12 +1154,14 @@ public class NIODispatcher implements Runnable {
     
     /** Encapsulates a register op. */
     private class RegisterOp implements Runnable {
+        private final SelectorLoop loop;
         private final SelectableChannel channel;
         private final IOErrorObserver handler;
         private final int op;
         private final int timeout;
     
-        RegisterOp(SelectableChannel channel, IOErrorObserver handler, int op, int timeout) {
+        RegisterOp(SelectorLoop loop, SelectableChannel channel, IOErrorObserver handler, int op, int timeout) {
+            this.loop = loop;
             this.channel = channel;
             this.handler = handler;
             this.op = op;
@@ -1016,7 +1169,7 @@ public class NIODispatcher implements Runnable {
         }
         
         public void run() {
-            registerImpl(getSelectorFor(channel), channel, op, handler, timeout);
+            registerImpl(loop, channel, op, handler, timeout);
         }
     }
     
@@ -1029,12 +1182,12 @@ public class NIODispatcher implements Runnable {
         public ProcessingException(Throwable t) { super(t); }
     }
     
-    /** An ExecutorService that runs all tasks on the NIODispatch thread. */
+    /** An ExecutorService that runs all tasks on the thread of a selector loop. */
     private static class NIOExecutorService extends AbstractExecutorService implements ScheduledExecutorService {
-        private final Thread nioThread;
+        private final SelectorLoop loop;
         
-        private NIOExecutorService(Thread nioThread) {
-            this.nioThread = nioThread;
+        private NIOExecutorService(SelectorLoop loop) {
+            this.loop = loop;
         }
         
         public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
@@ -1059,24 +1212,24 @@ public class NIODispatcher implements Runnable {
         }
 
         public void execute(Runnable command) {
-            if(Thread.currentThread() == nioThread) {
+            if(Thread.currentThread() == loop.thread) {
                 command.run();
             } else {
-                instance().executeLaterAlways(command);
+                loop.executeLaterAlways(command);
             }
         }
 
         public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
            ScheduledFutureTask<?> ret = new ScheduledFutureTask<Void>(command, null, unit.toNanos(delay));
-           instance().DELAYED.add(ret);
-           instance().wakeup();
+           loop.DELAYED.add(ret);
+           loop.wakeup();
            return ret;
         }
 
         public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
             ScheduledFutureTask<V> ret = new ScheduledFutureTask<V>(callable, unit.toNanos(delay));
-            instance().DELAYED.add(ret);
-            instance().wakeup();
+            loop.DELAYED.add(ret);
+            loop.wakeup();
             return ret;
         }
 
@@ -1094,10 +1247,13 @@ public class NIODispatcher implements Runnable {
     	return TRANSPORT_LISTENER;
     }
     
-    /** A transport listener that wakes up the selector when an event is pending. */
+    /**
+     * A transport listener that wakes up the primary selector, which polls the
+     * secondary ones, when an event is pending.
+     */
     private class MyTransportListener implements TransportListener {
     	public void eventPending() {
-    		wakeup();
+    		primary.wakeup();
     	}
     }
     
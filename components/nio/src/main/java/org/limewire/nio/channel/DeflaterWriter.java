@@ -48,9 +48,21 @@ public class DeflaterWriter implements ChannelWriter, InterestWritableByteChanne
      * and channel.
      */
     public DeflaterWriter(Deflater deflater, InterestWritableByteChannel channel) {
+        this(deflater, channel, 4 * 1024, 512);
+    }
+    
+    /**
+     * Constructs a new <code>DeflaterWriter</code> with the given deflater,
+     * channel and buffer sizes.  The deflater is flushed each time 
+     * <code>incomingSize</code> bytes (or fewer, if the writer runs out
+     * of data) have been deflated, so a writer that writes in large batches
+     * should use a buffer at least as large as a batch.
+     */
+    public DeflaterWriter(Deflater deflater, InterestWritableByteChannel channel,
+                          int incomingSize, int outgoingSize) {
         this.deflater = deflater;
-        this.incoming = ByteBuffer.allocate(4 * 1024);
-        this.outgoing = ByteBuffer.allocate(512);
+        this.incoming = ByteBuffer.allocate(incomingSize);
+        this.outgoing = ByteBuffer.allocate(outgoingSize);
         outgoing.flip();
         this.channel = channel;
     }
@@ -9,7 +9,6 @@ import java.util.concurrent.TimeUnit;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.limewire.collection.Periodic;
-import org.limewire.nio.NIODispatcher;
 import org.limewire.nio.observer.Shutdownable;
 import org.limewire.nio.observer.WriteObserver;
 
@@ -44,18 +43,13 @@ public class DelayedBufferWriter implements ChannelWriter, InterestWritableByteC
     /** The last time we flushed, so we don't flush again too soon. */
     private long lastFlushTime;
     
-    /** Constructs a new <code>DelayedBufferWriter</code> whose buffer is the 
-     * given size. */
-    public DelayedBufferWriter(int size) {
-    	this(size, DEFAULT_DELAY);
-    }
-    
     /**
      * Constructs a new <code>DelayedBufferWriter</code> whose buffer is the
-     * given size and delay.
+     * given size and that flushes on the given scheduler, which must be the
+     * NIO executor of the socket's channel.
      */
-    public DelayedBufferWriter(int size, long delay) {
-        this(size, delay, NIODispatcher.instance().getScheduledExecutorService());
+    public DelayedBufferWriter(int size, ScheduledExecutorService scheduler) {
+        this(size, DEFAULT_DELAY, scheduler);
     }
 
     DelayedBufferWriter(int size, long delay, ScheduledExecutorService scheduler) {
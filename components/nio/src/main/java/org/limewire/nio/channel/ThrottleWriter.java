@@ -3,8 +3,8 @@ package org.limewire.nio.channel;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channel;
+import java.util.concurrent.Executor;
 
-import org.limewire.nio.NIODispatcher;
 import org.limewire.nio.RequiresSelectionKeyAttachment;
 import org.limewire.nio.Throttle;
 import org.limewire.nio.ThrottleListener;
@@ -32,26 +32,18 @@ public class ThrottleWriter implements ChannelWriter, InterestWritableByteChanne
     private boolean channelInterested;
     
     private final Listener throttleListener;
+    /** Runs tasks on the NIO thread of the socket this writes to. */
+    private final Executor executor;
     
     /**
-     * Constructs a <code>ThrottleWriter</code> with the given 
-     * <code>Throttle</code>.
-     * <p>
-     * <b>NOTE</b>: you must call {@link 
-     * #setWriteChannel(InterestWritableByteChannel)} prior to using 
-     * <code>ThrottleWriter</code>.
-     */
-    public ThrottleWriter(Throttle throttle) {
-        this(throttle, null);
-    }
-    
-    /**
-     * Constructs a new <code>ThrottleWriter</code> with the given throttle 
-     * and channel.
+     * Constructs a new <code>ThrottleWriter</code> with the given throttle
+     * and channel that changes throttles on the given executor, which must
+     * be the NIO executor of the socket's channel.
      */
-    public ThrottleWriter(Throttle throttle, InterestWritableByteChannel channel) {
+    public ThrottleWriter(Throttle throttle, InterestWritableByteChannel channel, Executor executor) {
         this.throttle = throttle;
         this.channel = channel;
+        this.executor = executor;
         throttleListener = new Listener();
     }
     
@@ -180,7 +172,7 @@ public class ThrottleWriter implements ChannelWriter, InterestWritableByteChanne
     }
  
     public void setThrottle(final Throttle throttle) {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        executor.execute(new Runnable() {
             public void run() {
                 setThrottleInternal(throttle);
             }
@@ -79,14 +79,14 @@ public class TLSNIOSocket extends NIOSocket {
     @Override
     protected void initIncomingSocket() {
         super.initIncomingSocket();
-        tlsLayer = new SSLReadWriteChannel(SSLUtils.getTLSContext(), SSLUtils.getExecutor(), NIODispatcher.instance().getBufferCache(), NIODispatcher.instance().getScheduledExecutorService());
+        tlsLayer = new SSLReadWriteChannel(SSLUtils.getTLSContext(), SSLUtils.getExecutor(), NIODispatcher.instance().getBufferCache(getChannel()), NIODispatcher.instance().getScheduledExecutorService(getChannel()));
         tlsLayer.initialize(getRemoteSocketAddress(), SSLUtils.getTLSCipherSuites(), false, false);
     }
 
     @Override
     protected void initOutgoingSocket() throws IOException {
         super.initOutgoingSocket();
-        tlsLayer = new SSLReadWriteChannel(SSLUtils.getTLSContext(), SSLUtils.getExecutor(), NIODispatcher.instance().getBufferCache(), NIODispatcher.instance().getScheduledExecutorService());
+        tlsLayer = new SSLReadWriteChannel(SSLUtils.getTLSContext(), SSLUtils.getExecutor(), NIODispatcher.instance().getBufferCache(getChannel()), NIODispatcher.instance().getScheduledExecutorService(getChannel()));
     }
     
     @Override
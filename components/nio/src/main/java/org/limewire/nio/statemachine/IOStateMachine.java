@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -36,12 +37,29 @@ public class IOStateMachine implements ChannelReadObserver, ChannelWriter, Inter
     private ByteBuffer readBuffer;
     /** Whether or not we've shutdown this handshaker. */
     private volatile boolean shutdown;
+    /** Runs tasks on the NIO thread of the socket this is attached to. */
+    private final Executor executor;
     
     public IOStateMachine(IOStateObserver observer, List<IOState> states) {
         this(observer, states, 2048);
     }
 
     public IOStateMachine(IOStateObserver observer, List<IOState> states, int bufferSize) {
+        this(observer, states, bufferSize, NIODispatcher.instance().getScheduledExecutorService());
+    }
+    
+    public IOStateMachine(IOStateObserver observer, List<IOState> states, Executor executor) {
+        this(observer, states, 2048, executor);
+    }
+    
+    /**
+     * Constructs a state machine whose tasks run on the given executor,
+     * which must be the NIO executor of the socket's channel, as in
+     * <code>NIODispatcher.getScheduledExecutorService(socket.getChannel())</code>.
+     */
+    public IOStateMachine(IOStateObserver observer, List<IOState> states, int bufferSize,
+                          Executor executor) {
+        this.executor = executor;
         this.observer = observer;
         this.states = states;
         this.readBuffer = NIODispatcher.instance().getBufferCache().getHeap(bufferSize);
@@ -53,7 +71,7 @@ public class IOStateMachine implements ChannelReadObserver, ChannelWriter, Inter
      * Adds a new state to process.
      */
     public void addState(final IOState newState) {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        executor.execute(new Runnable() {
             public void run() {
                 if(LOG.isDebugEnabled())
                     LOG.debug("Adding single state: " + newState);
@@ -69,7 +87,7 @@ public class IOStateMachine implements ChannelReadObserver, ChannelWriter, Inter
      * Adds a collection of new states to process.
      */
     public void addStates(final List<? extends IOState> newStates) {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        executor.execute(new Runnable() {
             public void run() {
                 if(LOG.isDebugEnabled())
                     LOG.debug("Adding multiple states: " + newStates);
@@ -84,7 +102,7 @@ public class IOStateMachine implements ChannelReadObserver, ChannelWriter, Inter
      * Adds an array of new states to process.
      */
     public void addStates(final IOState... newStates) {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        executor.execute(new Runnable() {
             public void run() {
                 if(LOG.isDebugEnabled())
                     LOG.debug("Adding multiple states...");
@@ -284,7 +302,7 @@ public class IOStateMachine implements ChannelReadObserver, ChannelWriter, Inter
         // This must be done on the NIO thread, else the NIO thread could
         // currently be processing this buffer, and things may continue to
         // process it after we release it.
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        executor.execute(new Runnable() {
             public void run() {
                 NIODispatcher.instance().getBufferCache().release(readBuffer);
             }
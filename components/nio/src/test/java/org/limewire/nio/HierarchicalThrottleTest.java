@@ -0,0 +1,128 @@
+package org.limewire.nio;
+
+import java.util.Collections;
+
+import junit.framework.Test;
+
+import org.limewire.nio.HierarchicalThrottle.ClassThrottle;
+import org.limewire.nio.observer.StubReadWriteObserver;
+import org.limewire.util.BaseTestCase;
+
+/**
+ * Tests that HierarchicalThrottle shares its bandwidth among its classes.
+ */
+public final class HierarchicalThrottleTest extends BaseTestCase {
+
+    private final float RATE = 4 * 1024;
+
+    private HierarchicalThrottle THROTTLE;
+
+    private ClassThrottle FILES, BROWSES;
+
+    public HierarchicalThrottleTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(HierarchicalThrottleTest.class);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        THROTTLE = new HierarchicalThrottle(true, RATE, false, 100);
+        FILES = THROTTLE.addClass("files", 3, Float.MAX_VALUE);
+        BROWSES = THROTTLE.addClass("browses", 1, Float.MAX_VALUE);
+    }
+
+    public void testBusyClassesShareByWeight() throws Exception {
+        new Data(FILES).interest();
+        new Data(BROWSES).interest();
+        THROTTLE.tick(1000);
+        assertEquals(RATE * 3 / 4, FILES.getAllocatedRate());
+        assertEquals(RATE / 4, BROWSES.getAllocatedRate());
+    }
+
+    public void testIdleClassIsBorrowedFrom() throws Exception {
+        new Data(FILES).interest();
+        THROTTLE.tick(1000);
+        assertEquals(RATE, FILES.getAllocatedRate());
+        // the rates never add up to more than the bandwidth
+        assertEquals(0f, BROWSES.getAllocatedRate());
+
+        // a class that stops being idle is given its share on the next tick
+        Data browses = new Data(BROWSES);
+        browses.interest();
+        THROTTLE.tick(1050);
+        assertEquals(RATE * 3 / 4, FILES.getAllocatedRate());
+        assertEquals(RATE / 4, BROWSES.getAllocatedRate());
+        THROTTLE.selectableKeys(Collections.singleton(browses.KEY));
+        assertEquals(102, browses.STUB.given());
+    }
+
+    public void testCeilingIsSharedByOthers() throws Exception {
+        ClassThrottle trees = THROTTLE.addClass("trees", 4, 512);
+        new Data(FILES).interest();
+        new Data(BROWSES).interest();
+        new Data(trees).interest();
+        THROTTLE.tick(1000);
+        assertEquals(512f, trees.getAllocatedRate());
+        assertEquals((RATE - 512) * 3 / 4, FILES.getAllocatedRate());
+        assertEquals((RATE - 512) / 4, BROWSES.getAllocatedRate());
+
+        trees.setCeiling(Float.MAX_VALUE);
+        THROTTLE.tick(1100);
+        assertEquals(RATE / 2, trees.getAllocatedRate());
+    }
+
+    public void testUnlimitedRate() throws Exception {
+        THROTTLE.setRate(Float.MAX_VALUE);
+        new Data(FILES).interest();
+        new Data(BROWSES).interest();
+        THROTTLE.tick(1000);
+        assertEquals(Float.MAX_VALUE * 0.75f, FILES.getAllocatedRate(), Float.MAX_VALUE / 1000);
+        assertEquals(Float.MAX_VALUE * 0.25f, BROWSES.getAllocatedRate(), Float.MAX_VALUE / 1000);
+    }
+
+    public void testMeasuredRates() throws Exception {
+        Data files = new Data(FILES);
+        files.interest();
+        THROTTLE.tick(1000);
+        THROTTLE.selectableKeys(Collections.singleton(files.KEY));
+        assertEquals(409, files.STUB.given());
+
+        THROTTLE.tick(2000);
+        assertEquals(204.5f, THROTTLE.getMeasuredRates().get("files"));
+        assertEquals(0f, THROTTLE.getMeasuredRates().get("browses"));
+    }
+
+    public void testThrottleItselfUsesDefaultClass() throws Exception {
+        assertNull(THROTTLE.getMeasuredRates().get(HierarchicalThrottle.DEFAULT_CLASS));
+
+        Data other = new Data(THROTTLE);
+        other.interest();
+        new Data(FILES).interest();
+        THROTTLE.tick(1000);
+        THROTTLE.selectableKeys(Collections.singleton(other.KEY));
+        assertEquals(102, other.STUB.given());
+
+        THROTTLE.tick(2000);
+        assertEquals(51f, THROTTLE.getMeasuredRates().get(HierarchicalThrottle.DEFAULT_CLASS));
+    }
+
+    private static class Data {
+        private final StubThrottleListener STUB;
+        private final FakeSelectionKey KEY;
+        private final Throttle throttle;
+
+        Data(Throttle throttle) {
+            StubReadWriteObserver attachment = new StubReadWriteObserver();
+            this.throttle = throttle;
+            STUB = new StubThrottleListener(attachment, throttle);
+            KEY = new FakeSelectionKey(NIODispatcher.instance().new Attachment(attachment));
+        }
+
+        void interest() {
+            throttle.interest(STUB);
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package org.limewire.nio;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.Test;
 
@@ -260,6 +263,50 @@ public final class NBThrottleTest extends BaseTestCase {
     	
     }
     
+    // make sure one thread processing a party does not hold up another thread's parties
+    public void testProcessesOutsideOfLock() throws Exception {
+        THROTTLE = newNBThrottle(true, 100 * 1024, MILLIS_PER_TICK);
+        fixDataThrottles();
+        
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        final Data blocking = new Data(THROTTLE, new StubReadWriteObserver() {
+            @Override
+            public boolean handleWrite() throws IOException {
+                writing.countDown();
+                try {
+                    finish.await();
+                } catch(InterruptedException ie) {
+                    throw new IOException(ie.getMessage());
+                }
+                return super.handleWrite();
+            }
+        });
+        
+        THROTTLE.interest(blocking.STUB);
+        THROTTLE.interest(DATA[0].STUB);
+        THROTTLE.tick(1000);
+        
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                THROTTLE.selectableKeys(set(blocking.KEY));
+            }
+        };
+        other.start();
+        try {
+            assertTrue(writing.await(5, TimeUnit.SECONDS));
+            THROTTLE.selectableKeys(set(DATA[0].KEY));
+            assertEquals(1, DATA[0].ATTACHMENT.wrote());
+            assertGreaterThan(0, DATA[0].STUB.given());
+        } finally {
+            finish.countDown();
+            other.join(5000);
+        }
+        assertEquals(1, blocking.ATTACHMENT.wrote());
+        assertGreaterThan(0, blocking.STUB.given());
+    }
+    
     private Set set(Object o) {
         Set set = new HashSet();
         set.add(o);
@@ -281,7 +328,10 @@ public final class NBThrottleTest extends BaseTestCase {
         private StubThrottleListener STUB;
         private FakeSelectionKey KEY;
         Data(Throttle throttle) {
-            ATTACHMENT  = new StubReadWriteObserver();
+            this(throttle, new StubReadWriteObserver());
+        }
+        Data(Throttle throttle, StubReadWriteObserver attachment) {
+            ATTACHMENT  = attachment;
             STUB = new StubThrottleListener(ATTACHMENT, throttle);
             KEY =  new FakeSelectionKey(NIODispatcher.instance().new Attachment(ATTACHMENT));
         }
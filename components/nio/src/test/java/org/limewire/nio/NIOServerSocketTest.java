@@ -2,6 +2,7 @@ package org.limewire.nio;
 
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.Selector;
 
 import junit.framework.Test;
@@ -83,7 +84,8 @@ public class NIOServerSocketTest extends BaseTestCase {
     
     private int interestOps(Socket socket) throws Exception {
         // peeks into the NIODispatcher to get the Selector so we can assert the interetOps
-        Selector selector = (Selector)PrivilegedAccessor.getValue(NIODispatcher.instance(), "primarySelector");
+        Selector selector = (Selector)PrivilegedAccessor.invokeMethod(NIODispatcher.instance(), "getSelectorFor",
+                new Object[] { socket.getChannel() }, new Class[] { SelectableChannel.class });
         return socket.getChannel().keyFor(selector).interestOps();
     }
     
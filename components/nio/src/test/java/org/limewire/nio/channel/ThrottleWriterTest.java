@@ -5,6 +5,7 @@ import java.util.Random;
 
 import junit.framework.Test;
 
+import org.limewire.nio.NIODispatcher;
 import org.limewire.util.BaseTestCase;
 
 /**
@@ -14,7 +15,8 @@ public final class ThrottleWriterTest extends BaseTestCase {
     
     private FakeThrottle THROTTLE = new FakeThrottle();
     private WriteBufferChannel SINK = new WriteBufferChannel(1024 * 1024);
-    private ThrottleWriter WRITER = new ThrottleWriter(THROTTLE, SINK);
+    private ThrottleWriter WRITER = new ThrottleWriter(THROTTLE, SINK,
+            NIODispatcher.instance().getScheduledExecutorService());
     private static Random RND = new Random();
     private WriteBufferChannel SOURCE = new WriteBufferChannel(WRITER);
 
@@ -133,7 +133,7 @@ public class PromotionMessageContainer implements MessageContainer, Serializable
         if(impressOnly)
             payload.put(KEY_IMPRESS_ONLY);
         else
-            payload.getHeaders().remove(KEY_IMPRESS_ONLY);
+            payload.remove(KEY_IMPRESS_ONLY);
     }
 
     public void setOptions(PromotionOptions options) {
@@ -0,0 +1,32 @@
+package org.limewire.rudp;
+
+/**
+ * The algorithms a {@link UDPConnectionProcessor} can pace its data with.
+ */
+public enum CongestionControl {
+
+    /** 
+     * Skips sleeps between writes while the failure rate stays low, see 
+     * {@link WriteRegulator}.
+     */
+    REGULATED {
+        @Override
+        CongestionController createController(DataWindow sendWindow) {
+            return new WriteRegulator(sendWindow);
+        }
+    },
+
+    /**
+     * Keeps the queuing delay of the path below a target, yielding to other
+     * traffic, see {@link LedbatController}.
+     */
+    LEDBAT {
+        @Override
+        CongestionController createController(DataWindow sendWindow) {
+            return new LedbatController(sendWindow);
+        }
+    };
+
+    /** Creates the controller for a connection sending through the window. */
+    abstract CongestionController createController(DataWindow sendWindow);
+}
@@ -0,0 +1,43 @@
+package org.limewire.rudp;
+
+/**
+ * Paces the data a {@link UDPConnectionProcessor} sends, based on what it
+ * learns from the acks and resends of the data.
+ */
+public interface CongestionController {
+
+    /**
+     * Returns how long to wait before writing the next message, given the
+     * space the receiver has left.
+     */
+    public long getSleepTime(long currTime, int receiverWindowSpace);
+
+    /**
+     * Returns the number of messages that may be sent but not yet acked,
+     * or Integer.MAX_VALUE if the sleep times alone limit the sending.
+     */
+    public int getCongestionWindow();
+
+    /**
+     * Records that a message was acked.
+     * 
+     * @param rtt the round trip time of the message, or -1 if it could not
+     * be measured because the message was sent more than once
+     */
+    public void addMessageSuccess(long rtt);
+
+    /**
+     * Records that a message had to be sent again.
+     */
+    public void addMessageFailure();
+
+    /**
+     * Records that a message went unacked for a whole retransmission timeout.
+     */
+    public void hitResendTimeout();
+
+    /**
+     * Records that the receiver had (almost) no room left.
+     */
+    public void hitZeroWindow();
+}
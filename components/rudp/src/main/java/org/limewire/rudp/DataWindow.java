@@ -1,8 +1,10 @@
 package org.limewire.rudp;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.limewire.collection.LongHashMap;
 import org.limewire.rudp.messages.DataMessage;
 
 
@@ -19,6 +21,9 @@ import org.limewire.rudp.messages.DataMessage;
  * For the writer, if the round trip time (RTT) for ACK messages of the older 
  * data is greatly exceeded ({@link #getRTTVar()}), the data can be resent to 
  * try to receive an ACK message.
+ *</p><p>
+ * The blocks are kept in a ring indexed by their sequence number, which 
+ * grows if a block comes in further ahead than it can hold.
  *</p>
  * All methods in this class rely on external synchronization of access.
  */ 
@@ -33,7 +38,7 @@ public class DataWindow
     private static final float RTT_GAIN            = 1.0f / 8.0f;
     private static final float DEVIATION_GAIN      = 1.0f / 4.0f;
 
-    private final LongHashMap<DataRecord> window;
+    private DataRecord[] window;
     private long    windowStart;
     private int     windowSize;
     private long    averageRTT;
@@ -50,6 +55,9 @@ public class DataWindow
      */
     private boolean readableData;
 
+    /** The number of sends recorded, which orders the sends of blocks. */
+    private long    sendCount;
+
     /*
      *  Define a data window for sending or receiving multiple udp packets
      *  The size defines how much look ahead there is.  Start is normally zero
@@ -62,7 +70,41 @@ public class DataWindow
         
         windowStart = start;
         windowSize  = size;
-        window      = new LongHashMap<DataRecord>(size+2);
+        int capacity = 1;
+        while (capacity < size + 8)
+            capacity <<= 1;
+        window      = new DataRecord[capacity];
+    }
+
+    /** Returns the slot of the block with the given sequence number. */
+    private int slot(long seqNo) {
+        return (int) seqNo & (window.length - 1);
+    }
+
+    private DataRecord get(long seqNo) {
+        DataRecord d = window[slot(seqNo)];
+        return d != null && d.msg.getSequenceNumber() == seqNo ? d : null;
+    }
+
+    private void put(long seqNo, DataRecord d) {
+        // grow the ring until it reaches from the window start to the block
+        if (seqNo - windowStart >= window.length) {
+            int capacity = window.length;
+            while (seqNo - windowStart >= capacity)
+                capacity <<= 1;
+            DataRecord[] old = window;
+            window = new DataRecord[capacity];
+            for (DataRecord r : old) {
+                if (r != null)
+                    window[slot(r.msg.getSequenceNumber())] = r;
+            }
+        }
+        window[slot(seqNo)] = d;
+    }
+
+    private void remove(long seqNo) {
+        if (get(seqNo) != null)
+            window[slot(seqNo)] = null;
     }
 
     /**
@@ -77,7 +119,7 @@ public class DataWindow
         if (seqNo == windowStart)
             readableData = true;
 
-        DataRecord d = window.get(seqNo);
+        DataRecord d = get(seqNo);
         if (d != null) {
             if (LOG.isDebugEnabled())
                 LOG.debug("received duplicate message seq: " + msg.getSequenceNumber() + ", window start: " + windowStart);
@@ -88,7 +130,7 @@ public class DataWindow
             LOG.debug("adding message seq: " + msg.getSequenceNumber() + ", window start: " + windowStart);
 
         d = new DataRecord(msg);
-        window.put(seqNo, d);
+        put(seqNo, d);
         return d;
     }
 
@@ -96,7 +138,7 @@ public class DataWindow
      *  Get the block based on the sequenceNumber.
      */
     public DataRecord getBlock(long pnum) {
-        return window.get(pnum);
+        return get(pnum);
     }
 
     /** 
@@ -122,7 +164,7 @@ public class DataWindow
         int        count = 0;
         for (long i = windowStart; i < windowStart+windowSize+3; i++) {
             // Count the spots that are full and not written
-            if ( (d = window.get(i)) != null &&
+            if ( (d = get(i)) != null &&
                   (!d.read || i != windowStart))
                 count++;
         }
@@ -145,7 +187,7 @@ public class DataWindow
 //        int        count = 0;
 //      long       totalDelta = 0;
 //        for (long i = windowStart; i < windowStart+windowSize+1; i++) {
-//            d = window.get(i);
+//            d = get(i);
 //            if ( d != null && d.acks == 0 ) {
 //                count++;
 //              totalDelta += time - d.sentTime;
@@ -167,9 +209,9 @@ public class DataWindow
         DataRecord d;
         int        count = 0;
         for (long i = windowStart; i < windowStart+windowSize+1; i++) {
-            d = window.get(i);
+            d = get(i);
             if ( d != null && d.acks > 0 ) {
-                window.remove(i);
+                remove(i);
                 count++;
                 
                 if(releaser != null)
@@ -188,7 +230,7 @@ public class DataWindow
      */
     public long getLowestUnsentBlock() {
         for (long i = windowStart; i < windowStart+windowSize+1; i++) {
-            if (window.get(i) == null)
+            if (get(i) == null)
                 return(i);
         }
         return -1;
@@ -204,7 +246,7 @@ public class DataWindow
         DataRecord d;
         int        count = 0;
         for (long i = windowStart+1; i < windowStart+windowSize+1; i++) {
-            d = window.get(i);
+            d = get(i);
             if ( d != null && d.acks > 0 ) {
                 count++;
             } 
@@ -270,11 +312,13 @@ public class DataWindow
 
     /** 
      *  Record that a block was ACK'ed and calculate the 
-     *  round trip time and averages from it.
+     *  round trip time and averages from it.  Return the round trip
+     *  time, or -1 if it could not be measured.
      */
-	public void ackBlock(long pnum) {
+	public long ackBlock(long pnum) {
         if (LOG.isDebugEnabled())
             LOG.debug("entered ackBlock with # " + pnum);
+        long measuredRTT = -1;
         DataRecord drec = getBlock(pnum);
         if (drec != null) {
             drec.acks++;
@@ -296,6 +340,7 @@ public class DataWindow
             if (drec.acks == 1 && drec.sends == 1) {
                 long rtt = (drec.ackTime - drec.sentTime);
                 float delta = rtt - srtt;
+                measuredRTT = rtt;
                 if (rtt > 0) {
                     // Compute RTO
                     if (srtt <= 0.1)
@@ -330,7 +375,7 @@ public class DataWindow
                 }
             }
         }
-
+        return measuredRTT;
     }
 
     /** 
@@ -355,6 +400,72 @@ public class DataWindow
         }
     }
 
+    /** 
+     *  Record an ACK for the blocks the receiver says it has in its
+     *  selective acks, bit i standing for the block wStart + i.
+     *  Return the number of blocks that were newly ACK'ed.
+     */
+    public int selectiveAck(long wStart, long selectiveAcks) {
+        int count = 0;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 64 && selectiveAcks != 0; i++, selectiveAcks >>>= 1) {
+            if ((selectiveAcks & 1) == 0)
+                continue;
+            DataRecord drec = getBlock(wStart + i);
+            if (drec != null && drec.acks == 0) {
+                drec.acks++;
+                drec.ackTime = now;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** 
+     *  Return the selective acks for the blocks held from the window start
+     *  on, bit i standing for the block windowStart + i.
+     */
+    public long getSelectiveAcks() {
+        long selectiveAcks = 0;
+        for (int i = 0; i < 64; i++) {
+            if (getBlock(windowStart + i) != null)
+                selectiveAcks |= 1L << i;
+        }
+        return selectiveAcks;
+    }
+
+    /** 
+     *  Record that a block was sent, or sent again, at the given time.
+     */
+    public void recordSend(DataRecord drec, long time) {
+        drec.sentTime = time;
+        drec.sends++;
+        drec.sendOrder = ++sendCount;
+    }
+
+    /** 
+     *  Get the un-ACK'ed blocks that at least threshold ACK'ed blocks 
+     *  sent after their last send have overtaken.  These were most likely 
+     *  lost, and if they were resent, the resend was lost as well.
+     */
+    public List<DataRecord> getMissingBlocks(int threshold) {
+        List<DataRecord> missing = new ArrayList<DataRecord>();
+        for (long i = windowStart; i <= windowStart+windowSize; i++) {
+            DataRecord d = getBlock(i);
+            if (d == null || d.acks > 0 || d.sends == 0)
+                continue;
+            int laterAcks = 0;
+            for (long j = windowStart; j <= windowStart+windowSize; j++) {
+                DataRecord later = getBlock(j);
+                if (later != null && later.acks > 0 && later.sendOrder > d.sendOrder)
+                    laterAcks++;
+            }
+            if (laterAcks >= threshold)
+                missing.add(d);
+        }
+        return missing;
+    }
+
     /** 
      *  Get the oldest un-ACK'ed block.
      */
@@ -437,9 +548,9 @@ public class DataWindow
         // potential space.   
         //for (int i = windowStart; i < lastBlock - windowSize + 1; i++) {
         for (long i = windowStart; i < windowStart + windowSize + 1; i++) {
-            d = window.get(i);
+            d = get(i);
             if ( d != null && d.read) {
-                window.remove(i);
+                remove(i);
                 count++;
             } else {
                 if(d == null)
@@ -494,19 +605,19 @@ public class DataWindow
     /** 
      *  Find the number of un-ACK'ed records
      */
-//	public int numNotAcked() {
-//        DataRecord d;
-//        int count = 0;
-//
-//      // Count the number of records not acked
-//      for (long i = windowStart; i < windowStart+windowSize+1; i++) {
-//          d = getBlock(i);
-//          if ( d != null && d.acks <=0) {
-//              count++;
-//          } 
-//      }
-//      return count;
-//  }
+	public int numNotAcked() {
+        DataRecord d;
+        int count = 0;
+
+        // Count the number of records not acked
+        for (long i = windowStart; i < windowStart+windowSize+1; i++) {
+            d = getBlock(i);
+            if ( d != null && d.acks <=0) {
+                count++;
+            } 
+        }
+        return count;
+    }
 
 }
 
@@ -521,6 +632,7 @@ public class DataWindow
 class DataRecord {
     final DataMessage msg;      // the actual data message
     int                         sends;    // count of the sends
+    long                        sendOrder; // when it was last sent, by count
     boolean                     read;     // whether the data was read
     int                         acks;     // count of the number of acks
     long                        sentTime; // when it was sent
@@ -23,4 +23,16 @@ public class DefaultRUDPSettings implements RUDPSettings {
         return true;
     }
 
+    public boolean isSelectiveAckEnabled() {
+        return false;
+    }
+
+    public CongestionControl getCongestionControl() {
+        return CongestionControl.REGULATED;
+    }
+
+    public int getDataWindowSize() {
+        return UDPConnectionProcessor.DATA_WINDOW_SIZE;
+    }
+
 }
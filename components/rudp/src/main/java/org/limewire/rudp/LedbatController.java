@@ -0,0 +1,149 @@
+package org.limewire.rudp;
+
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ *  Paces data writing in the manner of LEDBAT (RFC 6817): the congestion
+ *  window grows while the queuing delay stays below a target and shrinks
+ *  once the delay goes past it, so a transfer backs off as soon as it starts
+ *  filling the queues in front of the bottleneck, before messages are lost.
+ *  <p>
+ *  RUDP messages carry no timestamps, so the round trip time stands in for
+ *  the one way delay.  The base delay is the lowest round trip time of the
+ *  last minutes, the current delay the lowest of the last few.  Writes are
+ *  spread evenly over a round trip.
+ */
+public class LedbatController implements CongestionController {
+
+    private static final Log LOG =
+      LogFactory.getLog(LedbatController.class);
+
+    /** The queuing delay to aim for, in milliseconds. */
+    static final int   TARGET_DELAY   = 100;
+
+    /** The number of messages the window grows by per round trip without queuing delay. */
+    private static final float GAIN   = 1f;
+
+    /** The smallest window, except right after a resend timeout. */
+    static final float MIN_WINDOW     = 2f;
+
+    /** The number of recent round trip times the current delay is the lowest of. */
+    private static final int   CURRENT_FILTER = 4;
+
+    /** The number of minutes the base delay is the lowest round trip time of. */
+    private static final int   BASE_HISTORY   = 10;
+
+    private static final long  MINUTE         = 60 * 1000;
+
+    private final DataWindow _sendWindow;
+
+    /** The number of messages that may be in flight. */
+    private float _window = MIN_WINDOW;
+
+    /** The last round trip times. */
+    private final long[] _current = new long[CURRENT_FILTER];
+    private int _currentIndex;
+
+    /** The lowest round trip time of each of the last minutes. */
+    private final long[] _base = new long[BASE_HISTORY];
+    private int _baseIndex;
+    private long _baseMinute;
+
+    /** When the window was last halved. */
+    private long _lastDecrease;
+
+    /** The part of a millisecond left over from the last sleep. */
+    private float _pacing;
+
+    public LedbatController(DataWindow sendWindow) {
+        _sendWindow = sendWindow;
+        Arrays.fill(_current, Long.MAX_VALUE);
+        Arrays.fill(_base, Long.MAX_VALUE);
+    }
+
+    /**
+     *  Spread the window over a round trip.
+     */
+    public long getSleepTime(long currTime, int receiverWindowSpace) {
+        float srtt = _sendWindow.getSRTT();
+        if (srtt <= 0)
+            return 1;
+        _pacing += srtt / _window;
+        long sleepTime = (long) _pacing;
+        _pacing -= sleepTime;
+        return sleepTime;
+    }
+
+    public int getCongestionWindow() {
+        return Math.max(1, (int) _window);
+    }
+
+    public void addMessageSuccess(long rtt) {
+        if (rtt >= 0)
+            addMessageSuccess(rtt, System.currentTimeMillis());
+    }
+
+    /**
+     *  Grow or shrink the window by how far the queuing delay is from the
+     *  target, by at most one message per round trip.
+     */
+    void addMessageSuccess(long rtt, long now) {
+        if (_baseMinute == 0 || now - _baseMinute >= MINUTE) {
+            _baseIndex = (_baseIndex + 1) % BASE_HISTORY;
+            _base[_baseIndex] = rtt;
+            _baseMinute = now;
+        } else {
+            _base[_baseIndex] = Math.min(_base[_baseIndex], rtt);
+        }
+        _current[_currentIndex] = rtt;
+        _currentIndex = (_currentIndex + 1) % CURRENT_FILTER;
+
+        long queuingDelay = min(_current) - min(_base);
+        float offTarget = Math.max(-1f,
+          (TARGET_DELAY - queuingDelay) / (float) TARGET_DELAY);
+        _window += GAIN * offTarget / _window;
+        _window = Math.max(MIN_WINDOW,
+          Math.min(_window, _sendWindow.getWindowSize()));
+
+        if(LOG.isDebugEnabled())
+            LOG.debug("rtt:"+rtt+" qD:"+queuingDelay+" w:"+_window);
+    }
+
+    /**
+     *  Halve the window, at most once per round trip.
+     */
+    public void addMessageFailure() {
+        long now = System.currentTimeMillis();
+        if (now - _lastDecrease < _sendWindow.getSRTT())
+            return;
+        _lastDecrease = now;
+        _window = Math.max(MIN_WINDOW, _window / 2);
+        if(LOG.isDebugEnabled())
+            LOG.debug("loss w:"+_window);
+    }
+
+    /**
+     *  Start over from a single message.
+     */
+    public void hitResendTimeout() {
+        _window = 1;
+        if(LOG.isDebugEnabled())
+            LOG.debug("timeout w:"+_window);
+    }
+
+    /**
+     *  A full receiver says nothing about the path.
+     */
+    public void hitZeroWindow() {
+    }
+
+    private static long min(long[] values) {
+        long min = Long.MAX_VALUE;
+        for (long value : values)
+            min = Math.min(min, value);
+        return min;
+    }
+}
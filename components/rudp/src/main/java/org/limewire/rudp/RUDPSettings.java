@@ -2,8 +2,8 @@ package org.limewire.rudp;
 
 
 /**
- * Defines the interface of settings to control the RUDP algorithm.
- * Currently only supports the ACK skipping algorithm.
+ * Defines the interface of settings to control the RUDP algorithm:
+ * ACK skipping, selective ACKs, congestion control and the window size.
  */
 public interface RUDPSettings {
 
@@ -22,4 +22,13 @@ public interface RUDPSettings {
     /** Returns the size of the history remembered for skipping acks. */
     public int getSkipAckHistorySize();
 
+    /** Returns true if selective acks should be used with hosts that support them. */
+    public boolean isSelectiveAckEnabled();
+
+    /** Returns the algorithm that paces the sending of data. */
+    public CongestionControl getCongestionControl();
+
+    /** Returns the number of messages that can be in flight or waiting to be read. */
+    public int getDataWindowSize();
+
 }
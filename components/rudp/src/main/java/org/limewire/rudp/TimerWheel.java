@@ -0,0 +1,180 @@
+package org.limewire.rudp;
+
+import java.util.List;
+
+/**
+ * A hierarchical hashed timer wheel of {@link UDPTimerEvent UDPTimerEvents},
+ * ticking once a millisecond.
+ * <p>
+ * The wheel has four levels of 256 slots each.  An event that is due within
+ * 256 ticks is filed in the first level under its tick; later events are
+ * filed in a coarser level and moved down a level each time the wheel turns
+ * past their slot.  The slots are lists threaded through the events, so
+ * filing and removing an event take constant time.
+ * <p>
+ * This class is not thread-safe; {@link UDPScheduler} guards it.
+ */
+class TimerWheel {
+
+    private static final int BITS = 8;
+
+    private static final int SLOTS = 1 << BITS;
+
+    private static final int MASK = SLOTS - 1;
+
+    private static final int LEVELS = 4;
+
+    /** The head of each slot's list of events. */
+    private final UDPTimerEvent[][] slots = new UDPTimerEvent[LEVELS][SLOTS];
+
+    /** The number of events filed in each level. */
+    private final int[] counts = new int[LEVELS];
+
+    /** The next tick to expire. */
+    private long current;
+
+    TimerWheel(long now) {
+        current = now;
+    }
+
+    /** Returns the number of events that are filed. */
+    int size() {
+        int size = 0;
+        for (int count : counts)
+            size += count;
+        return size;
+    }
+
+    /** Returns true if the event is filed. */
+    boolean contains(UDPTimerEvent evt) {
+        return evt.wheelLevel >= 0;
+    }
+
+    /**
+     * Files the event under the given time, or under the next tick if that
+     * has passed.  The event is first removed if it was already filed.
+     */
+    void add(UDPTimerEvent evt, long time) {
+        remove(evt);
+        file(evt, Math.max(time, current));
+    }
+
+    private void file(UDPTimerEvent evt, long tick) {
+        long delta = tick - current;
+        int level = 0;
+        while (level < LEVELS - 1 && (delta >>> (BITS * (level + 1))) != 0)
+            level++;
+        // ticks beyond the last level wait in its furthest slot and are
+        // filed again once the wheel gets there.
+        if ((delta >>> (BITS * LEVELS)) != 0)
+            tick = current + (1L << (BITS * LEVELS)) - 1;
+        int index = (int) (tick >>> (BITS * level)) & MASK;
+
+        evt.wheelTick = tick;
+        evt.wheelLevel = level;
+        evt.wheelPrev = null;
+        evt.wheelNext = slots[level][index];
+        if (evt.wheelNext != null)
+            evt.wheelNext.wheelPrev = evt;
+        slots[level][index] = evt;
+        counts[level]++;
+    }
+
+    /** Removes the event if it is filed. */
+    void remove(UDPTimerEvent evt) {
+        int level = evt.wheelLevel;
+        if (level < 0)
+            return;
+
+        if (evt.wheelPrev != null) {
+            evt.wheelPrev.wheelNext = evt.wheelNext;
+        } else {
+            int index = (int) (evt.wheelTick >>> (BITS * level)) & MASK;
+            slots[level][index] = evt.wheelNext;
+        }
+        if (evt.wheelNext != null)
+            evt.wheelNext.wheelPrev = evt.wheelPrev;
+        evt.wheelPrev = null;
+        evt.wheelNext = null;
+        evt.wheelLevel = -1;
+        counts[level]--;
+    }
+
+    /**
+     * Turns the wheel up to and including the given time, removing the events
+     * filed under the ticks that passed and adding them to expired.
+     */
+    void advance(long now, List<UDPTimerEvent> expired) {
+        while (current <= now) {
+            cascade();
+
+            int index = (int) current & MASK;
+            UDPTimerEvent evt = slots[0][index];
+            while (evt != null) {
+                UDPTimerEvent next = evt.wheelNext;
+                remove(evt);
+                expired.add(evt);
+                evt = next;
+            }
+            current++;
+
+            // skip over stretches of ticks with nothing to expire or move down.
+            int empty = 0;
+            while (empty < LEVELS && counts[empty] == 0)
+                empty++;
+            if (empty > 0) {
+                long skipTo = empty == LEVELS ? now + 1 : roundUp(current, empty);
+                current = Math.max(current, Math.min(skipTo, now + 1));
+            }
+        }
+    }
+
+    /**
+     * Moves the events in the slots the current tick starts down a level,
+     * the coarsest level first.
+     */
+    private void cascade() {
+        int level = 0;
+        while (level < LEVELS - 1 && (current & ((1L << (BITS * (level + 1))) - 1)) == 0)
+            level++;
+        for (; level > 0; level--) {
+            int index = (int) (current >>> (BITS * level)) & MASK;
+            UDPTimerEvent evt = slots[level][index];
+            while (evt != null) {
+                UDPTimerEvent next = evt.wheelNext;
+                long tick = evt.wheelTick;
+                remove(evt);
+                file(evt, tick);
+                evt = next;
+            }
+        }
+    }
+
+    /**
+     * Returns the earliest time at which the wheel must be turned, either to
+     * expire events or to move them down a level, or Long.MAX_VALUE if
+     * nothing is filed.
+     */
+    long nextExpiry() {
+        long next = Long.MAX_VALUE;
+        if (counts[0] > 0) {
+            for (int i = 0; i < SLOTS; i++) {
+                if (slots[0][(int) (current + i) & MASK] != null) {
+                    next = current + i;
+                    break;
+                }
+            }
+        }
+        for (int level = 1; level < LEVELS; level++) {
+            if (counts[level] > 0)
+                next = Math.min(next, roundUp(current, level));
+        }
+        return next;
+    }
+
+    /** Returns the first tick at or after the given one that turns the level. */
+    private static long roundUp(long tick, int level) {
+        long span = 1L << (BITS * level);
+        return (tick + span - 1) & ~(span - 1);
+    }
+}
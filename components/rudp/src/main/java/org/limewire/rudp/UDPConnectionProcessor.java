@@ -7,6 +7,7 @@ import java.nio.channels.AlreadyConnectedException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ConnectionPendingException;
 import java.nio.channels.SelectionKey;
+import java.util.List;
 
 import org.limewire.listener.EventBroadcaster;
 import org.limewire.logging.Log;
@@ -37,8 +38,15 @@ public class UDPConnectionProcessor {
     /** Define the size of the data window. */
     public static final int  DATA_WINDOW_SIZE        = 20;
 
-    /** Define the maximum accepted write ahead packet. */
-    private static final int  DATA_WRITE_AHEAD_MAX    = DATA_WINDOW_SIZE + 5;
+    /** Define the largest data window the settings may ask for. */
+    private static final int  MAX_DATA_WINDOW_SIZE    = 256;
+
+    /** Define how far past the data window a packet may be written ahead. */
+    private static final int  DATA_WRITE_AHEAD        = 5;
+
+    /** Define how many higher blocks must be selectively acked before 
+        a block is resent as missing. */
+    private static final int  MISSING_ACKS_THRESHOLD  = 3;
 
     /** The maximum number of times to try and send a data message. */
     private static final int  MAX_SEND_TRIES          = 8;
@@ -112,8 +120,9 @@ public class UDPConnectionProcessor {
     /** The Window for sending and acking data. */
 	private DataWindow        _sendWindow;
 
-    /** The WriteRegulator controls the amount of waiting time between writes. */
-    private WriteRegulator    _writeRegulator;
+    /** The CongestionController controls the amount of waiting time between 
+        writes and how much data may be unacked. */
+    private CongestionController _congestion;
 
     /** The Window for receiving data. */
     private DataWindow        _receiveWindow;
@@ -193,6 +202,21 @@ public class UDPConnectionProcessor {
     /** Keep track of the reason for shutting down. */
     private byte              _closeReasonCode;
 
+    /** The size of the window for receiving data. */
+    private final int         _windowSize;
+
+    /** The size of the other sides window for receiving data. */
+    private int               _theirWindowSize;
+
+    /** The maximum accepted write ahead packet. */
+    private final int         _writeAheadMax;
+
+    /** Whether selective acks are enabled on this end. */
+    private final boolean     _selectiveAcksEnabled;
+
+    /** Whether both ends agreed on using selective acks. */
+    private boolean           _selectiveAcks;
+
     ////////////////////////////////////////////
     // Some settings related to skipping acks
     ///////////////////////////////////////////
@@ -267,12 +291,17 @@ public class UDPConnectionProcessor {
         _ackResendCount          = 0;
         _closeReasonCode         = FinMessage.REASON_NORMAL_CLOSE;
         _channel                 = channel;
+        _windowSize              = Math.max(1, Math.min(MAX_DATA_WINDOW_SIZE, 
+          _context.getRUDPSettings().getDataWindowSize()));
+        _theirWindowSize         = DATA_WINDOW_SIZE;
+        _writeAheadMax           = _windowSize + DATA_WRITE_AHEAD;
+        _selectiveAcksEnabled    = _context.getRUDPSettings().isSelectiveAckEnabled();
         setConnectionState(ConnectionState.PRECONNECT);
 
         _scheduler         = UDPScheduler.instance();
 
         // Precreate the receive window for response reporting
-        _receiveWindow   = new DataWindow(DATA_WINDOW_SIZE, 1);
+        _receiveWindow   = new DataWindow(_windowSize, 1);
 
         // All incoming seqNo and windowStarts get extended
         // Acks seqNo need to be extended separately
@@ -458,8 +487,9 @@ public class UDPConnectionProcessor {
         scheduleKeepAlive();
 
         // Create the delayed connection components
-        _sendWindow = new DataWindow(DATA_WINDOW_SIZE, 1);
-        _writeRegulator = new WriteRegulator(_sendWindow);
+        _sendWindow = new DataWindow(Math.min(_windowSize, _theirWindowSize), 1);
+        _congestion = _context.getRUDPSettings().getCongestionControl()
+          .createController(_sendWindow);
 
         // Precreate the event for rescheduling writing to allow
         // thread safety and faster writing
@@ -677,8 +707,7 @@ public class UDPConnectionProcessor {
             DataMessage dm = _context.getMessageFactory().createDataMessage(_theirConnectionID, _sequenceNumber, chunk); 
             send(dm);
             DataRecord drec   = _sendWindow.addData(dm);  
-            drec.sentTime     = _lastSendTime;
-            drec.sends++;
+            _sendWindow.recordSend(drec, _lastSendTime);
 
             if( LOG.isDebugEnabled() && 
                (_lastSendTime - _lastDataSendTime) > 2000)  {
@@ -719,7 +748,10 @@ public class UDPConnectionProcessor {
         // Ack the message
         AckMessage ack = null;
         try {
-          ack = _context.getMessageFactory().createAckMessage(_theirConnectionID, msg.getSequenceNumber(), _receiveWindow.getWindowStart(), _receiveWindow.getWindowSpace());
+          if (_selectiveAcks)
+              ack = _context.getMessageFactory().createAckMessage(_theirConnectionID, msg.getSequenceNumber(), _receiveWindow.getWindowStart(), _receiveWindow.getWindowSpace(), _receiveWindow.getSelectiveAcks());
+          else
+              ack = _context.getMessageFactory().createAckMessage(_theirConnectionID, msg.getSequenceNumber(), _receiveWindow.getWindowStart(), _receiveWindow.getWindowSpace());
           
           	if (LOG.isDebugEnabled()) {
           	    LOG.debug("total data packets "+_totalDataPackets+
@@ -888,12 +920,11 @@ public class UDPConnectionProcessor {
                     safeSend(drec.msg);
 
                     // Scale back on the writing speed if you are hitting limits
-                    _writeRegulator.addMessageFailure();
-                    _writeRegulator.hitResendTimeout();
+                    _congestion.addMessageFailure();
+                    _congestion.hitResendTimeout();
 
                     currTime      = _lastSendTime;
-                    drec.sentTime = currTime;
-                    drec.sends++;
+                    _sendWindow.recordSend(drec, currTime);
                     numResent++;
                 } else 
                     LOG.debug(" not resending message ");
@@ -908,6 +939,31 @@ public class UDPConnectionProcessor {
         scheduleAckTimeoutIfNeeded();
     }
 
+    /**
+     *  Resend the data that selective acks show to be missing, rather than
+     *  wait for its ack to time out.
+     */
+    private synchronized void resendMissingData() {
+        List<DataRecord> missing = 
+          _sendWindow.getMissingBlocks(MISSING_ACKS_THRESHOLD);
+        for (DataRecord drec : missing) {
+            if(LOG.isDebugEnabled())  
+                LOG.debug("Resending missing message:"+
+                  drec.msg.getSequenceNumber());
+            safeSend(drec.msg);
+            _congestion.addMessageFailure();
+            _sendWindow.recordSend(drec, _lastSendTime);
+        }
+    }
+
+    /**
+     *  Return true if the congestion window leaves room for more unacked data.
+     */
+    private boolean hasCongestionSpace() {
+        int window = _congestion.getCongestionWindow();
+        return window == Integer.MAX_VALUE || _sendWindow.numNotAcked() < window;
+    }
+
     /**
      *  Close and cleanup by unregistering this connection and sending a Fin.
      */
@@ -943,12 +999,10 @@ public class UDPConnectionProcessor {
         } else {
             // We cannot send the SYN until we've registered in the Multiplexor.
             if(_myConnectionID != 0) {
-                // Build SYN message with my connectionID in it
-                SynMessage synMsg;
-                if (_theirConnectionID != UDPMultiplexor.UNASSIGNED_SLOT)
-                    synMsg = _context.getMessageFactory().createSynMessage(_myConnectionID, _theirConnectionID, role);
-                else
-                    synMsg = _context.getMessageFactory().createSynMessage(_myConnectionID, role);
+                // Build SYN message with my connectionID in it, and their
+                // connectionID once it is known
+                SynMessage synMsg = _context.getMessageFactory().createSynMessage(
+                  _myConnectionID, _theirConnectionID, role, _windowSize, _selectiveAcksEnabled);
     
                 LOG.debug("Sending SYN: " + synMsg);
                 // Send a SYN packet with our connectionID
@@ -983,6 +1037,12 @@ public class UDPConnectionProcessor {
             return;
         }
 
+        // Use selective acks if both sides want them, and don't send more
+        // than they can hold
+        _selectiveAcks = _selectiveAcksEnabled && smsg.isSelectiveAckSupported();
+        if ( smsg.getWindowSize() > 0 )
+            _theirWindowSize = smsg.getWindowSize();
+
         // Ack their SYN message
         safeSendAck(smsg);
     }
@@ -1024,7 +1084,7 @@ public class UDPConnectionProcessor {
         // how many extra messages we have sent since this ack
         if ( _sequenceNumber > wStart ) 
             _receiverWindowSpace = 
-              DATA_WINDOW_SIZE + (int) (wStart - _sequenceNumber);
+              _theirWindowSize + (int) (wStart - _sequenceNumber);
             //_receiverWindowSpace += (wStart - _sequenceNumber);
 
         // Reactivate writing if required
@@ -1043,11 +1103,18 @@ public class UDPConnectionProcessor {
             _waitingForFinAck = false;
         } else if (_connectionState == ConnectionState.CONNECTED) {
             // Record the ack
-            _sendWindow.ackBlock(seqNo);
-            _writeRegulator.addMessageSuccess();
+            long rtt = _sendWindow.ackBlock(seqNo);
+            _congestion.addMessageSuccess(rtt);
 
             // Ensure that all messages up to sent windowStart are acked
             _sendWindow.pseudoAckToReceiverWindow(amsg.getWindowStart());
+
+            // Record what else they have, and resend what they are missing
+            if ( _selectiveAcks ) {
+                _sendWindow.selectiveAck(amsg.getWindowStart(), 
+                  amsg.getSelectiveAcks());
+                resendMissingData();
+            }
             
             // Clear out the acked blocks at window start
             _sendWindow.clearLowAckedBlocks(_channel);  
@@ -1094,7 +1161,7 @@ public class UDPConnectionProcessor {
             return;
         }
 
-        if ( seqNo > (baseSeqNo + DATA_WRITE_AHEAD_MAX) ) {
+        if ( seqNo > (baseSeqNo + _writeAheadMax) ) {
             if(LOG.isDebugEnabled())  
                 LOG.debug("Received block num too far ahead: "+ seqNo);
            return;
@@ -1184,7 +1251,7 @@ public class UDPConnectionProcessor {
         // how many extra messages we have sent since this ack
         if ( _sequenceNumber > wStart ) 
             _receiverWindowSpace = 
-              DATA_WINDOW_SIZE + (int) (wStart - _sequenceNumber);
+              _theirWindowSize + (int) (wStart - _sequenceNumber);
             //_receiverWindowSpace += (wStart - _sequenceNumber);
 
         // If receiving KeepAlives when closed, send another FinMessage
@@ -1281,7 +1348,7 @@ public class UDPConnectionProcessor {
             
                 // If there is room to send something then send data 
                 // if available
-                if ( getChunkLimit() > 0 ) {
+                if ( getChunkLimit() > 0 && hasCongestionSpace() ) {
                     // Get data and send it
                     ByteBuffer chunk = _channel.getNextChunk();
                     if(chunk != null)
@@ -1320,7 +1387,7 @@ public class UDPConnectionProcessor {
             // TODO: Simplify experimental algorithm and plug it in
             //long waitTime = (long)_sendWindow.getRTO() / 6l;
             long currTime = System.currentTimeMillis();
-            long waitTime = _writeRegulator.getSleepTime(currTime, 
+            long waitTime = _congestion.getSleepTime(currTime, 
               _receiverWindowSpace);
 
             // If we are getting too close to the end of window, make a note
@@ -1328,11 +1395,13 @@ public class UDPConnectionProcessor {
 
                 // Scale back on the writing speed if you are hitting limits
                 if ( _receiverWindowSpace <= 1 ) 
-                    _writeRegulator.hitZeroWindow();
+                    _congestion.hitZeroWindow();
             }
 
-            // Initially ensure waitTime is not too low
-            if (waitTime == 0 && _sequenceNumber < 10 ) 
+            // Initially ensure waitTime is not too low, unless the 
+            // congestion window already holds back the writing
+            if (waitTime == 0 && _sequenceNumber < 10 && 
+                _congestion.getCongestionWindow() == Integer.MAX_VALUE ) 
                 waitTime = DEFAULT_RTO_WAIT_TIME;
 
             // Enforce some minimal sleep time if we have been in tight loop
@@ -2,25 +2,36 @@ package org.limewire.rudp;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.limewire.concurrent.ManagedThread;
+import org.limewire.nio.NIODispatcher;
+import org.limewire.service.ErrorService;
 
 
-/** 
- *  <p>Manages the timing of messages within {@link UDPConnection} processing. 
+/**
+ *  <p>Manages the timing of messages within {@link UDPConnection} processing.
  *  </p><p>
  *  To use the scheduler, you must first register and then schedule an event.
- *  Events are submitted as objects that extend {@link UDPTimerEvent} with 
+ *  Events are submitted as objects that extend {@link UDPTimerEvent} with
  *  a {@link UDPTimerEvent#handleEvent()} method defined.
  *  </p><p>
- *  Re-call {@link #scheduleEvent(UDPTimerEvent)} if the time of your event changes. 
+ *  Re-call {@link #scheduleEvent(UDPTimerEvent)} if the time of your event changes.
+ *  </p><p>
+ *  The events must be unregister when you are done with them via
+ *  {@link UDPTimerEvent#unregister()}.
+ *  </p><p>
+ *  Events are kept in a {@link TimerWheel}, so registering, rescheduling and
+ *  unregistering an event take constant time however many connections are
+ *  open.  An event whose time was moved without rescheduling it is filed
+ *  again at its new time when its old time comes.
  *  </p>
- *  The events must be unregister when you are done with them via 
- *  {@link UDPTimerEvent#unregister()}. 
+ *  The wheel is turned by a thread of its own, or on the NIO dispatch thread
+ *  if the <code>org.limewire.rudp.schedulerOnNIO</code> system property is
+ *  true.
  */
+public class UDPScheduler {
 
-public class UDPScheduler extends ManagedThread {
-    
    // private static final Log LOG = LogFactory.getLog(UDPScheduler.class);
 
     /** This is the default event when nothing is scheduled. */
@@ -29,27 +40,20 @@ public class UDPScheduler extends ManagedThread {
     /** The name that the scheduler thread will have. */
     private static final String NAME_OF_THREAD = "UDPScheduler";
 
-    /** The active list of scheduled events. */
-    private List<UDPTimerEvent> _connectionEvents;
-
-    /** The next event to be handled. */
-    private UDPTimerEvent       _scheduledEvent;
-
-    private boolean             _started;
+    /** Whether the wheel is turned on the NIO dispatch thread. */
+    private static final boolean ON_NIO = Boolean.getBoolean("org.limewire.rudp.schedulerOnNIO");
 
     /** Keep track of a singleton instance. */
     private static UDPScheduler _instance    = null;
 
-    /** For offloading the synchronization issues, maintain a second thread
-        for updating events. */
-    private UpdateThread                _updateThread;
-    
-    /**
-     * Object used to make sure only one copy of the two threads exist per
-     * enclosing object.
-     */
-    private final Object _updateThreadLock = new Object();
-    private final Object _mainThreadLock = new Object();
+    /** The registered events that are waiting for their time. LOCKING: this */
+    private final TimerWheel _wheel;
+
+    /** The time the wheel will next be turned at. LOCKING: this */
+    private long _wakeTime = Long.MAX_VALUE;
+
+    /** The thread turning the wheel, if it is not turned on the NIO thread. */
+    private ManagedThread _thread;
 
     /**
      *  Return the <code>UDPScheduler</code> singleton.
@@ -66,234 +70,166 @@ public class UDPScheduler extends ManagedThread {
      *  Initialize the <code>UDPScheduler</code>.
      */
     private UDPScheduler() {
-        super(NAME_OF_THREAD);
-        
-        _connectionEvents    = new ArrayList<UDPTimerEvent>();
-        _scheduledEvent      = NO_EVENT;
-        _started             = false;
-        _updateThread        = null;
+        _wheel = new TimerWheel(System.currentTimeMillis());
     }
 
     /**
      *  Register a <code>UDPTimerEvent</code> for scheduling events.
      */
-    public void register(UDPTimerEvent evt) {
-        
-        startThreads();
-        _updateThread.registerEvent(evt);
-
-    }
-
-
-    private final synchronized void registerSync(UDPTimerEvent evt) {
-        _connectionEvents.add(evt);
+    public synchronized void register(UDPTimerEvent evt) {
+        if (evt.shouldUnregister())
+            return;
+        evt.scheduler = this;
+        file(evt);
     }
 
     /**
-     * starts both threads if they haven't been started yet.
+     *  Notify the scheduler that a connection has a new scheduled event.
      */
-    private final void startThreads() {
-        synchronized(_mainThreadLock) {
-            if ( !_started ) {
-                _started = true;
-                setDaemon(true);
-                start();
-            }
-        }
-
-        synchronized(_updateThreadLock) {
-            if ( _updateThread == null ) {
-                _updateThread = new UpdateThread();
-                _updateThread.setDaemon(true);
-                _updateThread.start();
-            }
-        }
+    public synchronized void scheduleEvent(UDPTimerEvent evt) {
+        if (evt.scheduler != this)
+            return;
+        if (evt.shouldUnregister())
+            cancel(evt);
+        else
+            file(evt);
     }
 
-
     /**
-     *  Notify the scheduler that a connection has a new scheduled event.
+     *  Removes an event that unregistered itself.
      */
-    public void scheduleEvent(UDPTimerEvent evt) {
-
-        startThreads();
-
-        // Pass the event update to the update thread.
-        _updateThread.addEvent(evt);
+    synchronized void cancel(UDPTimerEvent evt) {
+        if (evt.scheduler != this)
+            return;
+        _wheel.remove(evt);
+        evt.scheduler = null;
     }
 
     /**
-     *  Shortcut test for a second thread to deal with the new schedule handoff.
+     *  Files a registered event under its time, or sets it aside if it
+     *  has none.
      */
-    class UpdateThread extends ManagedThread {
-        List<UDPTimerEvent> _listSchedule;
-        List<UDPTimerEvent> _listRegister;
-
-        /**
-         *  Initialize the list of pending event updates.
-         */
-        public UpdateThread() {
-            super("UDPUpdateThread");
-            _listSchedule = new ArrayList<UDPTimerEvent>();
-            _listRegister = new ArrayList<UDPTimerEvent>();
+    private void file(UDPTimerEvent evt) {
+        long time = evt.getEventTime();
+        if (time == Long.MAX_VALUE) {
+            _wheel.remove(evt);
+            return;
         }
+        _wheel.add(evt, time);
+        if (time < _wakeTime)
+            wakeUp(_wheel.nextExpiry());
+    }
 
-        /**
-         *  Schedule an event for update in the main event list.
-         */
-        public synchronized void addEvent(UDPTimerEvent evt) {
-              _listSchedule.add(evt);
-              notify();
-        }
-        
-        
-        public synchronized void registerEvent(UDPTimerEvent evt) {
-            _listRegister.add(evt);
+    /**
+     *  Makes sure the wheel is turned at the given time.
+     */
+    private void wakeUp(long time) {
+        if (time >= _wakeTime)
+            return;
+        _wakeTime = time;
+        if (ON_NIO) {
+            new NIOTicker(time).schedule();
+        } else {
+            if (_thread == null) {
+                _thread = new ManagedThread(new Runnable() {
+                    public void run() {
+                        runThread();
+                    }
+                }, NAME_OF_THREAD);
+                _thread.setDaemon(true);
+                _thread.start();
+            }
             notify();
         }
-        
-        /**
-         *  Process incoming event updates by interacting with the main thread.
-         */
-        @Override
-        public void run() {
-            UDPTimerEvent evt;
-            List<UDPTimerEvent> localListSchedule;
-            List<UDPTimerEvent> localListRegister;
-            while (true) {
-               // Make sure that there is some idle time in the event updating
-               // Otherwise, it will burn cpu
-               try {
-                    Thread.sleep(1);
-               } catch(InterruptedException e) {}
-
-                // Clone list for safe unlocked access
-                synchronized(this) {
-                    localListSchedule = new ArrayList<UDPTimerEvent>(_listSchedule);
-                    _listSchedule.clear();
-                    localListRegister = new ArrayList<UDPTimerEvent>(_listRegister);
-                    _listRegister.clear();
-                }
-
-                
-                //then add any events
-                for(int i = 0; i < localListRegister.size(); i++)
-                    registerSync(localListRegister.get(i));
-                
-                //then reschedule any events
-                for (int i=0; i < localListSchedule.size(); i++) {
-                    evt = localListSchedule.get(i);
-                    updateSchedule(evt);
-                }
-                
-                
-
+    }
 
-                // Wait for more event updates
-                synchronized(this) {
-                    if (_listSchedule.size() > 0 || 
-                            _listRegister.size() > 0)
-                        continue;
+    /**
+     *  Turns the wheel whenever it is time to.
+     */
+    private void runThread() {
+        while (true) {
+            synchronized(this) {
+                long waitTime;
+                while ((waitTime = _wakeTime - System.currentTimeMillis()) > 0) {
                     try {
-                        wait();
-                    } catch(InterruptedException e) {}
-                }
-            }
-        }
-
-        /**
-         *  Process the updating of an event.
-         */
-        private void updateSchedule(UDPTimerEvent evt) {
-            synchronized(UDPScheduler.this) {
-                // If the event is sooner and still active, make it current
-                if ( evt.getEventTime() < _scheduledEvent.getEventTime() &&
-                     _connectionEvents.contains(evt) ) {
-                    _scheduledEvent      = evt;
-                    
-                    // Notifying 
-                    UDPScheduler.this.notify();
+                        // Wait a long time if there is nothing to do
+                        wait(_wakeTime == Long.MAX_VALUE ? 0 : waitTime);
+                    } catch(InterruptedException ignored) {}
                 }
+                _wakeTime = Long.MAX_VALUE;
             }
+            tick();
         }
     }
 
     /**
-     *  Wait for scheduled events on UDPTimerEvent, 
-     *  run them and reschedule.
+     *  Runs the events whose time has come and files them again under the
+     *  times they have then.  The events are run without holding the lock,
+     *  as they lock their connection and reschedule themselves.
      */
-    @Override
-    public void run() {
-        long  waitTime;
+    private void tick() {
+        long now = System.currentTimeMillis();
+        List<UDPTimerEvent> expired = new ArrayList<UDPTimerEvent>();
+        synchronized(this) {
+            _wheel.advance(now, expired);
+        }
 
-        // Specify that an interrupt is okay
+        for (UDPTimerEvent evt : expired) {
+            if (evt.shouldUnregister()) {
+                cancel(evt);
+                continue;
+            }
+            // the event was moved back without being rescheduled
+            if (evt.getEventTime() > now) {
+                scheduleEvent(evt);
+                continue;
+            }
 
-        while (true) {
-            // wait for an existing or future event
             try {
-                synchronized(this) {
-                    if ( _scheduledEvent == NO_EVENT ) {
-                        // Wait a long time since there is nothing to do
-                        waitTime = 0;
-                    } else {
-                        // Wait for specific event
-                        waitTime = _scheduledEvent.getEventTime() - 
-                          System.currentTimeMillis();
-                        if (waitTime ==0)
-                        	waitTime=-1;
-                    }
-                    
-                    if (waitTime >=0)
-                		wait(waitTime);
-                }
-            } catch(InterruptedException e) {
+                evt.handleEvent();
+            } catch(Throwable t) {
+                ErrorService.error(t);
             }
 
-            // Determine whether to run existing event
-            // or to just sleep on a possibly changed event
             synchronized(this) {
-
-                waitTime = _scheduledEvent.getEventTime() - 
-                  System.currentTimeMillis();
-                if ( waitTime > 0 )
-                    continue;
+                if (!_wheel.contains(evt))
+                    scheduleEvent(evt);
             }
+        }
 
-            // Run the event and rework the schedule.
-            runEvent();
-            reworkSchedule();
+        synchronized(this) {
+            wakeUp(_wheel.nextExpiry());
         }
     }
 
     /**
-     *  Run the scheduled UDPTimerEvent event.
+     *  Turns the wheel on the NIO thread at a given time.  A ticker whose
+     *  time is no longer the wake up time finds nothing to do.
      */
-    private synchronized void runEvent() {
+    private class NIOTicker implements Runnable {
+        private final long time;
 
-        if (_scheduledEvent.shouldUnregister())
-            _connectionEvents.remove(_scheduledEvent);
-        else
-            _scheduledEvent.handleEvent();
+        NIOTicker(long time) {
+            this.time = time;
+        }
 
-    }
+        void schedule() {
+            long delay = Math.max(0, time - System.currentTimeMillis());
+            NIODispatcher.instance().getScheduledExecutorService().schedule(
+                    this, delay, TimeUnit.MILLISECONDS);
+        }
 
-    /**
-     *  Go through the active UDPTimerEvent and find the next event.
-     *  For now, I don't think it is necessary to resort the list.
-     */
-    private synchronized void reworkSchedule() {
-        UDPTimerEvent evt;
-        long          time;
-
-        _scheduledEvent      = NO_EVENT;
-        for (int i = 0; i < _connectionEvents.size(); i++) {
-            evt = _connectionEvents.get(i);
-            time = evt.getEventTime();
-            if ( evt  != NO_EVENT && 
-                    (time < _scheduledEvent.getEventTime() || 
-                 _scheduledEvent == NO_EVENT)) {
-                _scheduledEvent = evt;
+        public void run() {
+            synchronized(UDPScheduler.this) {
+                if (_wakeTime != time)
+                    return;
+                if (time > System.currentTimeMillis()) {
+                    schedule();
+                    return;
+                }
+                _wakeTime = Long.MAX_VALUE;
             }
+            tick();
         }
     }
 
@@ -305,7 +241,6 @@ public class UDPScheduler extends ManagedThread {
         @Override
         protected void doActualEvent(UDPConnectionProcessor udpCon) {
         }
-    } 
+    }
 
 }
-
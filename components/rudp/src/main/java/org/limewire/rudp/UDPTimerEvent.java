@@ -24,6 +24,19 @@ public abstract class UDPTimerEvent implements Comparable<UDPTimerEvent> {
     
     /** the UDPConnectionProcessor this event refers to. */
     protected final WeakReference<UDPConnectionProcessor> _udpCon;
+    
+    /** The scheduler this is registered with, or null. LOCKING: the scheduler. */
+    volatile UDPScheduler scheduler;
+    
+    /**
+     * The tick and level this is filed under in the scheduler's wheel, and
+     * its neighbours in that slot.  The level is -1 if this is not filed.
+     * LOCKING: the scheduler.
+     */
+    long wheelTick;
+    int wheelLevel = -1;
+    UDPTimerEvent wheelPrev;
+    UDPTimerEvent wheelNext;
 
    /**
     *  Create a timer event with a default time.
@@ -52,6 +65,9 @@ public abstract class UDPTimerEvent implements Comparable<UDPTimerEvent> {
     protected final void unregister() {
         _shouldUnregister=true;
         _eventTime=1;
+        UDPScheduler registered = scheduler;
+        if (registered != null)
+            registered.cancel(this);
     }
 
    /**
@@ -3,9 +3,11 @@ package org.limewire.rudp;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 /** 
- *  Calculates and controls the timing for data writing.
+ *  Calculates and controls the timing for data writing.  Writes skip their
+ *  sleep more often while the failure rate stays low, and less often when
+ *  resends time out or the round trip time grows.
  */
-public class WriteRegulator {
+public class WriteRegulator implements CongestionController {
 
     private static final Log LOG =
       LogFactory.getLog(WriteRegulator.class);
@@ -279,10 +281,17 @@ public class WriteRegulator {
     }
 
 
+    /** 
+     *  The window is limited by the sleep times alone.
+     */
+    public int getCongestionWindow() {
+        return Integer.MAX_VALUE;
+    }
+
     /** 
      * Record a message success.
      */
-    public void addMessageSuccess() {
+    public void addMessageSuccess(long rtt) {
         _tracker.addSuccess();
     }
 
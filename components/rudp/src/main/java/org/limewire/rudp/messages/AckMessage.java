@@ -26,4 +26,13 @@ public interface AckMessage extends RUDPMessage {
      */
     public int getWindowSpace();
 
+    /**
+     *  The selective acks tell which messages at and after the windowStart
+     *  the receiver already has: bit i is set if it has the message with
+     *  sequenceNumber windowStart + i.  They are only sent to hosts that
+     *  advertised support for them in their {@link SynMessage}, and are 
+     *  zero otherwise.
+     */
+    public long getSelectiveAcks();
+
 }
\ No newline at end of file
@@ -15,6 +15,9 @@ public interface RUDPMessageFactory {
     /** Constructs a new AckMessage. */
     public AckMessage createAckMessage(byte connectionID, long sequenceNumber, long windowStart, int windowSpace);
     
+    /** Constructs a new AckMessage with selective acks. */
+    public AckMessage createAckMessage(byte connectionID, long sequenceNumber, long windowStart, int windowSpace, long selectiveAcks);
+    
     /** Creates a new DataMessage. */
     public DataMessage createDataMessage(byte connectionID, long sequenceNumber, ByteBuffer chunk);
     
@@ -29,4 +32,10 @@ public interface RUDPMessageFactory {
     
     /** Creates a new SynMessage with their & our connection id. */
     public SynMessage createSynMessage(byte connectionID, byte theirConnectionID, Role role);
+    
+    /** 
+     * Creates a new SynMessage with their & our connection id, that also
+     * advertises our receive window size and whether we understand selective acks.
+     */
+    public SynMessage createSynMessage(byte connectionID, byte theirConnectionID, Role role, int windowSize, boolean selectiveAcks);
 }
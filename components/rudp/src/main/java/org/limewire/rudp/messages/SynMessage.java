@@ -81,4 +81,16 @@ public interface SynMessage extends RUDPMessage {
      */
     public Role getRole();
 
+    /**
+     * Returns true if the sender of the syn message understands selective
+     * acks, see {@link AckMessage#getSelectiveAcks()}.
+     */
+    public boolean isSelectiveAckSupported();
+
+    /**
+     * Returns the number of messages the sender can receive ahead of the 
+     * data it has read, or 0 if it did not say.
+     */
+    public int getWindowSize();
+
 }
\ No newline at end of file
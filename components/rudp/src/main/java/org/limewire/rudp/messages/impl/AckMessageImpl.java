@@ -12,6 +12,7 @@ class AckMessageImpl extends RUDPMessageImpl implements AckMessage {
 
     private long _windowStart;
     private int  _windowSpace;
+    private final long _selectiveAcks;
 
     /**
      * Construct a new AckMessage with the specified settings and data
@@ -22,6 +23,27 @@ class AckMessageImpl extends RUDPMessageImpl implements AckMessage {
               (short)(windowSpace < 0 ? 0 : windowSpace & 0xFFFF));
         _windowStart = windowStart;
         _windowSpace = windowSpace;
+        _selectiveAcks = 0;
+    }
+
+    /**
+     * Construct a new AckMessage with selective acks after the window space
+     */
+    AckMessageImpl(byte connectionID, long sequenceNumber, long windowStart, int windowSpace, long selectiveAcks) {
+        super(connectionID, OpCode.OP_ACK, sequenceNumber, 
+              deriveData(windowStart, windowSpace, selectiveAcks));
+        _windowStart = windowStart;
+        _windowSpace = windowSpace;
+        _selectiveAcks = selectiveAcks;
+    }
+
+    static byte[] deriveData(long windowStart, int windowSpace, long selectiveAcks) {
+        ByteBuffer data = ByteBuffer.allocate(12);
+        data.order(ByteOrder.BIG_ENDIAN);
+        data.putShort((short)(windowStart & 0xFFFF));
+        data.putShort((short)(windowSpace < 0 ? 0 : windowSpace & 0xFFFF));
+        data.putLong(selectiveAcks);
+        return data.array();
     }
 
     /**
@@ -36,6 +58,8 @@ class AckMessageImpl extends RUDPMessageImpl implements AckMessage {
         data1.order(ByteOrder.BIG_ENDIAN);
         _windowStart = data1.getShort();
         _windowSpace = data1.getShort();
+        // older hosts leave the rest of the header empty
+        _selectiveAcks = data1.remaining() >= 8 ? data1.getLong() : 0;
         data1.rewind();
     }
 
@@ -60,10 +84,18 @@ class AckMessageImpl extends RUDPMessageImpl implements AckMessage {
         return _windowSpace;
     }
 
+    /* (non-Javadoc)
+     * @see org.limewire.rudp.messages.AckMessage#getSelectiveAcks()
+     */
+    public long getSelectiveAcks() {
+        return _selectiveAcks;
+    }
+
 	@Override
     public String toString() {
 		return "AckMessage DestID:"+getConnectionID()+
 		  " start:"+_windowStart+" space:"+_windowSpace+
+		  (_selectiveAcks != 0 ? " sacks:"+Long.toHexString(_selectiveAcks) : "")+
 		  " seq:"+getSequenceNumber();
 	}
 }
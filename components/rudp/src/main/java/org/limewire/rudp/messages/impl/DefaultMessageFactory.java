@@ -103,6 +103,10 @@ public class DefaultMessageFactory implements RUDPMessageFactory {
     public AckMessage createAckMessage(byte connectionID, long sequenceNumber, long windowStart, int windowSpace) {
         return new AckMessageImpl(connectionID, sequenceNumber, windowStart, windowSpace);
     }
+
+    public AckMessage createAckMessage(byte connectionID, long sequenceNumber, long windowStart, int windowSpace, long selectiveAcks) {
+        return new AckMessageImpl(connectionID, sequenceNumber, windowStart, windowSpace, selectiveAcks);
+    }
     
     public FinMessage createFinMessage(byte connectionID, long sequenceNumber, byte reasonCode) {
         return new FinMessageImpl(connectionID, sequenceNumber, reasonCode);
@@ -120,6 +124,10 @@ public class DefaultMessageFactory implements RUDPMessageFactory {
         return new SynMessageImpl(connectionID, theirConnectionID, role);
     }
     
+    public SynMessage createSynMessage(byte connectionID, byte theirConnectionID, Role role, int windowSize, boolean selectiveAcks) {
+        return new SynMessageImpl(connectionID, theirConnectionID, role, windowSize, selectiveAcks);
+    }
+    
     /**
      * Creates syn message from data read from the network, stubbed out here, so the factory
      * can be subclassed to test old message versions. 
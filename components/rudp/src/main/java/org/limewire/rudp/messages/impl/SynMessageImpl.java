@@ -11,9 +11,14 @@ import org.limewire.rudp.messages.SynMessage;
  */
 public class SynMessageImpl extends RUDPMessageImpl implements SynMessage {
 
+    /** The feature flag saying that the sender understands selective acks. */
+    static final byte FEATURE_SELECTIVE_ACKS = 0x01;
+
 	private final byte _senderConnectionID;
     private final short  _protocolVersionNumber;
     private final Role role;
+    private final byte _features;
+    private final int _windowSize;
 
     /**
      * Construct a new SynMessage with the specified settings and data
@@ -26,18 +31,35 @@ public class SynMessageImpl extends RUDPMessageImpl implements SynMessage {
      * Construct a new SynMessage with both my Connection ID and theirs
      */
     SynMessageImpl(byte connectionID, byte theirConnectionID, Role role) {
-        super(theirConnectionID, OpCode.OP_SYN, 0, deriveData(connectionID, PROTOCOL_VERSION_NUMBER, role));
+        this(connectionID, theirConnectionID, role, 0, false);
+    }
+
+    /**
+     * Construct a new SynMessage that also advertises the receive window size
+     * and whether selective acks are understood
+     */
+    SynMessageImpl(byte connectionID, byte theirConnectionID, Role role, int windowSize, boolean selectiveAcks) {
+        super(theirConnectionID, OpCode.OP_SYN, 0, deriveData(connectionID, PROTOCOL_VERSION_NUMBER, role,
+                selectiveAcks ? FEATURE_SELECTIVE_ACKS : 0, windowSize));
         _senderConnectionID    = connectionID;
         this.role = role;
         _protocolVersionNumber = PROTOCOL_VERSION_NUMBER;
+        _features = selectiveAcks ? FEATURE_SELECTIVE_ACKS : 0;
+        _windowSize = windowSize & 0xFFFF;
     }
 
-    static byte[] deriveData(byte connectionID, short protocolVersionNumber, Role role) {
-        ByteBuffer data = ByteBuffer.allocate(4);
+    /**
+     * The features and window size follow the role, older hosts ignore them
+     * and leave them empty.
+     */
+    static byte[] deriveData(byte connectionID, short protocolVersionNumber, Role role, byte features, int windowSize) {
+        ByteBuffer data = ByteBuffer.allocate(7);
         data.order(ByteOrder.BIG_ENDIAN);
         data.put(connectionID);
         data.putShort(protocolVersionNumber);
         data.put(role.byteValue());
+        data.put(features);
+        data.putShort((short)(windowSize & 0xFFFF));
         return data.array();
     }
 
@@ -60,6 +82,13 @@ public class SynMessageImpl extends RUDPMessageImpl implements SynMessage {
         } else {
             this.role = Role.UNDEFINED;
         }
+        if (_protocolVersionNumber >= 1 && data1.remaining() >= 3) {
+            _features = data1.get();
+            _windowSize = data1.getShort() & 0xFFFF;
+        } else {
+            _features = 0;
+            _windowSize = 0;
+        }
         data1.rewind();
     }
 
@@ -80,11 +109,20 @@ public class SynMessageImpl extends RUDPMessageImpl implements SynMessage {
 	@Override
     public String toString() {
 		return "SynMessage DestID:"+getConnectionID()+
-		  " SrcID:"+_senderConnectionID+" vNo:"+_protocolVersionNumber;
+		  " SrcID:"+_senderConnectionID+" vNo:"+_protocolVersionNumber+
+		  " features:"+_features+" window:"+_windowSize;
 	}
 
     @Override
     public Role getRole() {
         return role;
     }
+
+    public boolean isSelectiveAckSupported() {
+        return (_features & FEATURE_SELECTIVE_ACKS) != 0;
+    }
+
+    public int getWindowSize() {
+        return _windowSize;
+    }
 }
@@ -1,5 +1,8 @@
 package org.limewire.rudp;
 
+import java.util.Arrays;
+import java.util.Collections;
+
 import junit.framework.TestCase;
 
 public class DataWindowTest extends TestCase {
@@ -147,4 +150,65 @@ public class DataWindowTest extends TestCase {
         window.clearEarlyReadBlocks();
         assertFalse(window.hasReadableData());
     }
+
+    public void testBlocksFarAheadGrowTheWindow() {
+        DataWindow window = new DataWindow(2, 0);
+        for (int i = 0; i < 100; i += 3)
+            window.addData(new StubDataMessage(i));
+        for (int i = 0; i < 100; i++) {
+            if (i % 3 == 0)
+                assertEquals(i, window.getBlock(i).msg.getSequenceNumber());
+            else
+                assertNull(window.getBlock(i));
+        }
+        
+        window.getBlock(0).read = true;
+        window.clearEarlyReadBlocks();
+        assertEquals(1, window.getWindowStart());
+        assertNull(window.getBlock(0));
+        assertNotNull(window.getBlock(99));
+    }
+
+    public void testSelectiveAcks() {
+        DataWindow receiveWindow = new DataWindow(20, 1);
+        receiveWindow.addData(new StubDataMessage(1));
+        receiveWindow.addData(new StubDataMessage(3));
+        receiveWindow.addData(new StubDataMessage(4));
+        assertEquals(0x0DL, receiveWindow.getSelectiveAcks());
+
+        DataWindow sendWindow = new DataWindow(20, 1);
+        for (int i = 1; i <= 5; i++)
+            sendWindow.addData(new StubDataMessage(i)).sends++;
+        assertEquals(3, sendWindow.selectiveAck(1, 0x0DL));
+        assertEquals(0, sendWindow.selectiveAck(1, 0x0DL));
+        assertEquals(1, sendWindow.getBlock(1).acks);
+        assertEquals(0, sendWindow.getBlock(2).acks);
+        assertEquals(1, sendWindow.getBlock(4).acks);
+        assertEquals(2, sendWindow.numNotAcked());
+    }
+
+    public void testGetMissingBlocks() {
+        DataWindow window = new DataWindow(20, 1);
+        for (int i = 1; i <= 6; i++)
+            window.recordSend(window.addData(new StubDataMessage(i)), 0);
+        window.selectiveAck(1, 0x35L); // 1, 3, 5 and 6
+        assertEquals(Collections.singletonList(window.getBlock(2)), window.getMissingBlocks(3));
+        assertEquals(2, window.getMissingBlocks(2).size());
+        
+        // blocks that were resent are not missing until data sent after
+        // the resend overtakes them
+        window.recordSend(window.getBlock(2), 0);
+        window.recordSend(window.getBlock(4), 0);
+        assertEquals(0, window.getMissingBlocks(3).size());
+        for (int i = 7; i <= 9; i++)
+            window.recordSend(window.addData(new StubDataMessage(i)), 0);
+        window.selectiveAck(7, 0x3L); // 7 and 8
+        assertEquals(0, window.getMissingBlocks(3).size());
+        window.selectiveAck(9, 0x1L);
+        assertEquals(Arrays.asList(window.getBlock(2), window.getBlock(4)), window.getMissingBlocks(3));
+        
+        // the later resend of 4 was acked, which also overtakes 2
+        window.selectiveAck(4, 0x1L);
+        assertEquals(Collections.singletonList(window.getBlock(2)), window.getMissingBlocks(4));
+    }
 }
@@ -0,0 +1,97 @@
+package org.limewire.rudp;
+
+import junit.framework.Test;
+
+import org.limewire.util.BaseTestCase;
+
+/**
+ * Tests the LedbatController class.
+ */
+public final class LedbatControllerTest extends BaseTestCase {
+
+    private static final long NOW = 1234567890123L;
+
+    private static final long MINUTE = 60 * 1000;
+
+    private LedbatController controller;
+
+    public LedbatControllerTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(LedbatControllerTest.class);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        controller = new LedbatController(new DataWindow(20, 1));
+    }
+
+    public void testWindowGrowsWithoutQueuingDelay() throws Exception {
+        assertEquals(2, controller.getCongestionWindow());
+        int last = controller.getCongestionWindow();
+        for (int i = 0; i < 500; i++) {
+            controller.addMessageSuccess(50, NOW + i);
+            assertGreaterThanOrEquals(last, controller.getCongestionWindow());
+            last = controller.getCongestionWindow();
+        }
+        assertEquals(20, controller.getCongestionWindow());
+    }
+
+    public void testWindowShrinksPastTheTargetDelay() throws Exception {
+        grow();
+        long rtt = 50 + 2 * LedbatController.TARGET_DELAY;
+        for (int i = 0; i < 400; i++)
+            controller.addMessageSuccess(rtt, NOW + i);
+        assertEquals((int)LedbatController.MIN_WINDOW, controller.getCongestionWindow());
+    }
+
+    public void testWindowHoldsAtTheTargetDelay() throws Exception {
+        grow();
+        for (int i = 0; i < 400; i++)
+            controller.addMessageSuccess(50 + LedbatController.TARGET_DELAY, NOW + i);
+        assertEquals(20, controller.getCongestionWindow());
+    }
+
+    public void testBaseDelayIsForgottenAfterTenMinutes() throws Exception {
+        controller.addMessageSuccess(50, NOW);
+        for (int minute = 0; minute < 10; minute++) {
+            for (int i = 0; i < 100; i++)
+                controller.addMessageSuccess(400, NOW + minute * MINUTE + i);
+        }
+        assertEquals((int)LedbatController.MIN_WINDOW, controller.getCongestionWindow());
+
+        // the 50ms round trip is out of the history now
+        for (int i = 0; i < 500; i++)
+            controller.addMessageSuccess(400, NOW + 10 * MINUTE + i);
+        assertEquals(20, controller.getCongestionWindow());
+    }
+
+    public void testFailuresAndTimeouts() throws Exception {
+        grow();
+        controller.addMessageFailure();
+        assertEquals(10, controller.getCongestionWindow());
+        for (int i = 0; i < 5; i++)
+            controller.addMessageFailure();
+        assertEquals((int)LedbatController.MIN_WINDOW, controller.getCongestionWindow());
+        controller.hitResendTimeout();
+        assertEquals(1, controller.getCongestionWindow());
+        controller.addMessageSuccess(50, NOW);
+        assertEquals((int)LedbatController.MIN_WINDOW, controller.getCongestionWindow());
+    }
+
+    public void testWritesWaitUntilTheRoundTripIsKnown() throws Exception {
+        assertEquals(1, controller.getSleepTime(NOW, 20));
+    }
+
+    private void grow() {
+        for (int i = 0; i < 500; i++)
+            controller.addMessageSuccess(50, NOW + i);
+        assertEquals(20, controller.getCongestionWindow());
+    }
+}
@@ -0,0 +1,143 @@
+package org.limewire.rudp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Test;
+
+import org.limewire.util.BaseTestCase;
+
+/**
+ * Tests the TimerWheel class.
+ */
+public final class TimerWheelTest extends BaseTestCase {
+
+    private static final long NOW = 1234567890123L;
+
+    private TimerWheel wheel;
+
+    public TimerWheelTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(TimerWheelTest.class);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        wheel = new TimerWheel(NOW);
+    }
+
+    public void testEventsExpireAtTheirTick() throws Exception {
+        Event soon = add(NOW + 3);
+        Event later = add(NOW + 5);
+        Event coarse = add(NOW + 300);
+        Event coarser = add(NOW + 70000);
+        assertEquals(4, wheel.size());
+        assertEquals(NOW + 3, wheel.nextExpiry());
+
+        assertEquals(Collections.emptyList(), advance(NOW + 2));
+        assertEquals(Collections.singletonList(soon), advance(NOW + 4));
+        assertFalse(wheel.contains(soon));
+        assertEquals(NOW + 5, wheel.nextExpiry());
+        assertEquals(Collections.singletonList(later), advance(NOW + 299));
+        assertEquals(Collections.singletonList(coarse), advance(NOW + 300));
+        assertEquals(Collections.emptyList(), advance(NOW + 69999));
+        assertEquals(Collections.singletonList(coarser), advance(NOW + 80000));
+        assertEquals(0, wheel.size());
+        assertEquals(Long.MAX_VALUE, wheel.nextExpiry());
+    }
+
+    public void testRemove() throws Exception {
+        Event first = add(NOW + 10);
+        Event second = add(NOW + 10);
+        Event third = add(NOW + 10);
+        Event coarse = add(NOW + 1000);
+        wheel.remove(second);
+        wheel.remove(coarse);
+        assertFalse(wheel.contains(second));
+        wheel.remove(second);
+        assertEquals(2, wheel.size());
+
+        List<UDPTimerEvent> expired = advance(NOW + 2000);
+        assertEquals(2, expired.size());
+        assertTrue(expired.contains(first));
+        assertTrue(expired.contains(third));
+    }
+
+    public void testAddingAgainMovesTheEvent() throws Exception {
+        Event event = add(NOW + 10);
+        wheel.add(event, NOW + 500);
+        assertEquals(1, wheel.size());
+        assertEquals(Collections.emptyList(), advance(NOW + 499));
+        assertEquals(Collections.singletonList(event), advance(NOW + 500));
+    }
+
+    public void testPastTimesExpireOnTheNextTick() throws Exception {
+        advance(NOW + 10);
+        Event event = add(NOW);
+        assertEquals(NOW + 11, wheel.nextExpiry());
+        assertEquals(Collections.singletonList(event), advance(NOW + 11));
+    }
+
+    public void testFarTimesExpireAtTheEndOfTheWheel() throws Exception {
+        Event event = add(NOW + (1L << 40));
+        assertEquals(Collections.emptyList(), advance(NOW + (1L << 31)));
+        assertEquals(Collections.singletonList(event), advance(NOW + (1L << 32)));
+    }
+
+    public void testRandomTimes() throws Exception {
+        Random random = new Random(42);
+        List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < 2000; i++) {
+            long time = NOW + random.nextInt(i % 2 == 0 ? 1000 : 200000);
+            events.add(add(time));
+        }
+
+        long now = NOW;
+        while (wheel.size() > 0) {
+            now += random.nextInt(700);
+            for (UDPTimerEvent evt : advance(now)) {
+                Event event = (Event)evt;
+                assertLessThanOrEquals(now, event.getEventTime());
+                assertFalse(event.expired);
+                event.expired = true;
+            }
+            for (Event event : events) {
+                if (event.getEventTime() <= now)
+                    assertTrue(event.expired);
+            }
+        }
+    }
+
+    private Event add(long time) {
+        Event event = new Event(time);
+        wheel.add(event, time);
+        return event;
+    }
+
+    private List<UDPTimerEvent> advance(long now) {
+        List<UDPTimerEvent> expired = new ArrayList<UDPTimerEvent>();
+        wheel.advance(now, expired);
+        return expired;
+    }
+
+    private static class Event extends UDPTimerEvent {
+        boolean expired;
+
+        Event(long time) {
+            super(time, null);
+        }
+
+        @Override
+        protected void doActualEvent(UDPConnectionProcessor proc) {
+        }
+    }
+}
@@ -66,11 +66,15 @@ public final class UDPConnectionTest extends BaseTestCase {
 
     @Override
     public void setUp() throws Exception {
+        setUp(new DefaultRUDPSettings());
+    }
+    
+    private void setUp(RUDPSettings settings) throws Exception {
         RUDPMessageFactory factory = new DefaultMessageFactory();
         stubService = new UDPServiceStub(factory);
         context = new DefaultRUDPContext(
                 factory, NIODispatcher.instance().getTransportListener(),
-                stubService, new DefaultRUDPSettings());
+                stubService, settings);
         Executor executor = ExecutorsHelper.newProcessingQueue("TestEventThread");
         udpSelectorProvider = new UDPSelectorProvider(context, new AsynchronousMulticasterImpl<UDPSocketChannelConnectionEvent>(executor));
         udpMultiplexor = udpSelectorProvider.openSelector();
@@ -792,6 +796,72 @@ public final class UDPConnectionTest extends BaseTestCase {
         }
     }
 
+    /**
+     * Test that data can be written, echoed and read through a flaky 
+     * UDPConnection that uses selective acks, a larger window and delay
+     * based congestion control.
+     * 
+     * @throws Exception if an error occurs
+     */
+    public void testFlakyConnectionWithSelectiveAcks() throws Exception {
+        final int NUM_BYTES = 200000;
+
+        // Start over with the settings, 5% flaky
+        tearDown();
+        setUp(new DefaultRUDPSettings() {
+            @Override
+            public boolean isSelectiveAckEnabled() {
+                return true;
+            }
+            @Override
+            public CongestionControl getCongestionControl() {
+                return CongestionControl.LEDBAT;
+            }
+            @Override
+            public int getDataWindowSize() {
+                return 64;
+            }
+        });
+        // the same pattern of losses on every run
+        stubService.clearReceivers();
+        stubService.addReceiver(6346, 6348, 10, 5, 6346);
+        stubService.addReceiver(6348, 6346, 10, 5, 6348);
+
+        final CountDownLatch threadEnder = new CountDownLatch(1);
+
+        // Start the second connection in another thread
+        // and run it to completion.
+        class Inner extends ManagedThread {
+            @Override
+            public void run() {
+                try {
+                    uconn1 = udpSelectorProvider.openAcceptorSocketChannel().socket();
+                    uconn1.connect(new InetSocketAddress("127.0.0.1", 6348), 2000);
+                    uconn1.setSoTimeout(TIMEOUT);
+                    UStandalone.echoServer(uconn1, NUM_BYTES);                   
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    threadEnder.countDown();
+                }
+            }
+        }
+        Inner t = new Inner();
+        t.setDaemon(true);
+        try {
+            t.start();
+
+            // Start the first connection
+            uconn2 = udpSelectorProvider.openSocketChannel().socket();
+            uconn2.connect(new InetSocketAddress("127.0.0.1", 6346), 2000);
+            uconn2.setSoTimeout(TIMEOUT);
+            UStandalone.echoClient(uconn2, NUM_BYTES);
+        } finally {
+            // Wait for the second to finish
+            assertTrue(threadEnder.await(2000 * 60, TimeUnit.MILLISECONDS));
+        }
+    }
+
     /**
      * Test that data can be written, echoed and read through 
      * an extrely flaky UDPConnection where 15% of messages are lost.
@@ -59,7 +59,19 @@ public class UDPServiceStub implements UDPService {
 
 	/** Create receiver for each simulated incoming connection */
 	public void addReceiver(int toPort, int fromPort, int delay, int pctFlaky) {
-		Receiver r = new Receiver(toPort, fromPort, delay, pctFlaky);
+		addReceiver(toPort, fromPort, delay, new Random(), pctFlaky);
+	}
+
+	/**
+	 * Create receiver for each simulated incoming connection, which drops
+	 * the same messages on each run for the same seed.
+	 */
+	public void addReceiver(int toPort, int fromPort, int delay, int pctFlaky, long seed) {
+		addReceiver(toPort, fromPort, delay, new Random(seed), pctFlaky);
+	}
+
+	private void addReceiver(int toPort, int fromPort, int delay, Random random, int pctFlaky) {
+		Receiver r = new Receiver(toPort, fromPort, delay, random, pctFlaky);
 		synchronized(RECEIVER_LIST) {
 			RECEIVER_LIST.add(r);
 		}
@@ -85,13 +97,13 @@ public class UDPServiceStub implements UDPService {
         private Random          _random;
         private Timer 			_timer;
         
-        Receiver(int toPort, int fromPort, int delay, int pctFlaky) {
+        Receiver(int toPort, int fromPort, int delay, Random random, int pctFlaky) {
             _toPort   = toPort;
             _fromPort = fromPort;
             _delay    = delay;
             _pctFlaky = pctFlaky;
 			_router   = multiplexor;
-            _random   = new Random();
+            _random   = random;
             _timer    = new Timer(true);
         }
 
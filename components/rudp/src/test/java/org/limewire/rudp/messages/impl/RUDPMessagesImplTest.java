@@ -5,6 +5,7 @@ import java.nio.ByteBuffer;
 
 import junit.framework.Test;
 
+import org.limewire.rudp.messages.AckMessage;
 import org.limewire.rudp.messages.RUDPMessage;
 import org.limewire.rudp.messages.RUDPMessageFactory;
 import org.limewire.rudp.messages.SynMessage.Role;
@@ -84,6 +85,25 @@ public class RUDPMessagesImplTest extends BaseTestCase {
     
     }
     
+    public void testSelectiveAcks() throws Exception {
+        RUDPMessageFactory factory = new DefaultMessageFactory();
+        AckMessage ack = factory.createAckMessage((byte)3, 5, 8, 3, 0x8000000000000005L);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ack.write(out);
+        assertEquals(factory.createAckMessage((byte)3, 5, 8, 3).getLength(), out.size());
+        
+        AckMessage read = (AckMessage)factory.createMessage(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals(5, read.getSequenceNumber());
+        assertEquals(8, read.getWindowStart());
+        assertEquals(3, read.getWindowSpace());
+        assertEquals(0x8000000000000005L, read.getSelectiveAcks());
+        
+        // acks of older hosts have none
+        byte[] ackData = Base32.decode("AMIAABIABAAAGAAAAAAAAAAAABAQCAAAAAAAA");
+        read = (AckMessage)factory.createMessage(ByteBuffer.wrap(ackData));
+        assertEquals(0, read.getSelectiveAcks());
+    }
+    
     private void checkMessage(RUDPMessage a, RUDPMessage b, byte[] data) throws Exception {
         assertEquals(b.getClass(), a.getClass());
         ByteArrayOutputStream out = new ByteArrayOutputStream();
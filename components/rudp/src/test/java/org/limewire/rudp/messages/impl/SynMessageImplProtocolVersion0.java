@@ -71,4 +71,12 @@ public class SynMessageImplProtocolVersion0 extends RUDPMessageImpl implements S
     public Role getRole() {
         return Role.UNDEFINED;
     }
+
+    public boolean isSelectiveAckSupported() {
+        return false;
+    }
+
+    public int getWindowSize() {
+        return 0;
+    }
 }
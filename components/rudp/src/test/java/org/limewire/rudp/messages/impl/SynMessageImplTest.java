@@ -77,6 +77,30 @@ public class SynMessageImplTest extends BaseTestCase {
         assertEquals(Role.REQUESTOR, readMessage.getRole());
     }
     
+    public void testWindowSizeAndSelectiveAcks() {
+        SynMessage synMessage = new SynMessageImpl((byte)5, (byte)7, Role.REQUESTOR, 64, true);
+        SynMessage readMessage = writeAndReparse(synMessage, version1MessageFactory);
+        assertEquals(Role.REQUESTOR, readMessage.getRole());
+        assertTrue(readMessage.isSelectiveAckSupported());
+        assertEquals(64, readMessage.getWindowSize());
+        
+        synMessage = new SynMessageImpl((byte)5, (byte)7, Role.REQUESTOR);
+        readMessage = writeAndReparse(synMessage, version1MessageFactory);
+        assertFalse(readMessage.isSelectiveAckSupported());
+        assertEquals(0, readMessage.getWindowSize());
+        
+        // older hosts ignore the additions
+        synMessage = new SynMessageImpl((byte)5, (byte)7, Role.REQUESTOR, 64, true);
+        readMessage = writeAndReparse(synMessage, version0MessageFactory);
+        assertEquals(5, readMessage.getSenderConnectionID());
+        assertFalse(readMessage.isSelectiveAckSupported());
+        
+        synMessage = new SynMessageImplProtocolVersion0((byte)5, (byte)7);
+        readMessage = writeAndReparse(synMessage, version1MessageFactory);
+        assertFalse(readMessage.isSelectiveAckSupported());
+        assertEquals(0, readMessage.getWindowSize());
+    }
+    
     public void testRoleCanConnectTo() {
         // undefined role can connect to everything
         for (Role role : Role.values()) {
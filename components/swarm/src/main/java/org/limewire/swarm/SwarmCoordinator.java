@@ -22,6 +22,14 @@ public interface SwarmCoordinator extends Closeable {
      */
     Range leasePortion(IntervalSet availableRanges, SwarmBlockSelector selector);
 
+    /**
+     * Leases a portion of data of at most segmentSize bytes, only allowing
+     * ranges in availableRanges. The returned range does not span a
+     * segmentSize boundary. If no data is available for leasing, this
+     * returns null.
+     */
+    Range leasePortion(IntervalSet availableRanges, long segmentSize);
+
     /**
      * Returns a previously leased range. This will allow other sources to lease
      * that range.
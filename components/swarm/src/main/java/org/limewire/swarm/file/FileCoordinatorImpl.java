@@ -97,9 +97,17 @@ public class FileCoordinatorImpl extends AbstractSwarmCoordinator {
     }
 
     public Range leasePortion(IntervalSet availableRanges, SwarmBlockSelector swarmSelector) {
-        return lease(availableRanges, blockSize, blockSelector);
+        return lease(availableRanges, blockSize, swarmSelector);
+    }
+
+    public Range leasePortion(IntervalSet availableRanges, long segmentSize) {
+        return lease(availableRanges, segmentSize, blockSelector);
     }
 
+    /**
+     * Selects and leases a range in one step while holding LOCK, so that
+     * sources leasing at the same time can never be given the same range.
+     */
     protected Range lease(IntervalSet availableRanges, long blockSize,
             SwarmBlockSelector swarmSelector) {
         // Lease modifies, so clone.
@@ -112,21 +120,21 @@ public class FileCoordinatorImpl extends AbstractSwarmCoordinator {
         }
 
         IntervalSet neededBytes = new IntervalSet();
-        availableRanges = getAvailableRangesForLease(availableRanges, neededBytes);
+        Range chosen;
+        synchronized (LOCK) {
+            availableRanges = getAvailableRangesForLease(availableRanges, neededBytes);
 
-        if (availableRanges.isEmpty()) {
-            return null;
-        }
+            if (availableRanges.isEmpty()) {
+                return null;
+            }
 
-        // Pick a range, add it to leased, and exit.
-        Range chosen;
-        try {
-            chosen = swarmSelector.selectAssignment(availableRanges, neededBytes, blockSize);
-        } catch (NoSuchElementException nsee) {
-            return null;
-        }
+            // Pick a range, add it to leased, and exit.
+            try {
+                chosen = swarmSelector.selectAssignment(availableRanges, neededBytes, blockSize);
+            } catch (NoSuchElementException nsee) {
+                return null;
+            }
 
-        synchronized (LOCK) {
             addLease(chosen);
         }
 
@@ -417,6 +425,15 @@ public class FileCoordinatorImpl extends AbstractSwarmCoordinator {
         }
     }
 
+    /**
+     * Returns the number of bytes that are out on lease.
+     */
+    public long getAmountLeased() {
+        synchronized (LOCK) {
+            return leasedBlocks.getSize();
+        }
+    }
+
     public Range renewLease(Range oldLease, Range newLease) {
         synchronized (LOCK) {
             assert hasLease(oldLease);
@@ -11,4 +11,6 @@ public interface SwarmHttpExecutionContext {
     public static final String HTTP_SWARM_SOURCE = "swarm.http.source";
 
     public static final String SWARM_RESPONSE_LISTENER = "swarm.basic.listener";
+
+    public static final String SWARM_REQUEST_PARAMETERS = "swarm.http.requestParameters";
 }
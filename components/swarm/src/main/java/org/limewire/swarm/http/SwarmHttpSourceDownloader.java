@@ -1,7 +1,12 @@
 package org.limewire.swarm.http;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.http.HttpRequest;
@@ -55,6 +60,14 @@ import org.limewire.util.Objects;
  * of the isFinished() flag. This can be used to override the default behavior,
  * which is to download until there are no more bytes to lease.
  * 
+ * Up to maxConnectionsPerHost keep-alive connections are opened to each host,
+ * {@link #DEFAULT_CONNECTIONS_PER_HOST} unless given otherwise, each of which
+ * leases its own segments, so a source is downloaded from in parallel.
+ * Sources that are added while their host has no connection left wait until
+ * one of its connections closes. The size of the segments follows
+ * the throughput measured for each source, so that every request takes about
+ * {@link #SEGMENT_TIME} milliseconds.
+ * 
  */
 public class SwarmHttpSourceDownloader implements SwarmSourceDownloader, NHttpRequestExecutionHandler {
 
@@ -70,8 +83,44 @@ public class SwarmHttpSourceDownloader implements SwarmSourceDownloader, NHttpRe
 
     private final SwarmStats stats;
 
+    /** The fewest bytes requested at once. */
+    static final long MIN_SEGMENT_SIZE = 16 * 1024;
+
+    /** The most bytes requested at once. */
+    static final long MAX_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * The number of milliseconds a request should take at the throughput of
+     * its source.
+     */
+    static final long SEGMENT_TIME = 1000;
+
+    /**
+     * The number of connections opened to each host unless given otherwise,
+     * which is set with the <code>org.limewire.swarm.connectionsPerHost</code>
+     * system property.
+     */
+    static final int DEFAULT_CONNECTIONS_PER_HOST =
+        Math.max(1, Integer.getInteger("org.limewire.swarm.connectionsPerHost", 1));
+
+    private final int maxConnectionsPerHost;
+
+    /**
+     * The connections of each host and the throughput of its sources.
+     * LOCKING: itself
+     */
+    private final Map<Object, HostConnections> hosts = new HashMap<Object, HostConnections>();
+
     public SwarmHttpSourceDownloader(LimeConnectingIOReactorFactory limeConnectingIOReactorFactory, SwarmCoordinator swarmCoordinator, String userAgent) {
+        this(limeConnectingIOReactorFactory, swarmCoordinator, userAgent, DEFAULT_CONNECTIONS_PER_HOST);
+    }
+
+    public SwarmHttpSourceDownloader(LimeConnectingIOReactorFactory limeConnectingIOReactorFactory,
+            SwarmCoordinator swarmCoordinator, String userAgent, int maxConnectionsPerHost) {
+        if (maxConnectionsPerHost < 1)
+            throw new IllegalArgumentException("maxConnectionsPerHost cannot be " + maxConnectionsPerHost);
         this.swarmCoordinator = Objects.nonNull(swarmCoordinator, "swarmCoordinator");
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
         this.stats = new SwarmStats();
 
         HttpParams params = new BasicHttpParams();
@@ -102,6 +151,16 @@ public class SwarmHttpSourceDownloader implements SwarmSourceDownloader, NHttpRe
         LOG.tracef("Adding source: {0}", source);
         stats.incrementNumberOfSources();
 
+        // only a source that got no connection at all waits for one
+        if (!reserveConnection(source, true)) {
+            return;
+        }
+        do {
+            connect(source);
+        } while (reserveConnection(source, false));
+    }
+
+    private void connect(SwarmSource source) {
         SessionRequestCallback sessionRequestCallback = new SwarmHttpSessionRequestCallback(source);
 
         LOG.tracef("Connecting source to ioReactor: {0}", source);
@@ -110,6 +169,74 @@ public class SwarmHttpSourceDownloader implements SwarmSourceDownloader, NHttpRe
                 sessionRequestCallback);
     }
 
+    /**
+     * Takes one of the connections of the source's host, or makes the source
+     * wait for one if there are none left and wait is true.
+     * 
+     * @return true if a connection was taken
+     */
+    boolean reserveConnection(SwarmSource source, boolean wait) {
+        synchronized (hosts) {
+            Object host = getHost(source.getAddress());
+            HostConnections connections = hosts.get(host);
+            if (connections == null) {
+                connections = new HostConnections();
+                hosts.put(host, connections);
+            }
+            if (connections.open < maxConnectionsPerHost) {
+                connections.connect(source);
+                connections.waiting.remove(source);
+                return true;
+            }
+            if (wait && !connections.waiting.contains(source)) {
+                LOG.tracef("Waiting for a connection to host: {0}", source);
+                connections.waiting.add(source);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Gives back a connection of the source's host, connecting a waiting
+     * source in its place.  Once the source has no connection left, its
+     * throughput is forgotten.
+     */
+    void releaseConnection(SwarmSource source) {
+        SwarmSource next = null;
+        synchronized (hosts) {
+            Object host = getHost(source.getAddress());
+            HostConnections connections = hosts.get(host);
+            if (connections == null) {
+                return;
+            }
+            connections.disconnect(source);
+            next = connections.waiting.poll();
+            if (next != null) {
+                connections.connect(next);
+            } else if (connections.open == 0) {
+                hosts.remove(host);
+            }
+        }
+        if (next != null) {
+            connect(next);
+        }
+    }
+
+    /**
+     * Returns the key that the connections to the host of address are
+     * counted under.
+     */
+    private static Object getHost(SocketAddress address) {
+        if (address instanceof InetSocketAddress) {
+            InetSocketAddress inetAddress = (InetSocketAddress) address;
+            if (inetAddress.getAddress() != null) {
+                return inetAddress.getAddress();
+            }
+            return inetAddress.getHostName();
+        }
+        return address;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -183,6 +310,8 @@ public class SwarmHttpSourceDownloader implements SwarmSourceDownloader, NHttpRe
     public void finalizeContext(HttpContext context) {
         LOG.tracef("finalizeContext: {0}", this);
         SwarmSource source = getSwarmSource(context);
+        // before the source can reconnect
+        releaseConnection(source);
         source.connectionClosed(SwarmHttpSourceDownloader.this);
         closeContentListener(context);
     }
@@ -255,6 +384,7 @@ public class SwarmHttpSourceDownloader implements SwarmSourceDownloader, NHttpRe
 
         if (isActive()) {
             SwarmSource swarmSource = getSwarmSource(context);
+            measureLastRequest(context, swarmSource);
             HttpRequest request = null;
             if (swarmSource.isFinished() || isComplete()) {
                 if (LOG.isTraceEnabled()) {
@@ -294,6 +424,32 @@ public class SwarmHttpSourceDownloader implements SwarmSourceDownloader, NHttpRe
         return swarmSource;
     }
 
+    /**
+     * Measures the throughput of the last request made on the connection,
+     * which has been completely read when the next request is submitted.
+     */
+    private void measureLastRequest(HttpContext context, SwarmSource source) {
+        RequestParameters lastRequest = (RequestParameters) context
+                .getAttribute(SwarmHttpExecutionContext.SWARM_REQUEST_PARAMETERS);
+        if (lastRequest != null) {
+            context.setAttribute(SwarmHttpExecutionContext.SWARM_REQUEST_PARAMETERS, null);
+            long elapsed = System.currentTimeMillis() - lastRequest.getRequestTime();
+            getThroughput(source).measure(lastRequest.getDownloadRange().getLength(), elapsed);
+        }
+    }
+
+    /**
+     * Returns the throughput of the source, which is kept for as long as
+     * the source has a connection.
+     */
+    SourceThroughput getThroughput(SwarmSource source) {
+        synchronized (hosts) {
+            HostConnections connections = hosts.get(getHost(source.getAddress()));
+            SourceThroughput throughput = connections != null ? connections.sources.get(source) : null;
+            return throughput != null ? throughput : new SourceThroughput();
+        }
+    }
+
     /**
      * Builds the next request.
      */
@@ -310,6 +466,8 @@ public class SwarmHttpSourceDownloader implements SwarmSourceDownloader, NHttpRe
 
             context.setAttribute(SwarmHttpExecutionContext.SWARM_RESPONSE_LISTENER,
                     new SwarmHttpContentListener(swarmCoordinator, swarmFile, leaseRange));
+            context.setAttribute(SwarmHttpExecutionContext.SWARM_REQUEST_PARAMETERS,
+                    requestParameters);
 
             request = new BasicHttpRequest("GET", requestParameters.getPath());
             request.addHeader(new BasicHeader("Range", "bytes=" + requestParameters.getLow() + "-"
@@ -352,7 +510,8 @@ public class SwarmHttpSourceDownloader implements SwarmSourceDownloader, NHttpRe
     private RequestParameters buildRequestParameters(SwarmSource source) {
         IntervalSet availableRanges = source.getAvailableRanges();
 
-        Range leaseRange = swarmCoordinator.leasePortion(availableRanges);
+        long segmentSize = getThroughput(source).getSegmentSize();
+        Range leaseRange = swarmCoordinator.leasePortion(availableRanges, segmentSize);
 
         if (leaseRange == null) {
             LOG.debug("No range available to lease.");
@@ -390,6 +549,8 @@ public class SwarmHttpSourceDownloader implements SwarmSourceDownloader, NHttpRe
 
         private final Range downloadRange;
 
+        private final long requestTime = System.currentTimeMillis();
+
         public RequestParameters(SwarmFile swarmFile, String path, Range leaseRange,
                 Range downloadRange) {
             super();
@@ -426,6 +587,75 @@ public class SwarmHttpSourceDownloader implements SwarmSourceDownloader, NHttpRe
         public Range getDownloadRange() {
             return downloadRange;
         }
+
+        public long getRequestTime() {
+            return requestTime;
+        }
+    }
+
+    /**
+     * The connections open to a host and the sources waiting for one.
+     */
+    private static class HostConnections {
+        private int open;
+
+        /** The sources of the host that have a connection, with their throughput. */
+        private final Map<SwarmSource, SourceThroughput> sources = new HashMap<SwarmSource, SourceThroughput>();
+
+        private final LinkedList<SwarmSource> waiting = new LinkedList<SwarmSource>();
+
+        void connect(SwarmSource source) {
+            open++;
+            SourceThroughput throughput = sources.get(source);
+            if (throughput == null) {
+                throughput = new SourceThroughput();
+                sources.put(source, throughput);
+            }
+            throughput.connections++;
+        }
+
+        void disconnect(SwarmSource source) {
+            open--;
+            SourceThroughput throughput = sources.get(source);
+            if (throughput != null && --throughput.connections == 0) {
+                sources.remove(source);
+            }
+        }
+    }
+
+    /**
+     * The throughput of a source, which decides the size of the segments
+     * requested from it.
+     */
+    static class SourceThroughput {
+        /** The weight of the newest measurement. */
+        private static final double MEASUREMENT_WEIGHT = 0.5;
+
+        private double bytesPerSecond;
+
+        /** The number of connections to the source. LOCKING: hosts */
+        private int connections;
+
+        synchronized void measure(long bytes, long elapsed) {
+            double rate = bytes * 1000.0 / Math.max(1, elapsed);
+            if (bytesPerSecond == 0) {
+                bytesPerSecond = rate;
+            } else {
+                bytesPerSecond = MEASUREMENT_WEIGHT * rate + (1 - MEASUREMENT_WEIGHT)
+                        * bytesPerSecond;
+            }
+        }
+
+        /**
+         * Returns the largest power of two no larger than what the source
+         * sends in {@link SwarmHttpSourceDownloader#SEGMENT_TIME}, between
+         * the minimum and maximum segment size.
+         */
+        synchronized long getSegmentSize() {
+            long size = (long) (bytesPerSecond * SEGMENT_TIME / 1000);
+            size = Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, size));
+            return Long.highestOneBit(size);
+        }
     }
 
     /**
@@ -439,6 +669,7 @@ public class SwarmHttpSourceDownloader implements SwarmSourceDownloader, NHttpRe
         }
 
         public void cancelled(SessionRequest request) {
+            releaseConnection(source);
             source.connectFailed(SwarmHttpSourceDownloader.this);
         };
 
@@ -447,10 +678,12 @@ public class SwarmHttpSourceDownloader implements SwarmSourceDownloader, NHttpRe
         };
 
         public void failed(SessionRequest request) {
+            releaseConnection(source);
             source.connectFailed(SwarmHttpSourceDownloader.this);
         };
 
         public void timeout(SessionRequest request) {
+            releaseConnection(source);
             source.connectFailed(SwarmHttpSourceDownloader.this);
         };
 
@@ -0,0 +1,137 @@
+package org.limewire.swarm.file;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+import junit.framework.Test;
+
+import org.limewire.collection.IntervalSet;
+import org.limewire.collection.Range;
+import org.limewire.concurrent.ExecutorsHelper;
+import org.limewire.swarm.file.selection.BiasedRandomDownloadStrategy;
+import org.limewire.swarm.file.selection.ContiguousSelectionStrategy;
+import org.limewire.swarm.file.verifier.NoOpFileVerifier;
+import org.limewire.util.BaseTestCase;
+import org.limewire.util.FileUtils;
+
+public class FileCoordinatorImplTest extends BaseTestCase {
+
+    private static final long FILE_SIZE = 1024 * 1024;
+
+    private final File TEST_DIR;
+
+    private ExecutorService writeService;
+
+    private SwarmFileSystemImpl fileSystem;
+
+    public FileCoordinatorImplTest(String name) {
+        super(name);
+        this.TEST_DIR = new File(System.getProperty("java.io.tmpdir") + "/limetests/");
+    }
+
+    public static Test suite() {
+        return buildTestSuite(FileCoordinatorImplTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        TEST_DIR.mkdirs();
+        File file = new File(TEST_DIR, "FileCoordinatorImplTest.bin");
+        file.delete();
+        file.deleteOnExit();
+        fileSystem = new SwarmFileSystemImpl(new SwarmFileImpl(file, FILE_SIZE));
+        writeService = ExecutorsHelper.newProcessingQueue("FileCoordinatorImplTest");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        writeService.shutdown();
+        fileSystem.close();
+        FileUtils.deleteRecursive(TEST_DIR);
+    }
+
+    public void testConcurrentLeasesDoNotOverlapContiguous() throws Exception {
+        assertConcurrentLeasesDoNotOverlap(new FileCoordinatorImpl(fileSystem,
+                new NoOpFileVerifier(), writeService, new ContiguousSelectionStrategy()));
+    }
+
+    public void testConcurrentLeasesDoNotOverlapBiasedRandom() throws Exception {
+        assertConcurrentLeasesDoNotOverlap(new FileCoordinatorImpl(fileSystem,
+                new NoOpFileVerifier(), writeService, new BiasedRandomDownloadStrategy(FILE_SIZE)));
+    }
+
+    public void testLeasePortionOfSegmentSize() throws Exception {
+        FileCoordinatorImpl coordinator = new FileCoordinatorImpl(fileSystem,
+                new NoOpFileVerifier(), writeService, new ContiguousSelectionStrategy());
+        assertEquals(Range.createRange(0, 16 * 1024 - 1), coordinator.leasePortion(null));
+        assertEquals(Range.createRange(16 * 1024, 128 * 1024 - 1), coordinator.leasePortion(null,
+                128 * 1024));
+        assertEquals(Range.createRange(128 * 1024, 256 * 1024 - 1), coordinator.leasePortion(
+                null, 128 * 1024));
+        assertEquals(256 * 1024, coordinator.getAmountLeased());
+
+        // leases that are given back can be leased again
+        coordinator.unlease(Range.createRange(16 * 1024, 128 * 1024 - 1));
+        assertEquals(Range.createRange(16 * 1024, 32 * 1024 - 1), coordinator.leasePortion(null));
+    }
+
+    public void testLeasePortionUsesGivenSelector() throws Exception {
+        FileCoordinatorImpl coordinator = new FileCoordinatorImpl(fileSystem,
+                new NoOpFileVerifier(), writeService, new ContiguousSelectionStrategy());
+        final Range last = Range.createRange(FILE_SIZE - 1, FILE_SIZE - 1);
+        assertEquals(last, coordinator.leasePortion(null, new ContiguousSelectionStrategy() {
+            @Override
+            public Range selectAssignment(IntervalSet candidateBytes, IntervalSet neededBytes,
+                    long blockSize) {
+                return last;
+            }
+        }));
+    }
+
+    /**
+     * Leases the whole file from several threads at once, checking that
+     * every byte was leased exactly once.
+     */
+    private void assertConcurrentLeasesDoNotOverlap(final FileCoordinatorImpl coordinator)
+            throws Exception {
+        final List<Range> leases = Collections.synchronizedList(new ArrayList<Range>());
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    Range lease;
+                    while ((lease = coordinator.leasePortion(null)) != null) {
+                        leases.add(lease);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+
+        IntervalSet leased = new IntervalSet();
+        long total = 0;
+        for (Range lease : leases) {
+            total += lease.getLength();
+            leased.add(lease);
+        }
+        assertEquals(FILE_SIZE, total);
+        assertEquals(FILE_SIZE, leased.getSize());
+        assertEquals(FILE_SIZE, coordinator.getAmountLeased());
+    }
+}
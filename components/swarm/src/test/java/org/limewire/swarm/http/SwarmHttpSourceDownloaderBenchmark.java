@@ -0,0 +1,26 @@
+package org.limewire.swarm.http;
+
+/**
+ * Downloads a file from two local servers with one and with several
+ * connections per host and prints how long each download took.
+ * <p>
+ * This is not part of the test suite; run it with {@link #main(String[])}.
+ */
+public class SwarmHttpSourceDownloaderBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        SwarmHttpSourceDownloaderTest test = new SwarmHttpSourceDownloaderTest("benchmark");
+        test.setUp();
+        try {
+            for (int connections : new int[] { 1, 2, 4 }) {
+                long elapsed = test.download(connections, SwarmHttpSourceDownloaderTest.PORT_1,
+                        SwarmHttpSourceDownloaderTest.PORT_2);
+                int kilobytes = SwarmHttpSourceDownloaderTest.FILE_SIZE / 1024;
+                System.out.println(connections + " connection(s) per host: " + kilobytes + "KB in "
+                        + elapsed + "ms, " + kilobytes * 1000L / Math.max(1, elapsed) + "KB/s");
+            }
+        } finally {
+            test.tearDown();
+        }
+    }
+}
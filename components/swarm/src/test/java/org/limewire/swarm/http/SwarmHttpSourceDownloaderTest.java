@@ -0,0 +1,244 @@
+package org.limewire.swarm.http;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+
+import org.limewire.collection.Range;
+import org.limewire.common.LimeWireCommonModule;
+import org.limewire.concurrent.ExecutorsHelper;
+import org.limewire.http.reactor.LimeConnectingIOReactorFactory;
+import org.limewire.swarm.LimeWireSwarmTestModule;
+import org.limewire.swarm.SwarmCoordinator;
+import org.limewire.swarm.SwarmCoordinatorListener;
+import org.limewire.swarm.SwarmFileSystem;
+import org.limewire.swarm.SwarmSourceType;
+import org.limewire.swarm.file.FileCoordinatorImpl;
+import org.limewire.swarm.file.SwarmFileImpl;
+import org.limewire.swarm.file.SwarmFileSystemImpl;
+import org.limewire.swarm.file.selection.ContiguousSelectionStrategy;
+import org.limewire.swarm.file.verifier.NoOpFileVerifier;
+import org.limewire.swarm.http.SwarmHttpSourceDownloader.SourceThroughput;
+import org.limewire.swarm.impl.SwarmerImpl;
+import org.limewire.util.BaseTestCase;
+import org.limewire.util.FileUtils;
+import org.limewire.util.PrivilegedAccessor;
+
+import com.google.inject.Guice;
+
+public class SwarmHttpSourceDownloaderTest extends BaseTestCase {
+
+    static final int PORT_1 = 9121;
+
+    static final int PORT_2 = 9122;
+
+    static final int FILE_SIZE = 8 * 1024 * 1024;
+
+    private final File TEST_DIR;
+
+    private File serverDir;
+
+    private byte[] content;
+
+    private FileServer server1, server2;
+
+    private LimeConnectingIOReactorFactory reactorFactory;
+
+    private ExecutorService writeService;
+
+    public SwarmHttpSourceDownloaderTest(String name) {
+        super(name);
+        this.TEST_DIR = new File(System.getProperty("java.io.tmpdir") + "/limetests/");
+    }
+
+    public static Test suite() {
+        return buildTestSuite(SwarmHttpSourceDownloaderTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        serverDir = new File(TEST_DIR, "served");
+        serverDir.mkdirs();
+        content = new byte[FILE_SIZE];
+        new Random().nextBytes(content);
+        OutputStream out = new FileOutputStream(new File(serverDir, "content.bin"));
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+
+        server1 = new FileServer(PORT_1, serverDir);
+        server1.start();
+        server2 = new FileServer(PORT_2, serverDir);
+        server2.start();
+
+        reactorFactory = Guice.createInjector(new LimeWireCommonModule(),
+                new LimeWireSwarmTestModule()).getInstance(LimeConnectingIOReactorFactory.class);
+        writeService = ExecutorsHelper.newProcessingQueue("SwarmHttpSourceDownloaderTest");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server1.stop();
+        server2.stop();
+        writeService.shutdown();
+        FileUtils.deleteRecursive(TEST_DIR);
+    }
+
+    public void testSegmentSizeFollowsThroughput() throws Exception {
+        SourceThroughput throughput = new SourceThroughput();
+        assertEquals(SwarmHttpSourceDownloader.MIN_SEGMENT_SIZE, throughput.getSegmentSize());
+
+        // 100KB in 500ms is 200KB/s, rounded down to a 128KB segment
+        throughput.measure(100 * 1024, 500);
+        assertEquals(128 * 1024, throughput.getSegmentSize());
+
+        // half of the new measurement counts
+        throughput.measure(600 * 1024, 1000);
+        assertEquals(256 * 1024, throughput.getSegmentSize());
+
+        throughput.measure(100 * 1024 * 1024, 1000);
+        assertEquals(SwarmHttpSourceDownloader.MAX_SEGMENT_SIZE, throughput.getSegmentSize());
+
+        throughput = new SourceThroughput();
+        throughput.measure(1024, 1000);
+        assertEquals(SwarmHttpSourceDownloader.MIN_SEGMENT_SIZE, throughput.getSegmentSize());
+    }
+
+    public void testConnectionsPerHostMustBePositive() throws Exception {
+        try {
+            new SwarmHttpSourceDownloader(reactorFactory, createCoordinator(new File(TEST_DIR,
+                    "invalid.bin")), "LimeWire", 0);
+            fail("expected exception");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testDownloadWithOneConnectionPerHost() throws Exception {
+        download(1, PORT_1);
+    }
+
+    public void testDownloadWithSeveralConnectionsPerHost() throws Exception {
+        download(4, PORT_1, PORT_2);
+    }
+
+    public void testThroughputIsForgottenWithTheLastConnection() throws Exception {
+        SwarmHttpSourceDownloader downloader = new SwarmHttpSourceDownloader(reactorFactory,
+                createCoordinator(new File(TEST_DIR, "forgotten.bin")), "LimeWire", 2);
+        SwarmHttpSource source = new SwarmHttpSource(new URI("http://localhost:" + PORT_1
+                + "/content.bin"), FILE_SIZE);
+        assertTrue(downloader.reserveConnection(source, true));
+        assertTrue(downloader.reserveConnection(source, false));
+        assertFalse(downloader.reserveConnection(source, false));
+
+        SourceThroughput throughput = downloader.getThroughput(source);
+        assertSame(throughput, downloader.getThroughput(source));
+        downloader.releaseConnection(source);
+        assertSame(throughput, downloader.getThroughput(source));
+        downloader.releaseConnection(source);
+        assertNotSame(throughput, downloader.getThroughput(source));
+        assertEquals(0, ((Map<?, ?>) PrivilegedAccessor.getValue(downloader, "hosts")).size());
+    }
+
+    public void testSourceWithConnectionsDoesNotWait() throws Exception {
+        SwarmHttpSourceDownloader downloader = new SwarmHttpSourceDownloader(reactorFactory,
+                createCoordinator(new File(TEST_DIR, "waiting.bin")), "LimeWire", 2);
+        SwarmHttpSource source = new SwarmHttpSource(new URI("http://localhost:" + PORT_1
+                + "/content.bin"), FILE_SIZE);
+        downloader.start();
+        downloader.addSource(source);
+
+        Map<?, ?> hosts = (Map<?, ?>) PrivilegedAccessor.getValue(downloader, "hosts");
+        synchronized (hosts) {
+            assertEquals(1, hosts.size());
+            Object connections = hosts.values().iterator().next();
+            assertEquals(2, PrivilegedAccessor.getValue(connections, "open"));
+            assertEquals(0, ((Collection<?>) PrivilegedAccessor.getValue(connections, "waiting")).size());
+        }
+        downloader.shutdown();
+    }
+
+    /**
+     * Downloads the file from the servers on ports and checks its content.
+     *
+     * @return the number of milliseconds the download took
+     */
+    long download(int connectionsPerHost, int... ports) throws Exception {
+        File file = new File(TEST_DIR, "download-" + connectionsPerHost + ".bin");
+        file.delete();
+        SwarmCoordinator coordinator = createCoordinator(file);
+        final CountDownLatch completed = new CountDownLatch(1);
+        coordinator.addListener(new CompletionListener(completed));
+
+        SwarmerImpl swarmer = new SwarmerImpl(coordinator);
+        SwarmHttpSourceDownloader downloader = new SwarmHttpSourceDownloader(reactorFactory,
+                coordinator, "LimeWire", connectionsPerHost);
+        swarmer.register(SwarmSourceType.HTTP, downloader);
+        long start = System.currentTimeMillis();
+        long elapsed;
+        swarmer.start();
+        try {
+            for (int port : ports) {
+                swarmer.addSource(new SwarmHttpSource(new URI("http://localhost:" + port
+                        + "/content.bin"), FILE_SIZE));
+            }
+            assertTrue("download did not complete", completed.await(60, TimeUnit.SECONDS));
+            elapsed = System.currentTimeMillis() - start;
+
+        } finally {
+            swarmer.shutdown();
+        }
+        assertTrue(Arrays.equals(content, FileUtils.readFileFully(file)));
+        return elapsed;
+    }
+
+    private SwarmCoordinator createCoordinator(File file) {
+        SwarmFileSystem fileSystem = new SwarmFileSystemImpl(new SwarmFileImpl(file, FILE_SIZE));
+        return new FileCoordinatorImpl(fileSystem, new NoOpFileVerifier(), writeService,
+                new ContiguousSelectionStrategy());
+    }
+
+    private static class CompletionListener implements SwarmCoordinatorListener {
+        private final CountDownLatch completed;
+
+        CompletionListener(CountDownLatch completed) {
+            this.completed = completed;
+        }
+
+        public void downloadCompleted(SwarmCoordinator swarmCoordinator, SwarmFileSystem fileSystem) {
+            completed.countDown();
+        }
+
+        public void blockLeased(SwarmCoordinator swarmCoordinator, Range block) {
+        }
+
+        public void blockPending(SwarmCoordinator swarmCoordinator, Range block) {
+        }
+
+        public void blockUnleased(SwarmCoordinator swarmCoordinator, Range block) {
+        }
+
+        public void blockUnpending(SwarmCoordinator swarmCoordinator, Range block) {
+        }
+
+        public void blockVerificationFailed(SwarmCoordinator swarmCoordinator, Range block) {
+        }
+
+        public void blockVerified(SwarmCoordinator swarmCoordinator, Range block) {
+        }
+
+        public void blockWritten(SwarmCoordinator swarmCoordinator, Range block) {
+        }
+    }
+}